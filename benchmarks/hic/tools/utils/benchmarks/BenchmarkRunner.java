@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal in-process benchmark harness: warm up, time a fixed number of iterations,
+ * and write one JSON record per benchmark so that runs can be compared against each other.
+ */
+public class BenchmarkRunner {
+
+    private static final Pattern RESULT_LINE = Pattern.compile(
+            "\\{\"name\": \"([^\"]+)\".*\"meanNanos\": ([0-9.Ee+-]+)");
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final List<Entry> entries = new ArrayList<>();
+    private long blackhole = 0;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+    }
+
+    /**
+     * @param operation       work to time; its result is consumed so the JIT cannot drop it
+     * @param operationsPerCall number of logical operations (records, pairs, ...) per call
+     */
+    public void add(String name, long operationsPerCall, LongSupplier operation) {
+        entries.add(new Entry(name, operationsPerCall, operation));
+    }
+
+    public void runAll(File output, File baseline) throws IOException {
+        Map<String, Double> previous = baseline == null ? new HashMap<>() : readMeans(baseline);
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries) {
+            for (int i = 0; i < warmupIterations; i++) {
+                blackhole += entry.operation.getAsLong();
+            }
+            double[] times = new double[measurementIterations];
+            for (int i = 0; i < measurementIterations; i++) {
+                long start = System.nanoTime();
+                blackhole += entry.operation.getAsLong();
+                times[i] = System.nanoTime() - start;
+            }
+            double mean = 0, min = Double.MAX_VALUE;
+            for (double t : times) {
+                mean += t;
+                min = Math.min(min, t);
+            }
+            mean /= times.length;
+            double variance = 0;
+            for (double t : times) {
+                variance += (t - mean) * (t - mean);
+            }
+            double stdev = Math.sqrt(variance / times.length);
+            double opsPerSecond = entry.operationsPerCall / (mean * 1e-9);
+
+            String comparison = "";
+            if (previous.containsKey(entry.name)) {
+                double change = 100.0 * (mean - previous.get(entry.name)) / previous.get(entry.name);
+                comparison = String.format(Locale.US, " (%+.1f%% vs baseline)", change);
+            }
+            System.out.println(String.format(Locale.US, "%-40s %12.3f ms  %14.0f ops/s%s",
+                    entry.name, mean * 1e-6, opsPerSecond, comparison));
+            lines.add(String.format(Locale.US,
+                    "{\"name\": \"%s\", \"iterations\": %d, \"opsPerCall\": %d, \"meanNanos\": %.1f, " +
+                            "\"minNanos\": %.1f, \"stdevNanos\": %.1f, \"opsPerSecond\": %.1f}",
+                    entry.name, measurementIterations, entry.operationsPerCall, mean, min, stdev, opsPerSecond));
+        }
+
+        try (PrintWriter pw = new PrintWriter(output)) {
+            pw.println("{");
+            pw.println("\"timestamp\": " + System.currentTimeMillis() + ",");
+            pw.println("\"javaVersion\": \"" + System.getProperty("java.version") + "\",");
+            pw.println("\"availableProcessors\": " + Runtime.getRuntime().availableProcessors() + ",");
+            pw.println("\"checksum\": " + blackhole + ",");
+            pw.println("\"benchmarks\": [");
+            for (int i = 0; i < lines.size(); i++) {
+                pw.println(lines.get(i) + (i < lines.size() - 1 ? "," : ""));
+            }
+            pw.println("]");
+            pw.println("}");
+        }
+    }
+
+    private static Map<String, Double> readMeans(File baseline) throws IOException {
+        Map<String, Double> means = new HashMap<>();
+        for (String line : Files.readAllLines(baseline.toPath())) {
+            Matcher matcher = RESULT_LINE.matcher(line);
+            if (matcher.find()) {
+                means.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+            }
+        }
+        return means;
+    }
+
+    private static class Entry {
+        final String name;
+        final long operationsPerCall;
+        final LongSupplier operation;
+
+        Entry(String name, long operationsPerCall, LongSupplier operation) {
+            this.name = name;
+            this.operationsPerCall = operationsPerCall;
+            this.operation = operation;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.benchmarks;
+
+import hic.tools.HiCTools;
+import hic.tools.utils.original.PreprocessCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kills a checkpointed pre run once its first checkpoint is on disk, restarts it, and checks that
+ * the resumed file is byte-identical to an uninterrupted run and reports as many duplicates removed.
+ * A restart with a different -q must be refused rather than resumed.
+ * <p>
+ * Each run is a separate JVM on the current classpath, killed without a chance to clean up.
+ * <p>
+ * Usage: CheckpointResumeCheck [numPairs] [workDirectory]
+ * <br>
+ * Exits with a nonzero status if the resumed file or duplicate count differs or the mismatched restart
+ * is accepted.
+ */
+public class CheckpointResumeCheck {
+
+    private static final String[] CHROMOSOMES = {"chr1", "chr2", "chr3", "chr4", "chr5", "chr6"};
+    private static final int CHROMOSOME_LENGTH = 20000000;
+    private static final int CHECKPOINT_MISMATCH_STATUS = 71;
+    private static final int DUPLICATE_EVERY = 10;
+    private static final String DUPLICATES_REPORT = "Duplicate pairs removed: ";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int numPairs = args.length > 0 ? Integer.parseInt(args[0]) : 3000000;
+        File directory = args.length > 1 ? new File(args[1])
+                : Files.createTempDirectory("checkpoint-check").toFile();
+
+        File sizes = new File(directory, "synthetic.chrom.sizes");
+        List<String> sizeLines = new ArrayList<>();
+        for (String chromosome : CHROMOSOMES) {
+            sizeLines.add(chromosome + "\t" + CHROMOSOME_LENGTH);
+        }
+        Files.write(sizes.toPath(), sizeLines, StandardCharsets.UTF_8);
+
+        File input = new File(directory, "synthetic_nodups.txt");
+        Files.write(input.toPath(), groupedByChromosomePair(numPairs), StandardCharsets.UTF_8);
+
+        File reference = new File(directory, "reference.hic");
+        File resumed = new File(directory, "resumed.hic");
+        File checkpoint = PreprocessCheckpoint.getFile(resumed.getPath());
+
+        int status = pre(input, reference, sizes, "0").waitFor();
+        if (status != 0) {
+            fail("Uninterrupted run exited with " + status);
+        }
+
+        killAfterFirstCheckpoint(pre(input, resumed, sizes, "0"), checkpoint);
+        killAfterFirstCheckpoint(pre(input, resumed, sizes, "0"), checkpoint);
+
+        status = pre(input, resumed, sizes, "5").waitFor();
+        if (status != CHECKPOINT_MISMATCH_STATUS) {
+            fail("Restart with a different -q exited with " + status + " instead of refusing to resume");
+        }
+
+        status = pre(input, resumed, sizes, "0").waitFor();
+        if (status != 0) {
+            fail("Resumed run exited with " + status);
+        }
+        if (checkpoint.exists()) {
+            fail(checkpoint + " was left behind after the run completed");
+        }
+        if (!Arrays.equals(Files.readAllBytes(reference.toPath()), Files.readAllBytes(resumed.toPath()))) {
+            fail(resumed + " differs from " + reference);
+        }
+        String referenceDuplicates = lastDuplicateReport(reference);
+        String resumedDuplicates = lastDuplicateReport(resumed);
+        if (referenceDuplicates == null || !referenceDuplicates.equals(resumedDuplicates)) {
+            fail("Resumed run reported \"" + resumedDuplicates + "\" instead of \"" + referenceDuplicates + "\"");
+        }
+        System.out.println("Resumed output matches the uninterrupted run (" + reference.length() + " bytes, "
+                + referenceDuplicates + ")");
+    }
+
+    /**
+     * Pre needs each chromosome pair's contacts together, so the synthetic lines are sorted by pair;
+     * every tenth line is followed by a copy under another read name, for --dedup to remove
+     */
+    private static List<String> groupedByChromosomePair(int numPairs) {
+        List<String> lines = new ArrayList<>();
+        String[] synthetic = SyntheticContacts.mndLines(numPairs, CHROMOSOMES, CHROMOSOME_LENGTH, 0);
+        for (int i = 0; i < synthetic.length; i++) {
+            lines.add(synthetic[i]);
+            if (i % DUPLICATE_EVERY == 0) {
+                lines.add("copy" + synthetic[i]);
+            }
+        }
+        lines.sort(Comparator.comparing(CheckpointResumeCheck::chromosomePair));
+        return lines;
+    }
+
+    private static String chromosomePair(String line) {
+        String[] tokens = line.split(" ");
+        return tokens[2].compareTo(tokens[6]) <= 0 ? tokens[2] + "_" + tokens[6] : tokens[6] + "_" + tokens[2];
+    }
+
+    private static Process pre(File input, File output, File sizes, String mapq) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                HiCTools.class.getName(), "pre", "-n", "--checkpoint", "--dedup", "-q", mapq,
+                input.getPath(), output.getPath(), sizes.getPath());
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(output.getPath() + ".log")));
+        return builder.start();
+    }
+
+    /**
+     * The log is appended to by every run on the same output, so the last report is the final run's
+     */
+    private static String lastDuplicateReport(File output) throws IOException {
+        String report = null;
+        for (String line : Files.readAllLines(new File(output.getPath() + ".log").toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith(DUPLICATES_REPORT)) {
+                report = line;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Kill the run as soon as it writes a checkpoint different from the one it started with
+     */
+    private static void killAfterFirstCheckpoint(Process process, File checkpoint) throws InterruptedException {
+        byte[] previous = readIfPresent(checkpoint);
+        byte[] current = previous;
+        while (process.isAlive() && (current == null || Arrays.equals(current, previous))) {
+            Thread.sleep(5);
+            current = readIfPresent(checkpoint);
+        }
+        if (!process.isAlive()) {
+            fail("Run finished before it could be killed; use more pairs");
+        }
+        process.destroyForcibly();
+        process.waitFor(1, TimeUnit.MINUTES);
+        System.out.println("Killed run after checkpoint " + checkpoint);
+    }
+
+    /**
+     * Checkpoints are replaced by rename, so a read sees either the old or the new one
+     */
+    private static byte[] readIfPresent(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.benchmarks;
+
+import hic.HiCGlobals;
+import hic.tools.utils.bigarray.BigContactArray;
+import hic.tools.utils.bigarray.BigContactArrayCreator;
+import hic.tools.utils.bigarray.CSRContactMatrix;
+import hic.tools.utils.iterators.mnd.ParsingBenchmarks;
+import hic.tools.utils.largelists.BigFloatsArray;
+import hic.tools.utils.largelists.BigIntsArray;
+import hic.tools.utils.largelists.KernelBenchmarks;
+import hic.tools.utils.norm.scale.FinalScale;
+import hic.tools.utils.original.PreprocessingBenchmarks;
+import hic.tools.utils.other.BigWigBenchmarks;
+import hic.tools.utils.tasks.TaskScope;
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.basics.ChromosomeTools;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.tools.ParallelizationTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.Consumer;
+
+/**
+ * Benchmarks for the preprocessing and normalization hot paths, all on synthetic data generated in-process.
+ * <p>
+ * Usage: HotPathBenchmarks <output.json> [baseline.json]
+ * <br>
+ * Results are written as JSON; if a previous results file is given, the change in mean time is printed.
+ * Run once without and once with {@code --add-modules jdk.incubator.vector}, passing the first results as the
+ * baseline of the second, to see the effect of the vector kernels on the SCALE iterations.
+ */
+public class HotPathBenchmarks {
+
+    private static final int NUM_CONTACTS = 2000000;
+    private static final int MATRIX_SIZE = 40000;
+    private static final int NUM_MND_LINES = 500000;
+    private static final int NUM_WIG_ITEMS = 5000000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: HotPathBenchmarks <output.json> [baseline.json]");
+            System.exit(5);
+        }
+
+        SyntheticContacts contacts = new SyntheticContacts(NUM_CONTACTS, MATRIX_SIZE, 0);
+        String[] mndLines = SyntheticContacts.mndLines(NUM_MND_LINES, new String[]{"1", "2", "3", "X"},
+                100000000, 0);
+        ChromosomeHandler handler = ChromosomeTools.loadChromosomes("hg19");
+
+        BenchmarkRunner runner = new BenchmarkRunner(3, 10);
+        ParsingBenchmarks.register(runner, mndLines);
+        PreprocessingBenchmarks.register(runner, contacts, handler, 1);
+        registerNormBenchmarks(runner, contacts);
+        registerScaleVectorBenchmarks(runner, NUM_CONTACTS);
+        KernelBenchmarks.register(runner, NUM_CONTACTS);
+        BigWigBenchmarks.register(runner, NUM_WIG_ITEMS, 10);
+        BigWigBenchmarks.register(runner, NUM_WIG_ITEMS, 1000);
+        registerSchedulingBenchmarks(runner, contacts);
+
+        runner.runAll(new File(args[0]), args.length > 1 ? new File(args[1]) : null);
+    }
+
+    /**
+     * Many short parallel sections, as in the scaling iterations: a new fixed pool per section
+     * (ParallelizationTools) against a TaskScope on the shared pool
+     */
+    private static void registerSchedulingBenchmarks(BenchmarkRunner runner, SyntheticContacts contacts) {
+        int numSections = 200;
+        int numThreads = HiCGlobals.normThreads;
+        float[] values = contacts.counts;
+        runner.add("ParallelizationTools.launchParallelizedCode(" + numThreads + " threads)",
+                numSections, () -> runSections(numSections, values,
+                        worker -> ParallelizationTools.launchParallelizedCode(numThreads, worker)));
+        runner.add("TaskScope.launchParallelizedCode(" + numThreads + " threads)",
+                numSections, () -> runSections(numSections, values,
+                        worker -> TaskScope.launchParallelizedCode(numThreads, worker)));
+    }
+
+    private static long runSections(int numSections, float[] values, Consumer<Runnable> launcher) {
+        int chunkSize = 10000;
+        DoubleAdder total = new DoubleAdder();
+        for (int s = 0; s < numSections; s++) {
+            AtomicInteger index = new AtomicInteger(0);
+            launcher.accept(() -> {
+                double sum = 0;
+                int start = index.getAndAdd(chunkSize);
+                while (start < values.length) {
+                    int end = Math.min(values.length, start + chunkSize);
+                    for (int i = start; i < end; i++) {
+                        sum += values[i];
+                    }
+                    start = index.getAndAdd(chunkSize);
+                }
+                total.add(sum);
+            });
+        }
+        return (long) total.sum();
+    }
+
+    private static void registerNormBenchmarks(BenchmarkRunner runner, SyntheticContacts contacts) {
+        BigContactArray array = new BigContactArray(contacts.matrixSize);
+        array.addSubList(contacts.binX.clone(), contacts.binY.clone(), contacts.counts.clone());
+
+        BigFloatsArray vector = new BigFloatsArray(contacts.matrixSize);
+        for (int i = 0; i < contacts.matrixSize; i++) {
+            vector.set(i, 1 + (i % 7) * 0.1f);
+        }
+        runner.add("BigContactArray.parSparseMultiplyAcrossLists(" + HiCGlobals.normThreads + " threads)",
+                contacts.binX.length, () -> {
+                    BigFloatsArray result = array.parSparseMultiplyAcrossLists(vector, contacts.matrixSize);
+                    return (long) result.get(0);
+                });
+
+        CSRContactMatrix csr = BigContactArrayCreator.populateCSRFromTwoPasses(() -> iterate(contacts),
+                contacts.matrixSize);
+        runner.add("CSRContactMatrix.parSparseMultiplyAcrossLists(" + HiCGlobals.normThreads + " threads)",
+                contacts.binX.length, () -> {
+                    BigFloatsArray result = csr.parSparseMultiplyAcrossLists(vector, contacts.matrixSize);
+                    return (long) result.get(0);
+                });
+        runner.add("BigContactArrayCreator.populateCSRFromTwoPasses", contacts.binX.length, () ->
+                BigContactArrayCreator.populateCSRFromTwoPasses(() -> iterate(contacts),
+                        contacts.matrixSize).getNumEntries());
+
+        runner.add("FinalScale.scaleToTargetVector", contacts.binX.length, () -> {
+            ListOfFloatArrays scale = FinalScale.scaleToTargetVector(array, contacts.matrixSize, null, "benchmark");
+            return scale == null ? 0 : scale.getLength();
+        });
+        runner.add("FinalScale.scaleToTargetVector(CSR)", contacts.binX.length, () -> {
+            ListOfFloatArrays scale = FinalScale.scaleToTargetVector(csr, contacts.matrixSize, null, "benchmark");
+            return scale == null ? 0 : scale.getLength();
+        });
+    }
+
+    /**
+     * The vector passes of one SCALE iteration, on a vector as long as a high-resolution chromosome
+     */
+    private static void registerScaleVectorBenchmarks(BenchmarkRunner runner, int length) {
+        BigFloatsArray dr = new BigFloatsArray(length);
+        BigFloatsArray dc = new BigFloatsArray(length);
+        BigFloatsArray current = new BigFloatsArray(length);
+        BigIntsArray target = new BigIntsArray(length, (short) 1);
+        BigIntsArray bad = new BigIntsArray(length);
+        for (int i = 0; i < length; i++) {
+            dr.set(i, 0.5f + (i % 13) * 0.1f);
+            dc.set(i, 0.5f + (i % 11) * 0.1f);
+            current.set(i, 0.5f + (i % 7) * 0.1f);
+            if (i % 50 == 0) bad.set(i, (short) 1);
+        }
+        float[] copy = new float[length];
+
+        runner.add("BigFloatsArray.parScaleByRatio", length, () -> {
+            BigFloatsArray vector = dr.deepClone();
+            vector.parScaleByRatio(target, dc);
+            return (long) vector.get(1);
+        });
+        runner.add("BigFloatsArray.parSetToGeoMean", length, () -> {
+            current.parSetToGeoMean(dr, dc);
+            return (long) current.get(1);
+        });
+        runner.add("BigFloatsArray.parCalculateConvergenceError", length, () ->
+                (long) (1e6 * BigFloatsArray.parCalculateConvergenceError(dr, dc, bad)));
+        runner.add("BigFloatsArray.parCountRelativeErrorsAbove", length, () ->
+                BigFloatsArray.parCountRelativeErrorsAbove(dr, dc, bad, 1e-4f));
+        runner.add("BigFloatsArray.parSetWhere", length, () -> {
+            current.parSetWhere(bad, 1f);
+            return (long) current.get(0);
+        });
+        runner.add("BigFloatsArray.copyInto", length, () -> {
+            current.copyInto(copy);
+            return (long) copy[1];
+        });
+    }
+
+    private static Iterator<ContactRecord> iterate(SyntheticContacts contacts) {
+        return new Iterator<ContactRecord>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < contacts.binX.length;
+            }
+
+            @Override
+            public ContactRecord next() {
+                ContactRecord record = new ContactRecord(contacts.binX[index], contacts.binY[index],
+                        contacts.counts[index]);
+                index++;
+                return record;
+            }
+        };
+    }
+}
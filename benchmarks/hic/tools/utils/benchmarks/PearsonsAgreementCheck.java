@@ -0,0 +1,287 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.benchmarks;
+
+import hic.tools.utils.bigarray.BigContactArrayCreator;
+import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.pearsons.PearsonsStatistics;
+import hic.tools.utils.pearsons.SparsePearsonsEigenvector;
+import hic.tools.utils.pearsons.SymmetricSparseRows;
+import hic.tools.utils.pearsons.TiledPearsons;
+import javastraw.reader.block.ContactRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Checks the tiled Pearson's matrix and the sparse eigenvector against a dense reference on a small
+ * synthetic observed/expected map with two compartments and a few empty bins.
+ * <p>
+ * The reference follows the dense calculation directly: drop the empty bins, center every column,
+ * correlate the rows, and take the leading eigenvector by power iteration.
+ * <p>
+ * Usage: PearsonsAgreementCheck [matrixSize]
+ * <br>
+ * Exits with a nonzero status if either result disagrees with the reference.
+ */
+public class PearsonsAgreementCheck {
+
+    private static final double MAX_CORRELATION_ERROR = 1e-4;
+    private static final double MAX_EIGENVECTOR_ERROR = 1e-3;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        float[][] oe = syntheticMap(n, 0);
+
+        double[][] reference = denseCorrelation(oe);
+        double tiledError = maxTiledError(oe, reference);
+        double eigenvectorError = maxEigenvectorError(sparseEigenvector(oe), leadingEigenvector(reference));
+
+        System.out.println("Max difference between tiled and dense Pearson's: " + tiledError);
+        System.out.println("Max difference between sparse and dense eigenvectors: " + eigenvectorError);
+        if (!(tiledError < MAX_CORRELATION_ERROR) || !(eigenvectorError < MAX_EIGENVECTOR_ERROR)) {
+            System.err.println("Sparse Pearson's calculation does not match the dense calculation");
+            System.exit(1);
+        }
+        System.out.println("Sparse Pearson's calculation matches the dense calculation");
+    }
+
+    /**
+     * Symmetric O/E values that decay sparsely with distance, enriched within each of two
+     * alternating compartments; every 37th bin is left empty.
+     */
+    private static float[][] syntheticMap(int n, long seed) {
+        Random generator = new Random(seed);
+        float[][] oe = new float[n][n];
+        for (int i = 0; i < n; i++) {
+            if (i % 37 == 5) continue;
+            int compartmentI = (i / 25) % 2 == 0 ? 1 : -1;
+            for (int j = i; j < n; j++) {
+                if (j % 37 == 5) continue;
+                if (generator.nextDouble() > 4.0 / (4 + j - i)) continue;
+                int compartmentJ = (j / 25) % 2 == 0 ? 1 : -1;
+                float value = (float) ((1 + 0.5 * compartmentI * compartmentJ) * (0.5 + generator.nextDouble()));
+                oe[i][j] = value;
+                oe[j][i] = value;
+            }
+        }
+        return oe;
+    }
+
+    private static List<ContactRecord> upperTriangle(float[][] oe) {
+        List<ContactRecord> records = new ArrayList<>();
+        for (int i = 0; i < oe.length; i++) {
+            for (int j = i; j < oe.length; j++) {
+                if (oe[i][j] != 0) records.add(new ContactRecord(i, j, oe[i][j]));
+            }
+        }
+        return records;
+    }
+
+    private static PearsonsStatistics statistics(float[][] oe, Function<double[], double[]> product) {
+        int n = oe.length;
+        double[] rowSums = new double[n];
+        double[] rowSquareSums = new double[n];
+        boolean[] hasData = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                rowSums[i] += oe[i][j];
+                rowSquareSums[i] += oe[i][j] * oe[i][j];
+                hasData[i] |= oe[i][j] != 0;
+            }
+        }
+        return new PearsonsStatistics(rowSums, rowSquareSums, hasData, product);
+    }
+
+    private static double maxTiledError(float[][] oe, double[][] reference) {
+        int n = oe.length;
+        int[] rowCounts = new int[n];
+        List<ContactRecord> records = upperTriangle(oe);
+        for (ContactRecord record : records) {
+            rowCounts[record.getBinX()]++;
+            if (record.getBinX() != record.getBinY()) rowCounts[record.getBinY()]++;
+        }
+        SymmetricSparseRows rows = new SymmetricSparseRows(rowCounts);
+        for (ContactRecord record : records) {
+            rows.add(record.getBinX(), record.getBinY(), record.getCounts());
+        }
+
+        TiledPearsons pearsons = new TiledPearsons(statistics(oe, means -> multiply(oe, means)), rows, 1);
+        float[][] band = new float[64][n];
+        double maxError = 0;
+        for (int start = 0; start < n; start += band.length) {
+            pearsons.fillBand(start, band);
+            for (int r = 0; r < band.length && start + r < n; r++) {
+                for (int j = 0; j < n; j++) {
+                    double expected = reference[start + r][j];
+                    if (Double.isNaN(expected) != Float.isNaN(band[r][j])) return Double.POSITIVE_INFINITY;
+                    if (!Double.isNaN(expected)) {
+                        maxError = Math.max(maxError, Math.abs(expected - band[r][j]));
+                    }
+                }
+            }
+        }
+        return maxError;
+    }
+
+    private static double[] sparseEigenvector(float[][] oe) {
+        BigContactList contacts = BigContactArrayCreator.populateBigArrayFromSingleIterator(
+                upperTriangle(oe).iterator(), 10000000, oe.length);
+        return new SparsePearsonsEigenvector(statistics(oe, means -> multiply(oe, means)), contacts)
+                .getLeadingEigenvector();
+    }
+
+    private static double[] multiply(float[][] matrix, double[] vector) {
+        double[] result = new double[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            for (int j = 0; j < matrix.length; j++) {
+                result[i] += matrix[i][j] * vector[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Pearson's correlation of the rows after dropping empty bins and centering every column;
+     * rows that are empty or constant are NaN.
+     */
+    private static double[][] denseCorrelation(float[][] oe) {
+        int n = oe.length;
+        List<Integer> binsWithData = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (oe[i][j] != 0) {
+                    binsWithData.add(i);
+                    break;
+                }
+            }
+        }
+        int k = binsWithData.size();
+        double[][] centered = new double[k][k];
+        for (int c = 0; c < k; c++) {
+            double mean = 0;
+            for (int r = 0; r < k; r++) {
+                mean += oe[binsWithData.get(r)][binsWithData.get(c)];
+            }
+            mean /= k;
+            for (int r = 0; r < k; r++) {
+                centered[r][c] = oe[binsWithData.get(r)][binsWithData.get(c)] - mean;
+            }
+        }
+        for (double[] row : centered) {
+            double mean = 0;
+            for (double value : row) {
+                mean += value;
+            }
+            mean /= k;
+            double length = 0;
+            for (int c = 0; c < k; c++) {
+                row[c] -= mean;
+                length += row[c] * row[c];
+            }
+            length = Math.sqrt(length);
+            for (int c = 0; c < k; c++) {
+                row[c] = length > 0 ? row[c] / length : Double.NaN;
+            }
+        }
+
+        double[][] correlation = new double[n][n];
+        for (double[] row : correlation) {
+            Arrays.fill(row, Double.NaN);
+        }
+        for (int a = 0; a < k; a++) {
+            for (int b = 0; b < k; b++) {
+                double dot = 0;
+                for (int c = 0; c < k; c++) {
+                    dot += centered[a][c] * centered[b][c];
+                }
+                correlation[binsWithData.get(a)][binsWithData.get(b)] = dot;
+            }
+        }
+        return correlation;
+    }
+
+    /**
+     * The correlation matrix is positive semi-definite, so power iteration finds its largest eigenvalue.
+     */
+    private static double[] leadingEigenvector(double[][] correlation) {
+        int n = correlation.length;
+        double[] v = new double[n];
+        Random generator = new Random(1);
+        for (int i = 0; i < n; i++) {
+            v[i] = Double.isNaN(correlation[i][i]) ? 0 : generator.nextDouble() - 0.5;
+        }
+        for (int iteration = 0; iteration < 10000; iteration++) {
+            double[] next = new double[n];
+            double length = 0;
+            for (int i = 0; i < n; i++) {
+                if (Double.isNaN(correlation[i][i])) continue;
+                for (int j = 0; j < n; j++) {
+                    if (!Double.isNaN(correlation[j][j])) next[i] += correlation[i][j] * v[j];
+                }
+                length += next[i] * next[i];
+            }
+            length = Math.sqrt(length);
+            double change = 0;
+            for (int i = 0; i < n; i++) {
+                next[i] /= length;
+                change = Math.max(change, Math.abs(next[i] - v[i]));
+            }
+            v = next;
+            if (change < 1e-12) break;
+        }
+        for (int i = 0; i < n; i++) {
+            if (Double.isNaN(correlation[i][i])) v[i] = Double.NaN;
+        }
+        return v;
+    }
+
+    /**
+     * Eigenvectors are only defined up to sign, so both are compared as unit vectors with matching sign.
+     */
+    private static double maxEigenvectorError(double[] sparse, double[] dense) {
+        double dot = 0;
+        double sparseLength = 0;
+        double denseLength = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (Double.isNaN(dense[i]) != Double.isNaN(sparse[i])) return Double.POSITIVE_INFINITY;
+            if (Double.isNaN(dense[i])) continue;
+            dot += sparse[i] * dense[i];
+            sparseLength += sparse[i] * sparse[i];
+            denseLength += dense[i] * dense[i];
+        }
+        double sign = dot < 0 ? -1 : 1;
+        double maxError = 0;
+        for (int i = 0; i < dense.length; i++) {
+            if (Double.isNaN(dense[i])) continue;
+            double difference = sign * sparse[i] / Math.sqrt(sparseLength) - dense[i] / Math.sqrt(denseLength);
+            maxError = Math.max(maxError, Math.abs(difference));
+        }
+        return maxError;
+    }
+}
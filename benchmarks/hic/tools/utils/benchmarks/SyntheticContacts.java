@@ -0,0 +1,73 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Synthetic intra-chromosomal contacts with a power-law distance decay, roughly like Hi-C data.
+ */
+public class SyntheticContacts {
+
+    public final int[] binX;
+    public final int[] binY;
+    public final float[] counts;
+    public final int matrixSize;
+
+    public SyntheticContacts(int numContacts, int matrixSize, long seed) {
+        this.matrixSize = matrixSize;
+        binX = new int[numContacts];
+        binY = new int[numContacts];
+        counts = new float[numContacts];
+        Random generator = new Random(seed);
+        for (int i = 0; i < numContacts; i++) {
+            int x = generator.nextInt(matrixSize);
+            int distance = (int) Math.min(matrixSize - 1, Math.pow(matrixSize, generator.nextDouble()) - 1);
+            binX[i] = x;
+            binY[i] = Math.min(matrixSize - 1, x + distance);
+            counts[i] = 1 + generator.nextInt(Math.max(1, 50 / (distance + 1)) + 1);
+        }
+    }
+
+    /**
+     * @return medium-format merged_nodups lines over the given chromosomes
+     */
+    public static String[] mndLines(int numLines, String[] chromosomes, int chromosomeLength, long seed) {
+        Random generator = new Random(seed);
+        String[] lines = new String[numLines];
+        for (int i = 0; i < numLines; i++) {
+            String chr1 = chromosomes[generator.nextInt(chromosomes.length)];
+            String chr2 = generator.nextInt(4) == 0 ? chromosomes[generator.nextInt(chromosomes.length)] : chr1;
+            int pos1 = generator.nextInt(chromosomeLength);
+            int pos2 = chr1.equals(chr2)
+                    ? Math.min(chromosomeLength - 1, pos1 + (int) Math.pow(chromosomeLength, generator.nextDouble()))
+                    : generator.nextInt(chromosomeLength);
+            lines[i] = "read" + i + " " + (generator.nextBoolean() ? 0 : 16) + " " + chr1 + " " + pos1 + " "
+                    + (pos1 / 4000) + " " + (generator.nextBoolean() ? 0 : 16) + " " + chr2 + " " + pos2 + " "
+                    + (pos2 / 4000) + " " + generator.nextInt(61) + " " + generator.nextInt(61);
+        }
+        return lines;
+    }
+}
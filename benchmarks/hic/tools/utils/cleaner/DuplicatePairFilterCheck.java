@@ -0,0 +1,178 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.cleaner;
+
+import hic.tools.utils.iterators.mnd.AlignmentPair;
+
+import java.util.*;
+
+/**
+ * Checks {@link DuplicatePairFilter} against sort-based references on synthetic pairs, grouped by
+ * chromosome pair and sorted by position, with exact and jittered duplicates and a few deep hotspots,
+ * so that both the window scan and the neighbour lookups are exercised.
+ * <p>
+ * Without a tolerance, the number of duplicates must equal the number of pairs less the number of
+ * distinct (chromosomes, strands, positions) after sorting. With a tolerance, every pair's verdict must
+ * match a search of all earlier kept pairs of the same chromosome pair and strands, held sorted by
+ * first position.
+ * <p>
+ * Usage: DuplicatePairFilterCheck [numPairs]
+ * <br>
+ * Exits with a nonzero status if any count or verdict differs.
+ */
+public class DuplicatePairFilterCheck {
+
+    private static final int[] TOLERANCES = {0, 1, 2, 10, 100};
+
+    public static void main(String[] args) {
+        int numPairs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        List<AlignmentPair> pairs = syntheticPairs(numPairs, 0);
+
+        boolean passed = true;
+        for (int tolerance : TOLERANCES) {
+            long start = System.nanoTime();
+            DuplicatePairFilter filter = new DuplicatePairFilter(tolerance);
+            boolean[] verdicts = new boolean[pairs.size()];
+            for (int i = 0; i < verdicts.length; i++) {
+                verdicts[i] = filter.isDuplicate(pairs.get(i));
+            }
+            long elapsed = (System.nanoTime() - start) / 1000000;
+
+            boolean matches;
+            long expected;
+            if (tolerance == 0) {
+                expected = pairs.size() - countDistinct(pairs);
+                matches = filter.getNumDuplicates() == expected;
+            } else {
+                boolean[] reference = referenceVerdicts(pairs, tolerance);
+                expected = 0;
+                for (boolean duplicate : reference) {
+                    if (duplicate) expected++;
+                }
+                matches = Arrays.equals(verdicts, reference) && filter.getNumDuplicates() == expected;
+            }
+            System.out.println("Tolerance " + tolerance + ": " + filter.getNumDuplicates() + " duplicates of " +
+                    pairs.size() + " pairs in " + elapsed + " ms, reference " + expected +
+                    (matches ? "" : " - MISMATCH"));
+            passed &= matches;
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Pairs sorted by first position within each chromosome pair; about one in eight repeats a recent
+     * pair exactly or within a few bp, and every so often a hotspot puts thousands of pairs within 4 bp
+     */
+    private static List<AlignmentPair> syntheticPairs(int numPairs, long seed) {
+        Random generator = new Random(seed);
+        int[][] chromosomePairs = {{1, 1}, {1, 2}, {2, 2}, {3, 3}, {2, 3}};
+        List<AlignmentPair> pairs = new ArrayList<>(numPairs);
+        for (int c = 0; c < chromosomePairs.length; c++) {
+            int chr1 = chromosomePairs[c][0];
+            int chr2 = chromosomePairs[c][1];
+            int count = numPairs / chromosomePairs.length;
+            long[] keys = new long[count];
+            int pos1 = 0;
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && generator.nextInt(8) == 0) {
+                    long previous = keys[i - 1 - generator.nextInt(Math.min(i, 5))];
+                    int jitter = generator.nextInt(3) == 0 ? 0 : generator.nextInt(9) - 4;
+                    int p1 = Math.max((int) (previous >>> 34), (int) (previous >>> 34) + jitter);
+                    int p2 = Math.max(p1, (int) (previous >>> 2) & 0xFFFFFFF) + generator.nextInt(3);
+                    keys[i] = ((long) p1 << 34) | ((long) p2 << 2) | (previous & 3);
+                    continue;
+                }
+                pos1 += generator.nextInt(200000) == 0 ? 0 : generator.nextInt(400);
+                boolean hotspot = generator.nextInt(100000) == 0;
+                int p1 = pos1 + (hotspot ? 0 : generator.nextInt(4));
+                int p2 = chr1 == chr2 ? p1 + generator.nextInt(1000000) : generator.nextInt(100000000);
+                keys[i] = ((long) p1 << 34) | ((long) p2 << 2) | generator.nextInt(4);
+                if (hotspot) {
+                    for (int h = 1; h < 3000 && i + 1 < count; h++) {
+                        keys[++i] = ((long) (p1 + generator.nextInt(4)) << 34)
+                                | ((long) (p1 + 4 + generator.nextInt(100000)) << 2) | generator.nextInt(4);
+                    }
+                }
+            }
+            Arrays.sort(keys);
+            for (long key : keys) {
+                int strands = (int) (key & 3);
+                pairs.add(new AlignmentPair((strands & 2) != 0, chr1, (int) (key >>> 34), 0,
+                        (strands & 1) != 0, chr2, (int) (key >>> 2) & 0xFFFFFFF, 1));
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Sort all pairs and count the runs of identical neighbours
+     */
+    private static long countDistinct(List<AlignmentPair> pairs) {
+        String[] keys = new String[pairs.size()];
+        for (int i = 0; i < keys.length; i++) {
+            AlignmentPair pair = pairs.get(i);
+            keys[i] = pair.getChr1() + " " + pair.getChr2() + " " + pair.getStrand1() + " " + pair.getStrand2()
+                    + " " + pair.getPos1() + " " + pair.getPos2();
+        }
+        Arrays.sort(keys);
+        long distinct = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || !keys[i].equals(keys[i - 1])) distinct++;
+        }
+        return distinct;
+    }
+
+    /**
+     * A pair is a duplicate if any earlier kept pair of its chromosome pair and strands lies within
+     * tolerance in both positions
+     */
+    private static boolean[] referenceVerdicts(List<AlignmentPair> pairs, int tolerance) {
+        boolean[] verdicts = new boolean[pairs.size()];
+        Map<String, TreeMap<Integer, List<Integer>>> kept = new HashMap<>();
+        for (int i = 0; i < verdicts.length; i++) {
+            AlignmentPair pair = pairs.get(i);
+            String group = pair.getChr1() + " " + pair.getChr2() + " " + pair.getStrand1() + " " + pair.getStrand2();
+            TreeMap<Integer, List<Integer>> byPos1 = kept.computeIfAbsent(group, k -> new TreeMap<>());
+            boolean duplicate = false;
+            for (List<Integer> positions : byPos1.subMap(pair.getPos1() - tolerance, true,
+                    pair.getPos1() + tolerance, true).values()) {
+                for (int pos2 : positions) {
+                    if (Math.abs(pos2 - pair.getPos2()) <= tolerance) {
+                        duplicate = true;
+                        break;
+                    }
+                }
+                if (duplicate) break;
+            }
+            verdicts[i] = duplicate;
+            if (!duplicate) {
+                byPos1.computeIfAbsent(pair.getPos1(), k -> new ArrayList<>()).add(pair.getPos2());
+            }
+        }
+        return verdicts;
+    }
+}
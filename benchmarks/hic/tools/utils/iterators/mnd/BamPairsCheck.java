@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import htsjdk.samtools.*;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.basics.ChromosomeTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Checks BAM input on a small synthetic name-sorted BAM written by htsjdk: the pairs read by
+ * {@link BAMPairIterator} must match the records written, on one and on several decompression
+ * threads; the columnar pairs file that pre reads instead must hold the same pairs, grouped by
+ * chromosome pair, and the same as those converted from the pairs written as text, or to .bin less the
+ * mapping qualities it does not keep; and a coordinate-sorted BAM must be refused.
+ * <p>
+ * The records include reverse-strand reads with clipped and gapped alignments, secondary and
+ * supplementary alignments, unmapped mates, missing mates and mates on a contig outside the genome.
+ * <p>
+ * Usage: BamPairsCheck [numReads]
+ * <br>
+ * Exits with a nonzero status if any check fails.
+ */
+public class BamPairsCheck {
+
+    private static final String[] REFERENCES = {"chr1", "chr2", "chr3", "chrUn_contig"};
+    private static final int REFERENCE_LENGTH = 10000000;
+    private static final String[] CIGARS = {"50M", "5S45M", "20M2I28M", "20M3D30M", "10M200N40M", "48M2H", "12=1X37="};
+
+    public static void main(String[] args) throws IOException {
+        int numReads = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File directory = Files.createTempDirectory("bam-check").toFile();
+        directory.deleteOnExit();
+
+        File sizes = new File(directory, "synthetic.chrom.sizes");
+        Files.write(sizes.toPath(), Arrays.asList("chr1\t" + REFERENCE_LENGTH, "chr2\t" + REFERENCE_LENGTH,
+                "chr3\t" + REFERENCE_LENGTH), StandardCharsets.UTF_8);
+        sizes.deleteOnExit();
+        ChromosomeHandler handler = ChromosomeTools.loadChromosomes(sizes.getPath());
+        Map<String, Integer> ordinals = new HashMap<>();
+        for (Chromosome c : handler.getChromosomeArray()) {
+            ordinals.put(c.getName(), c.getIndex());
+        }
+
+        File bam = new File(directory, "synthetic.bam");
+        bam.deleteOnExit();
+        List<String> mndLines = new ArrayList<>();
+        List<String> expected = writeBam(bam, SAMFileHeader.SortOrder.queryname, numReads, handler, ordinals,
+                mndLines);
+
+        boolean passed = true;
+        for (int numThreads : new int[]{1, 4}) {
+            List<String> pairs = new ArrayList<>();
+            PairIterator iterator = new BAMPairIterator(bam.getPath(), ordinals, handler, numThreads);
+            while (iterator.hasNext()) {
+                pairs.add(describe(iterator.next()));
+            }
+            iterator.close();
+            passed &= report("BAM pairs on " + numThreads + " thread(s)", expected.equals(pairs));
+        }
+
+        File columnar = new File(directory, "synthetic" + ColumnarPairsIndex.EXTENSION);
+        columnar.deleteOnExit();
+        AsciiToBinConverter.convert(bam.getPath(), columnar.getPath(), handler, 4);
+        passed &= report("Columnar pairs grouped by chromosome pair",
+                isGroupedCopy(new ColumnarPairIterator(columnar.getPath(), ordinals, handler), expected));
+
+        File text = new File(directory, "synthetic.txt");
+        text.deleteOnExit();
+        Files.write(text.toPath(), mndLines, StandardCharsets.UTF_8);
+        File textColumnar = new File(directory, "synthetic_text" + ColumnarPairsIndex.EXTENSION);
+        textColumnar.deleteOnExit();
+        AsciiToBinConverter.convert(text.getPath(), textColumnar.getPath(), handler, 4);
+        List<String> columnarPairs = readPairs(new ColumnarPairIterator(columnar.getPath(), ordinals, handler),
+                ordinals.values(), true);
+        passed &= report("Columnar pairs same as from text", columnarPairs.equals(readPairs(
+                new ColumnarPairIterator(textColumnar.getPath(), ordinals, handler), ordinals.values(), true)));
+
+        File bin = new File(directory, "synthetic.bin");
+        bin.deleteOnExit();
+        AsciiToBinConverter.convert(text.getPath(), bin.getPath(), handler, 4);
+        List<String> positions = readPairs(new ColumnarPairIterator(columnar.getPath(), ordinals, handler),
+                ordinals.values(), false);
+        List<String> binPositions = readPairs(new BinPairIterator(bin.getPath()), ordinals.values(), false);
+        Collections.sort(positions);
+        Collections.sort(binPositions);
+        passed &= report("Columnar pairs same as in .bin", positions.equals(binPositions));
+
+        File coordinateSorted = new File(directory, "coordinate.bam");
+        coordinateSorted.deleteOnExit();
+        writeBam(coordinateSorted, SAMFileHeader.SortOrder.coordinate, 10, handler, ordinals, new ArrayList<>());
+        boolean refused = false;
+        try {
+            new BAMPairIterator(coordinateSorted.getPath(), ordinals, handler, 1).close();
+        } catch (IOException e) {
+            refused = true;
+        }
+        passed &= report("Coordinate-sorted BAM refused", refused);
+
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes numReads read names' records in name order, and each pair with both mates mapped to mndLines
+     * in the medium text format
+     *
+     * @return the pairs a reader should produce, described as in {@link #describe(AlignmentPair)}
+     */
+    private static List<String> writeBam(File bam, SAMFileHeader.SortOrder sortOrder, int numReads,
+                                         ChromosomeHandler handler, Map<String, Integer> ordinals,
+                                         List<String> mndLines) {
+        SAMFileHeader header = new SAMFileHeader();
+        List<SAMSequenceRecord> sequences = new ArrayList<>();
+        for (String reference : REFERENCES) {
+            sequences.add(new SAMSequenceRecord(reference, REFERENCE_LENGTH));
+        }
+        header.setSequenceDictionary(new SAMSequenceDictionary(sequences));
+        header.setSortOrder(sortOrder);
+
+        Random generator = new Random(0);
+        List<String> expected = new ArrayList<>();
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam)) {
+            for (int i = 0; i < numReads; i++) {
+                String name = String.format("read%08d", i);
+                SAMRecord first = mate(header, name, SAMFlag.FIRST_OF_PAIR, generator);
+                SAMRecord second = mate(header, name, SAMFlag.SECOND_OF_PAIR, generator);
+                boolean missingMate = generator.nextInt(20) == 0;
+
+                writer.addAlignment(first);
+                if (generator.nextInt(5) == 0) {
+                    SAMRecord supplementary = mate(header, name, SAMFlag.FIRST_OF_PAIR, generator);
+                    supplementary.setSupplementaryAlignmentFlag(true);
+                    writer.addAlignment(supplementary);
+                }
+                if (!missingMate) {
+                    writer.addAlignment(second);
+                }
+                if (generator.nextInt(10) == 0) {
+                    SAMRecord secondary = mate(header, name, SAMFlag.SECOND_OF_PAIR, generator);
+                    secondary.setSecondaryAlignment(true);
+                    writer.addAlignment(secondary);
+                }
+
+                if (missingMate || first.getReadUnmappedFlag() || second.getReadUnmappedFlag()) continue;
+                mndLines.add(name + " " + (first.getReadNegativeStrandFlag() ? 16 : 0) + " "
+                        + first.getReferenceName() + " " + fivePrimeEnd(first) + " 0 "
+                        + (second.getReadNegativeStrandFlag() ? 16 : 0) + " " + second.getReferenceName() + " "
+                        + fivePrimeEnd(second) + " 1 " + first.getMappingQuality() + " " + second.getMappingQuality());
+                Integer chr1 = ordinals.get(handler.cleanUpName(first.getReferenceName()));
+                Integer chr2 = ordinals.get(handler.cleanUpName(second.getReferenceName()));
+                if (chr1 == null || chr2 == null) {
+                    expected.add(describe(new AlignmentPair()));
+                } else {
+                    expected.add(describe(new AlignmentPair(!first.getReadNegativeStrandFlag(), chr1,
+                            fivePrimeEnd(first), 0, first.getMappingQuality(), !second.getReadNegativeStrandFlag(),
+                            chr2, fivePrimeEnd(second), 1, second.getMappingQuality())));
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static SAMRecord mate(SAMFileHeader header, String name, SAMFlag mateFlag, Random generator) {
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(name);
+        record.setReadPairedFlag(true);
+        record.setFlags(record.getFlags() | mateFlag.intValue());
+        record.setReferenceIndex(generator.nextInt(REFERENCES.length));
+        record.setAlignmentStart(1 + generator.nextInt(REFERENCE_LENGTH - 1000));
+        record.setMappingQuality(generator.nextInt(61));
+        record.setCigarString(CIGARS[generator.nextInt(CIGARS.length)]);
+        record.setReadNegativeStrandFlag(generator.nextBoolean());
+        record.setReadUnmappedFlag(generator.nextInt(30) == 0);
+        record.setReadBases(SAMRecord.NULL_SEQUENCE);
+        record.setBaseQualities(SAMRecord.NULL_QUALS);
+        return record;
+    }
+
+    private static int fivePrimeEnd(SAMRecord record) {
+        return record.getReadNegativeStrandFlag() ? record.getAlignmentEnd() : record.getAlignmentStart();
+    }
+
+    private static String describe(AlignmentPair pair) {
+        if (!pair.isNotContigPair()) {
+            return "contig";
+        }
+        return pair.getStrand1() + " " + pair.getChr1() + " " + pair.getPos1() + " " + pair.getMapq1() + " "
+                + pair.getStrand2() + " " + pair.getChr2() + " " + pair.getPos2() + " " + pair.getMapq2();
+    }
+
+    /**
+     * @return whether the iterator holds the expected pairs, less the contig pairs, with each
+     * chromosome pair's records together
+     */
+    private static boolean isGroupedCopy(PairIterator iterator, List<String> expected) {
+        List<String> remaining = new ArrayList<>();
+        for (String pair : expected) {
+            if (!pair.equals("contig")) remaining.add(pair);
+        }
+        List<String> pairs = new ArrayList<>();
+        Set<String> finishedGroups = new HashSet<>();
+        String currentGroup = null;
+        boolean grouped = true;
+        while (iterator.hasNext()) {
+            AlignmentPair pair = iterator.next();
+            String group = Math.min(pair.getChr1(), pair.getChr2()) + "_" + Math.max(pair.getChr1(), pair.getChr2());
+            if (!group.equals(currentGroup)) {
+                grouped &= finishedGroups.add(group);
+                currentGroup = group;
+            }
+            pairs.add(describe(pair));
+        }
+        iterator.close();
+        Collections.sort(pairs);
+        Collections.sort(remaining);
+        return grouped && pairs.equals(remaining);
+    }
+
+    /**
+     * The text path keeps pairs on chromosomes outside the genome under new ordinals, where a BAM gives contig
+     * pairs; both are left out
+     *
+     * @return the pairs on genomeOrdinals in file order, with their fragments, and mapping qualities if withMapq
+     */
+    private static List<String> readPairs(PairIterator iterator, Collection<Integer> genomeOrdinals,
+                                          boolean withMapq) {
+        List<String> pairs = new ArrayList<>();
+        while (iterator.hasNext()) {
+            AlignmentPair pair = iterator.next();
+            if (!pair.isNotContigPair() || !genomeOrdinals.contains(pair.getChr1())
+                    || !genomeOrdinals.contains(pair.getChr2())) {
+                continue;
+            }
+            String description = pair.getStrand1() + " " + pair.getChr1() + " " + pair.getPos1() + " "
+                    + pair.getFrag1() + " " + pair.getStrand2() + " " + pair.getChr2() + " " + pair.getPos2() + " "
+                    + pair.getFrag2();
+            pairs.add(withMapq ? description + " " + pair.getMapq1() + " " + pair.getMapq2() : description);
+        }
+        iterator.close();
+        return pairs;
+    }
+
+    private static boolean report(String check, boolean passed) {
+        System.out.println(check + ": " + (passed ? "ok" : "FAILED"));
+        return passed;
+    }
+}
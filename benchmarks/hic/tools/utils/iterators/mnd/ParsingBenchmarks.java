@@ -0,0 +1,51 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import hic.tools.utils.benchmarks.BenchmarkRunner;
+
+import java.io.IOException;
+
+/**
+ * Benchmarks for merged_nodups parsing, kept in the parser's package for access to its package-private
+ * constructors; like all benchmark code it lives in the separate benchmarks source root.
+ */
+public class ParsingBenchmarks {
+
+    public static void register(BenchmarkRunner runner, String[] lines) {
+        runner.add("MNDFileParser.parse", lines.length, () -> {
+            MNDFileParser parser = new MNDFileParser(new SimpleLineParser());
+            long total = 0;
+            try {
+                for (String line : lines) {
+                    total += parser.parse(line).getPos1();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return total;
+        });
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.largelists;
+
+import java.util.Random;
+
+/**
+ * Checks that the kernels selected at startup give the same results as the scalar kernels, on random chunks
+ * of every length up to a few vectors (so all tails are covered) with zeros, NaN, infinities and denormals mixed in.
+ * <p>
+ * Usage: java --add-modules jdk.incubator.vector ... FloatKernelsCheck
+ * <br>
+ * Exits with a nonzero status on any difference; NaN results only need to be NaN in both.
+ */
+public class FloatKernelsCheck {
+
+    public static void main(String[] args) {
+        FloatKernels selected = FloatKernels.get();
+        FloatKernels scalar = FloatKernels.getScalar();
+        if (selected.getName().equals(scalar.getName())) {
+            System.out.println("Only the scalar kernels are available; run on Java 16+ with "
+                    + "--add-modules jdk.incubator.vector to check the vector kernels");
+            return;
+        }
+
+        Random generator = new Random(0);
+        int mismatches = 0;
+        for (int trial = 0; trial < 5000; trial++) {
+            int n = trial % 500 == 0 ? BigIntsArray.DEFAULT_LENGTH : generator.nextInt(200);
+            float[] x = new float[n];
+            float[] y = new float[n];
+            int[] target = new int[n];
+            int[] mask = new int[n];
+            for (int i = 0; i < n; i++) {
+                x[i] = randomValue(generator);
+                y[i] = randomValue(generator);
+                target[i] = generator.nextInt(7) == 0 ? generator.nextInt() : generator.nextInt(5);
+                mask[i] = generator.nextInt(4) == 0 ? 1 : 0;
+            }
+
+            if (!same(selected.maxAbsError(x, y, target, mask), scalar.maxAbsError(x, y, target, mask))
+                    || !same(selected.maxRelativeError(x, y, mask), scalar.maxRelativeError(x, y, mask))
+                    || selected.countRelativeErrorsAbove(x, y, mask, 0.3f)
+                    != scalar.countRelativeErrorsAbove(x, y, mask, 0.3f)
+                    || !same(applyInPlaceKernels(selected, x, y, target, mask),
+                    applyInPlaceKernels(scalar, x, y, target, mask))) {
+                mismatches++;
+            }
+        }
+
+        if (mismatches > 0) {
+            System.err.println(mismatches + " chunks differ between " + selected.getName() + " and scalar kernels");
+            System.exit(1);
+        }
+        System.out.println("The " + selected.getName() + " kernels match the scalar kernels");
+    }
+
+    private static float randomValue(Random generator) {
+        switch (generator.nextInt(40)) {
+            case 0:
+                return Float.NaN;
+            case 1:
+                return 0f;
+            case 2:
+                return -0f;
+            case 3:
+                return Float.POSITIVE_INFINITY;
+            case 4:
+                return Float.MIN_VALUE;
+            default:
+                return (float) (generator.nextGaussian() * 3);
+        }
+    }
+
+    private static float[] applyInPlaceKernels(FloatKernels kernels, float[] x, float[] y, int[] target, int[] mask) {
+        int n = x.length;
+        float[] result = new float[3 * n];
+        float[] geoMean = new float[n];
+        kernels.setToGeoMean(geoMean, x, y);
+        float[] scaled = x.clone();
+        kernels.setWhere(scaled, mask, 1f);
+        kernels.multiplyBy(scaled, y);
+        kernels.multiplyByOneMinus(scaled, mask);
+        kernels.scaleByRatio(scaled, target, x);
+        float[] division = new float[n];
+        kernels.setToDivision(division, target, y);
+        System.arraycopy(geoMean, 0, result, 0, n);
+        System.arraycopy(scaled, 0, result, n, n);
+        System.arraycopy(division, 0, result, 2 * n, n);
+        return result;
+    }
+
+    private static boolean same(float a, float b) {
+        return Float.floatToIntBits(a) == Float.floatToIntBits(b);
+    }
+
+    private static boolean same(float[] a, float[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (!same(a[i], b[i])) return false;
+        }
+        return a.length == b.length;
+    }
+}
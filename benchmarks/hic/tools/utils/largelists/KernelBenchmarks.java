@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.largelists;
+
+import hic.tools.utils.benchmarks.BenchmarkRunner;
+
+import java.util.Random;
+
+/**
+ * Per-kernel comparison of the scalar SCALE chunk kernels with the ones selected at startup, kept in this
+ * package for access to the package-private FloatKernels. Without --add-modules jdk.incubator.vector both
+ * are the scalar kernels and only one set is registered. The in-place kernels start each chunk from a copy,
+ * so that repeated calls do not drift into denormals; the copy is timed for both sets.
+ */
+public class KernelBenchmarks {
+
+    public static void register(BenchmarkRunner runner, int length) {
+        int numChunks = Math.max(1, length / BigIntsArray.DEFAULT_LENGTH);
+        float[][] dr = new float[numChunks][BigIntsArray.DEFAULT_LENGTH];
+        float[][] dc = new float[numChunks][BigIntsArray.DEFAULT_LENGTH];
+        float[][] current = new float[numChunks][BigIntsArray.DEFAULT_LENGTH];
+        int[][] target = new int[numChunks][BigIntsArray.DEFAULT_LENGTH];
+        int[][] bad = new int[numChunks][BigIntsArray.DEFAULT_LENGTH];
+        Random generator = new Random(0);
+        for (int c = 0; c < numChunks; c++) {
+            for (int i = 0; i < BigIntsArray.DEFAULT_LENGTH; i++) {
+                dr[c][i] = 0.5f + generator.nextFloat();
+                dc[c][i] = 0.5f + generator.nextFloat();
+                current[c][i] = 0.5f + generator.nextFloat();
+                target[c][i] = 1;
+                bad[c][i] = generator.nextInt(50) == 0 ? 1 : 0;
+            }
+        }
+
+        long numElements = (long) numChunks * BigIntsArray.DEFAULT_LENGTH;
+        FloatKernels selected = FloatKernels.get();
+        for (FloatKernels kernels : new FloatKernels[]{FloatKernels.getScalar(), selected}) {
+            String suffix = " (" + kernels.getName() + ")";
+            if (kernels != selected && kernels.getName().equals(selected.getName())) continue;
+
+            runner.add("FloatKernels.scaleByRatio" + suffix, numElements, () -> {
+                for (int c = 0; c < numChunks; c++) {
+                    System.arraycopy(dr[c], 0, current[c], 0, current[c].length);
+                    kernels.scaleByRatio(current[c], target[c], dc[c]);
+                }
+                return (long) current[0][1];
+            });
+            runner.add("FloatKernels.setToGeoMean" + suffix, numElements, () -> {
+                for (int c = 0; c < numChunks; c++) {
+                    kernels.setToGeoMean(current[c], dr[c], dc[c]);
+                }
+                return (long) current[0][1];
+            });
+            runner.add("FloatKernels.multiplyBy" + suffix, numElements, () -> {
+                for (int c = 0; c < numChunks; c++) {
+                    System.arraycopy(dr[c], 0, current[c], 0, current[c].length);
+                    kernels.multiplyBy(current[c], dc[c]);
+                }
+                return (long) current[0][1];
+            });
+            runner.add("FloatKernels.setWhere" + suffix, numElements, () -> {
+                for (int c = 0; c < numChunks; c++) {
+                    kernels.setWhere(current[c], bad[c], 1f);
+                }
+                return (long) current[0][0];
+            });
+            runner.add("FloatKernels.maxAbsError" + suffix, numElements, () -> {
+                float err = 0;
+                for (int c = 0; c < numChunks; c++) {
+                    err = Math.max(err, kernels.maxAbsError(dr[c], dc[c], target[c], bad[c]));
+                }
+                return (long) (1e6 * err);
+            });
+            runner.add("FloatKernels.maxRelativeError" + suffix, numElements, () -> {
+                float err = 0;
+                for (int c = 0; c < numChunks; c++) {
+                    err = Math.max(err, kernels.maxRelativeError(dr[c], dc[c], bad[c]));
+                }
+                return (long) (1e6 * err);
+            });
+            runner.add("FloatKernels.countRelativeErrorsAbove" + suffix, numElements, () -> {
+                long count = 0;
+                for (int c = 0; c < numChunks; c++) {
+                    count += kernels.countRelativeErrorsAbove(dr[c], dc[c], bad[c], 1e-4f);
+                }
+                return count;
+            });
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.original;
+
+import com.google.common.util.concurrent.AtomicDouble;
+import hic.HiCGlobals;
+import hic.tools.utils.benchmarks.BenchmarkRunner;
+import hic.tools.utils.benchmarks.SyntheticContacts;
+import hic.tools.utils.cleaner.DuplicatePairFilter;
+import hic.tools.utils.iterators.mnd.AlignmentPair;
+import htsjdk.tribble.util.LittleEndianOutputStream;
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.type.NormalizationHandler;
+import org.broad.igv.util.collections.DownsampledDoubleArrayList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmarks for the block and expected-value hot paths of pre, kept in this package for access to
+ * the package-private block classes; like all benchmark code it lives in the separate benchmarks source root.
+ */
+public class PreprocessingBenchmarks {
+
+    private static final int BLOCK_RECORDS = 50000;
+    private static final int OUTPUT_BLOCKS = 400;
+    private static final int BLOCKS_PER_MATRIX = 40;
+
+    public static void register(BenchmarkRunner runner, SyntheticContacts contacts, ChromosomeHandler handler,
+                                int chrIndex) {
+        int n = contacts.binX.length;
+
+        runner.add("BlockPP.incrementCount", n, () -> {
+            BlockPP block = new BlockPP(0);
+            for (int i = 0; i < n; i++) {
+                block.incrementCount(contacts.binX[i], contacts.binY[i], contacts.counts[i]);
+            }
+            return block.getNumRecords();
+        });
+
+        BlockPP block = new BlockPP(0);
+        for (int i = 0; block.getNumRecords() < BLOCK_RECORDS && i < n; i++) {
+            block.incrementCount(contacts.binX[i] % 1000, contacts.binY[i] % 1000, contacts.counts[i]);
+        }
+        Deflater compressor = new Deflater();
+        compressor.setLevel(Deflater.DEFAULT_COMPRESSION);
+        runner.add("MatrixZoomDataPP.writeBlock", block.getNumRecords(), () -> {
+            CountingOutputStream sink = new CountingOutputStream();
+            try {
+                MatrixZoomDataPP.writeBlock(block, new DownsampledDoubleArrayList(10000, 10000),
+                        new LittleEndianOutputStream(sink), compressor, 0, new AtomicDouble(), new AtomicDouble());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return sink.count;
+        });
+
+        ByteBuffer raw = ByteBuffer.allocate(BLOCK_RECORDS * 12).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < BLOCK_RECORDS && i < n; i++) {
+            raw.putInt(contacts.binX[i]).putInt(contacts.binY[i]).putFloat(contacts.counts[i]);
+        }
+        byte[] data = raw.array();
+        runner.add("RecordBlockUtils.compress", data.length, () ->
+                RecordBlockUtils.compress(data, compressor).length);
+
+        runner.add("ExpectedValueCalculation.addDistance", n, () -> {
+            ExpectedValueCalculation calc = new ExpectedValueCalculation(handler, 5000, NormalizationHandler.NONE);
+            for (int i = 0; i < n; i++) {
+                calc.addDistance(chrIndex, contacts.binX[i], contacts.binY[i], contacts.counts[i]);
+            }
+            return calc.getGridSize();
+        });
+
+        registerOutputBenchmarks(runner, RecordBlockUtils.compress(data, compressor));
+        registerDuplicateFilterBenchmarks(runner, contacts, chrIndex);
+    }
+
+    /**
+     * Pairs sorted by position with every tenth one repeated, as after alignment without dedup
+     */
+    private static void registerDuplicateFilterBenchmarks(BenchmarkRunner runner, SyntheticContacts contacts,
+                                                          int chrIndex) {
+        int n = contacts.binX.length;
+        long[] positions = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = Math.min(contacts.binX[i], contacts.binY[i]);
+            int y = Math.max(contacts.binX[i], contacts.binY[i]);
+            positions[i] = ((long) x << 32) | y;
+        }
+        Arrays.sort(positions);
+        List<AlignmentPair> pairs = new ArrayList<>(n + n / 10);
+        for (int i = 0; i < n; i++) {
+            int pos1 = (int) (positions[i] >>> 32) * 100 + i % 100;
+            int pos2 = (int) positions[i] * 100;
+            AlignmentPair pair = new AlignmentPair(i % 2 == 0, chrIndex, pos1, 0, i % 3 == 0, chrIndex, pos2, 1);
+            pairs.add(pair);
+            if (i % 10 == 0) {
+                pairs.add(pair);
+            }
+        }
+        for (int tolerance : new int[]{0, 2, 10, 100}) {
+            runner.add("DuplicatePairFilter.isDuplicate (tolerance " + tolerance + ")", pairs.size(), () -> {
+                DuplicatePairFilter filter = new DuplicatePairFilter(tolerance);
+                for (AlignmentPair pair : pairs) {
+                    filter.isDuplicate(pair);
+                }
+                return filter.getNumDuplicates();
+            });
+        }
+    }
+
+    /**
+     * Write throughput of the .hic output stream, with a block index patch after every matrix's worth of blocks,
+     * to the temporary directory and to tmpfs (/dev/shm) where available
+     */
+    private static void registerOutputBenchmarks(BenchmarkRunner runner, byte[] compressedBlock) {
+        List<File> directories = new ArrayList<>();
+        directories.add(new File(System.getProperty("java.io.tmpdir")));
+        File tmpfs = new File("/dev/shm");
+        if (tmpfs.isDirectory() && tmpfs.canWrite()) {
+            directories.add(tmpfs);
+        }
+
+        long bytesPerCall = (long) OUTPUT_BLOCKS * compressedBlock.length;
+        for (File directory : directories) {
+            runner.add("BufferedOutputStream blocks+patches (" + directory + ")", bytesPerCall, () ->
+                    writeBlocksAndPatch(directory, compressedBlock, false));
+            runner.add("AsyncOutputStream blocks+patches (" + directory + ")", bytesPerCall, () ->
+                    writeBlocksAndPatch(directory, compressedBlock, true));
+        }
+    }
+
+    private static long writeBlocksAndPatch(File directory, byte[] compressedBlock, boolean async) {
+        File file = new File(directory, "hic_output_benchmark.bin");
+        LittleEndianOutputStream[] losArray = new LittleEndianOutputStream[1];
+        try {
+            if (async) {
+                losArray[0] = new AsyncOutputStream(file, false, HiCGlobals.bufferSize);
+            } else {
+                losArray[0] = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                        HiCGlobals.bufferSize));
+            }
+            List<IndexEntry> blockIndex = new ArrayList<>();
+            long indexPosition = 0;
+            for (int i = 0; i < OUTPUT_BLOCKS; i++) {
+                if (i % BLOCKS_PER_MATRIX == 0) {
+                    if (!blockIndex.isEmpty()) {
+                        HiCFileBuilder.updateIndexPositions(blockIndex, losArray, true, file, 0, indexPosition);
+                        blockIndex.clear();
+                    }
+                    indexPosition = losArray[0].getWrittenCount();
+                    for (int b = 0; b < BLOCKS_PER_MATRIX; b++) {
+                        losArray[0].writeInt(0);
+                        losArray[0].writeLong(0L);
+                        losArray[0].writeInt(0);
+                    }
+                }
+                long position = losArray[0].getWrittenCount();
+                losArray[0].write(compressedBlock);
+                blockIndex.add(new IndexEntry(i, position, compressedBlock.length));
+            }
+            HiCFileBuilder.updateIndexPositions(blockIndex, losArray, true, file, 0, indexPosition);
+            losArray[0].close();
+            return file.length();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
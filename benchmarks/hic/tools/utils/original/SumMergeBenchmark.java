@@ -0,0 +1,88 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.original;
+
+import hic.tools.HiCTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times sum on the given .hic files serially and with the concurrent merge, each in its own JVM, and
+ * checks that both write the same bytes.
+ * <p>
+ * Usage: SumMergeBenchmark <numThreads> <workDirectory> <infile1.hic> ... <infileN.hic>
+ * <br>
+ * Exits with a nonzero status if either run fails or the outputs differ.
+ */
+public class SumMergeBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 4) {
+            System.err.println("Usage: SumMergeBenchmark <numThreads> <workDirectory> <infile1.hic> ... <infileN.hic>");
+            System.exit(5);
+        }
+        int numThreads = Integer.parseInt(args[0]);
+        File directory = new File(args[1]);
+        List<String> inputs = Arrays.asList(args).subList(2, args.length);
+
+        File serial = new File(directory, "sum_serial.hic");
+        File concurrent = new File(directory, "sum_" + numThreads + "_threads.hic");
+        long serialTime = sum(1, serial, inputs);
+        long concurrentTime = sum(numThreads, concurrent, inputs);
+
+        System.out.println("Serial merge of " + inputs.size() + " files: " + serialTime + " ms");
+        System.out.println("Merge with " + numThreads + " threads: " + concurrentTime + " ms (" +
+                String.format("%.2f", (double) serialTime / concurrentTime) + "x)");
+        if (!Arrays.equals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(concurrent.toPath()))) {
+            System.err.println(concurrent + " differs from " + serial);
+            System.exit(1);
+        }
+        System.out.println("Outputs are identical");
+    }
+
+    private static long sum(int numThreads, File output, List<String> inputs) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                HiCTools.class.getName(), "sum", "-j", Integer.toString(numThreads), output.getPath()));
+        command.addAll(inputs);
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(new File(output.getPath() + ".log")));
+
+        long start = System.currentTimeMillis();
+        int status = builder.start().waitFor();
+        long elapsed = System.currentTimeMillis() - start;
+        if (status != 0) {
+            System.err.println("sum with " + numThreads + " thread(s) exited with " + status);
+            System.exit(1);
+        }
+        return elapsed;
+    }
+}
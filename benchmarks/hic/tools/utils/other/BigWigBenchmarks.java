@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.other;
+
+import hic.tools.utils.benchmarks.BenchmarkRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Windowed bigWig summaries on a synthetic 1 bp track with gaps, kept in this package for access to the
+ * package-private WindowSummary. The reference is the earlier per-line string concatenation and println;
+ * both write to a stream that discards the bytes, so console speed does not enter either figure. Before
+ * registering, the two outputs are compared on the start of the track.
+ */
+public class BigWigBenchmarks {
+
+    private static final String CHROMOSOME = "chr1";
+
+    public static void register(BenchmarkRunner runner, int numItems, int windowSize) {
+        int[] starts = new int[numItems];
+        float[] values = new float[numItems];
+        Random generator = new Random(0);
+        int position = 0;
+        for (int i = 0; i < numItems; i++) {
+            if (generator.nextInt(1000) == 0) {
+                position += generator.nextInt(5 * windowSize);
+            }
+            starts[i] = position++;
+            values[i] = generator.nextInt(4) == 0 ? 0 : generator.nextFloat() * 20;
+        }
+
+        int checkItems = Math.min(numItems, 200000);
+        if (!Arrays.equals(referenceOutput(starts, values, checkItems, windowSize),
+                summaryOutput(starts, values, checkItems, windowSize))) {
+            throw new IllegalStateException("WindowSummary output differs from the println reference");
+        }
+
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        PrintStream discardPrinter = new PrintStream(discard);
+        runner.add("BigWigUtils println windows (reference, " + windowSize + " bp)", numItems, () ->
+                summarizeWithPrintln(starts, values, numItems, windowSize, discardPrinter));
+        runner.add("BigWigUtils.WindowSummary(" + windowSize + " bp)", numItems, () -> {
+            BigWigUtils.WindowSummary summary = summarize(starts, values, numItems, windowSize);
+            summary.writeTo(discard);
+            return summary.getNumWindows();
+        });
+    }
+
+    private static BigWigUtils.WindowSummary summarize(int[] starts, float[] values, int numItems, int windowSize) {
+        BigWigUtils.WindowSummary summary = new BigWigUtils.WindowSummary(CHROMOSOME, windowSize);
+        for (int i = 0; i < numItems; i++) {
+            summary.add(starts[i], starts[i] + 1, values[i]);
+        }
+        return summary;
+    }
+
+    private static byte[] summaryOutput(int[] starts, float[] values, int numItems, int windowSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        summarize(starts, values, numItems, windowSize).writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] referenceOutput(int[] starts, float[] values, int numItems, int windowSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream printer = new PrintStream(bytes);
+        summarizeWithPrintln(starts, values, numItems, windowSize, printer);
+        printer.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The summary as BigWigUtils computed it before WindowSummary, one println per window
+     */
+    private static long summarizeWithPrintln(int[] starts, float[] values, int numItems, int windowSize,
+                                             PrintStream out) {
+        double sum = 0;
+        int nPts = 0;
+        double max = 0;
+        int currentBin = 0;
+        long numWindows = 0;
+        for (int i = 0; i < numItems; i++) {
+            int dPosition = (starts[i] + starts[i] + 1) / 2;
+            if (dPosition > (currentBin + 1) * windowSize) {
+                double mean = sum / nPts;
+                int wStart = windowSize * currentBin;
+                int wEnd = wStart + windowSize;
+                out.println(CHROMOSOME + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
+                numWindows++;
+                currentBin++;
+                while (currentBin < dPosition / windowSize) {
+                    wStart = windowSize * currentBin;
+                    wEnd = wStart + windowSize;
+                    mean = 0;
+                    max = 0;
+                    out.println(CHROMOSOME + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
+                    numWindows++;
+                    currentBin++;
+                }
+                currentBin = dPosition / windowSize;
+                sum = 0;
+                nPts = 0;
+                max = 0;
+            }
+            sum += values[i];
+            max = Math.max(max, values[i]);
+            nPts++;
+        }
+        return numWindows;
+    }
+}
@@ -34,7 +34,9 @@ public class HiCGlobals {
     public static final int bufferSize = 2097152;
     public static int MAX_PEARSON_ZOOM = 50000;
     public static final int MAX_EIGENVECTOR_ZOOM = 250000;
-    public static boolean useCache = true;
+    // bound on the decompressed blocks kept by the tools' shared block cache; 0 turns the cache off
+    public static long blockCacheBytes = Runtime.getRuntime().maxMemory() / 8;
+    public static int blockPrefetchDepth = 4;
     public static boolean allowDynamicBlockIndex = true;
     public static boolean printVerboseComments = false;
     public static int primaryThreads = 4;
@@ -28,6 +28,7 @@ import hic.HiCGlobals;
 import hic.tools.clt.CLTFactory;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.cache.BlockCache;
 import jargs.gnu.CmdLineParser;
 import org.broad.igv.Globals;
 
@@ -49,7 +50,6 @@ public class HiCTools {
         }
 
         CommandLineParser parser = new CommandLineParser();
-        HiCGlobals.useCache = false;
         boolean help;
         boolean version;
         parser.parse(argv);
@@ -60,6 +60,9 @@ public class HiCTools {
         help = parser.getHelpOption();
         version = parser.getVersionOption();
         HiCGlobals.printVerboseComments = parser.getVerboseOption();
+        if (parser.useCacheMemory()) {
+            HiCGlobals.blockCacheBytes = 0;
+        }
 
         String[] args = parser.getRemainingArgs();
 
@@ -81,6 +84,9 @@ public class HiCTools {
 
             instanceOfCLT.readArguments(args, parser);
             instanceOfCLT.run();
+            if (HiCGlobals.printVerboseComments) {
+                BlockCache.getShared().printStatistics();
+            }
         } else {
             throw new RuntimeException("Unknown command: " + cmd);
         }
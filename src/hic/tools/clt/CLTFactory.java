@@ -42,7 +42,8 @@ public class CLTFactory {
             AddNorm.getBasicUsage(),
             Pearsons.getBasicUsage(),
             Eigenvector.getUsage(),
-            Sum.getBasicUsage()
+            Sum.getBasicUsage(),
+            Append.getBasicUsage()
     };
 
     public static void generalUsage() {
@@ -64,6 +65,8 @@ public class CLTFactory {
             return new PreProcessing();
         } else if (cmd.startsWith("sum")) {
             return new Sum();
+        } else if (cmd.equals("append")) {
+            return new Append();
         } else if (cmd.startsWith("addnorm")) {
             return new AddNorm();
         } else if (cmd.startsWith("test") && cmd.contains("norm")) {
@@ -55,6 +55,11 @@ public class CommandLineParser extends CmdLineParser {
     private final Option noFragNormOption = addBooleanOption('F', "no_fragment-normalization");
     private final Option randomizePositionOption = addBooleanOption("randomize_position");
     private final Option throwIntraFragOption = addBooleanOption("skip-intra-frag");
+    private final Option blockMergeOption = addBooleanOption("block-merge");
+    private final Option conserveRamOption = addBooleanOption("conserve-ram");
+    private final Option checkRamUsageOption = addBooleanOption("check-ram-usage");
+    private final Option checkpointOption = addBooleanOption("checkpoint");
+    private final Option dedupOption = addBooleanOption("dedup");
     // String
     private final Option fragmentOption = addStringOption('f', "restriction-fragment-site-file");
     private final Option tmpDirOption = addStringOption('t', "tmpdir");
@@ -65,6 +70,7 @@ public class CommandLineParser extends CmdLineParser {
     private final Option mndIndexOption = addStringOption('i', "mndindex");
     private final Option ligationOption = addStringOption("ligation");
     private final Option shellOption = addStringOption("shell");
+    private final Option phaseSummaryOption = addStringOption("phase-summary");
 
     // ints
     private final Option blockCapacityOption = addIntegerOption("block-size");
@@ -78,6 +84,7 @@ public class CommandLineParser extends CmdLineParser {
     private final Option v9DepthBaseOption = addIntegerOption("v9-depth-base");
     private final Option initOption = addIntegerOption("initial");
     private final Option ramSavePointOption = addIntegerOption("save-ram");
+    private final Option dedupToleranceOption = addIntegerOption("dedup-tolerance");
 
 
     // sets of strings
@@ -149,6 +156,26 @@ public class CommandLineParser extends CmdLineParser {
         return optionToBoolean(throwIntraFragOption);
     }
 
+    public boolean getConserveRamOption() {
+        return optionToBoolean(conserveRamOption);
+    }
+
+    public boolean getCheckRamUsageOption() {
+        return optionToBoolean(checkRamUsageOption);
+    }
+
+    public boolean getCheckpointOption() {
+        return optionToBoolean(checkpointOption);
+    }
+
+    public boolean getDedupOption() {
+        return optionToBoolean(dedupOption);
+    }
+
+    public boolean getBlockMergeOption() {
+        return optionToBoolean(blockMergeOption);
+    }
+
     /**
      * String flags
      */
@@ -187,6 +214,10 @@ public class CommandLineParser extends CmdLineParser {
         return optionToString(shellOption);
     }
 
+    public String getPhaseSummaryOption() {
+        return optionToString(phaseSummaryOption);
+    }
+
     public ReadPairFilter.Type getAlignmentOption() {
         int alignmentInt = optionToInt(alignmentFilterOption);
 
@@ -265,6 +296,10 @@ public class CommandLineParser extends CmdLineParser {
         return optionToInt(ramSavePointOption);
     }
 
+    public int getDedupToleranceOption() {
+        return optionToInt(dedupToleranceOption);
+    }
+
     /**
      * double flags
      */
@@ -24,10 +24,14 @@
 
 package hic.tools.clt;
 
+import hic.HiCGlobals;
 import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 
+import java.io.IOException;
+
 /**
  * All command line tools should extend from this class
  */
@@ -35,6 +39,9 @@ public abstract class JuiceboxCLT {
 
     private static String usage;
     protected Dataset dataset = null;
+    // reader of a single-file dataset, for reading its blocks through the shared block cache
+    protected DatasetReaderV2 datasetReader = null;
+    protected String datasetPath = null;
     protected NormalizationType norm = null;
     protected boolean usingMultiThreadedVersion = false;
 
@@ -65,7 +72,22 @@ public abstract class JuiceboxCLT {
     }
 
     protected void setDatasetAndNorm(String file, String normType, boolean allowPrinting) {
-        dataset = HiCFileTools.extractDatasetForCLT(file, allowPrinting, false, false);
+        if (!file.contains("+")) {
+            try {
+                datasetReader = new DatasetReaderV2(file, false, false);
+                dataset = datasetReader.read();
+                datasetPath = file;
+            } catch (IOException e) {
+                if (HiCGlobals.printVerboseComments) {
+                    System.err.println("Unable to open " + file + " for cached block reads: " +
+                            e.getLocalizedMessage() + "; reading it without the block cache");
+                }
+                datasetReader = null;
+            }
+        }
+        if (datasetReader == null) {
+            dataset = HiCFileTools.extractDatasetForCLT(file, allowPrinting, false, false);
+        }
         norm = dataset.getNormalizationHandler().getNormTypeFromString(normType);
         if (norm == null) {
             System.err.println("Normalization type " + norm + " unrecognized.  Normalization type must be one of \n" +
@@ -27,8 +27,14 @@ package hic.tools.clt.old;
 import hic.HiCGlobals;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.localtemps.LocalTempDirectory;
 import hic.tools.utils.norm.CustomNormVectorFileHandler;
 import hic.tools.utils.norm.NormalizationVectorUpdater;
+import hic.tools.utils.original.MemoryPlanner;
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
 
 import java.io.IOException;
@@ -42,6 +48,8 @@ public class AddNorm extends JuiceboxCLT {
 
     private String inputVectorFile = null;
     private int ramSavePoint = 0;
+    private boolean conserveRam = false;
+    private boolean checkRamUsage = false;
     private String file;
     private final List<NormalizationType> normalizationTypes = new ArrayList<>();
     private Map<NormalizationType, Integer> resolutionsToBuildTo;
@@ -55,8 +63,10 @@ public class AddNorm extends JuiceboxCLT {
                 + "           : -k normalizations to include\n"
                 + "           : -r resolutions for respective normalizations to build to\n"
                 + "           : -j number of CPU threads to use\n"
+                + "           : -t <tmpDir> Set a temporary directory for locally saved contacts\n"
                 + "           : --conserve-ram will minimize RAM usage\n"
-                + "           : --check-ram-usage will check ram requirements prior to running"
+                + "           : --check-ram-usage will check ram requirements prior to running\n"
+                + "           : --phase-summary <file> write per-phase timings and I/O counters as JSON"
         );
     }
 
@@ -74,7 +84,6 @@ public class AddNorm extends JuiceboxCLT {
 
     public static void launch(String outputFile, List<NormalizationType> normalizationTypes, int ramSavePoint,
                               Map<NormalizationType, Integer> resolutionsToBuildTo) throws IOException {
-        HiCGlobals.useCache = false;
         NormalizationVectorUpdater updater = new NormalizationVectorUpdater();
         updater.updateHicFile(outputFile, normalizationTypes, resolutionsToBuildTo, ramSavePoint);
     }
@@ -99,6 +108,9 @@ public class AddNorm extends JuiceboxCLT {
         normalizationTypes.addAll(parser.getAllNormalizationTypesOption());
         resolutionsToBuildTo = defaultHashMapForResToBuildTo(normalizationTypes);
         ramSavePoint = parser.getRamSavePoint();
+        LocalTempDirectory.setBaseDirectory(parser.getTmpdirOption());
+        conserveRam = parser.getConserveRamOption();
+        checkRamUsage = parser.getCheckRamUsageOption();
 
         List<String> resolutions = parser.getResolutionOption();
         if (resolutions != null && resolutions.size() > 0) {
@@ -119,6 +131,33 @@ public class AddNorm extends JuiceboxCLT {
         }
 
         file = args[1];
+
+        String phaseSummary = parser.getPhaseSummaryOption();
+        if (phaseSummary != null) {
+            PhaseTracker.enable(phaseSummary);
+        }
+    }
+
+    private void planMemoryUsage() throws IOException {
+        DatasetReaderV2 reader = new DatasetReaderV2(file, false, false);
+        Dataset ds = reader.read();
+        List<Integer> bpResolutions = new ArrayList<>();
+        for (HiCZoom zoom : ds.getAllPossibleResolutions()) {
+            if (zoom.getUnit() == HiCZoom.HiCUnit.BP) bpResolutions.add(zoom.getBinSize());
+        }
+        int[] binSizes = new int[bpResolutions.size()];
+        for (int i = 0; i < binSizes.length; i++) {
+            binSizes[i] = bpResolutions.get(i);
+        }
+        MemoryPlanner planner = new MemoryPlanner(ds.getChromosomeHandler(), binSizes,
+                MemoryPlanner.estimateContactsInHiCFile(file), HiCGlobals.normThreads, HiCGlobals.chromThreads);
+        ds.clearCache(false);
+        planner.print(false);
+
+        // an explicit --save-ram takes precedence over the plan
+        if (conserveRam && ramSavePoint == 0) {
+            ramSavePoint = planner.getNormCutoff();
+        }
     }
 
     @Override
@@ -128,8 +167,12 @@ public class AddNorm extends JuiceboxCLT {
             if (inputVectorFile != null) {
                 CustomNormVectorFileHandler.updateHicFile(file, inputVectorFile);
             } else {
+                if (conserveRam || checkRamUsage) {
+                    planMemoryUsage();
+                }
                 launch(file, normalizationTypes, ramSavePoint, resolutionsToBuildTo);
             }
+            PhaseTracker.writeSummary();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package hic.tools.clt.old;
+
+import hic.HiCGlobals;
+import hic.tools.clt.CommandLineParser;
+import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.original.HiCAppender;
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
+
+import java.io.File;
+import java.io.IOException;
+
+public class Append extends JuiceboxCLT {
+
+    private String inputFile;
+    private HiCAppender appender;
+
+    public Append() {
+        super(getBasicUsage() + "\n"
+                + "           : -q <int> filter new reads by MAPQ score greater than or equal to q [not set]\n"
+                + "           : -c <chromosome ID> only add reads on specific chromosomes [not set]\n"
+                + "           : -a <1, 2, 3, 4, 5> filter based on inner, outer, left-left, right-right, tandem pairs respectively\n"
+                + "           : -t <tmpDir> Set a temporary directory for writing\n"
+                + "           : -z <double> scale factor for hic file\n"
+                + "           The output keeps the resolutions and block layout of <existing.hic>; run addNorm on it afterwards.");
+    }
+
+    public static String getBasicUsage() {
+        return "append [options] <existing.hic> <new_reads> <outfile.hic>";
+    }
+
+    @Override
+    public void readArguments(String[] args, CommandLineParser parser) {
+        if (args.length != 4) {
+            printUsageAndExit();
+        }
+
+        String existingFile = args[1];
+        inputFile = args[2];
+        File outputFile = new File(args[3]);
+        if (new File(existingFile).getAbsoluteFile().equals(outputFile.getAbsoluteFile())) {
+            System.err.println("The output file must differ from " + existingFile);
+            System.exit(1);
+        }
+
+        Dataset dataset = null;
+        DatasetReaderV2 reader = null;
+        try {
+            reader = new DatasetReaderV2(existingFile, false, false);
+            dataset = reader.read();
+            HiCGlobals.verifySupportedHiCFileWritingVersion(reader.getVersion());
+        } catch (IOException e) {
+            System.err.println("Unable to read " + existingFile);
+            e.printStackTrace();
+            System.exit(56);
+        }
+
+        appender = new HiCAppender(outputFile, new File(existingFile), dataset, reader,
+                parser.getScalingOption(), parser.getTmpdirOption());
+        appender.setIncludedChromosomes(parser.getChromosomeSetOption());
+        appender.setMapqThreshold(parser.getMapqThresholdOption());
+        appender.setFilter(parser.getAlignmentOption());
+    }
+
+    @Override
+    public void run() {
+        try {
+            appender.append(inputFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(56);
+        }
+    }
+}
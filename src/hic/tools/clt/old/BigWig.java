@@ -33,6 +33,7 @@ public class BigWig extends JuiceboxCLT {
 
     private int version = -1;
     private int start = -1, end = -1, windowSize = -1;
+    private int numCPUThreads = 1;
     private String chr, path;
 
     public BigWig() {
@@ -47,6 +48,7 @@ public class BigWig extends JuiceboxCLT {
         }
         path = args[1];
         windowSize = Integer.parseInt(args[2]);
+        numCPUThreads = updateNumberOfCPUThreads(parser, 4);
 
         if (args.length == 3) {
             version = 0;
@@ -66,7 +68,7 @@ public class BigWig extends JuiceboxCLT {
     public void run() {
         try {
             if (version == 0) {
-                BigWigUtils.computeBins(path, windowSize);
+                BigWigUtils.computeBins(path, windowSize, numCPUThreads);
             } else if (version == 1) {
                 BigWigUtils.computeBins(path, chr, 0, Integer.MAX_VALUE, windowSize);
             } else if (version == 2) {
@@ -32,6 +32,7 @@ import hic.tools.utils.iterators.mnd.AsciiToBinConverter;
 public class BinToPairs extends JuiceboxCLT {
 
     private String ifile, ofile;
+    private int numCPUThreads = 1;
 
     public BinToPairs() {
         super("binToPairs <input_HiC_file> <output_HiC_file>");
@@ -44,12 +45,13 @@ public class BinToPairs extends JuiceboxCLT {
         }
         ifile = args[1];
         ofile = args[2];
+        numCPUThreads = updateNumberOfCPUThreads(parser, 4);
     }
 
     @Override
     public void run() {
         try {
-            AsciiToBinConverter.convertBack(ifile, ofile);
+            AsciiToBinConverter.convertBack(ifile, ofile, numCPUThreads);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -27,6 +27,8 @@ package hic.tools.clt.old;
 import hic.HiCGlobals;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.pearsons.ObservedOverExpected;
+import hic.tools.utils.pearsons.SparsePearsonsEigenvector;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.expected.ExpectedValueFunction;
@@ -48,9 +50,11 @@ public class Eigenvector extends JuiceboxCLT {
     private int binSize = 0;
     private Chromosome chromosome1;
     private PrintWriter pw;
+    private int ramSavePoint = 0;
 
     public Eigenvector() {
-        super(getUsage() + "\n\t-p, --pearsons_all_resolutions: calculate eigenvector at all resolutions");
+        super(getUsage() + "\n\t-p, --pearsons_all_resolutions: calculate eigenvector at all resolutions"
+                + "\n\t--save-ram <binsize>: keep sparse O/E contacts on disk at or below this resolution");
     }
 
     public static String getUsage(){
@@ -89,10 +93,10 @@ public class Eigenvector extends JuiceboxCLT {
             System.exit(21);
         }
 
-        if ((unit == HiCZoom.HiCUnit.BP && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM) ||
-                (unit == HiCZoom.HiCUnit.FRAG && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM / 1000)) {
-            System.out.println("WARNING: Eigenvector calculation at high resolution can take a long time");
+        if (useSparseCalculation()) {
+            System.out.println("Using sparse eigenvector calculation at high resolution");
         }
+        ramSavePoint = parser.getRamSavePoint();
 
 
         if (args.length == 7) {
@@ -126,7 +130,12 @@ public class Eigenvector extends JuiceboxCLT {
             System.exit(13);
         }
         ExpectedValueFunction df = dataset.getExpectedValuesOrExit(zd.getZoom(), norm, true, true);
-        double[] vector = zd.getEigenvector(df, 0);
+        double[] vector;
+        if (useSparseCalculation()) {
+            vector = getSparseEigenvector(zd, zoom, df);
+        } else {
+            vector = zd.getEigenvector(df, 0);
+        }
 
         // mean center and print
         int count = 0;
@@ -148,4 +157,22 @@ public class Eigenvector extends JuiceboxCLT {
         pw.close();
 
     }
-}
\ No newline at end of file
+
+    /**
+     * The dense calculation needs the full n x n Pearson matrix in memory,
+     * so below the eigenvector zoom limit use the sparse Lanczos version instead.
+     */
+    private boolean useSparseCalculation() {
+        return (unit == HiCZoom.HiCUnit.BP && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM) ||
+                (unit == HiCZoom.HiCUnit.FRAG && binSize < HiCGlobals.MAX_EIGENVECTOR_ZOOM / 1000);
+    }
+
+    private double[] getSparseEigenvector(MatrixZoomData zd, HiCZoom zoom, ExpectedValueFunction df) {
+        boolean saveToDisk = unit == HiCZoom.HiCUnit.BP && binSize <= ramSavePoint;
+        ObservedOverExpected oe = new ObservedOverExpected(datasetPath, datasetReader, dataset, zd, chromosome1, zoom, norm, df);
+        oe.loadContacts(saveToDisk);
+        double[] vector = new SparsePearsonsEigenvector(oe).getLeadingEigenvector();
+        oe.clear();
+        return vector;
+    }
+}
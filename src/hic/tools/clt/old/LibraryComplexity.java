@@ -27,6 +27,7 @@ package hic.tools.clt.old;
 
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.other.LineCounter;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -47,6 +48,7 @@ public class LibraryComplexity extends JuiceboxCLT {
     private long totalReadPairs = 0;
     private String fileName = "inter.txt";
     private final boolean filesAlreadyCounted;
+    private int numCPUThreads = 1;
 
     public LibraryComplexity(String command) {
         super(getUsage());
@@ -141,6 +143,7 @@ public class LibraryComplexity extends JuiceboxCLT {
         } else if (args.length == 3 || args.length == 2) {
             localWorkingDirectory = args[1];
             if (args.length == 3) fileName = args[2];
+            numCPUThreads = updateNumberOfCPUThreads(parser, 3);
         }
     }
 
@@ -265,14 +268,16 @@ public class LibraryComplexity extends JuiceboxCLT {
         System.out.println("Library Complexity Estimate: " + nf.format(result));
     }
 
+    /**
+     * Counts lines in the file, or in its gzipped version if only that exists.
+     */
     private Long getFileLength(AtomicBoolean somethingFailed, File f) {
+        if (!f.exists()) {
+            f = new File(f.getPath() + ".gz");
+        }
         if (f.exists()) {
             try {
-                long value = 0L;
-                BufferedReader reader = new BufferedReader(new FileReader(f));
-                while (reader.readLine() != null) value++;
-                reader.close();
-                return value;
+                return LineCounter.countLines(f, numCPUThreads);
             } catch (Exception e) {
                 somethingFailed.set(true);
                 return 0L;
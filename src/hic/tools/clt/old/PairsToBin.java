@@ -33,9 +33,11 @@ import javastraw.reader.basics.ChromosomeTools;
 public class PairsToBin extends JuiceboxCLT {
 
     private String ifile, ofile, genomeId;
+    private int numCPUThreads = 1;
 
     public PairsToBin() {
-        super("pairsToBin <input_mnd> <output_mnd_binary> <genomeID>");
+        super("pairsToBin <input_mnd> <output_mnd_binary> <genomeID>\n" +
+                "\toutput ending in .bn writes the short format, .cpairs the indexed columnar format");
     }
 
     @Override
@@ -46,13 +48,14 @@ public class PairsToBin extends JuiceboxCLT {
         ifile = args[1];
         ofile = args[2];
         genomeId = args[3];
+        numCPUThreads = updateNumberOfCPUThreads(parser, 4);
     }
 
     @Override
     public void run() {
         ChromosomeHandler chromosomeHandler = ChromosomeTools.loadChromosomes(genomeId);
         try {
-            AsciiToBinConverter.convert(ifile, ofile, chromosomeHandler);
+            AsciiToBinConverter.convert(ifile, ofile, chromosomeHandler, numCPUThreads);
         } catch (Exception e) {
             System.err.println("Unable to convert from ascii to bin");
             e.printStackTrace();
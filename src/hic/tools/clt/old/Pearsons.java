@@ -27,6 +27,9 @@ package hic.tools.clt.old;
 import hic.HiCGlobals;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.pearsons.ObservedOverExpected;
+import hic.tools.utils.pearsons.SymmetricSparseRows;
+import hic.tools.utils.pearsons.TiledPearsons;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import javastraw.matrices.BasicMatrix;
 import javastraw.reader.basics.Chromosome;
@@ -36,10 +39,11 @@ import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
 import javastraw.tools.HiCFileTools;
 
-import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * Class for calculating Pearsons (separated out from Dump)
@@ -48,18 +52,22 @@ import java.io.PrintWriter;
 public class Pearsons extends JuiceboxCLT {
 
     private static final int BLOCK_TILE = 500;
+    private static final int HISTOGRAM_BINS = 1 << 20;
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
     private String ofile = null;
     private HiCZoom.HiCUnit unit = null;
     private int binSize = 0;
     private Chromosome chromosome1;
-
+    private boolean useTiledCalculation = false;
+    private int numCPUThreads = 1;
 
     public Pearsons() {
-        super(getBasicUsage() + "\n\t-p, --pearsons_all_resolutions: calculate Pearson's at all resolutions");
+        super(getBasicUsage() + "\n\t-p, --pearsons_all_resolutions: calculate Pearson's at all resolutions"
+                + "\n\t-j, --threads: number of CPU threads for the tiled calculation at high resolution");
     }
 
     public static String getBasicUsage(){
-        return "pearsons [-p] <NONE/VC/VC_SQRT/KR> <hicFile(s)> <chr> <BP/FRAG> <binsize> [outfile]";
+        return "pearsons [-p] [-j threads] <NONE/VC/VC_SQRT/KR> <hicFile(s)> <chr> <BP/FRAG> <binsize> [outfile]";
     }
 
     @Override
@@ -96,10 +104,11 @@ public class Pearsons extends JuiceboxCLT {
 
         if ((unit == HiCZoom.HiCUnit.BP && binSize < HiCGlobals.MAX_PEARSON_ZOOM) ||
                 (unit == HiCZoom.HiCUnit.FRAG && binSize < HiCGlobals.MAX_PEARSON_ZOOM / 1000)) {
-            System.out.println("Pearson's and Eigenvector are not calculated for high resolution datasets");
-            System.out.println("To override this limitation, send in the \"-p\" flag.");
-            System.exit(0);
+            System.out.println("Using tiled Pearson's calculation at high resolution");
+            System.out.println("To use the dense calculation at all resolutions, send in the \"-p\" flag.");
+            useTiledCalculation = true;
         }
+        numCPUThreads = updateNumberOfCPUThreads(parser, 1);
 
         if (args.length == 7) {
             ofile = args[6];
@@ -126,6 +135,11 @@ public class Pearsons extends JuiceboxCLT {
         }
         ExpectedValueFunction df = dataset.getExpectedValuesOrExit(zd.getZoom(), norm, true, true);
 
+        if (useTiledCalculation) {
+            runTiled(zd, zoom, df);
+            return;
+        }
+
         BasicMatrix pearsons = zd.getPearsons(df);
         if (pearsons == null) {
             System.err.println("Pearson's not available at zoom " + zoom  + ". For high resolution, try again with -p");
@@ -197,7 +211,214 @@ public class Pearsons extends JuiceboxCLT {
         }
     }
 
-    private void writeHeader(LittleEndianOutputStream les, int dim, float lower, float upper) throws IOException {
+    /**
+     * Streams the correlation matrix one band of BLOCK_TILE rows at a time, in the same text
+     * and .bin layouts as the dense version.
+     */
+    private void runTiled(MatrixZoomData zd, HiCZoom zoom, ExpectedValueFunction df) {
+        ObservedOverExpected oe = new ObservedOverExpected(datasetPath, datasetReader, dataset, zd, chromosome1, zoom, norm, df);
+        TiledPearsons pearsons = new TiledPearsons(oe, oe.loadRows(), numCPUThreads);
+        int dim = pearsons.getDimension();
+        float[][] band = new float[Math.min(BLOCK_TILE, dim)][dim];
+
+        try {
+            if (ofile != null && ofile.endsWith(".bin")) {
+                writeTiledBin(pearsons, band, dim);
+            } else {
+                Writer writer;
+                if (ofile != null) {
+                    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(ofile)), BUFFER_SIZE);
+                } else {
+                    writer = new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE);
+                }
+                writeTiledText(pearsons, band, dim, writer);
+            }
+        } catch (IOException error) {
+            System.err.println("Problem when writing Pearson's");
+            error.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private void writeTiledText(TiledPearsons pearsons, float[][] band, int dim, Writer writer) throws IOException {
+        String newline = System.lineSeparator();
+        for (int start = 0; start < dim; start += BLOCK_TILE) {
+            pearsons.fillBand(start, band);
+            int numRows = Math.min(BLOCK_TILE, dim - start);
+            for (int r = 0; r < numRows; r++) {
+                float[] row = band[r];
+                for (int j = 0; j < dim; j++) {
+                    writer.write(Float.toString(row[j]));
+                    writer.write(' ');
+                }
+                writer.write(newline);
+            }
+        }
+        writer.flush();
+        if (ofile != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * The header holds the 5th/95th percentiles, which are only known after all tiles are written.
+     * They are taken as the dense matrix does, over all values other than NaN and 1: a histogram over [-1, 1]
+     * collected while writing locates the bins holding the needed order statistics, a second pass over the
+     * written tiles selects them exactly within those bins, and the result is patched in at the end.
+     */
+    private void writeTiledBin(TiledPearsons pearsons, float[][] band, int dim) throws IOException {
+        LittleEndianOutputStream les = new LittleEndianOutputStream(
+                new BufferedOutputStream(new FileOutputStream(ofile), BUFFER_SIZE));
+        long percentilePosition = writeHeader(les, dim, 0, 0);
+        long dataPosition = les.getWrittenCount();
+
+        long[] histogram = new long[HISTOGRAM_BINS];
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_TILE * BLOCK_TILE * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int blockRowStart = 0; blockRowStart < dim; blockRowStart += BLOCK_TILE) {
+            pearsons.fillBand(blockRowStart, band);
+            int rowLen = Math.min(BLOCK_TILE, dim - blockRowStart);
+            for (int r = 0; r < rowLen; r++) {
+                for (float value : band[r]) {
+                    if (isCountedForPercentiles(value)) {
+                        histogram[getHistogramBin(value)]++;
+                    }
+                }
+            }
+            for (int blockColStart = 0; blockColStart < dim; blockColStart += BLOCK_TILE) {
+                int colLen = Math.min(BLOCK_TILE, dim - blockColStart);
+                buffer.clear();
+                for (int r = 0; r < rowLen; r++) {
+                    for (int c = 0; c < colLen; c++) {
+                        buffer.putFloat(band[r][blockColStart + c]);
+                    }
+                }
+                les.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        les.close();
+
+        float[] percentiles = getPercentiles(histogram, dataPosition, new double[]{5, 95});
+        try (RandomAccessFile raf = new RandomAccessFile(ofile, "rw")) {
+            raf.seek(percentilePosition);
+            raf.writeInt(Integer.reverseBytes(Float.floatToIntBits(percentiles[0])));
+            raf.writeInt(Integer.reverseBytes(Float.floatToIntBits(percentiles[1])));
+        }
+    }
+
+    private static boolean isCountedForPercentiles(float value) {
+        return !Float.isNaN(value) && value != 1;
+    }
+
+    private static int getHistogramBin(float value) {
+        int bin = (int) ((value + 1) / 2 * HISTOGRAM_BINS);
+        return Math.max(0, Math.min(HISTOGRAM_BINS - 1, bin));
+    }
+
+    /**
+     * Percentiles with the same estimate as commons-math's default: position p * (n + 1) / 100 in the sorted
+     * values, interpolated between its neighbours and clamped to the smallest and largest value.
+     */
+    private float[] getPercentiles(long[] histogram, long dataPosition, double[] percentiles) throws IOException {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        float[] result = new float[percentiles.length];
+        if (total == 0) {
+            Arrays.fill(result, Float.NaN);
+            return result;
+        }
+
+        // 1-based ranks of the two order statistics around each position
+        long[] ranks = new long[2 * percentiles.length];
+        double[] fractions = new double[percentiles.length];
+        for (int p = 0; p < percentiles.length; p++) {
+            double position = percentiles[p] * (total + 1) / 100.0;
+            long lowerRank = (long) Math.floor(position);
+            if (position < 1) {
+                ranks[2 * p] = ranks[2 * p + 1] = 1;
+            } else if (position >= total) {
+                ranks[2 * p] = ranks[2 * p + 1] = total;
+            } else {
+                ranks[2 * p] = lowerRank;
+                ranks[2 * p + 1] = lowerRank + 1;
+                fractions[p] = position - lowerRank;
+            }
+        }
+
+        int[] rankBins = new int[ranks.length];
+        long[] ranksInBin = new long[ranks.length];
+        for (int k = 0; k < ranks.length; k++) {
+            long cumulative = 0;
+            int bin = 0;
+            while (cumulative + histogram[bin] < ranks[k]) {
+                cumulative += histogram[bin];
+                bin++;
+            }
+            rankBins[k] = bin;
+            ranksInBin[k] = ranks[k] - cumulative;
+        }
+
+        float[][] valuesInBins = selectBins(histogram, rankBins, dataPosition);
+        for (int p = 0; p < percentiles.length; p++) {
+            float lower = valuesInBins[2 * p][(int) (ranksInBin[2 * p] - 1)];
+            float upper = valuesInBins[2 * p + 1][(int) (ranksInBin[2 * p + 1] - 1)];
+            result[p] = (float) (lower + fractions[p] * (upper - lower));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the written tiles back and keeps only the values falling in the given histogram bins.
+     *
+     * @return the sorted values of each requested bin
+     */
+    private float[][] selectBins(long[] histogram, int[] bins, long dataPosition) throws IOException {
+        float[][] values = new float[bins.length][];
+        int[] filled = new int[bins.length];
+        for (int k = 0; k < bins.length; k++) {
+            for (int prev = 0; prev < k && values[k] == null; prev++) {
+                if (bins[prev] == bins[k]) values[k] = values[prev];
+            }
+            if (values[k] == null) {
+                if (histogram[bins[k]] > Integer.MAX_VALUE - 8) {
+                    System.err.println("Too many identical Pearson's values to compute percentiles");
+                    System.exit(1);
+                }
+                values[k] = new float[(int) histogram[bins[k]]];
+            }
+        }
+
+        try (FileChannel channel = new RandomAccessFile(ofile, "r").getChannel()) {
+            channel.position(dataPosition);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.remaining() >= 4) {
+                    float value = buffer.getFloat();
+                    if (!isCountedForPercentiles(value)) continue;
+                    int bin = getHistogramBin(value);
+                    for (int k = 0; k < bins.length; k++) {
+                        if (bins[k] == bin) {
+                            values[k][filled[k]++] = value;
+                            break;
+                        }
+                    }
+                }
+                buffer.compact();
+            }
+        }
+
+        for (int k = 0; k < bins.length; k++) {
+            if (filled[k] > 0) Arrays.sort(values[k]);
+        }
+        return values;
+    }
+
+    /**
+     * @return position of the lower quartile field, so it can be patched later
+     */
+    private long writeHeader(LittleEndianOutputStream les, int dim, float lower, float upper) throws IOException {
 
         // Magic number - 4 bytes
         les.writeByte('h');
@@ -219,10 +440,12 @@ public class Pearsons extends JuiceboxCLT {
         les.writeInt(binSize);
 
         // Statistics, other attributes
+        long percentilePosition = les.getWrittenCount();
         les.writeFloat(lower);  // this is supposed to be lower quartile
         les.writeFloat(upper);  // this is supposed to be upper quartile
         les.writeInt(dim);  // # rows
         les.writeInt(dim);  // # cols
         les.writeInt(BLOCK_TILE);
+        return percentilePosition;
     }
 }
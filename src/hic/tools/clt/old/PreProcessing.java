@@ -28,11 +28,21 @@ import hic.HiCGlobals;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
 import hic.tools.utils.ShellCommandRunner;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.iterators.mnd.AsciiToBinConverter;
+import hic.tools.utils.iterators.mnd.ColumnarPairsIndex;
+import hic.tools.utils.localtemps.LocalTempDirectory;
+import hic.tools.utils.norm.IntraContactsCollector;
+import hic.tools.utils.norm.NormalizationVectorUpdater;
+import hic.tools.utils.original.HiCFileBuilder;
+import hic.tools.utils.original.MemoryPlanner;
 import hic.tools.utils.original.MultithreadedPreprocessor;
 import hic.tools.utils.original.Preprocessor;
+import javastraw.reader.basics.ChromosomeTools;
 import javastraw.reader.type.NormalizationType;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -42,12 +52,15 @@ public class PreProcessing extends JuiceboxCLT {
 
     private String inputFile;
     private String outputFile;
+    private String bamFile = null;
     private Preprocessor preprocessor;
     private boolean noNorm = false;
     private boolean noFragNorm = false;
     private int genomeWide;
     private String shell = "sh";
+    private int normRamSavePoint = 0;
     private final List<NormalizationType> normalizationTypes = new ArrayList<>();
+    private IntraContactsCollector intraContactsCollector = null;
 
     public PreProcessing() {
         super(getBasicUsage() + "\n"
@@ -71,6 +84,10 @@ public class PreProcessing extends JuiceboxCLT {
                 + "           : --mndindex <filepath> to mnd chr block indices\n"
                 + "           : --conserve-ram will minimize RAM usage\n"
                 + "           : --check-ram-usage will check ram requirements prior to running\n"
+                + "           : --phase-summary <file> write per-phase timings and I/O counters as JSON\n"
+                + "           : --dedup drop duplicate pairs while reading; input must be sorted so duplicates are adjacent\n"
+                + "           : --dedup-tolerance <int> with --dedup, also drop pairs within this many bp of a kept pair [0]\n"
+                + "           : --checkpoint record progress after each matrix and resume an interrupted run (single-threaded only)\n"
                 + "           : --shell how to execute shell (sh, bash, zsh, etc); default: sh"
         );
     }
@@ -93,18 +110,38 @@ public class PreProcessing extends JuiceboxCLT {
         inputFile = args[1];
         outputFile = args[2];
         String tmpDir = parser.getTmpdirOption();
+        LocalTempDirectory.setBaseDirectory(tmpDir);
         double hicFileScalingFactor = parser.getScalingOption();
 
         HiCGlobals.primaryThreads = updateNumberOfCPUThreads(parser, 1);
         HiCGlobals.normThreads = updateSecondaryNumberOfCPUThreads(parser, 10);
 
+        // a BAM is grouped into a columnar pairs file at the start of run(), which then stands in for it
+        if (inputFile.endsWith(".bam")) {
+            bamFile = inputFile;
+        }
+
+        if (parser.getConserveRamOption() || parser.getCheckRamUsageOption()) {
+            planMemoryUsage(parser, genomeId, parser.getConserveRamOption());
+        }
+
         if (HiCGlobals.primaryThreads < 2) {
             preprocessor = new Preprocessor(new File(outputFile), genomeId, hicFileScalingFactor, tmpDir);
             usingMultiThreadedVersion = false;
         } else {
             try {
-                preprocessor = new MultithreadedPreprocessor(new File(outputFile), genomeId,
-                        hicFileScalingFactor, HiCGlobals.primaryThreads, parser.getMndIndexOption(), tmpDir);
+                // a columnar pairs file carries its own index of chromosome pair chunks
+                String mndIndexFile = parser.getMndIndexOption();
+                if (ColumnarPairsIndex.isColumnarPairsFile(inputFile)) {
+                    mndIndexFile = inputFile;
+                }
+                if (bamFile != null) {
+                    preprocessor = new MultithreadedPreprocessor(new File(outputFile), genomeId,
+                            hicFileScalingFactor, HiCGlobals.primaryThreads, tmpDir);
+                } else {
+                    preprocessor = new MultithreadedPreprocessor(new File(outputFile), genomeId,
+                            hicFileScalingFactor, HiCGlobals.primaryThreads, mndIndexFile, tmpDir);
+                }
                 usingMultiThreadedVersion = true;
             } catch (Exception e) {
                 System.err.println(e.getLocalizedMessage() + "\nUsing single threaded preprocessor");
@@ -113,6 +150,16 @@ public class PreProcessing extends JuiceboxCLT {
             }
         }
 
+        boolean useCheckpoints = false;
+        if (parser.getCheckpointOption()) {
+            if (usingMultiThreadedVersion) {
+                System.err.println("Checkpointing is only supported by the single threaded preprocessor; ignoring --checkpoint");
+            } else {
+                preprocessor.setUseCheckpoints(true);
+                useCheckpoints = true;
+            }
+        }
+
         preprocessor.setIncludedChromosomes(parser.getChromosomeSetOption());
         preprocessor.setCountThreshold(parser.getCountThresholdOption());
         preprocessor.setV9DepthBase(parser.getV9DepthBase());
@@ -123,6 +170,7 @@ public class PreProcessing extends JuiceboxCLT {
         preprocessor.setGenome(parser.getGenomeOption());
         preprocessor.setResolutions(parser.getResolutionOption());
         preprocessor.setFilter(parser.getAlignmentOption());
+        preprocessor.setDuplicateRemoval(parser.getDedupOption(), parser.getDedupToleranceOption());
         int blockCapacity = parser.getBlockCapacityOption();
         if (blockCapacity > 10) {
             Preprocessor.BLOCK_CAPACITY = blockCapacity;
@@ -136,12 +184,96 @@ public class PreProcessing extends JuiceboxCLT {
         genomeWide = parser.getGenomeWideOption();
         noFragNorm = parser.getNoFragNormOption();
         normalizationTypes.addAll(parser.getAllNormalizationTypesOption());
+
+        // keep the intra-chromosomal contacts as they are written, so the norms need not read the file back;
+        // a resumed run would miss the matrices written before the checkpoint
+        if (!noNorm && !useCheckpoints && NormalizationVectorUpdater.canBuildFromCollected(normalizationTypes)) {
+            intraContactsCollector = new IntraContactsCollector(NormalizationVectorUpdater.getMinResolution(
+                    AddNorm.defaultHashMapForResToBuildTo(normalizationTypes)));
+            IntraContactsCollector.activate(intraContactsCollector);
+        }
+
+        String phaseSummary = parser.getPhaseSummaryOption();
+        if (phaseSummary != null) {
+            PhaseTracker.enable(phaseSummary);
+        }
+    }
+
+    /**
+     * A BAM comes grouped by read name, but pre reads each chromosome pair's contacts in one go; the pairs are
+     * spilled to a temporary columnar pairs file, which is grouped and indexed by chromosome pair
+     *
+     * @return path of the columnar pairs file, removed when the JVM exits
+     */
+    private String groupBamByChromosomePair() {
+        File file = new File(bamFile);
+        if (!file.exists() || file.length() == 0) {
+            System.err.println(bamFile + " does not exist or does not contain any reads.");
+            System.exit(57);
+        }
+        File outputDirectory = new File(outputFile).getAbsoluteFile().getParentFile();
+        if (outputDirectory == null || !outputDirectory.isDirectory() || !outputDirectory.canWrite()) {
+            System.err.println("Unable to write to " + outputFile);
+            System.exit(70);
+        }
+
+        try {
+            File columnarFile = LocalTempDirectory.createTempFile("bam_pairs_", ColumnarPairsIndex.EXTENSION);
+            System.out.println("Grouping the pairs in " + bamFile + " by chromosome pair");
+            PhaseTracker.Phase phase = PhaseTracker.start("pre.groupBam");
+            AsciiToBinConverter.convert(bamFile, columnarFile.getPath(), preprocessor.getChromosomeHandler(),
+                    HiCGlobals.primaryThreads);
+            phase.addBytesRead(file.length()).addBytesWritten(columnarFile.length()).addTempFiles(1).end();
+            return columnarFile.getPath();
+        } catch (IOException e) {
+            System.err.println("Unable to read pairs from " + bamFile + ": " + e.getLocalizedMessage());
+            System.exit(73);
+        }
+        return null;
+    }
+
+    private void planMemoryUsage(CommandLineParser parser, String genomeId, boolean conserveRam) {
+        int[] binSizes = HiCFileBuilder.DEFAULT_BP_BIN_SIZES;
+        List<String> resolutions = parser.getResolutionOption();
+        if (resolutions != null && resolutions.size() > 0) {
+            binSizes = new int[resolutions.size()];
+            for (int i = 0; i < binSizes.length; i++) {
+                try {
+                    binSizes[i] = Integer.parseInt(resolutions.get(i));
+                } catch (NumberFormatException e) {
+                    binSizes[i] = HiCFileBuilder.DEFAULT_BP_BIN_SIZES[0];
+                }
+            }
+        }
+
+        long contacts = 0;
+        try {
+            contacts = MemoryPlanner.estimateContacts(inputFile);
+        } catch (IOException e) {
+            System.err.println("Unable to sample " + inputFile + " for memory planning: " + e.getLocalizedMessage());
+        }
+
+        MemoryPlanner planner = new MemoryPlanner(ChromosomeTools.loadChromosomes(genomeId), binSizes, contacts,
+                HiCGlobals.primaryThreads, HiCGlobals.chromThreads);
+        planner.print(true);
+
+        if (conserveRam) {
+            HiCGlobals.primaryThreads = planner.getNumThreads();
+            normRamSavePoint = planner.getNormCutoff();
+            MemoryPlanner.activate(planner);
+        }
     }
 
     @Override
     public void run() {
         try {
             long currentTime = System.currentTimeMillis();
+            if (bamFile != null) {
+                inputFile = groupBamByChromosomePair();
+                if (usingMultiThreadedVersion) {
+                    ((MultithreadedPreprocessor) preprocessor).setMndIndex(inputFile);
+                }
+            }
             if (usingMultiThreadedVersion) {
                 preprocessor.preprocess(inputFile, null, null, null);
                 ShellCommandRunner.runShellFile(shell, outputFile + MultithreadedPreprocessor.CAT_SCRIPT);
@@ -155,11 +287,26 @@ public class PreProcessing extends JuiceboxCLT {
 
             if (!noNorm) {
                 Map<NormalizationType, Integer> resolutionsToBuildTo = AddNorm.defaultHashMapForResToBuildTo(normalizationTypes);
-                AddNorm.launch(outputFile, normalizationTypes, 0, resolutionsToBuildTo);
+                if (intraContactsCollector != null && new File(outputFile).length() != preprocessor.getNormFilePosition()) {
+                    System.err.println("Unexpected .hic file length; reading the file back to normalize it");
+                    intraContactsCollector.clear();
+                    intraContactsCollector = null;
+                }
+                if (intraContactsCollector != null) {
+                    IntraContactsCollector.activate(null);
+                    NormalizationVectorUpdater updater = new NormalizationVectorUpdater();
+                    updater.updateHicFileFromCollected(outputFile, intraContactsCollector,
+                            preprocessor.getChromosomeHandler(), preprocessor.getBpBinSizes(),
+                            preprocessor.getNormFilePosition(), preprocessor.getNormVectorIndexPosition(),
+                            normalizationTypes, resolutionsToBuildTo, normRamSavePoint);
+                } else {
+                    AddNorm.launch(outputFile, normalizationTypes, normRamSavePoint, resolutionsToBuildTo);
+                }
             } else {
                 System.out.println("Done creating .hic file. Normalization not calculated due to -n flag.");
                 System.out.println("To run normalization, run: java -jar juicer_tools.jar addNorm <hicfile>");
             }
+            PhaseTracker.writeSummary();
         } catch (Exception e) {
             e.printStackTrace();
             System.exit(56);
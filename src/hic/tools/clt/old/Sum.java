@@ -24,14 +24,17 @@
 
 package hic.tools.clt.old;
 
+import hic.HiCGlobals;
 import hic.tools.clt.CommandLineParser;
 import hic.tools.clt.JuiceboxCLT;
 import hic.tools.utils.original.Preprocessor;
 import hic.tools.utils.original.PreprocessorFromDatasets;
 import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.tools.HiCFileTools;
 
 import java.io.File;
+import java.io.IOException;
 
 public class Sum extends JuiceboxCLT {
 
@@ -44,7 +47,9 @@ public class Sum extends JuiceboxCLT {
                 + " : [--near-diagonal]     only retain reads within 10MB of diagonal   [default: false]\n"
                 + " : [-t <string>]         set a temporary directory for writing       [default: temp_folder]\n"
                 + " : [-r <int>]            set the highest resolution to build to      [default: highest available]\n"
-                + " : [--block-size <int>]  scale factor to increase block capacity by  [default: 1]");
+                + " : [--block-size <int>]  scale factor to increase block capacity by  [default: 1]\n"
+                + " : [-j <int>]            number of chromosome pairs merged at once   [default: 10]\n"
+                + " : [--block-merge]       sum matching blocks instead of re-binning   [default: false]");
     }
 
     public static String getBasicUsage() {
@@ -56,16 +61,34 @@ public class Sum extends JuiceboxCLT {
 
         outputFile = args[1];
         Dataset[] datasets = new Dataset[args.length - 2];
-        for (int z = 2; z < args.length; z++) {
-            datasets[z - 2] = HiCFileTools.extractDatasetForCLT(args[z], false, false, false);
+        DatasetReaderV2[] readers = null;
+        if (parser.getBlockMergeOption()) {
+            readers = new DatasetReaderV2[args.length - 2];
+            for (int z = 2; z < args.length; z++) {
+                try {
+                    readers[z - 2] = new DatasetReaderV2(args[z], false, false);
+                    datasets[z - 2] = readers[z - 2].read();
+                    HiCGlobals.verifySupportedHiCFileVersion(readers[z - 2].getVersion());
+                } catch (IOException e) {
+                    System.err.println("Unable to read " + args[z]);
+                    e.printStackTrace();
+                    System.exit(56);
+                }
+            }
+        } else {
+            for (int z = 2; z < args.length; z++) {
+                datasets[z - 2] = HiCFileTools.extractDatasetForCLT(args[z], false, false, false);
+            }
         }
 
         String tmpDir = parser.getTmpdirOption();
         double hicFileScalingFactor = parser.getScalingOption();
-        updateNumberOfCPUThreads(parser, 10);
+        int numCPUThreads = updateNumberOfCPUThreads(parser, 10);
 
         pfd = new PreprocessorFromDatasets(new File(outputFile), datasets, hicFileScalingFactor,
                 tmpDir);
+        pfd.setNumCPUThreads(numCPUThreads);
+        pfd.setBlockMergeReaders(readers);
 
         pfd.setHighestResolution(parser.getResolutionOption());
         boolean getOnlyNearDiagonal = parser.getOnlyNearDiagonalOption();
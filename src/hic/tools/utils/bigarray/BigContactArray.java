@@ -30,9 +30,9 @@ import hic.tools.utils.largelists.BigDoublesArray;
 import hic.tools.utils.largelists.BigFloatsArray;
 import hic.tools.utils.largelists.BigIntsArray;
 import hic.tools.utils.original.ExpectedValueCalculation;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.datastructures.ListOfIntArrays;
-import javastraw.tools.ParallelizationTools;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -87,7 +87,7 @@ public class BigContactArray implements BigContactList {
         final BigDoublesArray totalSumVector = new BigDoublesArray(vectorLength);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             BigDoublesArray sumVector = new BigDoublesArray(vectorLength);
             while (sIndx < binXs.size()) {
@@ -119,7 +119,7 @@ public class BigContactArray implements BigContactList {
         final BigDoublesArray totalSumVector = new BigDoublesArray(vectorLength);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             BigDoublesArray sumVector = new BigDoublesArray(vectorLength);
             while (sIndx < binXs.size()) {
@@ -147,7 +147,7 @@ public class BigContactArray implements BigContactList {
         final ListOfFloatArrays totalRowSums = new ListOfFloatArrays(matrixSize, 0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             ListOfFloatArrays sums = new ListOfFloatArrays(matrixSize);
             while (sIndx < binXs.size()) {
@@ -178,7 +178,7 @@ public class BigContactArray implements BigContactList {
         final AtomicDouble normSum = new AtomicDouble(0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             double[] mSum = new double[1];
             double[] nSum = new double[1];
@@ -218,7 +218,7 @@ public class BigContactArray implements BigContactList {
         final AtomicDouble sumTotal = new AtomicDouble(0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             double[] normSum = new double[1];
             double[] sum = new double[1];
@@ -253,7 +253,7 @@ public class BigContactArray implements BigContactList {
         final ListOfIntArrays numNonZeros = new ListOfIntArrays(matrixSize);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             ListOfIntArrays nonZeros = new ListOfIntArrays(matrixSize);
             while (sIndx < binXs.size()) {
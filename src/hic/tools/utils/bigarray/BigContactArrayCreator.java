@@ -24,20 +24,45 @@
 
 package hic.tools.utils.bigarray;
 
+import hic.tools.utils.cache.BlockCache;
+import hic.tools.utils.localtemps.BinRecordsReader;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.block.ContactRecord;
 import javastraw.reader.mzd.MatrixZoomData;
 
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
 
 public class BigContactArrayCreator {
     public static BigContactArray createFromZD(MatrixZoomData zd) {
         return populateBigArrayFromSingleIterator(zd.getDirectIterator(), 10000000, zd.getMatrixSize());
     }
 
+    public static CSRContactMatrix createCSRFromZD(MatrixZoomData zd) {
+        return populateCSRFromTwoPasses(zd::getDirectIterator, zd.getMatrixSize());
+    }
+
     public static BigContactList createLocalVersionFromZD(MatrixZoomData zd) {//100000000
         return new LocallySavedContacts(zd.getDirectIterator(), 10000000, zd.getMatrixSize());
     }
 
+    /**
+     * As {@link #createCSRFromZD(MatrixZoomData)}, reading the blocks through the shared block cache
+     * so the second pass is served from memory when the matrix fits
+     */
+    public static CSRContactMatrix createCSRFromZD(String path, DatasetReaderV2 reader, MatrixZoomData zd) {
+        return populateCSRFromTwoPasses(() -> BlockCache.iterate(path, reader, zd), zd.getMatrixSize());
+    }
+
+    /**
+     * The low-memory version: one pass, so the blocks are prefetched but not kept in the cache
+     */
+    public static BigContactList createLocalVersionFromZD(String path, DatasetReaderV2 reader, MatrixZoomData zd) {
+        return new LocallySavedContacts(BlockCache.iterateOnce(path, reader, zd), 10000000, zd.getMatrixSize());
+    }
+
     public static BigContactArray populateBigArrayFromSingleIterator(Iterator<ContactRecord> iterator, int limit,
                                                                      long matrixSize) {
         BigContactArray allRecords = new BigContactArray(matrixSize);
@@ -64,4 +89,58 @@ public class BigContactArrayCreator {
         }
         return allRecords;
     }
+
+    /**
+     * Counting sort into rows: the first pass only counts the entries of each row,
+     * the second places every contact directly into its final slot.
+     */
+    public static CSRContactMatrix populateCSRFromTwoPasses(Supplier<Iterator<ContactRecord>> iterators,
+                                                            long matrixSize) {
+        int[] rowCounts = new int[(int) matrixSize];
+        Iterator<ContactRecord> iterator = iterators.get();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            rowCounts[cr.getBinX()]++;
+            if (cr.getBinX() != cr.getBinY()) {
+                rowCounts[cr.getBinY()]++;
+            }
+        }
+
+        CSRContactMatrix matrix = new CSRContactMatrix(matrixSize, rowCounts);
+        iterator = iterators.get();
+        while (iterator.hasNext()) {
+            ContactRecord cr = iterator.next();
+            matrix.add(cr.getBinX(), cr.getBinY(), cr.getCounts());
+        }
+        matrix.finishBuild();
+        return matrix;
+    }
+
+    /**
+     * Single-pass fill for contacts already saved to local files, when the entries of each row
+     * were counted while the files were written.
+     *
+     * @param rowCounts as for {@link CSRContactMatrix}; the array is consumed
+     */
+    public static CSRContactMatrix populateCSRFromLocalFiles(List<String> filenames, int[] rowCounts,
+                                                             long matrixSize) throws IOException {
+        CSRContactMatrix matrix = new CSRContactMatrix(matrixSize, rowCounts);
+        for (String filename : filenames) {
+            BinRecordsReader reader = new BinRecordsReader(filename);
+            try {
+                while (reader.loadNextBlock()) {
+                    int[] xs = reader.getBinXs();
+                    int[] ys = reader.getBinYs();
+                    float[] cs = reader.getCounts();
+                    for (int k = 0; k < reader.getBlockSize(); k++) {
+                        matrix.add(xs[k], ys[k], cs[k]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        matrix.finishBuild();
+        return matrix;
+    }
 }
@@ -24,6 +24,7 @@
 
 package hic.tools.utils.bigarray;
 
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
@@ -31,8 +32,7 @@ import javastraw.reader.iterators.GenomeWideIterator;
 import javastraw.reader.type.HiCZoom;
 
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 
 public class BigGWContactArrayCreator {
 
@@ -69,13 +69,13 @@ public class BigGWContactArrayCreator {
     private static BigContactArray[] parLoadInterAndIntraGWData(Dataset dataset, ChromosomeHandler handler, HiCZoom zoom, boolean includeIntra, int limit, long matrixSize) {
         BigContactArray[] bas = new BigContactArray[2];
         Arrays.fill(bas, null);
-        ExecutorService executor = Executors.newFixedThreadPool(2);
+        TaskScope scope = new TaskScope();
 
         Runnable worker = () -> {
             bas[0] = BigContactArrayCreator.populateBigArrayFromSingleIterator(new GenomeWideIterator(dataset, handler,
                     zoom, false, true), limit, matrixSize);
         };
-        executor.execute(worker);
+        scope.fork(worker);
 
         Runnable worker2 = () -> {
             if (includeIntra) {
@@ -83,11 +83,14 @@ public class BigGWContactArrayCreator {
                         zoom, true, false), limit, matrixSize);
             }
         };
-        executor.execute(worker2);
-
-        executor.shutdown();
-
-        while (!executor.isTerminated()) {
+        scope.fork(worker2);
+
+        try {
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Unable to load genome-wide contacts");
+            e.printStackTrace();
+            System.exit(31);
         }
 
         return bas;
@@ -0,0 +1,390 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.bigarray;
+
+import hic.HiCGlobals;
+import hic.tools.utils.largelists.BigFloatsArray;
+import hic.tools.utils.largelists.BigIntsArray;
+import hic.tools.utils.original.ExpectedValueCalculation;
+import hic.tools.utils.tasks.TaskScope;
+import javastraw.reader.datastructures.ListOfFloatArrays;
+import javastraw.reader.datastructures.ListOfIntArrays;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Row-sorted (CSR) snapshot of an intra-chromosomal matrix, for the repeated passes of VC / SCALE.
+ * <p>
+ * The file stores the upper triangle only; here both triangles are kept, with the diagonal once,
+ * so that every row is complete and a matrix-vector product can be split over row ranges with no
+ * two threads writing the same entry. The result equals the upper-triangle product of
+ * {@link SparseMatrixTools#matrixVectorMult}, where the diagonal is halved and added twice.
+ * <p>
+ * Rows are grouped into bands, each with its own arrays, so a chromosome may hold more than 2^31 entries.
+ */
+public class CSRContactMatrix implements BigContactList {
+
+    static final int MAX_BAND_ENTRIES = 1 << 26;
+    private static final int MIN_BAND_ENTRIES = 1 << 16;
+
+    private final long matrixSize;
+    private final int[] bandFirstRow;
+    private final int[][] rowOffsets;
+    private final int[][] columns;
+    private final float[][] values;
+
+    // only needed while the matrix is being filled
+    private int[] bandOfRow;
+    private int[] cursor;
+
+    /**
+     * @param rowCounts number of entries in each row, with off-diagonal contacts counted in both rows;
+     *                  the array is reused as the fill cursor
+     */
+    CSRContactMatrix(long matrixSize, int[] rowCounts) {
+        this.matrixSize = matrixSize;
+        int numRows = rowCounts.length;
+
+        long totalEntries = 0;
+        for (int count : rowCounts) {
+            totalEntries += count;
+        }
+        long target = Math.min(MAX_BAND_ENTRIES,
+                Math.max(MIN_BAND_ENTRIES, totalEntries / (4L * HiCGlobals.normThreads) + 1));
+
+        int numBands = 0;
+        int[] firstRows = new int[numRows + 1];
+        long inBand = 0;
+        for (int r = 0; r < numRows; r++) {
+            if (r == 0 || (inBand > 0 && inBand + rowCounts[r] > target)) {
+                firstRows[numBands++] = r;
+                inBand = 0;
+            }
+            inBand += rowCounts[r];
+        }
+        firstRows[numBands] = numRows;
+
+        bandFirstRow = new int[numBands + 1];
+        System.arraycopy(firstRows, 0, bandFirstRow, 0, numBands + 1);
+        rowOffsets = new int[numBands][];
+        columns = new int[numBands][];
+        values = new float[numBands][];
+        bandOfRow = new int[numRows];
+        cursor = rowCounts;
+
+        for (int b = 0; b < numBands; b++) {
+            int first = bandFirstRow[b];
+            int last = bandFirstRow[b + 1];
+            int[] offsets = new int[last - first + 1];
+            int position = 0;
+            for (int r = first; r < last; r++) {
+                offsets[r - first] = position;
+                position += rowCounts[r];
+                cursor[r] = offsets[r - first];
+                bandOfRow[r] = b;
+            }
+            offsets[last - first] = position;
+            rowOffsets[b] = offsets;
+            columns[b] = new int[position];
+            values[b] = new float[position];
+        }
+    }
+
+    /**
+     * Second pass of the build; must see exactly the contacts that were counted.
+     */
+    void add(int x, int y, float counts) {
+        put(x, y, counts);
+        if (x != y) {
+            put(y, x, counts);
+        }
+    }
+
+    private void put(int row, int col, float counts) {
+        int b = bandOfRow[row];
+        int k = cursor[row]++;
+        columns[b][k] = col;
+        values[b][k] = counts;
+    }
+
+    /**
+     * Orders each row by column, so that every pass sums in the same order whichever order the
+     * contacts were added in.
+     */
+    void finishBuild() {
+        bandOfRow = null;
+        cursor = null;
+
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
+            int b = index.getAndIncrement();
+            long[] scratch = new long[0];
+            while (b < getNumBands()) {
+                int[] offsets = rowOffsets[b];
+                int[] cols = columns[b];
+                float[] vals = values[b];
+                for (int i = 0; i < offsets.length - 1; i++) {
+                    int start = offsets[i];
+                    int end = offsets[i + 1];
+                    if (isSorted(cols, start, end)) continue;
+                    if (scratch.length < end - start) {
+                        scratch = new long[end - start];
+                    }
+                    for (int k = start; k < end; k++) {
+                        scratch[k - start] = ((long) cols[k] << 32) | (Float.floatToRawIntBits(vals[k]) & 0xFFFFFFFFL);
+                    }
+                    Arrays.sort(scratch, 0, end - start);
+                    for (int k = start; k < end; k++) {
+                        cols[k] = (int) (scratch[k - start] >>> 32);
+                        vals[k] = Float.intBitsToFloat((int) scratch[k - start]);
+                    }
+                }
+                b = index.getAndIncrement();
+            }
+        });
+    }
+
+    private static boolean isSorted(int[] cols, int start, int end) {
+        for (int k = start + 1; k < end; k++) {
+            if (cols[k - 1] > cols[k]) return false;
+        }
+        return true;
+    }
+
+    public long getNumEntries() {
+        long total = 0;
+        for (int[] cols : columns) {
+            total += cols.length;
+        }
+        return total;
+    }
+
+    private int getNumBands() {
+        return rowOffsets.length;
+    }
+
+    private int getNumThreads() {
+        return Math.max(1, Math.min(HiCGlobals.normThreads, getNumBands()));
+    }
+
+    @Override
+    public long getMatrixSize() {
+        return matrixSize;
+    }
+
+    @Override
+    public void clear() {
+        for (int b = 0; b < getNumBands(); b++) {
+            rowOffsets[b] = null;
+            columns[b] = null;
+            values[b] = null;
+        }
+    }
+
+    @Override
+    public void clearIntraAndShiftInter() {
+    }
+
+    @Override
+    public BigFloatsArray parSparseMultiplyAcrossLists(BigFloatsArray vector, long vectorLength) {
+        float[] dense = new float[(int) vector.getLength()];
+        int start = 0;
+        for (float[] chunk : vector.getValues()) {
+            System.arraycopy(chunk, 0, dense, start, chunk.length);
+            start += chunk.length;
+        }
+        return parMultiply(dense, vectorLength);
+    }
+
+    @Override
+    public BigFloatsArray parSparseMultiplyAcrossLists(BigIntsArray vector, long vectorLength) {
+        float[] dense = new float[(int) vector.getLength()];
+        int start = 0;
+        for (int[] chunk : vector.getValues()) {
+            for (int i = 0; i < chunk.length; i++) {
+                dense[start + i] = chunk[i];
+            }
+            start += chunk.length;
+        }
+        return parMultiply(dense, vectorLength);
+    }
+
+    private BigFloatsArray parMultiply(float[] vector, long vectorLength) {
+        float[] product = new float[(int) vectorLength];
+
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
+            int b = index.getAndIncrement();
+            while (b < getNumBands()) {
+                int first = bandFirstRow[b];
+                int[] offsets = rowOffsets[b];
+                int[] cols = columns[b];
+                float[] vals = values[b];
+                for (int i = 0; i < offsets.length - 1; i++) {
+                    double sum = 0;
+                    for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                        sum += (double) vals[k] * vector[cols[k]];
+                    }
+                    product[first + i] = (float) sum;
+                }
+                b = index.getAndIncrement();
+            }
+        });
+
+        BigFloatsArray result = new BigFloatsArray(vectorLength);
+        int start = 0;
+        for (float[] chunk : result.getValues()) {
+            System.arraycopy(product, start, chunk, 0, chunk.length);
+            start += chunk.length;
+        }
+        return result;
+    }
+
+    @Override
+    public ListOfFloatArrays getRowSums() {
+        float[] sums = new float[(int) matrixSize];
+
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
+            int b = index.getAndIncrement();
+            while (b < getNumBands()) {
+                int first = bandFirstRow[b];
+                int[] offsets = rowOffsets[b];
+                float[] vals = values[b];
+                for (int i = 0; i < offsets.length - 1; i++) {
+                    float sum = 0;
+                    for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                        sum += vals[k];
+                    }
+                    sums[first + i] = sum;
+                }
+                b = index.getAndIncrement();
+            }
+        });
+
+        ListOfFloatArrays rowSums = new ListOfFloatArrays(matrixSize, 0);
+        for (int r = 0; r < sums.length; r++) {
+            rowSums.set(r, sums[r]);
+        }
+        return rowSums;
+    }
+
+    @Override
+    public ListOfIntArrays getNumNonZeroInRows() {
+        ListOfIntArrays numNonZeros = new ListOfIntArrays(matrixSize);
+        for (int b = 0; b < getNumBands(); b++) {
+            int first = bandFirstRow[b];
+            int[] offsets = rowOffsets[b];
+            for (int i = 0; i < offsets.length - 1; i++) {
+                int count = offsets[i + 1] - offsets[i];
+                if (count > 0) {
+                    numNonZeros.addTo(first + i, count);
+                }
+            }
+        }
+        return numNonZeros;
+    }
+
+    @Override
+    public double[] getNormMatrixSumFactor(ListOfFloatArrays norm) {
+        final float[] dense = toDense(norm);
+        // kept per band and added up in band order, so the result does not depend on thread scheduling
+        final double[] bandMatrixSums = new double[getNumBands()];
+        final double[] bandNormSums = new double[getNumBands()];
+
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
+            int b = index.getAndIncrement();
+            while (b < getNumBands()) {
+                int first = bandFirstRow[b];
+                int[] offsets = rowOffsets[b];
+                int[] cols = columns[b];
+                float[] vals = values[b];
+                double mSum = 0;
+                double nSum = 0;
+                for (int i = 0; i < offsets.length - 1; i++) {
+                    double valX = dense[first + i];
+                    if (valX > 0) {
+                        for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                            double valY = dense[cols[k]];
+                            if (valY > 0) {
+                                nSum += vals[k] / (valX * valY);
+                                mSum += vals[k];
+                            }
+                        }
+                    }
+                }
+                bandMatrixSums[b] = mSum;
+                bandNormSums[b] = nSum;
+                b = index.getAndIncrement();
+            }
+        });
+
+        double matrixSum = 0;
+        double normSum = 0;
+        for (int b = 0; b < getNumBands(); b++) {
+            matrixSum += bandMatrixSums[b];
+            normSum += bandNormSums[b];
+        }
+        return new double[]{normSum, matrixSum};
+    }
+
+    @Override
+    public ListOfFloatArrays normalizeVectorByScaleFactor(ListOfFloatArrays newNormVector) {
+        SparseMatrixTools.invertVector(newNormVector);
+        double[] sums = getNormMatrixSumFactor(newNormVector);
+        double scaleFactor = Math.sqrt(sums[0] / sums[1]);
+        newNormVector.multiplyEverythingBy(scaleFactor);
+        return newNormVector;
+    }
+
+    @Override
+    public void updateGenomeWideExpected(int chrIdx, ListOfFloatArrays vector, ExpectedValueCalculation exp) {
+        for (int b = 0; b < getNumBands(); b++) {
+            int first = bandFirstRow[b];
+            int[] offsets = rowOffsets[b];
+            int[] cols = columns[b];
+            float[] vals = values[b];
+            for (int i = 0; i < offsets.length - 1; i++) {
+                int x = first + i;
+                for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                    // each upper-triangle contact once
+                    if (cols[k] >= x) {
+                        SparseMatrixTools.populateNormedExpected(chrIdx, vector, exp, x, cols[k], vals[k]);
+                    }
+                }
+            }
+        }
+    }
+
+    private float[] toDense(ListOfFloatArrays vector) {
+        float[] dense = new float[(int) matrixSize];
+        for (int r = 0; r < dense.length; r++) {
+            dense[r] = vector.get(r);
+        }
+        return dense;
+    }
+}
@@ -32,13 +32,13 @@ import hic.tools.utils.largelists.BigIntsArray;
 import hic.tools.utils.localtemps.BinRecordsReader;
 import hic.tools.utils.localtemps.BinRecordsWriter;
 import hic.tools.utils.original.ExpectedValueCalculation;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.block.ContactRecord;
 import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.datastructures.ListOfIntArrays;
 import javastraw.reader.type.HiCZoom;
-import javastraw.tools.ParallelizationTools;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,9 +54,11 @@ public class LocallySavedContacts implements BigContactList {
     public static final String GENERIC = "contacts.";
     private final List<String> filenames = Collections.synchronizedList(new ArrayList<>());
     private final long matrixSize;
+    private final boolean ownsFiles;
 
     public LocallySavedContacts(Iterator<ContactRecord> directIterator, int bufferSize, long matrixSize) {
         this.matrixSize = matrixSize;
+        this.ownsFiles = true;
         try {
             BinRecordsWriter.saveAllContacts(directIterator, bufferSize, filenames, GENERIC);
         } catch (Exception e) {
@@ -69,6 +71,7 @@ public class LocallySavedContacts implements BigContactList {
     public LocallySavedContacts(Dataset ds, ChromosomeHandler handler, HiCZoom zoom, boolean includeIntra,
                                 int bufferSize, long matrixSize) {
         this.matrixSize = matrixSize;
+        this.ownsFiles = true;
         try {
             BinRecordsWriter.saveAllGWContacts(ds, handler, zoom, includeIntra, bufferSize, filenames,
                     INTRA, INTER);
@@ -79,11 +82,23 @@ public class LocallySavedContacts implements BigContactList {
         }
     }
 
+    /**
+     * Reads contacts that were already saved to local files by someone else;
+     * those files are left in place when this list is cleared.
+     */
+    public LocallySavedContacts(List<String> savedFilenames, long matrixSize) {
+        this.matrixSize = matrixSize;
+        this.ownsFiles = false;
+        filenames.addAll(savedFilenames);
+    }
+
     @Override
     public void clear() {
-        for (String filename : filenames) {
-            File file = new File(filename);
-            file.delete();
+        if (ownsFiles) {
+            for (String filename : filenames) {
+                File file = new File(filename);
+                file.delete();
+            }
         }
         filenames.clear();
     }
@@ -93,8 +108,10 @@ public class LocallySavedContacts implements BigContactList {
         List<String> toDelete = new ArrayList<>();
         for (String filename : filenames) {
             if (filename.contains(INTRA)) {
-                File file = new File(filename);
-                file.delete();
+                if (ownsFiles) {
+                    File file = new File(filename);
+                    file.delete();
+                }
                 toDelete.add(filename);
             }
         }
@@ -115,17 +132,20 @@ public class LocallySavedContacts implements BigContactList {
         final BigDoublesArray totalSumVector = new BigDoublesArray(vectorLength);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             BigDoublesArray sumVector = new BigDoublesArray(vectorLength);
             while (sIndx < filenames.size()) {
 
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-                        SparseMatrixTools.matrixVectorMult(vector, sumVector,
-                                record.getBinX(), record.getBinY(), record.getCounts());
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            SparseMatrixTools.matrixVectorMult(vector, sumVector, xs[k], ys[k], cs[k]);
+                        }
                     }
                     reader.close();
                 } catch (IOException e) {
@@ -149,18 +169,20 @@ public class LocallySavedContacts implements BigContactList {
         final BigDoublesArray totalSumVector = new BigDoublesArray(vectorLength);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             BigDoublesArray sumVector = new BigDoublesArray(vectorLength);
             while (sIndx < filenames.size()) {
 
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-                        SparseMatrixTools.matrixVectorMult(vector, sumVector,
-                                record.getBinX(), record.getBinY(), record.getCounts());
-
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            SparseMatrixTools.matrixVectorMult(vector, sumVector, xs[k], ys[k], cs[k]);
+                        }
                     }
                     reader.close();
                 } catch (IOException e) {
@@ -184,15 +206,19 @@ public class LocallySavedContacts implements BigContactList {
         final ListOfFloatArrays totalRowSums = new ListOfFloatArrays(matrixSize, 0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             ListOfFloatArrays sums = new ListOfFloatArrays(matrixSize);
             while (sIndx < filenames.size()) {
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-                        SparseMatrixTools.updateRowSums(sums, record.getBinX(), record.getBinY(), record.getCounts());
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            SparseMatrixTools.updateRowSums(sums, xs[k], ys[k], cs[k]);
+                        }
                     }
                     reader.close();
                 } catch (IOException e) {
@@ -217,7 +243,7 @@ public class LocallySavedContacts implements BigContactList {
         final AtomicDouble normSum = new AtomicDouble(0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             double[] mSum = new double[1];
             double[] nSum = new double[1];
@@ -225,13 +251,13 @@ public class LocallySavedContacts implements BigContactList {
 
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-
-                        int x = record.getBinX();
-                        int y = record.getBinY();
-                        float value = record.getCounts();
-                        SparseMatrixTools.sumScaleFactor(norm, mSum, nSum, x, y, value);
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            SparseMatrixTools.sumScaleFactor(norm, mSum, nSum, xs[k], ys[k], cs[k]);
+                        }
                     }
                     reader.close();
                 } catch (IOException e) {
@@ -259,7 +285,7 @@ public class LocallySavedContacts implements BigContactList {
         final AtomicDouble sumTotal = new AtomicDouble(0);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             double[] normSum = new double[1];
             double[] sum = new double[1];
@@ -267,12 +293,13 @@ public class LocallySavedContacts implements BigContactList {
 
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-                        int x = record.getBinX();
-                        int y = record.getBinY();
-                        float counts = record.getCounts();
-                        SparseMatrixTools.sumRawAndNorm(normSum, sum, x, y, counts, newNormVector);
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            SparseMatrixTools.sumRawAndNorm(normSum, sum, xs[k], ys[k], cs[k], newNormVector);
+                        }
                     }
                     reader.close();
                 } catch (IOException e) {
@@ -299,17 +326,21 @@ public class LocallySavedContacts implements BigContactList {
         final ListOfIntArrays numNonZeros = new ListOfIntArrays(matrixSize);
 
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int sIndx = index.getAndIncrement();
             ListOfIntArrays nonZeros = new ListOfIntArrays(matrixSize);
             while (sIndx < filenames.size()) {
                 try {
                     BinRecordsReader reader = new BinRecordsReader(filenames.get(sIndx));
-                    while (reader.hasNext()) {
-                        ContactRecord record = reader.next();
-                        nonZeros.addTo(record.getBinX(), 1);
-                        if (record.getBinX() != record.getBinY()) {
-                            nonZeros.addTo(record.getBinY(), 1);
+                    while (reader.loadNextBlock()) {
+                        int[] xs = reader.getBinXs();
+                        int[] ys = reader.getBinYs();
+                        float[] cs = reader.getCounts();
+                        for (int k = 0; k < reader.getBlockSize(); k++) {
+                            nonZeros.addTo(xs[k], 1);
+                            if (xs[k] != ys[k]) {
+                                nonZeros.addTo(ys[k], 1);
+                            }
                         }
                     }
                     reader.close();
@@ -335,12 +366,13 @@ public class LocallySavedContacts implements BigContactList {
         for (String filename : filenames) {
             try {
                 BinRecordsReader reader = new BinRecordsReader(filename);
-                while (reader.hasNext()) {
-                    ContactRecord record = reader.next();
-                    int x = record.getBinX();
-                    int y = record.getBinY();
-                    float counts = record.getCounts();
-                    SparseMatrixTools.populateNormedExpected(chrIdx, expectedVector, exp, x, y, counts);
+                while (reader.loadNextBlock()) {
+                    int[] xs = reader.getBinXs();
+                    int[] ys = reader.getBinYs();
+                    float[] cs = reader.getCounts();
+                    for (int k = 0; k < reader.getBlockSize(); k++) {
+                        SparseMatrixTools.populateNormedExpected(chrIdx, expectedVector, exp, xs[k], ys[k], cs[k]);
+                    }
                 }
                 reader.close();
             } catch (IOException e) {
@@ -0,0 +1,229 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.cache;
+
+import hic.HiCGlobals;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.block.Block;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.NormalizationHandler;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decompressed blocks of the .hic files being read, shared by the tools' read paths.
+ * <p>
+ * Blocks are kept as primitive arrays and evicted least recently used first once their total size passes
+ * {@link HiCGlobals#blockCacheBytes}, so a second pass over a matrix (e.g. the two passes of a CSR build,
+ * or the expected pass after the norms) skips the decompression when the matrix fits. Blocks are keyed by
+ * file path and matrix key, not by reader, so passes that reopen the same file still hit. Reads go through
+ * {@link #iterate}, which also decompresses the blocks ahead of the one being consumed on background threads.
+ */
+public class BlockCache {
+
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+    private static BlockCache shared = null;
+
+    private final long capacityBytes;
+    private final LinkedHashMap<Key, CachedBlock> blocks = new LinkedHashMap<>(256, 0.75f, true);
+    private long sizeBytes = 0;
+    private long hits = 0, misses = 0, evictions = 0, evictedBytes = 0;
+    private long prefetchReady = 0, prefetchWaited = 0, prefetchWaitNanos = 0;
+
+    public BlockCache(long capacityBytes) {
+        this.capacityBytes = Math.max(0, capacityBytes);
+    }
+
+    public static synchronized BlockCache getShared() {
+        if (shared == null) {
+            shared = new BlockCache(HiCGlobals.blockCacheBytes);
+        }
+        return shared;
+    }
+
+    /**
+     * Contacts of the matrix in block order, through the shared cache; falls back to the matrix's own
+     * iterator when there is no reader for its file
+     */
+    public static Iterator<ContactRecord> iterate(String path, DatasetReaderV2 reader, MatrixZoomData zd) {
+        return iterate(path, reader, zd, true);
+    }
+
+    /**
+     * As {@link #iterate(String, DatasetReaderV2, MatrixZoomData)} for a matrix read only once: blocks already
+     * cached are used, but the blocks read are not added, so a single pass does not hold memory in the cache
+     */
+    public static Iterator<ContactRecord> iterateOnce(String path, DatasetReaderV2 reader, MatrixZoomData zd) {
+        return iterate(path, reader, zd, false);
+    }
+
+    private static Iterator<ContactRecord> iterate(String path, DatasetReaderV2 reader, MatrixZoomData zd,
+                                                   boolean addToCache) {
+        if (reader == null) {
+            return zd.getDirectIterator();
+        }
+        return new PrefetchingBlockIterator(getShared(), path, reader, zd, HiCGlobals.blockPrefetchDepth, addToCache);
+    }
+
+    CachedBlock get(String path, DatasetReaderV2 reader, MatrixZoomData zd, int blockNumber,
+                    boolean addToCache) throws IOException {
+        Key key = new Key(path, zd.getKey(), blockNumber);
+        synchronized (this) {
+            CachedBlock block = blocks.get(key);
+            if (block != null) {
+                hits++;
+                return block;
+            }
+            misses++;
+        }
+
+        PhaseTracker.Phase phase = PhaseTracker.start("read.block");
+        CachedBlock block = new CachedBlock(reader.readNormalizedBlock(blockNumber, zd, NormalizationHandler.NONE));
+        phase.addRecords(block.size()).addBytesRead(block.getBytes()).end();
+
+        if (!addToCache) {
+            return block;
+        }
+        synchronized (this) {
+            if (block.getBytes() <= capacityBytes && !blocks.containsKey(key)) {
+                blocks.put(key, block);
+                sizeBytes += block.getBytes();
+                evictToCapacity();
+            }
+        }
+        return block;
+    }
+
+    private void evictToCapacity() {
+        Iterator<CachedBlock> iterator = blocks.values().iterator();
+        while (sizeBytes > capacityBytes && iterator.hasNext()) {
+            long bytes = iterator.next().getBytes();
+            iterator.remove();
+            sizeBytes -= bytes;
+            evictions++;
+            evictedBytes += bytes;
+        }
+    }
+
+    synchronized void recordPrefetch(boolean ready, long waitNanos) {
+        if (ready) {
+            prefetchReady++;
+        } else {
+            prefetchWaited++;
+            prefetchWaitNanos += waitNanos;
+        }
+    }
+
+    /**
+     * Drop the blocks of a file that will not be read again, or that is about to be rewritten
+     */
+    public synchronized void invalidate(String path) {
+        Iterator<Map.Entry<Key, CachedBlock>> iterator = blocks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, CachedBlock> entry = iterator.next();
+            if (entry.getKey().path.equals(path)) {
+                sizeBytes -= entry.getValue().getBytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        sizeBytes = 0;
+    }
+
+    public synchronized String getStatistics() {
+        long lookups = hits + misses;
+        long prefetched = prefetchReady + prefetchWaited;
+        return String.format("Block cache: %d hits / %d lookups (%.1f%%), %d evictions (%d MB), %d MB held of %d MB; "
+                        + "prefetch: %d of %d blocks ready when needed, %d ms waiting",
+                hits, lookups, lookups == 0 ? 0 : 100.0 * hits / lookups, evictions, evictedBytes >> 20,
+                sizeBytes >> 20, capacityBytes >> 20, prefetchReady, prefetched, prefetchWaitNanos / 1000000);
+    }
+
+    public void printStatistics() {
+        System.out.println(getStatistics());
+    }
+
+    static class CachedBlock {
+        final int[] binXs;
+        final int[] binYs;
+        final float[] counts;
+
+        CachedBlock(Block block) {
+            List<ContactRecord> records = block == null ? null : block.getContactRecords();
+            int n = records == null ? 0 : records.size();
+            binXs = new int[n];
+            binYs = new int[n];
+            counts = new float[n];
+            for (int i = 0; i < n; i++) {
+                ContactRecord record = records.get(i);
+                binXs[i] = record.getBinX();
+                binYs[i] = record.getBinY();
+                counts[i] = record.getCounts();
+            }
+        }
+
+        int size() {
+            return counts.length;
+        }
+
+        long getBytes() {
+            return 12L * counts.length + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    private static class Key {
+        private final String path;
+        private final String zdKey;
+        private final int blockNumber;
+
+        Key(String path, String zdKey, int blockNumber) {
+            this.path = path;
+            this.zdKey = zdKey;
+            this.blockNumber = blockNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return blockNumber == other.blockNumber && path.equals(other.path) && zdKey.equals(other.zdKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, zdKey, blockNumber);
+        }
+    }
+}
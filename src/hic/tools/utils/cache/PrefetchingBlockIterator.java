@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.cache;
+
+import hic.tools.utils.tasks.TaskScope;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.mzd.MatrixZoomData;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Contacts of one matrix, block by block in block-number order, with the next {@code depth}
+ * blocks fetched through the cache on background threads while the current one is consumed.
+ * Only the current block and the ones in flight are held, so a consumer that stops early leaves
+ * nothing behind but at most {@code depth} tasks that finish on their own.
+ */
+public class PrefetchingBlockIterator implements Iterator<ContactRecord> {
+
+    private final BlockCache cache;
+    private final String path;
+    private final DatasetReaderV2 reader;
+    private final MatrixZoomData zd;
+    private final List<Integer> blockNumbers;
+    private final int depth;
+    private final boolean addToCache;
+    private final TaskScope scope = new TaskScope();
+    private final ArrayDeque<Future<BlockCache.CachedBlock>> ahead = new ArrayDeque<>();
+    private int nextToFetch = 0;
+    private BlockCache.CachedBlock current = null;
+    private int cursor = 0;
+
+    PrefetchingBlockIterator(BlockCache cache, String path, DatasetReaderV2 reader, MatrixZoomData zd, int depth,
+                             boolean addToCache) {
+        this.cache = cache;
+        this.path = path;
+        this.reader = reader;
+        this.zd = zd;
+        this.depth = Math.max(1, depth);
+        this.addToCache = addToCache;
+        blockNumbers = new ArrayList<>(reader.getBlockNumbers(zd));
+        Collections.sort(blockNumbers);
+        fetchAhead();
+    }
+
+    private void fetchAhead() {
+        while (ahead.size() < depth && nextToFetch < blockNumbers.size()) {
+            final int blockNumber = blockNumbers.get(nextToFetch++);
+            ahead.add(scope.submit(() -> cache.get(path, reader, zd, blockNumber, addToCache)));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || cursor >= current.size()) {
+            if (ahead.isEmpty()) {
+                current = null;
+                return false;
+            }
+            Future<BlockCache.CachedBlock> future = ahead.poll();
+            boolean ready = future.isDone();
+            long start = System.nanoTime();
+            try {
+                current = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                System.err.println("Unable to read block of " + zd.getKey() + ": " + e.getCause());
+                e.printStackTrace();
+                System.exit(56);
+            }
+            cache.recordPrefetch(ready, System.nanoTime() - start);
+            cursor = 0;
+            fetchAhead();
+        }
+        return true;
+    }
+
+    @Override
+    public ContactRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ContactRecord record = new ContactRecord(current.binXs[cursor], current.binYs[cursor], current.counts[cursor]);
+        cursor++;
+        return record;
+    }
+}
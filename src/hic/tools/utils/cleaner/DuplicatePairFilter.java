@@ -0,0 +1,261 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.cleaner;
+
+import hic.tools.utils.iterators.mnd.AlignmentPair;
+
+import java.util.Arrays;
+
+/**
+ * Drops duplicate read pairs as pre reads them, so the input does not need a separate
+ * sort-based dedup pass first.
+ * <p>
+ * A pair is a duplicate if an earlier kept pair of the same chromosome pair has the same strands and
+ * both positions within {@code tolerance} bp of it. Only the kept pairs whose first position lies
+ * within {@code tolerance} of the current one are remembered, in an open-addressing set of packed longs,
+ * so memory follows the local depth rather than the size of the library (and is capped at
+ * {@link #MAX_WINDOW} pairs). Input must be grouped by chromosome pair with duplicates next to each
+ * other, as both the sorted merged_nodups and pairs layouts have them; for exact duplicates this gives
+ * the same result as sorting and comparing neighbours.
+ * <p>
+ * With a tolerance, a pair is compared against each remembered pair while there are fewer of them than
+ * the (2 * tolerance + 1)^2 neighbouring positions; only in deeper windows are the neighbours looked up.
+ */
+public class DuplicatePairFilter {
+
+    static final int MAX_WINDOW = 1 << 20;
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_WINDOW = 1 << 10;
+
+    private final int tolerance;
+    // lookups needed to probe every neighbour within tolerance
+    private final long numNeighbours;
+    private long numDuplicates = 0;
+    private int currentChr1 = -1;
+    private int currentChr2 = -1;
+
+    // kept pairs, oldest first
+    private long[] window = new long[INITIAL_WINDOW];
+    private int head = 0;
+    private int size = 0;
+
+    // the same pairs, for lookup; linear probing with backward-shift deletion
+    private long[] table = newTable(2 * INITIAL_WINDOW);
+    private boolean containsEmptyKey = false;
+
+    public DuplicatePairFilter(int tolerance) {
+        this.tolerance = Math.max(0, tolerance);
+        this.numNeighbours = (2L * this.tolerance + 1) * (2L * this.tolerance + 1);
+    }
+
+    /**
+     * @return true if the pair duplicates one kept before it; otherwise it is kept
+     */
+    public boolean isDuplicate(AlignmentPair pair) {
+        int chr1 = pair.getChr1();
+        int chr2 = pair.getChr2();
+        int pos1 = pair.getPos1();
+        int pos2 = pair.getPos2();
+        boolean strand1 = pair.getStrand1();
+        boolean strand2 = pair.getStrand2();
+        if (chr1 > chr2 || (chr1 == chr2 && pos1 > pos2)) {
+            int tmp = chr1;
+            chr1 = chr2;
+            chr2 = tmp;
+            tmp = pos1;
+            pos1 = pos2;
+            pos2 = tmp;
+            boolean tmpStrand = strand1;
+            strand1 = strand2;
+            strand2 = tmpStrand;
+        }
+
+        if (chr1 != currentChr1 || chr2 != currentChr2) {
+            clear();
+            currentChr1 = chr1;
+            currentChr2 = chr2;
+        }
+
+        while (size > 0 && (size >= MAX_WINDOW || Math.abs(getPos1(window[head]) - pos1) > tolerance)) {
+            remove(window[head]);
+            head = (head + 1) & (window.length - 1);
+            size--;
+        }
+
+        int strands = (strand1 ? 2 : 0) | (strand2 ? 1 : 0);
+        boolean duplicate;
+        if (tolerance == 0) {
+            duplicate = contains(pack(strands, pos1, pos2));
+        } else if (size < numNeighbours) {
+            duplicate = windowContainsNear(strands, pos1, pos2);
+        } else {
+            duplicate = tableContainsNear(strands, pos1, pos2);
+        }
+        if (duplicate) {
+            numDuplicates++;
+            return true;
+        }
+
+        keep(pack(strands, pos1, pos2));
+        return false;
+    }
+
+    /**
+     * Compares against every kept pair; cheaper than probing each neighbour while the window holds fewer pairs
+     */
+    private boolean windowContainsNear(int strands, int pos1, int pos2) {
+        int mask = window.length - 1;
+        for (int i = 0; i < size; i++) {
+            long key = window[(head + i) & mask];
+            if ((int) (key & 3) == strands
+                    && Math.abs(getPos1(key) - pos1) <= tolerance
+                    && Math.abs(getPos2(key) - pos2) <= tolerance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Probes every position pair within tolerance, (2 * tolerance + 1)^2 lookups
+     */
+    private boolean tableContainsNear(int strands, int pos1, int pos2) {
+        for (int p1 = Math.max(0, pos1 - tolerance); p1 <= pos1 + tolerance; p1++) {
+            for (int p2 = Math.max(0, pos2 - tolerance); p2 <= pos2 + tolerance; p2++) {
+                if (contains(pack(strands, p1, p2))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public long getNumDuplicates() {
+        return numDuplicates;
+    }
+
+    private void clear() {
+        if (size > 0) {
+            Arrays.fill(table, EMPTY);
+            containsEmptyKey = false;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    private static long pack(int strands, int pos1, int pos2) {
+        return ((long) (pos1 & 0x7FFFFFFF) << 33) | ((long) (pos2 & 0x7FFFFFFF) << 2) | strands;
+    }
+
+    private static int getPos1(long key) {
+        return (int) (key >>> 33);
+    }
+
+    private static int getPos2(long key) {
+        return (int) (key >>> 2) & 0x7FFFFFFF;
+    }
+
+    private void keep(long key) {
+        if (size == window.length) {
+            long[] larger = new long[window.length * 2];
+            for (int i = 0; i < size; i++) {
+                larger[i] = window[(head + i) & (window.length - 1)];
+            }
+            window = larger;
+            head = 0;
+            rehash(larger.length * 2);
+        }
+        window[(head + size) & (window.length - 1)] = key;
+        size++;
+        add(key);
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] newTable = new long[capacity];
+        Arrays.fill(newTable, EMPTY);
+        return newTable;
+    }
+
+    private void rehash(int capacity) {
+        table = newTable(capacity);
+        containsEmptyKey = false;
+        for (int i = 0; i < size; i++) {
+            add(window[(head + i) & (window.length - 1)]);
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private boolean contains(long key) {
+        if (key == EMPTY) return containsEmptyKey;
+        int mask = table.length - 1;
+        for (int i = slot(key, mask); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) return true;
+        }
+        return false;
+    }
+
+    private void add(long key) {
+        if (key == EMPTY) {
+            containsEmptyKey = true;
+            return;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != EMPTY) {
+            if (table[i] == key) return;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+    }
+
+    private void remove(long key) {
+        if (key == EMPTY) {
+            containsEmptyKey = false;
+            return;
+        }
+        int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != key) {
+            if (table[i] == EMPTY) return;
+            i = (i + 1) & mask;
+        }
+        // shift later entries of the probe run back so lookups still find them
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(table[j], mask);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = EMPTY;
+    }
+}
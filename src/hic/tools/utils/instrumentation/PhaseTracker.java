@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.instrumentation;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-phase timing and I/O counters for pre and addNorm.
+ * <p>
+ * Tracking is off by default; {@link #start(String)} then hands back a shared no-op phase,
+ * so instrumented code pays a single static read per phase. When enabled, every phase
+ * emits a {@link PhaseEvent} for the flight recorder and is aggregated into a JSON
+ * summary written by {@link #writeSummary()}.
+ */
+public class PhaseTracker {
+
+    private static final Phase NO_OP = new Phase(null);
+    private static final Map<String, Totals> totals = new ConcurrentSkipListMap<>();
+    private static final Map<Boolean, Totals> scaleTotals = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = false;
+    private static String summaryFile = null;
+    private static long enabledAt;
+
+    /**
+     * Turn on tracking; the summary will be written to the given path
+     */
+    public static void enable(String summaryPath) {
+        summaryFile = summaryPath;
+        enabledAt = System.nanoTime();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static Phase start(String name) {
+        if (!enabled) return NO_OP;
+        return new Phase(name);
+    }
+
+    public static void recordScale(String stem, long matrixSize, int iterations, double convergeError,
+                                   double rowSumError, boolean converged) {
+        if (!enabled) return;
+        ScaleEvent event = new ScaleEvent();
+        if (event.shouldCommit()) {
+            event.stem = stem;
+            event.matrixSize = matrixSize;
+            event.iterations = iterations;
+            event.convergeError = convergeError;
+            event.rowSumError = rowSumError;
+            event.converged = converged;
+            event.commit();
+        }
+        Totals t = scaleTotals.computeIfAbsent(converged, k -> new Totals());
+        t.count.increment();
+        t.records.add(iterations);
+    }
+
+    /**
+     * Write the aggregated phases as JSON, if tracking was enabled
+     */
+    public static void writeSummary() throws IOException {
+        if (!enabled || summaryFile == null) return;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(summaryFile))) {
+            writer.write("{\n");
+            writer.write("  \"totalWallMillis\": " + (System.nanoTime() - enabledAt) / 1000000 + ",\n");
+            writer.write("  \"peakHeapBytes\": " + peakHeapUsage() + ",\n");
+            writer.write("  \"phases\": [");
+            boolean first = true;
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                Totals t = entry.getValue();
+                writer.write(first ? "\n" : ",\n");
+                first = false;
+                writer.write("    {\"phase\": \"" + entry.getKey() + "\""
+                        + ", \"count\": " + t.count.sum()
+                        + ", \"wallMillis\": " + t.wallNanos.sum() / 1000000
+                        + ", \"records\": " + t.records.sum()
+                        + ", \"bytesRead\": " + t.bytesRead.sum()
+                        + ", \"bytesWritten\": " + t.bytesWritten.sum()
+                        + ", \"tempFiles\": " + t.tempFiles.sum() + "}");
+            }
+            writer.write("\n  ],\n");
+            writer.write("  \"scale\": {\"converged\": " + scaleCount(true)
+                    + ", \"failed\": " + scaleCount(false)
+                    + ", \"iterations\": " + scaleIterations() + "}\n");
+            writer.write("}\n");
+        }
+        System.out.println("Phase summary written to " + summaryFile);
+    }
+
+    private static long scaleCount(boolean converged) {
+        Totals t = scaleTotals.get(converged);
+        return t == null ? 0 : t.count.sum();
+    }
+
+    private static long scaleIterations() {
+        long sum = 0;
+        for (Totals t : scaleTotals.values()) {
+            sum += t.records.sum();
+        }
+        return sum;
+    }
+
+    private static long peakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static class Totals {
+        final LongAdder count = new LongAdder();
+        final LongAdder wallNanos = new LongAdder();
+        final LongAdder records = new LongAdder();
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder tempFiles = new LongAdder();
+    }
+
+    /**
+     * A single timed section; counters are only kept when tracking is enabled.
+     * Not thread safe - workers should each start their own phase.
+     */
+    public static class Phase implements AutoCloseable {
+        private final String name;
+        private final long startTime;
+        private final PhaseEvent event;
+        private long records, bytesRead, bytesWritten, tempFiles;
+
+        private Phase(String name) {
+            this.name = name;
+            if (name == null) {
+                startTime = 0;
+                event = null;
+            } else {
+                event = new PhaseEvent();
+                event.begin();
+                startTime = System.nanoTime();
+            }
+        }
+
+        public Phase addRecords(long n) {
+            records += n;
+            return this;
+        }
+
+        public Phase addBytesRead(long n) {
+            bytesRead += n;
+            return this;
+        }
+
+        public Phase addBytesWritten(long n) {
+            bytesWritten += n;
+            return this;
+        }
+
+        public Phase addTempFiles(long n) {
+            tempFiles += n;
+            return this;
+        }
+
+        public void end() {
+            if (name == null) return;
+            long elapsed = System.nanoTime() - startTime;
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = name;
+                event.records = records;
+                event.bytesRead = bytesRead;
+                event.bytesWritten = bytesWritten;
+                event.tempFiles = tempFiles;
+                event.commit();
+            }
+            Totals t = totals.computeIfAbsent(name, k -> new Totals());
+            t.count.increment();
+            t.wallNanos.add(elapsed);
+            t.records.add(records);
+            t.bytesRead.add(bytesRead);
+            t.bytesWritten.add(bytesWritten);
+            t.tempFiles.add(tempFiles);
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.instrumentation;
+
+import jdk.jfr.*;
+
+/**
+ * Flight recorder event describing one run of the SCALE balancing loop.
+ */
+@Name("hic.tools.ScaleConvergence")
+@Label("SCALE Convergence")
+@Category({"Juicer Tools"})
+@StackTrace(false)
+public class ScaleEvent extends Event {
+
+    @Label("Vector")
+    String stem;
+
+    @Label("Matrix Size")
+    long matrixSize;
+
+    @Label("Iterations")
+    int iterations;
+
+    @Label("Convergence Error")
+    double convergeError;
+
+    @Label("Row Sums Error")
+    double rowSumError;
+
+    @Label("Converged")
+    boolean converged;
+}
@@ -38,7 +38,9 @@ import java.util.zip.GZIPInputStream;
 public class AsciiPairIterator extends GenericPairIterator implements PairIterator {
 
     private int mndChunkSize = 0;
-    private int mndChunkCounter = 0;
+    private long mndChunkCounter = 0;
+    private long startPosition = 0;
+    private long nextPairPosition = 0;
     private boolean stopAfterChunk = false;
 
     public AsciiPairIterator(String path, Map<String, Integer> chromosomeOrdinals, ChromosomeHandler handler,
@@ -72,9 +74,30 @@ public class AsciiPairIterator extends GenericPairIterator implements PairIterat
         advance();
     }
 
+    /**
+     * Read an uncompressed file starting at a byte offset (the start of a line), through to the end
+     */
+    public AsciiPairIterator(String path, Map<String, Integer> chromosomeOrdinals, ChromosomeHandler handler,
+                             long startPosition) throws IOException {
+        super(new MNDFileParser(new ComplexLineParser(chromosomeOrdinals, handler, false, true)));
+        FileInputStream fis = new FileInputStream(path);
+        fis.getChannel().position(startPosition);
+        this.reader = new BufferedReader(new InputStreamReader(fis), HiCGlobals.bufferSize);
+        this.startPosition = startPosition;
+        advance();
+    }
+
+    /**
+     * @return byte offset in an uncompressed file of the line the next pair was read from
+     */
+    public long getNextPairPosition() {
+        return nextPairPosition;
+    }
+
     @Override
     protected String validateLine(String nextLine) {
         if (nextLine != null) {
+            nextPairPosition = startPosition + mndChunkCounter;
             mndChunkCounter += nextLine.length() + 1;
             if (stopAfterChunk) {
                 if (mndChunkCounter > mndChunkSize) {
@@ -24,13 +24,20 @@
 
 package hic.tools.utils.iterators.mnd;
 
+import hic.tools.utils.tasks.TaskScope;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class for converting an asscii "pair" file to a compact binary format.  Can greatly speed up calculation
@@ -43,18 +50,41 @@ import java.util.Map;
  */
 public class AsciiToBinConverter {
 
+    static final int RECORD_BYTES = 26;
+    static final int SHORT_RECORD_BYTES = 20;
+    private static final int RECORDS_PER_CHUNK = 1 << 18;
+
     /**
      * @param inputPath
      * @param outputFile
      * @param chromosomeHandler
      */
     public static void convert(String inputPath, String outputFile, ChromosomeHandler chromosomeHandler) throws IOException {
+        convert(inputPath, outputFile, chromosomeHandler, 1);
+    }
+
+    /**
+     * Plain local files are converted to .bin/.bn by {@link MappedAsciiToBinConverter} on numThreads threads
+     */
+    public static void convert(String inputPath, String outputFile, ChromosomeHandler chromosomeHandler,
+                               int numThreads) throws IOException {
 
         Map<String, Integer> chromosomeOrdinals = new HashMap<>();
         for (Chromosome c : chromosomeHandler.getChromosomeArray()) {
             chromosomeOrdinals.put(c.getName(), c.getIndex());
         }
 
+        if (ColumnarPairsIndex.isColumnarPairsFile(outputFile)) {
+            writeOutColumnarFormat(inputPath, outputFile, chromosomeOrdinals, chromosomeHandler, numThreads);
+            return;
+        }
+
+        if (MappedAsciiToBinConverter.canConvert(inputPath)) {
+            new MappedAsciiToBinConverter(inputPath, outputFile, chromosomeOrdinals, chromosomeHandler)
+                    .convert(outputFile, numThreads);
+            return;
+        }
+
         AsciiPairIterator iter = null;
         try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(outputFile))) {
             LittleEndianOutputStream les = new LittleEndianOutputStream(bos);
@@ -73,6 +103,41 @@ public class AsciiToBinConverter {
         }
     }
 
+    /**
+     * BAM input is read with numThreads decompression threads; the writer groups the pairs by chromosome pair
+     */
+    private static void writeOutColumnarFormat(String inputPath, String outputFile,
+                                               Map<String, Integer> chromosomeOrdinals,
+                                               ChromosomeHandler chromosomeHandler, int numThreads) throws IOException {
+        PairIterator iter = null;
+        try {
+            if (inputPath.endsWith(".bam")) {
+                iter = new BAMPairIterator(inputPath, chromosomeOrdinals, chromosomeHandler, numThreads);
+            } else {
+                iter = new AsciiPairIterator(inputPath, chromosomeOrdinals, chromosomeHandler, true);
+            }
+            ColumnarPairsWriter writer = new ColumnarPairsWriter(outputFile);
+            while (iter.hasNext()) {
+                AlignmentPair pair = iter.next();
+                if (pair.isNotContigPair()) {
+                    writer.add(pair);
+                }
+            }
+
+            int numChromosomes = 0;
+            for (int ordinal : chromosomeOrdinals.values()) {
+                numChromosomes = Math.max(numChromosomes, ordinal + 1);
+            }
+            String[] names = new String[numChromosomes];
+            for (Map.Entry<String, Integer> entry : chromosomeOrdinals.entrySet()) {
+                names[entry.getValue()] = entry.getKey();
+            }
+            writer.close(names);
+        } finally {
+            if (iter != null) iter.close();
+        }
+    }
+
     private static void writeOutShortBinaryFormat(AsciiPairIterator iter, LittleEndianOutputStream les) throws IOException {
         while (iter.hasNext()) {
             AlignmentPair pair = iter.next();
@@ -99,26 +164,143 @@ public class AsciiToBinConverter {
     }
 
     public static void convertBack(String inputPath, String outputFile) throws IOException {
-        PrintWriter pw = null;
-        try {
-            File f = new File(outputFile);
-            FileWriter fw = new FileWriter(f);
-            pw = new PrintWriter(fw);
-            BinPairIterator iter;
-            if (inputPath.endsWith(".bn")) {
-                iter = new ShortBinPairIterator(inputPath);
-            } else {
-                iter = new BinPairIterator(inputPath);
+        convertBack(inputPath, outputFile, 1);
+    }
+
+    /**
+     * Write a .bin/.bn file back out as text. The fixed-width records are split into chunks that are decoded
+     * and formatted by numThreads workers, each with its own buffers; chunks are written in file order.
+     */
+    public static void convertBack(String inputPath, String outputFile, int numThreads) throws IOException {
+        if (ColumnarPairsIndex.isColumnarPairsFile(inputPath)) {
+            convertColumnarBack(inputPath, outputFile);
+            return;
+        }
+
+        final boolean isShort = inputPath.endsWith(".bn");
+        final int recordSize = isShort ? SHORT_RECORD_BYTES : RECORD_BYTES;
+
+        try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // a trailing partial record is dropped, as the iterators do
+            final long numRecords = in.size() / recordSize;
+            final int numChunks = (int) ((numRecords + RECORDS_PER_CHUNK - 1) / RECORDS_PER_CHUNK);
+            final OrderedChunkWriter writer = new OrderedChunkWriter(out);
+            final AtomicInteger chunkIndex = new AtomicInteger(0);
+
+            TaskScope.launchParallelizedCode(Math.max(1, Math.min(numThreads, numChunks)), () -> {
+                ByteBuffer records = ByteBuffer.allocate(RECORDS_PER_CHUNK * recordSize).order(ByteOrder.LITTLE_ENDIAN);
+                PairTextFormatter formatter = new PairTextFormatter(RECORDS_PER_CHUNK * 64);
+                try {
+                    int i = chunkIndex.getAndIncrement();
+                    while (i < numChunks) {
+                        long first = (long) i * RECORDS_PER_CHUNK;
+                        int n = (int) Math.min(RECORDS_PER_CHUNK, numRecords - first);
+                        records.clear().limit(n * recordSize);
+                        readFully(in, records, first * recordSize);
+                        records.flip();
+
+                        formatter.reset();
+                        if (isShort) {
+                            formatShortRecords(records, n, formatter);
+                        } else {
+                            formatStandardRecords(records, n, formatter);
+                        }
+                        writer.write(i, formatter.getBuffer(), formatter.size());
+                        i = chunkIndex.getAndIncrement();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
             }
+            throw e;
+        }
+    }
+
+    private static void formatShortRecords(ByteBuffer records, int n, PairTextFormatter formatter) {
+        // fields not stored in the short format take the AlignmentPair defaults
+        for (int k = 0; k < n; k++) {
+            int chr1 = records.getInt();
+            int pos1 = records.getInt();
+            int chr2 = records.getInt();
+            int pos2 = records.getInt();
+            float score = records.getFloat();
+            formatter.addPair(true, chr1, pos1, 0, 1000, false, chr2, pos2, 1, 1000, score);
+        }
+    }
+
+    private static void formatStandardRecords(ByteBuffer records, int n, PairTextFormatter formatter) {
+        for (int k = 0; k < n; k++) {
+            boolean str1 = records.get() != 0;
+            int chr1 = records.getInt();
+            int pos1 = records.getInt();
+            int frag1 = records.getInt();
+            boolean str2 = records.get() != 0;
+            int chr2 = records.getInt();
+            int pos2 = records.getInt();
+            int frag2 = records.getInt();
+            formatter.addPair(str1, chr1, pos1, frag1, 1000, str2, chr2, pos2, frag2, 1000, 1.0f);
+        }
+    }
 
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private static void convertColumnarBack(String inputPath, String outputFile) throws IOException {
+        PairIterator iter = new ColumnarPairIterator(inputPath);
+        PairTextFormatter formatter = new PairTextFormatter(RECORDS_PER_CHUNK * 64);
+        try (OutputStream os = new FileOutputStream(outputFile)) {
             while (iter.hasNext()) {
-                AlignmentPair pair = iter.next();
-                pw.println(pair);
+                formatter.addPair(iter.next());
+                if (formatter.size() >= RECORDS_PER_CHUNK * 64) {
+                    os.write(formatter.getBuffer(), 0, formatter.size());
+                    formatter.reset();
+                }
             }
+            os.write(formatter.getBuffer(), 0, formatter.size());
         } finally {
-            if (pw != null) {
-                pw.close();
+            iter.close();
+        }
+    }
+
+    /**
+     * Lets workers finish chunks in any order while the output is written in chunk order:
+     * each worker waits here until the chunks before its own have been written.
+     */
+    private static class OrderedChunkWriter {
+        private final FileChannel channel;
+        private int nextChunk = 0;
+
+        OrderedChunkWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void write(int chunk, byte[] bytes, int length) throws IOException, InterruptedException {
+            while (chunk != nextChunk) {
+                wait();
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
+            nextChunk++;
+            notifyAll();
         }
     }
 }
@@ -24,84 +24,227 @@
 
 package hic.tools.utils.iterators.mnd;
 
-import htsjdk.samtools.util.CloseableIterator;
-import org.broad.igv.sam.Alignment;
-import org.broad.igv.sam.ReadMate;
-import org.broad.igv.sam.reader.AlignmentReader;
-import org.broad.igv.sam.reader.AlignmentReaderFactory;
+import javastraw.reader.basics.ChromosomeHandler;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
- * TODO - should this be deleted?
- * Also, the chromosomeOrdinals map seems to always be empty
+ * Reads contacts directly from a BAM in which the records of each read pair are adjacent,
+ * e.g. name-sorted or pairtools-style output. Coordinate-sorted BAMs are refused.
+ * <p>
+ * Only the primary alignments of the two mates are used; supplementary and secondary
+ * alignments are ignored. Positions are the 5' end of each read, as in merged_nodups.
+ * Strands and mapping qualities are filled in, so the preprocessor's pair-type filter and
+ * mapq threshold apply as they do for text input.
+ * <p>
+ * The BGZF blocks are inflated on numThreads worker threads and only the record fields needed
+ * for a pair are decoded. Pairs come out in the order of the BAM, not grouped by chromosome pair;
+ * pre converts BAM input to columnar pairs first.
  *
  * @author Jim Robinson
  * @since 9/24/11
  */
 public class BAMPairIterator implements PairIterator {
-	
-	private AlignmentPair nextPair = null;
-	private AlignmentPair preNext = null;
-	private final CloseableIterator<?> iterator;
-	private final AlignmentReader<?> reader;
-	// Map of name -> index
-	private Map<String, Integer> chromosomeOrdinals;
-	
-	public BAMPairIterator(String path) throws IOException {
-		
-		this.reader = AlignmentReaderFactory.getReader(path, false);
-		
-		this.iterator = reader.iterator();
-		advance();
-	}
 
+    private static final byte[] MAGIC = {'B', 'A', 'M', 1};
+    private static final int PAIRED = 0x1, UNMAPPED = 0x4, REVERSE = 0x10, FIRST_OF_PAIR = 0x40,
+            SECOND_OF_PAIR = 0x80, SECONDARY = 0x100, SUPPLEMENTARY = 0x800;
+    // fixed-length part of a record, after block_size
+    private static final int FIXED_RECORD_SIZE = 32;
+
+    private final String path;
+    private final DataInputStream in;
+    // BAM reference index -> chromosome ordinal, or -1 if not in the genome
+    private final int[] referenceOrdinals;
+    private byte[] buffer = new byte[1024];
+    private AlignmentPair nextPair = null;
+    private Record pendingRecord;
+
+    public BAMPairIterator(String path, Map<String, Integer> chromosomeOrdinals,
+                           ChromosomeHandler handler) throws IOException {
+        this(path, chromosomeOrdinals, handler, 1);
+    }
+
+    public BAMPairIterator(String path, Map<String, Integer> chromosomeOrdinals,
+                           ChromosomeHandler handler, int numThreads) throws IOException {
+        this.path = path;
+        this.in = new DataInputStream(new ParallelBgzfInputStream(path, numThreads));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a BAM file");
+            }
+            String headerText = readString(readInt());
+            if (isCoordinateSorted(headerText)) {
+                throw new IOException(path + " is sorted by coordinate, so the two mates of a pair are not " +
+                        "adjacent; sort it by read name first (samtools sort -n)");
+            }
+
+            referenceOrdinals = new int[readInt()];
+            for (int i = 0; i < referenceOrdinals.length; i++) {
+                String name = readString(readInt()).replace("\0", "");
+                readInt(); // reference length
+                Integer ordinal = chromosomeOrdinals.get(handler.cleanUpName(name));
+                referenceOrdinals[i] = ordinal == null ? -1 : ordinal;
+            }
+            pendingRecord = readRecord();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        advance();
+    }
+
+    private static boolean isCoordinateSorted(String headerText) {
+        for (String line : headerText.split("\n")) {
+            if (line.startsWith("@HD")) {
+                return line.contains("\tSO:coordinate");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the next group of records sharing a read name and turns it into a pair;
+     * groups without two mapped mates are skipped.
+     */
     private void advance() {
+        try {
+            while (pendingRecord != null) {
+                byte[] readName = pendingRecord.name;
+                Record first = null;
+                Record second = null;
+
+                while (pendingRecord != null && Arrays.equals(pendingRecord.name, readName)) {
+                    Record record = pendingRecord;
+                    pendingRecord = readRecord();
 
-        while (iterator.hasNext()) {
-            Alignment alignment = (Alignment) iterator.next();
-
-            final ReadMate mate = alignment.getMate();
-            if (alignment.isPaired() && alignment.isMapped() && alignment.getMappingQuality() > 0 &&
-                    mate != null && mate.isMapped()) {
-                // Skip "normal" insert sizes
-                if ((!alignment.getChr().equals(mate.getChr())) || alignment.getInferredInsertSize() > 1000) {
-
-                    // Each pair is represented twice in the file,  keep the record with the "leftmost" coordinate
-
-                    if ((alignment.getChr().equals(mate.getChr()) && alignment.getStart() < mate.getStart()) ||
-                            (alignment.getChr().compareTo(mate.getChr()) < 0)) {
-                        final String chrom1 = alignment.getChr();
-                        final String chrom2 = mate.getChr();
-                        if (chromosomeOrdinals.containsKey(chrom1) && chromosomeOrdinals.containsKey(chrom2)) {
-                            int chr1 = chromosomeOrdinals.get(chrom1);
-                            int chr2 = chromosomeOrdinals.get(chrom2);
-                            //  nextPair = new AlignmentPair(chr1, alignment.getStart(), chr2, mate.getStart());
-                        }
-                        return;
+                    if ((record.flag & PAIRED) == 0 || (record.flag & (SECONDARY | SUPPLEMENTARY)) != 0) continue;
+                    if ((record.flag & FIRST_OF_PAIR) != 0) {
+                        first = record;
+                    } else if ((record.flag & SECOND_OF_PAIR) != 0) {
+                        second = record;
                     }
                 }
-            }
 
+                if (first != null && second != null
+                        && (first.flag & UNMAPPED) == 0 && (second.flag & UNMAPPED) == 0) {
+                    nextPair = createPair(first, second);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
         nextPair = null;
+    }
 
+    private AlignmentPair createPair(Record first, Record second) {
+        int chr1 = getOrdinal(first.referenceIndex);
+        int chr2 = getOrdinal(second.referenceIndex);
+        if (chr1 < 0 || chr2 < 0) {
+            return new AlignmentPair(); // sets dummy values, sets isContigPair
+        }
+        return new AlignmentPair((first.flag & REVERSE) == 0, chr1, first.fivePrimeEnd, 0, first.mapq,
+                (second.flag & REVERSE) == 0, chr2, second.fivePrimeEnd, 1, second.mapq);
     }
 
-    public boolean hasNext() {
-        return preNext != null || nextPair != null;  //To change body of implemented methods use File | Settings | File Templates.
+    private int getOrdinal(int referenceIndex) {
+        return referenceIndex >= 0 && referenceIndex < referenceOrdinals.length
+                ? referenceOrdinals[referenceIndex] : -1;
     }
 
-    public AlignmentPair next() {
-        AlignmentPair p;
-        if (preNext == null) {
-            p = nextPair;
-            advance();
+    /**
+     * Decodes the fields of the next alignment record that make up a pair
+     *
+     * @return the record, or null at the end of the file
+     */
+    private Record readRecord() throws IOException {
+        int blockSize;
+        try {
+            blockSize = readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (blockSize < FIXED_RECORD_SIZE) {
+            throw new IOException("Invalid BAM record size " + blockSize + " in " + path);
+        }
+        if (buffer.length < blockSize) {
+            buffer = new byte[Math.max(blockSize, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, blockSize);
+
+        Record record = new Record();
+        record.referenceIndex = getInt(buffer, 0);
+        int start = getInt(buffer, 4) + 1;
+        int nameLength = buffer[8] & 0xff;
+        record.mapq = buffer[9] & 0xff;
+        int numCigarOps = getShort(buffer, 12);
+        record.flag = getShort(buffer, 14);
+        if (FIXED_RECORD_SIZE + nameLength + 4 * numCigarOps > blockSize) {
+            throw new IOException("Truncated BAM record in " + path);
+        }
+        // the stored name ends with a NUL
+        record.name = Arrays.copyOfRange(buffer, FIXED_RECORD_SIZE, FIXED_RECORD_SIZE + Math.max(0, nameLength - 1));
+
+        if ((record.flag & REVERSE) != 0) {
+            int cigarStart = FIXED_RECORD_SIZE + nameLength;
+            int referenceLength = 0;
+            for (int i = 0; i < numCigarOps; i++) {
+                int op = getInt(buffer, cigarStart + 4 * i);
+                switch (op & 0xf) {
+                    case 0: // M
+                    case 2: // D
+                    case 3: // N
+                    case 7: // =
+                    case 8: // X
+                        referenceLength += op >>> 4;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            record.fivePrimeEnd = start + referenceLength - 1;
         } else {
-            p = preNext;
-            preNext = null;
+            record.fivePrimeEnd = start;
+        }
+        return record;
+    }
+
+    private int readInt() throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private String readString(int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("Invalid BAM header in " + path);
         }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int getShort(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+    }
+
+    public boolean hasNext() {
+        return nextPair != null;
+    }
+
+    public AlignmentPair next() {
+        AlignmentPair p = nextPair;
+        advance();
         return p;
     }
 
@@ -110,12 +253,18 @@ public class BAMPairIterator implements PairIterator {
     }
 
     public void close() {
-        iterator.close();
         try {
-            reader.close();
+            in.close();
         } catch (IOException e) {
             e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
         }
     }
 
+    private static class Record {
+        byte[] name;
+        int referenceIndex;
+        int fivePrimeEnd;
+        int mapq;
+        int flag;
+    }
 }
@@ -0,0 +1,281 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import hic.tools.utils.original.Chunk;
+import javastraw.reader.basics.ChromosomeHandler;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Iterates over a columnar pairs file, either all of it (grouped by chromosome pair)
+ * or a single chunk located through the file's index.
+ */
+public class ColumnarPairIterator implements PairIterator {
+
+    private final RandomAccessFile raf;
+    private final List<ColumnarPairsIndex.Entry> entries;
+    private final Inflater inflater = new Inflater();
+    // chromosome ordinal in the file -> ordinal for this run, or -1 if not in the genome
+    private final int[] ordinals;
+    private int entryIndex = 0;
+
+    private int chrA, chrB, numRecords, position;
+    private int columns;
+    private byte[] flags;
+    private int[] pos1, pos2, frag1, frag2, mapq1, mapq2;
+    private float[] scores;
+    private AlignmentPair nextPair = null;
+
+    /**
+     * Keeps the chromosome ordinals stored in the file, as the .bin iterators do.
+     */
+    public ColumnarPairIterator(String path) throws IOException {
+        this(path, null, (ChromosomeHandler) null, (Chunk) null);
+    }
+
+    public ColumnarPairIterator(String path, Map<String, Integer> chromosomeOrdinals,
+                                ChromosomeHandler handler) throws IOException {
+        this(path, chromosomeOrdinals, handler, null);
+    }
+
+    public ColumnarPairIterator(String path, Map<String, Integer> chromosomeOrdinals, Chunk chunk,
+                                ChromosomeHandler handler) throws IOException {
+        this(path, chromosomeOrdinals, handler, chunk);
+    }
+
+    private ColumnarPairIterator(String path, Map<String, Integer> chromosomeOrdinals,
+                                 ChromosomeHandler handler, Chunk chunk) throws IOException {
+        ColumnarPairsIndex index = ColumnarPairsIndex.read(path);
+        String[] names = index.getChromosomeNames();
+        ordinals = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (chromosomeOrdinals == null) {
+                ordinals[i] = i;
+                continue;
+            }
+            Integer ordinal = chromosomeOrdinals.get(handler.cleanUpName(names[i]));
+            ordinals[i] = ordinal == null ? -1 : ordinal;
+        }
+
+        if (chunk == null) {
+            entries = index.getEntriesGroupedByPair();
+        } else {
+            entries = Collections.singletonList(new ColumnarPairsIndex.Entry(-1, -1, chunk.mndIndex,
+                    chunk.mndChunk - ColumnarPairsIndex.CHUNK_HEADER_SIZE, -1));
+        }
+        raf = new RandomAccessFile(path, "r");
+        advance();
+    }
+
+    public boolean hasNext() {
+        return nextPair != null;
+    }
+
+    public AlignmentPair next() {
+        AlignmentPair p = nextPair;
+        advance();
+        return p;
+    }
+
+    private void advance() {
+        try {
+            while (position >= numRecords) {
+                if (entryIndex >= entries.size()) {
+                    nextPair = null;
+                    return;
+                }
+                loadChunk(entries.get(entryIndex++));
+            }
+        } catch (IOException | DataFormatException e) {
+            e.printStackTrace();
+            nextPair = null;
+            return;
+        }
+        nextPair = createPair(position++);
+    }
+
+    private AlignmentPair createPair(int i) {
+        int f = flags[i];
+        int c1 = ordinals[chrA];
+        int c2 = ordinals[chrB];
+        if ((f & ColumnarPairsWriter.SWAPPED) != 0) {
+            int temp = c1;
+            c1 = c2;
+            c2 = temp;
+        }
+        if (c1 < 0 || c2 < 0) {
+            return new AlignmentPair(); // sets dummy values, sets isContigPair
+        }
+        AlignmentPair pair = new AlignmentPair((f & ColumnarPairsWriter.STRAND1) != 0, c1, pos1[i], frag1[i], mapq1[i],
+                (f & ColumnarPairsWriter.STRAND2) != 0, c2, pos2[i], frag2[i], mapq2[i]);
+        if ((columns & ColumnarPairsWriter.HAS_SCORE) != 0) {
+            pair.setScore(scores[i]);
+        }
+        return pair;
+    }
+
+    private void loadChunk(ColumnarPairsIndex.Entry entry) throws IOException, DataFormatException {
+        raf.seek(entry.position);
+        byte[] header = new byte[ColumnarPairsIndex.CHUNK_HEADER_SIZE];
+        raf.readFully(header);
+        ByteBuffer hb = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        chrA = hb.getInt();
+        chrB = hb.getInt();
+        numRecords = hb.getInt();
+        int uncompressedLength = hb.getInt();
+        int compressedLength = hb.getInt();
+
+        byte[] compressed = new byte[compressedLength];
+        raf.readFully(compressed);
+        byte[] payload = new byte[uncompressedLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        int filled = 0;
+        while (filled < uncompressedLength && !inflater.finished()) {
+            filled += inflater.inflate(payload, filled, uncompressedLength - filled);
+        }
+        decode(payload);
+        position = 0;
+    }
+
+    private void decode(byte[] payload) {
+        int n = numRecords;
+        if (flags == null || flags.length < n) {
+            flags = new byte[n];
+            pos1 = new int[n];
+            pos2 = new int[n];
+            frag1 = new int[n];
+            frag2 = new int[n];
+            mapq1 = new int[n];
+            mapq2 = new int[n];
+            scores = new float[n];
+        }
+
+        Decoder in = new Decoder(payload);
+        columns = in.getByte();
+        for (int i = 0; i < n; i++) {
+            flags[i] = (byte) in.getByte();
+        }
+        int previous = 0;
+        for (int i = 0; i < n; i++) {
+            previous += in.getSigned();
+            pos1[i] = previous;
+        }
+        previous = 0;
+        for (int i = 0; i < n; i++) {
+            if (chrA == chrB) {
+                pos2[i] = pos1[i] + in.getSigned();
+            } else {
+                previous += in.getSigned();
+                pos2[i] = previous;
+            }
+        }
+        if ((columns & ColumnarPairsWriter.HAS_FRAG) != 0) {
+            previous = 0;
+            for (int i = 0; i < n; i++) {
+                previous += in.getSigned();
+                frag1[i] = previous;
+            }
+            for (int i = 0; i < n; i++) {
+                frag2[i] = frag1[i] + in.getSigned();
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                frag1[i] = 0;
+                frag2[i] = 1;
+            }
+        }
+        if ((columns & ColumnarPairsWriter.HAS_MAPQ) != 0) {
+            for (int i = 0; i < n; i++) {
+                mapq1[i] = in.getSigned();
+                mapq2[i] = in.getSigned();
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                mapq1[i] = 1000;
+                mapq2[i] = 1000;
+            }
+        }
+        if ((columns & ColumnarPairsWriter.HAS_SCORE) != 0) {
+            for (int i = 0; i < n; i++) {
+                scores[i] = Float.intBitsToFloat(in.getInt());
+            }
+        }
+    }
+
+    public void remove() {
+        // Not implemented
+    }
+
+    public void close() {
+        inflater.end();
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Decoder {
+        private final byte[] data;
+        private int offset = 0;
+
+        Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        int getByte() {
+            return data[offset++];
+        }
+
+        int getSigned() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return (int) ((v >>> 1) ^ -(v & 1));
+        }
+
+        int getInt() {
+            int value = (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                    | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+            offset += 4;
+            return value;
+        }
+    }
+}
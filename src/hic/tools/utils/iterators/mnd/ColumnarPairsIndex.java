@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import hic.tools.utils.original.Chunk;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Footer of a columnar pairs file (.cpairs).
+ * <p>
+ * Layout: magic "CPRS", int version, then compressed chunks, each holding the records of one
+ * chromosome pair, then the footer (chromosome dictionary and chunk index), and finally a long
+ * with the footer position. Each chunk starts with its own small header, so a reader can seek
+ * straight to any chunk.
+ */
+public class ColumnarPairsIndex {
+
+    public static final String EXTENSION = ".cpairs";
+    static final byte[] MAGIC = {'C', 'P', 'R', 'S'};
+    static final int VERSION = 1;
+    static final int CHUNK_HEADER_SIZE = 20;
+
+    private final String[] chromosomeNames;
+    private final List<Entry> entries;
+
+    ColumnarPairsIndex(String[] chromosomeNames, List<Entry> entries) {
+        this.chromosomeNames = chromosomeNames;
+        this.entries = entries;
+    }
+
+    public static boolean isColumnarPairsFile(String path) {
+        return path != null && path.endsWith(EXTENSION);
+    }
+
+    public static ColumnarPairsIndex read(String path) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a columnar pairs file");
+            }
+            int version = Integer.reverseBytes(raf.readInt());
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar pairs version " + version + " in " + path);
+            }
+
+            raf.seek(raf.length() - 8);
+            long footerPosition = Long.reverseBytes(raf.readLong());
+            byte[] footer = new byte[(int) (raf.length() - 8 - footerPosition)];
+            raf.seek(footerPosition);
+            raf.readFully(footer);
+            ByteBuffer buffer = ByteBuffer.wrap(footer).order(ByteOrder.LITTLE_ENDIAN);
+
+            String[] names = new String[buffer.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                byte[] nameBytes = new byte[buffer.getInt()];
+                buffer.get(nameBytes);
+                names[i] = new String(nameBytes, StandardCharsets.UTF_8);
+            }
+
+            int numEntries = buffer.getInt();
+            List<Entry> entries = new ArrayList<>(numEntries);
+            for (int i = 0; i < numEntries; i++) {
+                entries.add(new Entry(buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getInt(),
+                        buffer.getInt()));
+            }
+            return new ColumnarPairsIndex(names, entries);
+        }
+    }
+
+    public String[] getChromosomeNames() {
+        return chromosomeNames;
+    }
+
+    public long getTotalRecords() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.numRecords;
+        }
+        return total;
+    }
+
+    /**
+     * @return all chunks, grouped by chromosome pair in order of each pair's first chunk
+     */
+    public List<Entry> getEntriesGroupedByPair() {
+        Map<Long, List<Entry>> groups = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            groups.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry);
+        }
+        List<Entry> ordered = new ArrayList<>(entries.size());
+        for (List<Entry> group : groups.values()) {
+            ordered.addAll(group);
+        }
+        return ordered;
+    }
+
+    /**
+     * Chunks per chromosome pair, keyed by "chr1-chr2" names, in the same form as an mnd index
+     * so the multithreaded preprocessor can partition the file without one.
+     */
+    public Map<String, List<Chunk>> getChunksByPairName() {
+        Map<String, List<Chunk>> chunks = new HashMap<>();
+        for (Entry entry : entries) {
+            String name = chromosomeNames[entry.chrA] + "-" + chromosomeNames[entry.chrB];
+            chunks.computeIfAbsent(name, k -> new ArrayList<>())
+                    .add(new Chunk(entry.position, CHUNK_HEADER_SIZE + entry.compressedLength));
+        }
+        return chunks;
+    }
+
+    public static class Entry {
+        final int chrA, chrB;
+        final long position;
+        final int compressedLength;
+        final int numRecords;
+
+        Entry(int chrA, int chrB, long position, int compressedLength, int numRecords) {
+            this.chrA = chrA;
+            this.chrB = chrB;
+            this.position = position;
+            this.compressedLength = compressedLength;
+            this.numRecords = numRecords;
+        }
+
+        long getKey() {
+            return ((long) chrA << 32) | (chrB & 0xffffffffL);
+        }
+    }
+}
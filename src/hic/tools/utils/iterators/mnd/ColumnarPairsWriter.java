@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import htsjdk.tribble.util.LittleEndianOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Writes pairs into the columnar pairs format described in {@link ColumnarPairsIndex}.
+ * <p>
+ * Records are buffered per chromosome pair (unordered, so a-b and b-a share a chunk) and flushed as
+ * a compressed chunk once full. Within a chunk, columns are stored one after another:
+ * a flags byte per record (swapped chromosomes, strands), delta-encoded positions, and
+ * frags, mapqs and scores only if any record in the chunk differs from the defaults.
+ */
+public class ColumnarPairsWriter {
+
+    static final int SWAPPED = 1, STRAND1 = 2, STRAND2 = 4;
+    static final int HAS_FRAG = 1, HAS_MAPQ = 2, HAS_SCORE = 4;
+    private static final int CHUNK_RECORDS = 1 << 18;
+    private static final int MAX_BUFFERED_RECORDS = 1 << 23;
+
+    private final LittleEndianOutputStream les;
+    private final Deflater compressor = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Map<Long, ChunkBuffer> buffers = new LinkedHashMap<>();
+    private final List<ColumnarPairsIndex.Entry> entries = new ArrayList<>();
+    private int totalBuffered = 0;
+
+    public ColumnarPairsWriter(String path) throws IOException {
+        les = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(path), 4194304));
+        les.write(ColumnarPairsIndex.MAGIC);
+        les.writeInt(ColumnarPairsIndex.VERSION);
+    }
+
+    public void add(AlignmentPair pair) throws IOException {
+        int chrA = Math.min(pair.getChr1(), pair.getChr2());
+        int chrB = Math.max(pair.getChr1(), pair.getChr2());
+        long key = ((long) chrA << 32) | (chrB & 0xffffffffL);
+        ChunkBuffer buffer = buffers.get(key);
+        if (buffer == null) {
+            buffer = new ChunkBuffer(chrA, chrB);
+            buffers.put(key, buffer);
+        }
+        buffer.add(pair);
+        totalBuffered++;
+
+        if (buffer.size == CHUNK_RECORDS) {
+            writeChunk(buffer);
+        } else if (totalBuffered >= MAX_BUFFERED_RECORDS) {
+            // keep memory bounded for input that is not sorted by chromosome pair
+            for (ChunkBuffer b : buffers.values()) {
+                if (b.size > 0) writeChunk(b);
+            }
+        }
+    }
+
+    /**
+     * Flushes remaining records and writes the footer.
+     *
+     * @param chromosomeNames names indexed by the chromosome ordinals used in the pairs
+     */
+    public void close(String[] chromosomeNames) throws IOException {
+        for (ChunkBuffer b : buffers.values()) {
+            if (b.size > 0) writeChunk(b);
+        }
+
+        long footerPosition = les.getWrittenCount();
+        les.writeInt(chromosomeNames.length);
+        for (String name : chromosomeNames) {
+            byte[] nameBytes = (name == null ? "" : name).getBytes(StandardCharsets.UTF_8);
+            les.writeInt(nameBytes.length);
+            les.write(nameBytes);
+        }
+        les.writeInt(entries.size());
+        for (ColumnarPairsIndex.Entry entry : entries) {
+            les.writeInt(entry.chrA);
+            les.writeInt(entry.chrB);
+            les.writeLong(entry.position);
+            les.writeInt(entry.compressedLength);
+            les.writeInt(entry.numRecords);
+        }
+        les.writeLong(footerPosition);
+        les.close();
+        compressor.end();
+    }
+
+    private void writeChunk(ChunkBuffer buffer) throws IOException {
+        byte[] payload = buffer.encode();
+        compressor.reset();
+        compressor.setInput(payload);
+        compressor.finish();
+        byte[] compressed = new byte[Math.max(64, payload.length + payload.length / 100 + 64)];
+        int compressedLength = 0;
+        while (!compressor.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += compressor.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        long position = les.getWrittenCount();
+        les.writeInt(buffer.chrA);
+        les.writeInt(buffer.chrB);
+        les.writeInt(buffer.size);
+        les.writeInt(payload.length);
+        les.writeInt(compressedLength);
+        les.write(compressed, 0, compressedLength);
+        entries.add(new ColumnarPairsIndex.Entry(buffer.chrA, buffer.chrB, position, compressedLength, buffer.size));
+
+        totalBuffered -= buffer.size;
+        buffer.clear();
+    }
+
+    private static class ChunkBuffer {
+        final int chrA, chrB;
+        byte[] flags = new byte[1024];
+        int[] pos1 = new int[1024], pos2 = new int[1024];
+        int[] frag1 = new int[1024], frag2 = new int[1024];
+        int[] mapq1 = new int[1024], mapq2 = new int[1024];
+        float[] score = new float[1024];
+        int size = 0;
+
+        ChunkBuffer(int chrA, int chrB) {
+            this.chrA = chrA;
+            this.chrB = chrB;
+        }
+
+        void add(AlignmentPair pair) {
+            if (size == flags.length) grow();
+            int f = 0;
+            if (pair.getChr1() != chrA) f |= SWAPPED;
+            if (pair.getStrand1()) f |= STRAND1;
+            if (pair.getStrand2()) f |= STRAND2;
+            flags[size] = (byte) f;
+            pos1[size] = pair.getPos1();
+            pos2[size] = pair.getPos2();
+            frag1[size] = pair.getFrag1();
+            frag2[size] = pair.getFrag2();
+            mapq1[size] = pair.getMapq1();
+            mapq2[size] = pair.getMapq2();
+            score[size] = pair.getScore();
+            size++;
+        }
+
+        private void grow() {
+            int length = Math.min(flags.length * 2, CHUNK_RECORDS);
+            flags = Arrays.copyOf(flags, length);
+            pos1 = Arrays.copyOf(pos1, length);
+            pos2 = Arrays.copyOf(pos2, length);
+            frag1 = Arrays.copyOf(frag1, length);
+            frag2 = Arrays.copyOf(frag2, length);
+            mapq1 = Arrays.copyOf(mapq1, length);
+            mapq2 = Arrays.copyOf(mapq2, length);
+            score = Arrays.copyOf(score, length);
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        byte[] encode() {
+            int columns = 0;
+            for (int i = 0; i < size; i++) {
+                if (frag1[i] != 0 || frag2[i] != 1) columns |= HAS_FRAG;
+                if (mapq1[i] != 1000 || mapq2[i] != 1000) columns |= HAS_MAPQ;
+                if (score[i] != 1.0f) columns |= HAS_SCORE;
+            }
+
+            VarIntBuffer out = new VarIntBuffer(size * 8 + 16);
+            out.putByte(columns);
+            for (int i = 0; i < size; i++) {
+                out.putByte(flags[i]);
+            }
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                out.putSigned(pos1[i] - previous);
+                previous = pos1[i];
+            }
+            previous = 0;
+            for (int i = 0; i < size; i++) {
+                if (chrA == chrB) {
+                    out.putSigned(pos2[i] - pos1[i]);
+                } else {
+                    out.putSigned(pos2[i] - previous);
+                    previous = pos2[i];
+                }
+            }
+            if ((columns & HAS_FRAG) != 0) {
+                previous = 0;
+                for (int i = 0; i < size; i++) {
+                    out.putSigned(frag1[i] - previous);
+                    previous = frag1[i];
+                }
+                for (int i = 0; i < size; i++) {
+                    out.putSigned(frag2[i] - frag1[i]);
+                }
+            }
+            if ((columns & HAS_MAPQ) != 0) {
+                for (int i = 0; i < size; i++) {
+                    out.putSigned(mapq1[i]);
+                    out.putSigned(mapq2[i]);
+                }
+            }
+            if ((columns & HAS_SCORE) != 0) {
+                for (int i = 0; i < size; i++) {
+                    out.putInt(Float.floatToIntBits(score[i]));
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Growable byte array with zigzag varint and little-endian int encoding.
+     */
+    static class VarIntBuffer {
+        private byte[] data;
+        private int length = 0;
+
+        VarIntBuffer(int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        void putByte(int b) {
+            ensure(1);
+            data[length++] = (byte) b;
+        }
+
+        void putSigned(long value) {
+            long v = (value << 1) ^ (value >> 63);
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                data[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[length++] = (byte) v;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            data[length++] = (byte) value;
+            data[length++] = (byte) (value >>> 8);
+            data[length++] = (byte) (value >>> 16);
+            data[length++] = (byte) (value >>> 24);
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
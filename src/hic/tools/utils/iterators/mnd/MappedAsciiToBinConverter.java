@@ -0,0 +1,610 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import hic.tools.clt.JuiceboxCLT;
+import hic.tools.utils.tasks.TaskScope;
+import javastraw.reader.basics.ChromosomeHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The .bin/.bn conversion of {@link AsciiToBinConverter} for plain local files, without going through
+ * BufferedReader and the split-based MNDFileParser.
+ * <p>
+ * The input is memory-mapped in regions that end on a line boundary. Workers tokenize the lines of a region
+ * in place and encode the records into their own direct buffer. Regions are committed in input order, which
+ * gives each one its output offset and its ordinals for chromosomes not in the genome (numbered in order
+ * of first appearance, as the sequential parser does), then written with positional channel writes.
+ * The output is byte for byte what the AsciiPairIterator path writes.
+ */
+class MappedAsciiToBinConverter {
+
+    private static final long REGION_SIZE = 32L * 1024 * 1024;
+    private static final int INITIAL_OUTPUT_CAPACITY = 8 * 1024 * 1024;
+    // region-local ordinals for chromosomes not in the genome are PROVISIONAL + k until committed
+    private static final int PROVISIONAL = Integer.MIN_VALUE;
+
+    private final String inputPath;
+    private final boolean isShort;
+    private final int recordSize;
+    private final Map<String, Integer> chromosomeOrdinals;
+    private final Map<String, Integer> knownOrdinals;
+    private final ChromosomeHandler handler;
+    private final Charset charset = Charset.defaultCharset();
+    private int chromCounter = -1;
+
+    private MNDFileParser.Format format;
+    private final int[] dcicIndices = new int[]{-1, -1, -1, -1};
+    private boolean firstLineIsHeader = false;
+
+    private int nextRegion = 0;
+    private long nextOffset = 0;
+
+    MappedAsciiToBinConverter(String inputPath, String outputFile, Map<String, Integer> chromosomeOrdinals,
+                              ChromosomeHandler handler) {
+        this.inputPath = inputPath;
+        this.isShort = outputFile.endsWith(".bn");
+        this.recordSize = isShort ? AsciiToBinConverter.SHORT_RECORD_BYTES : AsciiToBinConverter.RECORD_BYTES;
+        this.chromosomeOrdinals = chromosomeOrdinals;
+        this.knownOrdinals = new HashMap<>(chromosomeOrdinals);
+        this.handler = handler;
+        for (Integer val : chromosomeOrdinals.values()) {
+            chromCounter = Math.max(chromCounter, val);
+        }
+        chromCounter++;
+    }
+
+    /**
+     * Gzipped files and URLs still go through the AsciiPairIterator
+     */
+    static boolean canConvert(String inputPath) {
+        return !inputPath.endsWith(".gz") && new File(inputPath).isFile();
+    }
+
+    void convert(String outputFile, int numThreads) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            if (size == 0) return;
+
+            readFormat(in, size);
+            final long[] regionStarts = findRegionStarts(in, size);
+            final int numRegions = regionStarts.length - 1;
+            final AtomicInteger regionIndex = new AtomicInteger(0);
+
+            TaskScope.launchParallelizedCode(Math.max(1, Math.min(numThreads, numRegions)), () -> {
+                RegionEncoder encoder = new RegionEncoder();
+                try {
+                    int r = regionIndex.getAndIncrement();
+                    while (r < numRegions) {
+                        long start = regionStarts[r];
+                        int length = (int) (regionStarts[r + 1] - start);
+                        encoder.encode(in.map(FileChannel.MapMode.READ_ONLY, start, length), length, r == 0);
+                        long offset = commit(r, encoder);
+                        ByteBuffer records = encoder.getRecords();
+                        while (records.hasRemaining()) {
+                            offset += out.write(records, offset);
+                        }
+                        r = regionIndex.getAndIncrement();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The first line fixes the format for the whole file, as in MNDFileParser
+     */
+    private void readFormat(FileChannel in, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 1 << 20));
+        in.read(buffer, 0);
+        int end = 0;
+        while (end < buffer.position() && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+            end++;
+        }
+        String firstLine = new String(buffer.array(), 0, end, charset);
+        String[] tokens = JuiceboxCLT.splitToList(firstLine);
+        if (firstLine.startsWith("#")) {
+            format = MNDFileParser.Format.DCIC;
+            firstLineIsHeader = true;
+            MNDFileParser parser = new MNDFileParser(null);
+            parser.updateDCICIndicesIfApplicable(firstLine, tokens);
+            System.arraycopy(parser.dcicIndices, 0, dcicIndices, 0, dcicIndices.length);
+        } else {
+            format = MNDFileParser.getFileFormat(tokens.length, firstLine);
+        }
+    }
+
+    /**
+     * Region boundaries fall just after a '\n', so a "\r\n" is never split
+     */
+    private static long[] findRegionStarts(FileChannel in, long size) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        ByteBuffer scan = ByteBuffer.allocate(64 * 1024);
+        long position = REGION_SIZE;
+        while (position < size) {
+            long boundary = -1;
+            while (boundary < 0 && position < size) {
+                scan.clear();
+                int read = in.read(scan, position);
+                if (read <= 0) break;
+                for (int k = 0; k < read; k++) {
+                    if (scan.get(k) == '\n') {
+                        boundary = position + k + 1;
+                        break;
+                    }
+                }
+                if (boundary < 0) position += read;
+            }
+            if (boundary < 0 || boundary >= size) break;
+            starts.add(boundary);
+            position = boundary + REGION_SIZE;
+        }
+        starts.add(size);
+        long[] result = new long[starts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the regions before this one, then number its new chromosomes and reserve its output range
+     *
+     * @return output offset of the region's records
+     */
+    private synchronized long commit(int region, RegionEncoder encoder) throws InterruptedException {
+        while (region != nextRegion) {
+            wait();
+        }
+        List<String> newNames = encoder.getNewChromosomes();
+        if (!newNames.isEmpty()) {
+            int[] ordinals = new int[newNames.size()];
+            for (int k = 0; k < ordinals.length; k++) {
+                String chrom = newNames.get(k);
+                if (!chromosomeOrdinals.containsKey(chrom)) {
+                    chromosomeOrdinals.put(chrom, chromCounter++);
+                }
+                ordinals[k] = chromosomeOrdinals.get(chrom);
+            }
+            encoder.resolveNewChromosomes(ordinals);
+        }
+        long offset = nextOffset;
+        nextOffset += encoder.getRecords().remaining();
+        nextRegion++;
+        notifyAll();
+        return offset;
+    }
+
+    /**
+     * Per-thread tokenizer and record encoder; its buffers are reused for every region the thread takes
+     */
+    private class RegionEncoder {
+
+        private ByteBuffer records = ByteBuffer.allocateDirect(INITIAL_OUTPUT_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        private final ChromosomeTokens chromosomeTokens = new ChromosomeTokens();
+        private final Map<String, Integer> regionNewChromosomes = new LinkedHashMap<>();
+        private MappedByteBuffer input;
+        private int[] tokenStarts = new int[32], tokenEnds = new int[32];
+        private int numTokens;
+
+        void encode(MappedByteBuffer input, int length, boolean isFirstRegion) {
+            this.input = input;
+            records.clear();
+            regionNewChromosomes.clear();
+
+            int p = 0;
+            boolean isFirstLine = isFirstRegion;
+            while (p < length) {
+                int lineStart = p;
+                byte b;
+                while (p < length && (b = input.get(p)) != '\n' && b != '\r') {
+                    p++;
+                }
+                int lineEnd = p;
+                if (p < length) {
+                    p += (input.get(p) == '\r' && p + 1 < length && input.get(p + 1) == '\n') ? 2 : 1;
+                }
+
+                ensureCapacity();
+                if (isFirstLine && firstLineIsHeader) {
+                    putRecord(false, -1, -1, -1, false, -1, -1, -1, 1.0f);
+                } else {
+                    tokenize(lineStart, lineEnd);
+                    encodeLine();
+                }
+                isFirstLine = false;
+            }
+            records.flip();
+            this.input = null;
+        }
+
+        /**
+         * Same tokens as trim().split("\\s+"): the ends are trimmed of anything up to ' ',
+         * the inside is split on runs of the regex whitespace characters
+         */
+        private void tokenize(int start, int end) {
+            while (start < end && (input.get(start) & 0xff) <= ' ') start++;
+            while (end > start && (input.get(end - 1) & 0xff) <= ' ') end--;
+            numTokens = 0;
+            int p = start;
+            do {
+                int tokenStart = p;
+                while (p < end && !isSeparator(input.get(p))) p++;
+                addToken(tokenStart, p);
+                while (p < end && isSeparator(input.get(p))) p++;
+            } while (p < end);
+        }
+
+        private boolean isSeparator(byte b) {
+            return b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+        }
+
+        private void addToken(int start, int end) {
+            if (numTokens == tokenStarts.length) {
+                tokenStarts = Arrays.copyOf(tokenStarts, numTokens * 2);
+                tokenEnds = Arrays.copyOf(tokenEnds, numTokens * 2);
+            }
+            tokenStarts[numTokens] = start;
+            tokenEnds[numTokens] = end;
+            numTokens++;
+        }
+
+        /**
+         * Token positions per format as in MNDFileParser; fields a format does not have keep the AlignmentPair defaults
+         */
+        private void encodeLine() {
+            boolean strand1 = true, strand2 = false;
+            int frag1 = 0, frag2 = 1;
+            float score = 1.0f;
+            int chr1, chr2, pos1, pos2;
+
+            switch (format) {
+                case SUPER_SHORT:
+                case SUPER_SHORT_WITH_SCORE:
+                    chr1 = chromosome(0);
+                    chr2 = chromosome(2);
+                    pos1 = parseInt(1);
+                    pos2 = parseInt(3);
+                    if (format == MNDFileParser.Format.SUPER_SHORT_WITH_SCORE) {
+                        score = parseFloat(4);
+                    }
+                    break;
+                case SHORT:
+                case SHORT_WITH_SCORE:
+                    chr1 = chromosome(1);
+                    chr2 = chromosome(5);
+                    pos1 = parseInt(2);
+                    pos2 = parseInt(6);
+                    if (format == MNDFileParser.Format.SHORT_WITH_SCORE) {
+                        score = parseFloat(8);
+                    }
+                    frag1 = parseInt(3);
+                    frag2 = parseInt(7);
+                    strand1 = parseInt(0) == 0;
+                    strand2 = parseInt(4) == 0;
+                    break;
+                case MEDIUM:
+                    chr1 = chromosome(2);
+                    chr2 = chromosome(6);
+                    pos1 = parseInt(3);
+                    pos2 = parseInt(7);
+                    frag1 = parseInt(4);
+                    frag2 = parseInt(8);
+                    parseInt(9);
+                    parseInt(10);
+                    strand1 = parseInt(1) == 0;
+                    strand2 = parseInt(5) == 0;
+                    break;
+                case LONG:
+                    chr1 = chromosome(1);
+                    chr2 = chromosome(5);
+                    pos1 = parseInt(2);
+                    pos2 = parseInt(6);
+                    frag1 = parseInt(3);
+                    frag2 = parseInt(7);
+                    parseInt(8);
+                    parseInt(11);
+                    strand1 = parseInt(0) == 0;
+                    strand2 = parseInt(4) == 0;
+                    checkToken(13);
+                    break;
+                default:
+                    chr1 = chromosome(1);
+                    chr2 = chromosome(3);
+                    pos1 = parseInt(2);
+                    pos2 = parseInt(4);
+                    strand1 = isPlus(5);
+                    strand2 = isPlus(6);
+                    if (dcicIndices[MNDFileParser.dcicF1] != -1 && dcicIndices[MNDFileParser.dcicF2] != -1) {
+                        frag1 = parseInt(dcicIndices[MNDFileParser.dcicF1]);
+                        frag2 = parseInt(dcicIndices[MNDFileParser.dcicF2]);
+                    }
+                    if (dcicIndices[MNDFileParser.dcicM1] != -1 && dcicIndices[MNDFileParser.dcicM2] != -1) {
+                        parseInt(dcicIndices[MNDFileParser.dcicM1]);
+                        parseInt(dcicIndices[MNDFileParser.dcicM2]);
+                    }
+                    break;
+            }
+            putRecord(strand1, chr1, pos1, frag1, strand2, chr2, pos2, frag2, score);
+        }
+
+        private void putRecord(boolean strand1, int chr1, int pos1, int frag1,
+                               boolean strand2, int chr2, int pos2, int frag2, float score) {
+            if (isShort) {
+                records.putInt(chr1);
+                records.putInt(pos1);
+                records.putInt(chr2);
+                records.putInt(pos2);
+                records.putInt(Float.floatToIntBits(score));
+            } else {
+                records.put((byte) (strand1 ? 1 : 0));
+                records.putInt(chr1);
+                records.putInt(pos1);
+                records.putInt(frag1);
+                records.put((byte) (strand2 ? 1 : 0));
+                records.putInt(chr2);
+                records.putInt(pos2);
+                records.putInt(frag2);
+            }
+        }
+
+        private void ensureCapacity() {
+            if (records.remaining() < recordSize) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(records.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                records.flip();
+                larger.put(records);
+                records = larger;
+            }
+        }
+
+        private void checkToken(int index) {
+            if (index >= numTokens) {
+                throw new ArrayIndexOutOfBoundsException("Index " + index + " out of bounds for length " + numTokens);
+            }
+        }
+
+        private String tokenString(int index) {
+            checkToken(index);
+            int length = tokenEnds[index] - tokenStarts[index];
+            byte[] bytes = new byte[length];
+            for (int k = 0; k < length; k++) {
+                bytes[k] = input.get(tokenStarts[index] + k);
+            }
+            return new String(bytes, charset);
+        }
+
+        /**
+         * Plain decimal ints are parsed in place; anything else is left to Integer.parseInt
+         */
+        private int parseInt(int index) {
+            checkToken(index);
+            int p = tokenStarts[index], end = tokenEnds[index];
+            boolean negative = false;
+            if (p < end && (input.get(p) == '-' || input.get(p) == '+')) {
+                negative = input.get(p) == '-';
+                p++;
+            }
+            int numDigits = end - p;
+            if (numDigits > 0 && numDigits <= 10) {
+                long value = 0;
+                for (; p < end; p++) {
+                    int digit = input.get(p) - '0';
+                    if (digit < 0 || digit > 9) break;
+                    value = value * 10 + digit;
+                }
+                if (p == end) {
+                    value = negative ? -value : value;
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return (int) value;
+                    }
+                }
+            }
+            return Integer.parseInt(tokenString(index));
+        }
+
+        /**
+         * Unsigned whole numbers convert exactly as Float.parseFloat would (both round to nearest);
+         * anything else is left to it
+         */
+        private float parseFloat(int index) {
+            checkToken(index);
+            int p = tokenStarts[index], end = tokenEnds[index];
+            if (end - p <= 18) {
+                long value = 0;
+                for (; p < end; p++) {
+                    int digit = input.get(p) - '0';
+                    if (digit < 0 || digit > 9) break;
+                    value = value * 10 + digit;
+                }
+                if (p == end && end > tokenStarts[index]) {
+                    return (float) value;
+                }
+            }
+            return Float.parseFloat(tokenString(index));
+        }
+
+        private boolean isPlus(int index) {
+            checkToken(index);
+            return tokenEnds[index] - tokenStarts[index] == 1 && input.get(tokenStarts[index]) == '+';
+        }
+
+        private int chromosome(int index) {
+            checkToken(index);
+            int ordinal = chromosomeTokens.get(input, tokenStarts[index], tokenEnds[index]);
+            if (ordinal == ChromosomeTokens.MISSING) {
+                String chrom = handler.cleanUpName(tokenString(index));
+                Integer known = knownOrdinals.get(chrom);
+                ordinal = known != null ? known : ChromosomeTokens.NEW;
+                chromosomeTokens.put(input, tokenStarts[index], tokenEnds[index], ordinal, chrom);
+            }
+            if (ordinal != ChromosomeTokens.NEW) {
+                return ordinal;
+            }
+            String chrom = chromosomeTokens.getLastName();
+            Integer provisional = regionNewChromosomes.get(chrom);
+            if (provisional == null) {
+                provisional = PROVISIONAL + regionNewChromosomes.size();
+                regionNewChromosomes.put(chrom, provisional);
+            }
+            return provisional;
+        }
+
+        List<String> getNewChromosomes() {
+            return new ArrayList<>(regionNewChromosomes.keySet());
+        }
+
+        /**
+         * Replace the region-local ordinals in the encoded records
+         */
+        void resolveNewChromosomes(int[] ordinals) {
+            int chr1Offset = isShort ? 0 : 1;
+            int chr2Offset = isShort ? 8 : 14;
+            for (int position = 0; position < records.limit(); position += recordSize) {
+                patch(position + chr1Offset, ordinals);
+                patch(position + chr2Offset, ordinals);
+            }
+        }
+
+        private void patch(int position, int[] ordinals) {
+            int value = records.getInt(position);
+            if (value >= PROVISIONAL && value < PROVISIONAL + ordinals.length) {
+                records.putInt(position, ordinals[value - PROVISIONAL]);
+            }
+        }
+
+        ByteBuffer getRecords() {
+            return records;
+        }
+    }
+
+    /**
+     * Chromosome tokens already seen by one worker, looked up by their bytes so repeated names
+     * are neither decoded nor cleaned up again
+     */
+    private static class ChromosomeTokens {
+        static final int MISSING = -1, NEW = -2;
+
+        private byte[][] keys = new byte[64][];
+        private int[] ordinals = new int[64];
+        private String[] names = new String[64];
+        private int size = 0;
+        private String lastName;
+
+        int get(ByteBuffer input, int start, int end) {
+            int mask = keys.length - 1;
+            for (int slot = hash(input, start, end) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+                if (matches(keys[slot], input, start, end)) {
+                    lastName = names[slot];
+                    return ordinals[slot];
+                }
+            }
+            return MISSING;
+        }
+
+        void put(ByteBuffer input, int start, int end, int ordinal, String name) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            byte[] key = new byte[end - start];
+            for (int k = 0; k < key.length; k++) {
+                key[k] = input.get(start + k);
+            }
+            insert(key, ordinal, name);
+            lastName = name;
+        }
+
+        String getLastName() {
+            return lastName;
+        }
+
+        private void insert(byte[] key, int ordinal, String name) {
+            int mask = keys.length - 1;
+            int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            ordinals[slot] = ordinal;
+            names[slot] = name;
+            size++;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldOrdinals = ordinals;
+            String[] oldNames = names;
+            keys = new byte[oldKeys.length * 2][];
+            ordinals = new int[oldKeys.length * 2];
+            names = new String[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldOrdinals[i], oldNames[i]);
+                }
+            }
+        }
+
+        private static int hash(ByteBuffer input, int start, int end) {
+            int h = 1;
+            for (int k = start; k < end; k++) {
+                h = 31 * h + input.get(k);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer input, int start, int end) {
+            if (key.length != end - start) return false;
+            for (int k = 0; k < key.length; k++) {
+                if (key[k] != input.get(start + k)) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -51,6 +51,10 @@ public interface PairIterator extends Iterator<AlignmentPair> {
             return new BinPairIterator(file);
         } else if (file.endsWith(".bn")) {
             return new ShortBinPairIterator(file);
+        } else if (ColumnarPairsIndex.isColumnarPairsFile(file)) {
+            return new ColumnarPairIterator(file, chromosomeIndexes, chromosomeHandler);
+        } else if (file.endsWith(".bam")) {
+            return new BAMPairIterator(file, chromosomeIndexes, chromosomeHandler);
         } else {
             return new AsciiPairIterator(file, chromosomeIndexes, chromosomeHandler, false);
         }
@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import java.util.Arrays;
+
+/**
+ * Byte-level builder for the text lines written by binToPairs, matching what
+ * {@link AlignmentPair#toString()} and println would produce. The buffer is reused after {@link #reset()},
+ * so each thread keeps one formatter for all of its chunks.
+ */
+class PairTextFormatter {
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    private static final int FORWARD = 0, REVERSE = 16;
+    private static final int NEGATIVE_ZERO = Float.floatToRawIntBits(-0.0f);
+
+    private byte[] buffer;
+    private int size = 0;
+
+    PairTextFormatter(int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 256)];
+    }
+
+    void addPair(AlignmentPair pair) {
+        addPair(pair.getStrand1(), pair.getChr1(), pair.getPos1(), pair.getFrag1(), pair.getMapq1(),
+                pair.getStrand2(), pair.getChr2(), pair.getPos2(), pair.getFrag2(), pair.getMapq2(), pair.getScore());
+    }
+
+    void addPair(boolean strand1, int chr1, int pos1, int frag1, int mapq1,
+                 boolean strand2, int chr2, int pos2, int frag2, int mapq2, float score) {
+        // 11 fields of at most 11 digits or a float, plus separators
+        ensureCapacity(160);
+        addInt(strand1 ? FORWARD : REVERSE);
+        addTab();
+        addInt(chr1);
+        addTab();
+        addInt(pos1);
+        addTab();
+        addInt(frag1);
+        addTab();
+        addInt(mapq1);
+        addTab();
+        addInt(strand2 ? FORWARD : REVERSE);
+        addTab();
+        addInt(chr2);
+        addTab();
+        addInt(pos2);
+        addTab();
+        addInt(frag2);
+        addTab();
+        addInt(mapq2);
+        addTab();
+        addScore(score);
+        System.arraycopy(NEWLINE, 0, buffer, size, NEWLINE.length);
+        size += NEWLINE.length;
+    }
+
+    private void addTab() {
+        buffer[size++] = '\t';
+    }
+
+    private void addInt(int value) {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                addAscii(Integer.toString(value));
+                return;
+            }
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int length = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            length++;
+        }
+        for (int k = size + length - 1; k >= size; k--) {
+            buffer[k] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += length;
+    }
+
+    /**
+     * Float.toString prints whole numbers below 10^7 as "n.0"; anything else goes through it directly
+     */
+    private void addScore(float score) {
+        if (score == (int) score && Math.abs(score) < 1e7f && Float.floatToRawIntBits(score) != NEGATIVE_ZERO) {
+            addInt((int) score);
+            buffer[size++] = '.';
+            buffer[size++] = '0';
+        } else {
+            addAscii(Float.toString(score));
+        }
+    }
+
+    private void addAscii(String text) {
+        ensureCapacity(text.length());
+        for (int k = 0; k < text.length(); k++) {
+            buffer[size++] = (byte) text.charAt(k);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void reset() {
+        size = 0;
+    }
+}
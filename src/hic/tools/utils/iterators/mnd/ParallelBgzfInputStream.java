@@ -0,0 +1,177 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.iterators.mnd;
+
+import hic.tools.utils.tasks.TaskScope;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed contents of a BGZF file (as used by BAM), with the blocks inflated in parallel.
+ * <p>
+ * The compressed blocks are read in order on the caller's thread and each is inflated as a separate
+ * task; up to numThreads blocks are in flight ahead of the caller, and their contents are returned
+ * in file order.
+ */
+class ParallelBgzfInputStream extends InputStream {
+
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int BLOCK_FOOTER_SIZE = 8;
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final DataInputStream in;
+    private final String path;
+    private final int numThreads;
+    private final TaskScope scope = new TaskScope();
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean endOfInput = false;
+    private byte[] current = EMPTY;
+    private int offset = 0;
+
+    ParallelBgzfInputStream(String path, int numThreads) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 4194304));
+        this.path = path;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) return -1;
+        return current[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!ensureAvailable()) return -1;
+        int n = Math.min(len, current.length - offset);
+        System.arraycopy(current, offset, b, off, n);
+        offset += n;
+        return n;
+    }
+
+    private boolean ensureAvailable() throws IOException {
+        while (offset >= current.length) {
+            submitBlocks();
+            Future<byte[]> next = pending.poll();
+            if (next == null) return false;
+            try {
+                current = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating " + path);
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to inflate " + path, e.getCause());
+            }
+            offset = 0;
+        }
+        return true;
+    }
+
+    private void submitBlocks() throws IOException {
+        while (!endOfInput && pending.size() < numThreads) {
+            final byte[] block = readCompressedBlock();
+            if (block == null) {
+                endOfInput = true;
+            } else {
+                pending.add(scope.submit(() -> inflate(block)));
+            }
+        }
+    }
+
+    /**
+     * @return the block's compressed data followed by its CRC and inflated size, or null at the end of the file
+     */
+    private byte[] readCompressedBlock() throws IOException {
+        int id1 = in.read();
+        if (id1 < 0) return null;
+        byte[] header = new byte[BLOCK_HEADER_SIZE];
+        header[0] = (byte) id1;
+        in.readFully(header, 1, BLOCK_HEADER_SIZE - 1);
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0) {
+            throw new IOException(path + " is not BGZF compressed");
+        }
+
+        byte[] extra = new byte[readShort(header, 10)];
+        in.readFully(extra);
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extra.length; i += 4 + readShort(extra, i + 2)) {
+            if (extra[i] == 'B' && extra[i + 1] == 'C') {
+                blockSize = readShort(extra, i + 4) + 1;
+            }
+        }
+        int remaining = blockSize - BLOCK_HEADER_SIZE - extra.length;
+        if (blockSize < 0 || remaining < BLOCK_FOOTER_SIZE) {
+            throw new IOException("Missing BGZF block size in " + path);
+        }
+        byte[] block = new byte[remaining];
+        in.readFully(block);
+        return block;
+    }
+
+    private static byte[] inflate(byte[] block) throws IOException {
+        int dataLength = block.length - BLOCK_FOOTER_SIZE;
+        int size = readInt(block, block.length - 4);
+        byte[] data = new byte[size];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(block, 0, dataLength);
+        try {
+            int filled = 0;
+            while (filled < size && !inflater.finished()) {
+                int n = inflater.inflate(data, filled, size - filled);
+                if (n == 0 && inflater.needsInput()) break;
+                filled += n;
+            }
+            if (filled != size) {
+                throw new IOException("BGZF block inflated to " + filled + " bytes instead of " + size);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block", e);
+        }
+        return data;
+    }
+
+    private static int readShort(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public void close() throws IOException {
+        scope.close();
+        pending.clear();
+        in.close();
+    }
+}
@@ -31,6 +31,10 @@ public class ReadPairFilter {
         this.type = type;
     }
 
+    public Type getType() {
+        return type;
+    }
+
     protected static Type calculateType(AlignmentPair pair) {
         if (pair.getStrand1() == pair.getStrand2()) {
             if (pair.getStrand1()) {
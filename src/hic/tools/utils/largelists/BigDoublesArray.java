@@ -26,8 +26,8 @@ package hic.tools.utils.largelists;
 
 import com.google.common.util.concurrent.AtomicDouble;
 import hic.HiCGlobals;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.datastructures.ListOfFloatArrays;
-import javastraw.tools.ParallelizationTools;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.ArrayList;
@@ -140,7 +140,7 @@ public class BigDoublesArray {
 	public static double parCalculateError(BigDoublesArray col, BigDoublesArray scale, BigIntsArray target, BigIntsArray bad) {
 		AtomicDouble atomicDouble = new AtomicDouble(0);
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(col.getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(col.getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			double err = 0;
 			while (i < col.internalList.size()) {
@@ -189,7 +189,7 @@ public class BigDoublesArray {
 													  BigIntsArray bad) {
 		AtomicDouble atomicDouble = new AtomicDouble(0);
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(current.getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(current.getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			double err = 0;
 			while (i < current.internalList.size()) {
@@ -234,7 +234,7 @@ public class BigDoublesArray {
 
 	public void parSetToGeoMean(BigDoublesArray a, BigDoublesArray b) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] result = internalList.get(i);
@@ -250,7 +250,7 @@ public class BigDoublesArray {
 
 	public void parSetTo(BigDoublesArray srcArrays) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] dest = internalList.get(i);
@@ -263,7 +263,7 @@ public class BigDoublesArray {
 
 	public void parMultiplyByOneMinus(BigIntsArray array) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] orig = internalList.get(i);
@@ -278,7 +278,7 @@ public class BigDoublesArray {
 
 	public void parMultiplyBy(BigDoublesArray dv) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] orig = internalList.get(i);
@@ -293,7 +293,7 @@ public class BigDoublesArray {
 
 	public void parSetToDivision(BigIntsArray num, BigDoublesArray denom) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] orig = internalList.get(i);
@@ -309,7 +309,7 @@ public class BigDoublesArray {
 
 	public void parScaleByRatio(BigIntsArray num, BigDoublesArray denom) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				double[] orig = internalList.get(i);
@@ -26,8 +26,8 @@ package hic.tools.utils.largelists;
 
 import com.google.common.util.concurrent.AtomicDouble;
 import hic.HiCGlobals;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.datastructures.ListOfFloatArrays;
-import javastraw.tools.ParallelizationTools;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.ArrayList;
@@ -39,6 +39,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class BigFloatsArray {
 
+    private static final FloatKernels KERNELS = FloatKernels.get();
     final long DEFAULT_LENGTH = BigIntsArray.DEFAULT_LENGTH;
     final long overallLength;
     final List<float[]> internalList = new ArrayList<>();
@@ -131,7 +132,7 @@ public class BigFloatsArray {
     public static double parCalculateError(BigFloatsArray col, BigFloatsArray scale, BigIntsArray target, BigIntsArray bad) {
         AtomicDouble atomicDouble = new AtomicDouble(0);
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(col.getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(col.getNumThreads(), () -> {
             int i = index.getAndIncrement();
             float err = 0;
             while (i < col.internalList.size()) {
@@ -140,12 +141,9 @@ public class BigFloatsArray {
                 int[] targetA = target.internalList.get(i);
                 int[] badA = bad.internalList.get(i);
 
-                for (int z = 0; z < colA.length; z++) {
-                    if (badA[z] == 1) continue;
-                    float tempErr = Math.abs((colA[z] * scaleA[z] - targetA[z]));
-                    if (tempErr > err) {
-                        err = tempErr;
-                    }
+                float tempErr = KERNELS.maxAbsError(colA, scaleA, targetA, badA);
+                if (tempErr > err) {
+                    err = tempErr;
                 }
                 i = index.getAndIncrement();
             }
@@ -181,7 +179,7 @@ public class BigFloatsArray {
                                                       BigIntsArray bad) {
         AtomicDouble atomicDouble = new AtomicDouble(0);
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(current.getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(current.getNumThreads(), () -> {
             int i = index.getAndIncrement();
             double err = 0;
             while (i < current.internalList.size()) {
@@ -190,13 +188,9 @@ public class BigFloatsArray {
                 float[] currA = current.internalList.get(i);
                 int[] badA = bad.internalList.get(i);
 
-                for (int z = 0; z < calcA.length; z++) {
-                    if (badA[z] == 1) continue;
-                    double relativeErr = Math.abs(((calcA[z] - currA[z]) / (calcA[z] + currA[z])));
-                    //float tempErr = Math.abs(calcA[z] - currA[z]);
-                    if (relativeErr > err) {
-                        err = relativeErr;
-                    }
+                double relativeErr = KERNELS.maxRelativeError(calcA, currA, badA);
+                if (relativeErr > err) {
+                    err = relativeErr;
                 }
                 i = index.getAndIncrement();
             }
@@ -209,17 +203,39 @@ public class BigFloatsArray {
         return atomicDouble.get();
     }
 
+    /**
+     * same relative error as above, but counts the good entries above the threshold instead of taking the max
+     */
+    public static int parCountRelativeErrorsAbove(BigFloatsArray calculatedVectorB, BigFloatsArray current,
+                                                  BigIntsArray bad, float threshold) {
+        AtomicInteger total = new AtomicInteger();
+        AtomicInteger index = new AtomicInteger();
+        TaskScope.launchParallelizedCode(current.getNumThreads(), () -> {
+            int i = index.getAndIncrement();
+            int count = 0;
+            while (i < current.internalList.size()) {
+
+                float[] calcA = calculatedVectorB.internalList.get(i);
+                float[] currA = current.internalList.get(i);
+                int[] badA = bad.internalList.get(i);
+
+                count += KERNELS.countRelativeErrorsAbove(calcA, currA, badA, threshold);
+                i = index.getAndIncrement();
+            }
+            total.addAndGet(count);
+        });
+        return total.get();
+    }
+
     public void parSetToGeoMean(BigFloatsArray a, BigFloatsArray b) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] result = internalList.get(i);
                 float[] a1 = a.internalList.get(i);
                 float[] b1 = b.internalList.get(i);
-                for (int p = 0; p < result.length; p++) {
-                    result[p] = (float) Math.sqrt(a1[p] * b1[p]);
-                }
+                KERNELS.setToGeoMean(result, a1, b1);
                 i = index.getAndIncrement();
             }
         });
@@ -227,7 +243,7 @@ public class BigFloatsArray {
 
     public void parSetTo(BigFloatsArray srcArrays) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] dest = internalList.get(i);
@@ -238,16 +254,35 @@ public class BigFloatsArray {
         });
     }
 
+    public void copyInto(float[] dest) {
+        int start = 0;
+        for (float[] src : internalList) {
+            System.arraycopy(src, 0, dest, start, src.length);
+            start += src.length;
+        }
+    }
+
+    public void parSetWhere(BigIntsArray mask, float value) {
+        AtomicInteger index = new AtomicInteger();
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
+            int i = index.getAndIncrement();
+            while (i < internalList.size()) {
+                float[] orig = internalList.get(i);
+                int[] arr = mask.internalList.get(i);
+                KERNELS.setWhere(orig, arr, value);
+                i = index.getAndIncrement();
+            }
+        });
+    }
+
     public void parMultiplyByOneMinus(BigIntsArray array) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] orig = internalList.get(i);
                 int[] arr = array.internalList.get(i);
-                for (int p = 0; p < orig.length; p++) {
-                    orig[p] *= (1 - arr[p]);
-                }
+                KERNELS.multiplyByOneMinus(orig, arr);
                 i = index.getAndIncrement();
             }
         });
@@ -255,14 +290,12 @@ public class BigFloatsArray {
 
     public void parMultiplyBy(BigFloatsArray dv) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] orig = internalList.get(i);
                 float[] arr = dv.internalList.get(i);
-                for (int p = 0; p < orig.length; p++) {
-                    orig[p] *= arr[p];
-                }
+                KERNELS.multiplyBy(orig, arr);
                 i = index.getAndIncrement();
             }
         });
@@ -270,15 +303,13 @@ public class BigFloatsArray {
 
     public void parSetToDivision(BigIntsArray num, BigFloatsArray denom) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] orig = internalList.get(i);
                 int[] num1 = num.internalList.get(i);
                 float[] denom1 = denom.internalList.get(i);
-                for (int p = 0; p < orig.length; p++) {
-                    orig[p] = num1[p] / denom1[p];
-                }
+                KERNELS.setToDivision(orig, num1, denom1);
                 i = index.getAndIncrement();
             }
         });
@@ -290,15 +321,13 @@ public class BigFloatsArray {
 
     public void parScaleByRatio(BigIntsArray num, BigFloatsArray denom) {
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+        TaskScope.launchParallelizedCode(getNumThreads(), () -> {
             int i = index.getAndIncrement();
             while (i < internalList.size()) {
                 float[] orig = internalList.get(i);
                 int[] num1 = num.internalList.get(i);
                 float[] denom1 = denom.internalList.get(i);
-                for (int p = 0; p < orig.length; p++) {
-                    orig[p] *= (num1[p] / denom1[p]);
-                }
+                KERNELS.scaleByRatio(orig, num1, denom1);
                 i = index.getAndIncrement();
             }
         });
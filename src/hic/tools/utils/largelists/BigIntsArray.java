@@ -25,7 +25,7 @@
 package hic.tools.utils.largelists;
 
 import hic.HiCGlobals;
-import javastraw.tools.ParallelizationTools;
+import hic.tools.utils.tasks.TaskScope;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -109,7 +109,7 @@ public class BigIntsArray {
 
 	public void parSetTo(BigFloatsArray srcArrays) {
 		AtomicInteger index = new AtomicInteger();
-		ParallelizationTools.launchParallelizedCode(getNumThreads(), () -> {
+		TaskScope.launchParallelizedCode(getNumThreads(), () -> {
 			int i = index.getAndIncrement();
 			while (i < internalList.size()) {
 				int[] dest = internalList.get(i);
@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.largelists;
+
+/**
+ * Per-chunk loops of the SCALE iterations over BigFloatsArray and BigIntsArray chunks.
+ * <p>
+ * These are the scalar versions. On Java 16+ launched with {@code --add-modules jdk.incubator.vector},
+ * VectorFloatKernels from the optional vector source root is picked instead when the class loads; on
+ * Java 8, or without the module, loading it fails and these are used. Every kernel only does
+ * element-wise float arithmetic, masks and max/count reductions, so both give bitwise identical results,
+ * apart from the sign of NaN results, which Java leaves unspecified.
+ */
+class FloatKernels {
+
+    private static final String VECTOR_KERNELS = "hic.tools.utils.largelists.VectorFloatKernels";
+    private static final FloatKernels INSTANCE = load();
+
+    static FloatKernels get() {
+        return INSTANCE;
+    }
+
+    static FloatKernels getScalar() {
+        return new FloatKernels();
+    }
+
+    private static FloatKernels load() {
+        try {
+            return (FloatKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new FloatKernels();
+        }
+    }
+
+    String getName() {
+        return "scalar";
+    }
+
+    /**
+     * @return max of |col * scale - target| over entries not marked bad, or 0
+     */
+    float maxAbsError(float[] col, float[] scale, int[] target, int[] bad) {
+        float err = 0;
+        for (int z = 0; z < col.length; z++) {
+            if (bad[z] == 1) continue;
+            float tempErr = Math.abs(col[z] * scale[z] - target[z]);
+            if (tempErr > err) {
+                err = tempErr;
+            }
+        }
+        return err;
+    }
+
+    /**
+     * @return max of |(calc - curr) / (calc + curr)| over entries not marked bad, or 0
+     */
+    float maxRelativeError(float[] calc, float[] curr, int[] bad) {
+        float err = 0;
+        for (int z = 0; z < calc.length; z++) {
+            if (bad[z] == 1) continue;
+            float relativeErr = Math.abs((calc[z] - curr[z]) / (calc[z] + curr[z]));
+            if (relativeErr > err) {
+                err = relativeErr;
+            }
+        }
+        return err;
+    }
+
+    /**
+     * @return number of entries not marked bad with |(calc - curr) / (calc + curr)| above the threshold
+     */
+    int countRelativeErrorsAbove(float[] calc, float[] curr, int[] bad, float threshold) {
+        int count = 0;
+        for (int z = 0; z < calc.length; z++) {
+            if (bad[z] == 1) continue;
+            if (Math.abs((calc[z] - curr[z]) / (calc[z] + curr[z])) > threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    void setToGeoMean(float[] result, float[] a, float[] b) {
+        for (int p = 0; p < result.length; p++) {
+            result[p] = (float) Math.sqrt(a[p] * b[p]);
+        }
+    }
+
+    void setWhere(float[] orig, int[] mask, float value) {
+        for (int p = 0; p < orig.length; p++) {
+            if (mask[p] == 1) {
+                orig[p] = value;
+            }
+        }
+    }
+
+    void multiplyBy(float[] orig, float[] factors) {
+        for (int p = 0; p < orig.length; p++) {
+            orig[p] *= factors[p];
+        }
+    }
+
+    void multiplyByOneMinus(float[] orig, int[] mask) {
+        for (int p = 0; p < orig.length; p++) {
+            orig[p] *= (1 - mask[p]);
+        }
+    }
+
+    void setToDivision(float[] orig, int[] num, float[] denom) {
+        for (int p = 0; p < orig.length; p++) {
+            orig[p] = num[p] / denom[p];
+        }
+    }
+
+    void scaleByRatio(float[] orig, int[] num, float[] denom) {
+        for (int p = 0; p < orig.length; p++) {
+            orig[p] *= (num[p] / denom[p]);
+        }
+    }
+}
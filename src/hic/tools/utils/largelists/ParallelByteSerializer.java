@@ -0,0 +1,265 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.largelists;
+
+import hic.tools.utils.tasks.TaskScope;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Little-endian serializer for footers: the same bytes BufferedByteWriter would produce, but float
+ * vectors are only recorded when added and encoded at write time, in parallel.
+ * <p>
+ * Since every vector's length is known up front, {@link #getBytesWritten()} is exact before anything
+ * is encoded. Writing walks the pieces in windows of about {@link #WINDOW_BYTES}: each vector chunk
+ * in a window is encoded into its own ByteBuffer by a worker, then the window goes out with one
+ * gathering write.
+ */
+public class ParallelByteSerializer {
+
+    private static final int CHUNK_VALUES = 1 << 20;
+    private static final long WINDOW_BYTES = 1L << 26;
+
+    private final List<Piece> pieces = new ArrayList<>();
+    private ByteBuffer staging = newBuffer(1024);
+    private long bytesWritten = 0;
+
+    public void putInt(int value) {
+        ensure(4);
+        staging.putInt(value);
+        bytesWritten += 4;
+    }
+
+    public void putLong(long value) {
+        ensure(8);
+        staging.putLong(value);
+        bytesWritten += 8;
+    }
+
+    public void putFloat(float value) {
+        ensure(4);
+        staging.putFloat(value);
+        bytesWritten += 4;
+    }
+
+    public void put(byte[] bytes) {
+        ensure(bytes.length);
+        staging.put(bytes);
+        bytesWritten += bytes.length;
+    }
+
+    public void putNullTerminatedString(String value) {
+        byte[] bytes = value.getBytes();
+        ensure(bytes.length + 1);
+        staging.put(bytes);
+        staging.put((byte) 0);
+        bytesWritten += bytes.length + 1;
+    }
+
+    /**
+     * Adds the vector length as a long followed by the values; the arrays must not change until written
+     */
+    public void putFloatVector(List<float[]> arrays) {
+        long length = 0;
+        for (float[] array : arrays) {
+            length += array.length;
+        }
+        putLong(length);
+        flushStaging();
+        for (float[] array : arrays) {
+            for (int start = 0; start < array.length; start += CHUNK_VALUES) {
+                pieces.add(new FloatPiece(array, start, Math.min(CHUNK_VALUES, array.length - start)));
+            }
+        }
+        bytesWritten += 4 * length;
+    }
+
+    /**
+     * As {@link #putFloatVector(List)}, narrowing each value to a float
+     */
+    public void putDoublesAsFloatVector(List<double[]> arrays) {
+        long length = 0;
+        for (double[] array : arrays) {
+            length += array.length;
+        }
+        putLong(length);
+        flushStaging();
+        for (double[] array : arrays) {
+            for (int start = 0; start < array.length; start += CHUNK_VALUES) {
+                pieces.add(new DoublePiece(array, start, Math.min(CHUNK_VALUES, array.length - start)));
+            }
+        }
+        bytesWritten += 4 * length;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void writeTo(GatheringByteChannel channel, int numThreads) throws IOException {
+        writeInWindows(numThreads, buffers -> {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        });
+    }
+
+    public void writeTo(OutputStream os, int numThreads) throws IOException {
+        writeInWindows(numThreads, buffers -> {
+            for (ByteBuffer buffer : buffers) {
+                os.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+        });
+    }
+
+    private void writeInWindows(int numThreads, BufferSink sink) throws IOException {
+        flushStaging();
+        int from = 0;
+        while (from < pieces.size()) {
+            int to = from;
+            long windowBytes = 0;
+            while (to < pieces.size() && (to == from || windowBytes + pieces.get(to).length() <= WINDOW_BYTES)) {
+                windowBytes += pieces.get(to).length();
+                to++;
+            }
+
+            final int first = from, last = to;
+            ByteBuffer[] buffers = new ByteBuffer[last - first];
+            AtomicInteger index = new AtomicInteger(first);
+            TaskScope.launchParallelizedCode(Math.max(1, Math.min(numThreads, last - first)), () -> {
+                int i = index.getAndIncrement();
+                while (i < last) {
+                    buffers[i - first] = pieces.get(i).encode();
+                    i = index.getAndIncrement();
+                }
+            });
+
+            sink.write(buffers);
+            from = to;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (staging.remaining() < extra) {
+            ByteBuffer larger = newBuffer(Math.max(staging.capacity() * 2, staging.position() + extra));
+            staging.flip();
+            larger.put(staging);
+            staging = larger;
+        }
+    }
+
+    private void flushStaging() {
+        if (staging.position() > 0) {
+            pieces.add(new FixedPiece(Arrays.copyOf(staging.array(), staging.position())));
+            staging = newBuffer(1024);
+        }
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private interface BufferSink {
+        void write(ByteBuffer[] buffers) throws IOException;
+    }
+
+    private interface Piece {
+        int length();
+
+        ByteBuffer encode();
+    }
+
+    private static class FixedPiece implements Piece {
+        private final byte[] bytes;
+
+        FixedPiece(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int length() {
+            return bytes.length;
+        }
+
+        public ByteBuffer encode() {
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private static class FloatPiece implements Piece {
+        private final float[] values;
+        private final int start, count;
+
+        FloatPiece(float[] values, int start, int count) {
+            this.values = values;
+            this.start = start;
+            this.count = count;
+        }
+
+        public int length() {
+            return 4 * count;
+        }
+
+        public ByteBuffer encode() {
+            ByteBuffer buffer = newBuffer(length());
+            buffer.asFloatBuffer().put(values, start, count);
+            return buffer;
+        }
+    }
+
+    private static class DoublePiece implements Piece {
+        private final double[] values;
+        private final int start, count;
+
+        DoublePiece(double[] values, int start, int count) {
+            this.values = values;
+            this.start = start;
+            this.count = count;
+        }
+
+        public int length() {
+            return 4 * count;
+        }
+
+        public ByteBuffer encode() {
+            ByteBuffer buffer = newBuffer(length());
+            for (int i = 0; i < count; i++) {
+                buffer.putFloat(4 * i, (float) values[start + i]);
+            }
+            return buffer;
+        }
+    }
+}
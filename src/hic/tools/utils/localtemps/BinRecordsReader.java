@@ -24,59 +24,174 @@
 
 package hic.tools.utils.localtemps;
 
-import htsjdk.tribble.util.LittleEndianInputStream;
 import javastraw.reader.block.ContactRecord;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
+/**
+ * Reads back the files written by {@link BinRecordsWriter}.
+ * <p>
+ * Hot loops should use {@link #loadNextBlock()} and the primitive block arrays; the iterator
+ * view wraps the same blocks in ContactRecords.
+ */
 public class BinRecordsReader implements Iterator<ContactRecord> {
 
-    protected final LittleEndianInputStream is;
-    protected ContactRecord next;
+    private final DataInputStream is;
+    private final Inflater decompressor = new Inflater();
+    private final int[] binXs = new int[BinRecordsWriter.BLOCK_RECORDS];
+    private final int[] binYs = new int[BinRecordsWriter.BLOCK_RECORDS];
+    private final float[] counts = new float[BinRecordsWriter.BLOCK_RECORDS];
+    private byte[] compressed = new byte[BinRecordsWriter.BLOCK_RECORDS * 8];
+    private byte[] encoded = new byte[BinRecordsWriter.BLOCK_RECORDS * 8];
+    private int blockSize = 0;
+    private int position = 0;
+    private int cursor = 0;
 
     public BinRecordsReader(String path) throws IOException {
-        is = new LittleEndianInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path))));
-        advance();
+        is = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 20));
     }
 
-    public boolean hasNext() {
-        return next != null;
+    /**
+     * Decodes the next block into the arrays returned by {@link #getBinXs()}, {@link #getBinYs()}
+     * and {@link #getCounts()}
+     *
+     * @return false once the file is exhausted
+     */
+    public boolean loadNextBlock() throws IOException {
+        int numRecords;
+        try {
+            numRecords = is.readInt();
+        } catch (EOFException e) {
+            blockSize = 0;
+            cursor = 0;
+            return false;
+        }
+        int length = is.readInt();
+        int compressedLength = is.readInt();
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        if (encoded.length < length) {
+            encoded = new byte[length];
+        }
+        is.readFully(compressed, 0, compressedLength);
+
+        decompressor.reset();
+        decompressor.setInput(compressed, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length) {
+                int n = decompressor.inflate(encoded, inflated, length - inflated);
+                if (n == 0 && (decompressor.finished() || decompressor.needsInput())) {
+                    throw new IOException("Truncated block in local records file");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+
+        decode(numRecords);
+        blockSize = numRecords;
+        cursor = 0;
+        return true;
     }
 
-    public ContactRecord next() {
-        ContactRecord retValue = next;
-        advance();
-        return retValue;
+    private void decode(int numRecords) {
+        position = 0;
+        int flags = encoded[position++];
+        int x = 0;
+        for (int i = 0; i < numRecords; i++) {
+            x += getVarInt();
+            binXs[i] = x;
+        }
+        int previousX = -1, previousY = 0;
+        for (int i = 0; i < numRecords; i++) {
+            int v = getVarInt();
+            int delta = (v >>> 1) ^ -(v & 1);
+            int y = binXs[i] == previousX ? previousY + delta : binXs[i] + delta;
+            binYs[i] = y;
+            previousX = binXs[i];
+            previousY = y;
+        }
+        if ((flags & BinRecordsWriter.INTEGRAL_COUNTS) != 0) {
+            for (int i = 0; i < numRecords; i++) {
+                counts[i] = getVarInt();
+            }
+        } else {
+            for (int i = 0; i < numRecords; i++) {
+                int bits = (encoded[position] & 0xFF) | (encoded[position + 1] & 0xFF) << 8
+                        | (encoded[position + 2] & 0xFF) << 16 | (encoded[position + 3] & 0xFF) << 24;
+                counts[i] = Float.intBitsToFloat(bits);
+                position += 4;
+            }
+        }
     }
 
-    public void remove() {
+    private int getVarInt() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = encoded[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
     }
 
-    public void close() {
-        if (is != null) try {
-            is.close();
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int[] getBinXs() {
+        return binXs;
+    }
+
+    public int[] getBinYs() {
+        return binYs;
+    }
+
+    public float[] getCounts() {
+        return counts;
+    }
+
+    public boolean hasNext() {
+        if (cursor < blockSize) return true;
+        try {
+            while (loadNextBlock()) {
+                if (blockSize > 0) return true;
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return false;
     }
 
-    protected void advance() {
+    public ContactRecord next() {
+        hasNext();
+        ContactRecord record = new ContactRecord(binXs[cursor], binYs[cursor], counts[cursor]);
+        cursor++;
+        return record;
+    }
+
+    public void remove() {
+    }
+
+    public void close() {
+        decompressor.end();
         try {
-            int binX = is.readInt();
-            int binY = is.readInt();
-            float val = is.readFloat();
-            next = new ContactRecord(binX, binY, val);
+            is.close();
         } catch (IOException e) {
-            next = null;
-            if (!(e instanceof EOFException)) {
-                e.printStackTrace();
-            }
+            e.printStackTrace();
         }
     }
 }
-
@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.localtemps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends contact records to local files in the {@link BinRecordsWriter} format as they arrive,
+ * starting a new file every {@code limit} records; the files can be read back with
+ * {@link BinRecordsReader} once {@link #finish()} has been called.
+ */
+public class BinRecordsSpill {
+
+    private final List<String> filenames = Collections.synchronizedList(new ArrayList<>());
+    private final String stem;
+    private final int limit;
+    private BinRecordsWriter.RecordsFile file = null;
+    private int recordsInFile = 0;
+    private long numRecords = 0;
+    private long bytesWritten = 0;
+
+    public BinRecordsSpill(String stem, int limit) {
+        this.stem = stem;
+        this.limit = limit;
+    }
+
+    public synchronized void add(int binX, int binY, float counts) throws IOException {
+        if (file == null) {
+            file = new BinRecordsWriter.RecordsFile(filenames, stem);
+        }
+        file.add(binX, binY, counts);
+        numRecords++;
+        if (++recordsInFile >= limit) {
+            closeFile();
+        }
+    }
+
+    /**
+     * Flushes the file being written; later records go to a new file
+     */
+    public synchronized void finish() throws IOException {
+        if (file != null) {
+            closeFile();
+        }
+    }
+
+    private void closeFile() throws IOException {
+        bytesWritten += file.close();
+        file = null;
+        recordsInFile = 0;
+    }
+
+    public synchronized List<String> getFilenames() {
+        return new ArrayList<>(filenames);
+    }
+
+    public synchronized long getNumRecords() {
+        return numRecords;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized void delete() {
+        if (file != null) {
+            try {
+                file.discard();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file = null;
+        }
+        for (String filename : filenames) {
+            new File(filename).delete();
+        }
+        filenames.clear();
+    }
+}
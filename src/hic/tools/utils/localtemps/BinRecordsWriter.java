@@ -24,7 +24,8 @@
 
 package hic.tools.utils.localtemps;
 
-import htsjdk.tribble.util.LittleEndianOutputStream;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.block.ContactRecord;
@@ -32,53 +33,60 @@ import javastraw.reader.iterators.GenomeWideIterator;
 import javastraw.reader.type.HiCZoom;
 
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.Deflater;
 
+/**
+ * Spills contact records to temporary files under {@link LocalTempDirectory}.
+ * <p>
+ * Records are written in blocks of up to {@link #BLOCK_RECORDS}, each sorted by (binX, binY) and
+ * stored column by column: varint deltas of binX, zigzag varint deltas of binY (from the previous
+ * binY in the same row, otherwise from binX), then counts as varints when they are all whole
+ * numbers or as raw floats otherwise. Every block is then compressed with a fast deflate pass.
+ */
 public class BinRecordsWriter {
 
-    private static int internalCount = 0;
+    static final int BLOCK_RECORDS = 1 << 16;
+    static final int INTEGRAL_COUNTS = 1;
 
     public static void saveAllContacts(Iterator<ContactRecord> iterator, int limit,
                                        List<String> filenames, String stem) throws IOException {
-        LittleEndianOutputStream les = createNewTempFile(filenames, stem);
+        PhaseTracker.Phase phase = PhaseTracker.start("norm.saveRecords");
+        RecordsFile file = new RecordsFile(filenames, stem);
+        long numRecords = 0;
         int counter = 0;
         while (iterator.hasNext()) {
             ContactRecord record = iterator.next();
-            les.writeInt(record.getBinX());
-            les.writeInt(record.getBinY());
-            les.writeFloat(record.getCounts());
+            file.add(record.getBinX(), record.getBinY(), record.getCounts());
             counter++;
             if (counter >= limit) {
-                les.close();
-                les = createNewTempFile(filenames, stem);
+                phase.addBytesWritten(file.close()).addTempFiles(1);
+                file = new RecordsFile(filenames, stem);
+                numRecords += counter;
                 counter = 0;
             }
         }
         if (counter > 0) {
-            les.close();
+            phase.addBytesWritten(file.close()).addTempFiles(1);
+            numRecords += counter;
+        } else {
+            file.discard();
         }
-    }
-
-    private static LittleEndianOutputStream createNewTempFile(List<String> files, String stem) throws IOException {
-        File tempFile = File.createTempFile(stem + (internalCount++), ".tmp.bin");
-        tempFile.deleteOnExit();
-        files.add(tempFile.getAbsolutePath());
-
-        BufferedOutputStream bos = new BufferedOutputStream(Files.newOutputStream(tempFile.toPath()));
-        return new LittleEndianOutputStream(bos);
+        phase.addRecords(numRecords).end();
     }
 
     public static void saveAllGWContacts(Dataset ds, ChromosomeHandler handler, HiCZoom zoom, boolean includeIntra,
                                          int limit, List<String> filenames,
                                          String intraStem, String interStem) {
 
-        ExecutorService executor = Executors.newFixedThreadPool(2);
+        TaskScope scope = new TaskScope();
 
         Runnable worker = () -> {
             try {
@@ -90,7 +98,7 @@ public class BinRecordsWriter {
                 System.exit(31);
             }
         };
-        executor.execute(worker);
+        scope.fork(worker);
 
         if (includeIntra) {
             Runnable worker2 = () -> {
@@ -103,12 +111,193 @@ public class BinRecordsWriter {
                     System.exit(31);
                 }
             };
-            executor.execute(worker2);
+            scope.fork(worker2);
+        }
+
+        try {
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Unable to save data to local files");
+            e.printStackTrace();
+            System.exit(31);
+        }
+    }
+
+    static class RecordsFile {
+        private final List<String> filenames;
+        private final File file;
+        private final DataOutputStream out;
+        private final Deflater compressor = new Deflater(Deflater.BEST_SPEED);
+        private final long[] keys = new long[BLOCK_RECORDS];
+        private final float[] counts = new float[BLOCK_RECORDS];
+        private byte[] encoded = new byte[BLOCK_RECORDS * 8];
+        private byte[] compressed = new byte[BLOCK_RECORDS * 8];
+        private int size = 0;
+
+        RecordsFile(List<String> filenames, String stem) throws IOException {
+            this.filenames = filenames;
+            file = LocalTempDirectory.createTempFile(stem, ".tmp.bin");
+            file.deleteOnExit();
+            filenames.add(file.getAbsolutePath());
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 20));
+        }
+
+        void add(int binX, int binY, float value) throws IOException {
+            keys[size] = ((long) binX << 32) | (binY & 0xffffffffL);
+            counts[size] = value;
+            size++;
+            if (size == BLOCK_RECORDS) {
+                writeBlock();
+            }
         }
 
-        executor.shutdown();
+        /**
+         * @return number of bytes in the finished file
+         */
+        long close() throws IOException {
+            if (size > 0) {
+                writeBlock();
+            }
+            out.close();
+            compressor.end();
+            return file.length();
+        }
 
-        while (!executor.isTerminated()) {
+        void discard() throws IOException {
+            out.close();
+            compressor.end();
+            filenames.remove(file.getAbsolutePath());
+            file.delete();
         }
+
+        private void writeBlock() throws IOException {
+            sortByKey(keys, counts, size);
+            int length = encode();
+
+            compressor.reset();
+            compressor.setInput(encoded, 0, length);
+            compressor.finish();
+            int compressedLength = 0;
+            while (!compressor.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += compressor.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+
+            out.writeInt(size);
+            out.writeInt(length);
+            out.writeInt(compressedLength);
+            out.write(compressed, 0, compressedLength);
+            size = 0;
+        }
+
+        private int encode() {
+            int flags = INTEGRAL_COUNTS;
+            for (int i = 0; i < size; i++) {
+                float c = counts[i];
+                if (c < 0 || c > Integer.MAX_VALUE || c != (int) c) {
+                    flags = 0;
+                    break;
+                }
+            }
+
+            int pos = 0;
+            encoded[pos++] = (byte) flags;
+            int previousX = 0, previousY = 0;
+            for (int i = 0; i < size; i++) {
+                int x = (int) (keys[i] >>> 32);
+                pos = putVarInt(x - previousX, pos);
+                previousX = x;
+            }
+            previousX = -1;
+            for (int i = 0; i < size; i++) {
+                int x = (int) (keys[i] >>> 32);
+                int y = (int) keys[i];
+                int delta = x == previousX ? y - previousY : y - x;
+                pos = putVarInt((delta << 1) ^ (delta >> 31), pos);
+                previousX = x;
+                previousY = y;
+            }
+            if (flags == INTEGRAL_COUNTS) {
+                for (int i = 0; i < size; i++) {
+                    pos = putVarInt((int) counts[i], pos);
+                }
+            } else {
+                ensure(pos, size * 4);
+                for (int i = 0; i < size; i++) {
+                    int bits = Float.floatToRawIntBits(counts[i]);
+                    encoded[pos++] = (byte) bits;
+                    encoded[pos++] = (byte) (bits >>> 8);
+                    encoded[pos++] = (byte) (bits >>> 16);
+                    encoded[pos++] = (byte) (bits >>> 24);
+                }
+            }
+            return pos;
+        }
+
+        private int putVarInt(int value, int pos) {
+            ensure(pos, 5);
+            while ((value & ~0x7F) != 0) {
+                encoded[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            encoded[pos++] = (byte) value;
+            return pos;
+        }
+
+        private void ensure(int pos, int extra) {
+            if (pos + extra > encoded.length) {
+                encoded = Arrays.copyOf(encoded, Math.max(encoded.length * 2, pos + extra));
+            }
+        }
+    }
+
+    /**
+     * Sorts keys ascending, keeping values aligned; skips the work for input that is already in order
+     */
+    static void sortByKey(long[] keys, float[] values, int size) {
+        for (int i = 1; i < size; i++) {
+            if (keys[i] < keys[i - 1]) {
+                quickSort(keys, values, 0, size - 1);
+                return;
+            }
+        }
+    }
+
+    private static void quickSort(long[] keys, float[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            long pivot = keys[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // recurse into the smaller half to bound the stack depth
+            if (j - lo < hi - i) {
+                quickSort(keys, values, lo, j);
+                lo = i;
+            } else {
+                quickSort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int k = i; k > lo && keys[k] < keys[k - 1]; k--) {
+                swap(keys, values, k, k - 1);
+            }
+        }
+    }
+
+    private static void swap(long[] keys, float[] values, int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        float value = values[a];
+        values[a] = values[b];
+        values[b] = value;
     }
 }
@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.localtemps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Location of the temporary record files written during normalization.
+ * <p>
+ * Files go into a per-run directory created under the configured base (the -t option, or the
+ * JVM default temp directory if none was given), which is removed along with anything left in
+ * it when the JVM exits.
+ */
+public class LocalTempDirectory {
+
+    private static String baseDirectory = null;
+    private static File runDirectory = null;
+
+    public static synchronized void setBaseDirectory(String path) {
+        if (path != null && path.length() > 1) {
+            baseDirectory = path;
+        }
+    }
+
+    public static synchronized File createTempFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, getRunDirectory());
+    }
+
+    private static File getRunDirectory() throws IOException {
+        if (runDirectory == null || !runDirectory.isDirectory()) {
+            Path base = Paths.get(baseDirectory == null ? System.getProperty("java.io.tmpdir") : baseDirectory);
+            Files.createDirectories(base);
+            runDirectory = Files.createTempDirectory(base, "hic_records_").toFile();
+            final File toDelete = runDirectory;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecursively(toDelete)));
+        }
+        return runDirectory;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
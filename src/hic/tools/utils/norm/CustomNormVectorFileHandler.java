@@ -25,14 +25,14 @@
 package hic.tools.utils.norm;
 
 import hic.HiCGlobals;
-import hic.tools.utils.largelists.BigListOfByteWriters;
+import hic.tools.utils.cache.BlockCache;
+import hic.tools.utils.largelists.ParallelByteSerializer;
 import hic.tools.utils.original.ExpectedValueCalculation;
 import javastraw.reader.Dataset;
 import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.block.ContactRecord;
-import javastraw.reader.datastructures.ListOfDoubleArrays;
 import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.expected.ExpectedValueFunction;
 import javastraw.reader.mzd.MatrixZoomData;
@@ -42,10 +42,9 @@ import javastraw.reader.type.NormalizationHandler;
 import javastraw.reader.type.NormalizationType;
 import javastraw.tools.HiCFileTools;
 
-import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
 
 public class CustomNormVectorFileHandler extends NormVectorUpdater {
 
@@ -55,7 +54,8 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         HiCGlobals.verifySupportedHiCFileVersion(reader.getVersion());
 
         String[] vectorPaths = vectorPath.split(",");
-        NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(ds, vectorPaths, true);
+        NormVectorInfo normVectorInfo = completeCalculationsNecessaryForUpdatingCustomNormalizations(reader, path, ds,
+                vectorPaths, true);
         writeNormsToUpdateFile(reader, path, false, null, normVectorInfo.getExpectedValueFunctionMap(),
                 normVectorInfo.getNormVectorIndices(), normVectorInfo.getNormVectorBuffers(), "Finished adding another normalization.");
 
@@ -63,7 +63,8 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
     }
 
     private static NormVectorInfo completeCalculationsNecessaryForUpdatingCustomNormalizations(
-            final Dataset ds, String[] filePaths, boolean overwriteHicFileFooter) throws IOException {
+            DatasetReaderV2 reader, String path, final Dataset ds, String[] filePaths,
+            boolean overwriteHicFileFooter) throws IOException {
 
         Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorMap = readVectorFile(filePaths,
                 ds.getChromosomeHandler(), ds.getNormalizationHandler());
@@ -72,25 +73,30 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         Map<String, Integer> fragCountMap = ds.getFragmentCounts();
         List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
 
-        BigListOfByteWriters normVectorBuffers = new BigListOfByteWriters();
+        ParallelByteSerializer normVectorBuffers = new ParallelByteSerializer();
         List<NormalizationVectorIndexEntry> normVectorIndices = new ArrayList<>();
         Map<String, ExpectedValueFunction> expectedValueFunctionMap = ds.getExpectedValueFunctionMap();
 
         expectedValueFunctionMap.entrySet().removeIf(entry -> entry.getKey().contains("NONE"));
 
-        // Get existing norm vectors so we don't lose them
+        // Get existing norm vectors so we don't lose them; their stored bytes are copied as is
         if (overwriteHicFileFooter) {
-            for (HiCZoom zoom : resolutions) {
-                for (NormalizationType type : NormalizationHandler.getAllNormTypes()) {
-                    for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
-                        NormalizationVector existingNorm = ds.getNormalizationVector(chr.getIndex(), zoom, type);
-                        if (existingNorm != null) {
-                            long position = normVectorBuffers.getBytesWritten();
-                            putFloatArraysIntoBufferList(normVectorBuffers, existingNorm.getData().convertToFloats().getValues());
-                            long newPos = normVectorBuffers.getBytesWritten();
-                            int sizeInBytes = (int) (newPos - position);
-                            normVectorIndices.add(new NormalizationVectorIndexEntry(
-                                    type.toString(), chr.getIndex(), zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
+            try (RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+                Map<String, NormalizationVectorIndexEntry> existingEntries =
+                        ExternalNormalizationVectorLoader.readNormVectorIndex(raf, reader.getNviHeaderPosition());
+                for (HiCZoom zoom : resolutions) {
+                    for (NormalizationType type : NormalizationHandler.getAllNormTypes()) {
+                        for (Chromosome chr : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
+                            NormalizationVectorIndexEntry existing = existingEntries.get(ExternalNormalizationVectorLoader.getKey(
+                                    type.toString(), chr.getIndex(), zoom.getUnit().toString(), zoom.getBinSize()));
+                            if (existing != null) {
+                                long position = normVectorBuffers.getBytesWritten();
+                                ExternalNormalizationVectorLoader.copyVector(raf, existing, normVectorBuffers);
+                                long newPos = normVectorBuffers.getBytesWritten();
+                                int sizeInBytes = (int) (newPos - position);
+                                normVectorIndices.add(new NormalizationVectorIndexEntry(
+                                        type.toString(), chr.getIndex(), zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
+                            }
                         }
                     }
                 }
@@ -122,19 +128,22 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
                     if (zd == null) continue;
 
                     handleLoadedVector(customNormType, chr.getIndex(), zoom, normalizationVectorMap.get(customNormType),
-                                normVectorBuffers, normVectorIndices, zd, evLoaded);
+                                normVectorBuffers, normVectorIndices, path, reader, zd, evLoaded,
+                                normalizationVectorMap.size() > 1);
                 }
                 expectedValueFunctionMap.put(key, evLoaded.getExpectedValueFunction());
             }
         }
 
+        BlockCache.getShared().invalidate(path);
         ds.setExpectedValueFunctionMap(expectedValueFunctionMap);
         return new NormVectorInfo(normalizationVectorMap, normVectorBuffers, normVectorIndices, expectedValueFunctionMap);
     }
 
     private static void handleLoadedVector(NormalizationType customNormType, final int chrIndx, HiCZoom zoom, Map<String, NormalizationVector> normVectors,
-                                           BigListOfByteWriters normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex,
-                                           MatrixZoomData zd, ExpectedValueCalculation evLoaded) throws IOException {
+                                           ParallelByteSerializer normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndex,
+                                           String path, DatasetReaderV2 reader, MatrixZoomData zd,
+                                           ExpectedValueCalculation evLoaded, boolean readAgain) throws IOException {
 
         String key = NormalizationVector.getKey(customNormType, chrIndx, zoom.getUnit().toString(), zoom.getBinSize());
         if (normVectors.containsKey(key)) {
@@ -150,7 +159,10 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
             normVectorIndex.add(new NormalizationVectorIndexEntry(
                     customNormType.toString(), chrIndx, zoom.getUnit().toString(), zoom.getBinSize(), position, sizeInBytes));
 
-            addDistancesFromIterator(chrIndx, zd.getDirectIterator(), vector.getData().convertToFloats(), evLoaded);
+            // the blocks are only worth caching if the next custom norm will read the same matrix
+            Iterator<ContactRecord> iterator = readAgain ? BlockCache.iterate(path, reader, zd)
+                    : BlockCache.iterateOnce(path, reader, zd);
+            addDistancesFromIterator(chrIndx, iterator, vector.getData().convertToFloats(), evLoaded);
         }
     }
 
@@ -175,87 +187,9 @@ public class CustomNormVectorFileHandler extends NormVectorUpdater {
         Map<NormalizationType, Map<String, NormalizationVector>> normVectors = new HashMap<>();
 
         for (String fname : fnames) {
-            BufferedReader vectorReader;
-            if (fname.endsWith(".gz")) {
-                InputStream fileStream = new FileInputStream(fname);
-                InputStream gzipStream = new GZIPInputStream(fileStream);
-                Reader decoder = new InputStreamReader(gzipStream, StandardCharsets.UTF_8);
-                vectorReader = new BufferedReader(decoder, 4194304);
-            } else {
-                //this.reader = org.broad.igv.util.ParsingUtils.openBufferedReader(path);
-                vectorReader = new BufferedReader(new InputStreamReader(new FileInputStream(fname)), HiCGlobals.bufferSize);
-            }
-
-            Chromosome chr = null;
-            int resolution = -1;
-            HiCZoom.HiCUnit unit = null;
-            NormalizationType customNormType = null;
-            boolean needsToBeScaledTo = false;
-
-            String nextLine = vectorReader.readLine();
-            while (nextLine != null) {
-                // Header: vector  type  chr1    2048000 BP
-                if (nextLine.startsWith("vector")) {
-                    String[] tokens = nextLine.split("\\s+");
-                    chr = chromosomeHandler.getChromosomeFromName(tokens[2]);
-                    if (chr == null) {
-                        System.err.println("Skipping " + tokens[2] + " which isn't in dataset");
-                        nextLine = skipLinesUntilTextEncountered(vectorReader, "vector");
-                        continue;
-                    }
-
-                    customNormType = normalizationHandler.getNormTypeFromString(tokens[1]);
-                    resolution = Integer.parseInt(tokens[3]);
-                    unit = HiCZoom.HiCUnit.valueOf(tokens[4]);
-                    needsToBeScaledTo = tokens[0].toLowerCase().contains("scale");
-                }
-                if (chr != null && customNormType != null) {
-                    if (HiCGlobals.printVerboseComments) {
-                        System.out.println("Adding norm " + customNormType + " for chr " + chr.getName() + " at " + resolution + " " + unit + " resolution.");
-                    }
-    
-                    // Now do work on loaded norm vector
-                    // Create the new vector by looping through the loaded vector file line by line
-                    // assume custom norm vectors aren't for indices requiring long
-                    long size = (chr.getLength() / resolution + 1);
-                    ListOfDoubleArrays data = new ListOfDoubleArrays(size);
-                    int i = 0;
-                    nextLine = vectorReader.readLine();
-                    // List<Double> data = new ArrayList<Double>();
-                    while (nextLine != null && !(nextLine.startsWith("vector"))) {
-                        if (nextLine.equalsIgnoreCase("nan") || nextLine.equals(".")) {
-                            data.set(i, Double.NaN);
-                        } else {
-                            data.set(i, Double.parseDouble(nextLine));
-                        }
-                        i++;
-                        if (i > size) {
-                            throw new IOException("More values than resolution would indicate");
-                        }
-                        nextLine = vectorReader.readLine();
-                    }
-
-                    if (!normVectors.containsKey(customNormType)) {
-                        normVectors.put(customNormType, new HashMap<>());
-                    }
-                    NormalizationVector vector = new NormalizationVector(customNormType, chr.getIndex(), unit,
-                            resolution, data);
-                    normVectors.get(customNormType).put(vector.getKey(), vector);
-
-                } else {
-                    System.err.println("Chromosome vector null"); // this shouldn't happen due to continue above
-                }
-            }
+            ExternalNormalizationVectorLoader.readVectorFile(fname, chromosomeHandler, normalizationHandler, normVectors);
         }
 
         return normVectors;
     }
-
-    private static String skipLinesUntilTextEncountered(BufferedReader vectorReader, String string) throws IOException {
-        String nextLine = vectorReader.readLine();
-        while (nextLine != null && !(nextLine.startsWith(string))) {
-            nextLine = vectorReader.readLine();
-        }
-        return nextLine;
-    }
 }
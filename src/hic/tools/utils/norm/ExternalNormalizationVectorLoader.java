@@ -24,5 +24,366 @@
 
 package hic.tools.utils.norm;
 
+import hic.HiCGlobals;
+import hic.tools.utils.largelists.ParallelByteSerializer;
+import hic.tools.utils.localtemps.LocalTempDirectory;
+import hic.tools.utils.tasks.TaskScope;
+import htsjdk.tribble.util.LittleEndianInputStream;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.basics.ChromosomeHandler;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.norm.NormalizationVector;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import javastraw.reader.type.NormalizationType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fast path for custom normalization vectors and for carrying existing vectors over to the new footer.
+ * <p>
+ * A vector file is scanned once for its "vector" header lines; each section is then memory-mapped
+ * and parsed on its own thread. Values are parsed straight from the bytes to the float that will be
+ * written, falling back to Double.parseDouble whenever that cannot be guaranteed, so the vectors
+ * match the line-by-line reader exactly. Gzipped files are inflated to a local temp file first.
+ */
 class ExternalNormalizationVectorLoader {
+
+    private static final byte[] HEADER = "vector".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    static void readVectorFile(String fname, ChromosomeHandler chromosomeHandler,
+                               NormalizationHandler normalizationHandler,
+                               Map<NormalizationType, Map<String, NormalizationVector>> normVectors) throws IOException {
+        File inflated = null;
+        File file = new File(fname);
+        if (fname.endsWith(".gz")) {
+            inflated = LocalTempDirectory.createTempFile("vectors.", ".txt");
+            try (InputStream is = new GZIPInputStream(new FileInputStream(fname), HiCGlobals.bufferSize)) {
+                Files.copy(is, inflated.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            file = inflated;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            List<Section> sections = findSections(channel, chromosomeHandler, normalizationHandler);
+            NormalizationVector[] vectors = new NormalizationVector[sections.size()];
+
+            AtomicInteger index = new AtomicInteger(0);
+            TaskScope.launchParallelizedCode(HiCGlobals.normThreads, () -> {
+                int i = index.getAndIncrement();
+                while (i < sections.size()) {
+                    try {
+                        vectors[i] = parseSection(channel, sections.get(i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    i = index.getAndIncrement();
+                }
+            });
+
+            // later sections for the same key win, as with the sequential reader
+            for (int i = 0; i < vectors.length; i++) {
+                NormalizationType type = sections.get(i).type;
+                if (!normVectors.containsKey(type)) {
+                    normVectors.put(type, new HashMap<>());
+                }
+                normVectors.get(type).put(vectors[i].getKey(), vectors[i]);
+            }
+        } finally {
+            if (inflated != null) {
+                inflated.delete();
+            }
+        }
+    }
+
+    /**
+     * Single pass over the file to find header lines and the byte range of the values following each one
+     */
+    private static List<Section> findSections(FileChannel channel, ChromosomeHandler chromosomeHandler,
+                                              NormalizationHandler normalizationHandler) throws IOException {
+        List<Section> sections = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(HiCGlobals.bufferSize * 4);
+        byte[] bytes = buffer.array();
+        long offset = 0;
+        long lineStart = 0;
+        int matched = 0;
+        ByteArrayOutputStream headerLine = null;
+        Section current = null;
+
+        channel.position(0);
+        int n;
+        while ((n = channel.read(buffer)) != -1) {
+            for (int k = 0; k < n; k++) {
+                byte b = bytes[k];
+                if (headerLine != null) {
+                    if (b == '\n') {
+                        current = toSection(headerLine, lineStart, offset + k + 1, chromosomeHandler, normalizationHandler);
+                        if (current != null) sections.add(current);
+                        headerLine = null;
+                    } else {
+                        headerLine.write(b);
+                    }
+                } else if (matched >= 0 && matched < HEADER.length) {
+                    if (b == HEADER[matched]) {
+                        if (++matched == HEADER.length) {
+                            if (current != null) current.end = lineStart;
+                            current = null;
+                            headerLine = new ByteArrayOutputStream();
+                            headerLine.write(HEADER, 0, HEADER.length);
+                        }
+                    } else {
+                        matched = -1;
+                    }
+                }
+                if (b == '\n') {
+                    lineStart = offset + k + 1;
+                    matched = 0;
+                }
+            }
+            offset += n;
+            buffer.clear();
+        }
+
+        if (headerLine != null) {
+            // header on the last line with nothing after it
+            current = toSection(headerLine, lineStart, offset, chromosomeHandler, normalizationHandler);
+            if (current != null) sections.add(current);
+        }
+        if (current != null) current.end = offset;
+        return sections;
+    }
+
+    private static Section toSection(ByteArrayOutputStream headerLine, long headerStart, long dataStart,
+                                     ChromosomeHandler chromosomeHandler, NormalizationHandler normalizationHandler) {
+        String line = new String(headerLine.toByteArray(), StandardCharsets.UTF_8);
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        // Header: vector  type  chr1    2048000 BP
+        String[] tokens = line.split("\\s+");
+        Chromosome chr = chromosomeHandler.getChromosomeFromName(tokens[2]);
+        if (chr == null) {
+            System.err.println("Skipping " + tokens[2] + " which isn't in dataset");
+            return null;
+        }
+
+        Section section = new Section();
+        section.chr = chr;
+        section.type = normalizationHandler.getNormTypeFromString(tokens[1]);
+        section.resolution = Integer.parseInt(tokens[3]);
+        section.unit = HiCZoom.HiCUnit.valueOf(tokens[4]);
+        section.start = dataStart;
+        section.end = dataStart;
+        if (HiCGlobals.printVerboseComments) {
+            System.out.println("Adding norm " + section.type + " for chr " + chr.getName() + " at "
+                    + section.resolution + " " + section.unit + " resolution.");
+        }
+        return section;
+    }
+
+    private static NormalizationVector parseSection(FileChannel channel, Section section) throws IOException {
+        // assume custom norm vectors aren't for indices requiring long
+        long size = (section.chr.getLength() / section.resolution + 1);
+        ListOfDoubleArrays data = new ListOfDoubleArrays(size);
+        long length = section.end - section.start;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Vector section for " + section.chr.getName() + " is too large");
+        }
+
+        if (length > 0) {
+            byte[] bytes = new byte[(int) length];
+            channel.map(FileChannel.MapMode.READ_ONLY, section.start, length).get(bytes);
+            int limit = bytes.length;
+            int lineStart = 0;
+            int i = 0;
+            while (lineStart < limit) {
+                int lineEnd = lineStart;
+                while (lineEnd < limit && bytes[lineEnd] != '\n') lineEnd++;
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') lineEnd--;
+
+                data.set(i, parseValue(bytes, lineStart, lineEnd));
+                i++;
+                if (i > size) {
+                    throw new IOException("More values than resolution would indicate");
+                }
+                lineStart = next;
+            }
+        }
+
+        return new NormalizationVector(section.type, section.chr.getIndex(), section.unit, section.resolution, data);
+    }
+
+    /**
+     * Parses a value to the float that (float) Double.parseDouble(line) would give, which is all that
+     * ends up in the file. Plain decimals (e.g. -1.25e-3) are parsed from the bytes: exactly when they
+     * have at most 15 significant digits and |exponent| <= 22, otherwise to within a few double ulps,
+     * accepted only if that is far enough from a float rounding boundary. Anything else goes through
+     * Double.parseDouble.
+     */
+    static float parseValue(byte[] bytes, int start, int end) {
+        int length = end - start;
+        if (length == 1 && bytes[start] == '.') return Float.NaN;
+        if (length == 3 && (bytes[start] | 0x20) == 'n' && (bytes[start + 1] | 0x20) == 'a'
+                && (bytes[start + 2] | 0x20) == 'n') {
+            return Float.NaN;
+        }
+
+        int k = start;
+        boolean negative = false;
+        if (k < end && bytes[k] == '-') {
+            negative = true;
+            k++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0, digits = 0, exponent = 0;
+        boolean valid = true;
+        for (; k < end; k++) {
+            int d = bytes[k] - '0';
+            if (d < 0 || d > 9) break;
+            if (significantDigits < 18) {
+                mantissa = mantissa * 10 + d;
+            } else {
+                exponent++;
+            }
+            if (mantissa > 0) significantDigits++;
+            digits++;
+        }
+        if (k < end && bytes[k] == '.') {
+            k++;
+            for (; k < end; k++) {
+                int d = bytes[k] - '0';
+                if (d < 0 || d > 9) break;
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    exponent--;
+                }
+                if (mantissa > 0) significantDigits++;
+                digits++;
+            }
+        }
+        if (digits == 0) valid = false;
+        if (valid && k < end && (bytes[k] == 'e' || bytes[k] == 'E')) {
+            k++;
+            boolean negativeExponent = false;
+            if (k < end && (bytes[k] == '-' || bytes[k] == '+')) {
+                negativeExponent = bytes[k] == '-';
+                k++;
+            }
+            int e = 0, exponentDigits = 0;
+            for (; k < end && exponentDigits < 4; k++) {
+                int d = bytes[k] - '0';
+                if (d < 0 || d > 9) break;
+                e = e * 10 + d;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) valid = false;
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (valid && k == end) {
+            int maxPower = POWERS_OF_TEN.length - 1;
+            if (significantDigits <= 15 && Math.abs(exponent) <= maxPower) {
+                double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+                return (float) (negative ? -value : value);
+            }
+            if (mantissa == 0) {
+                return negative ? -0.0f : 0.0f;
+            }
+            if (Math.abs(exponent) <= 2 * maxPower) {
+                double value = mantissa;
+                if (exponent >= 0) {
+                    value *= POWERS_OF_TEN[Math.min(exponent, maxPower)];
+                    if (exponent > maxPower) value *= POWERS_OF_TEN[exponent - maxPower];
+                } else {
+                    value /= POWERS_OF_TEN[Math.min(-exponent, maxPower)];
+                    if (-exponent > maxPower) value /= POWERS_OF_TEN[-exponent - maxPower];
+                }
+                float rounded = (float) value;
+                if (rounded >= Float.MIN_NORMAL && rounded < Float.MAX_VALUE) {
+                    double margin = value * 0x1p-45;
+                    double below = ((double) rounded + Math.nextDown(rounded)) / 2;
+                    double above = ((double) rounded + Math.nextUp(rounded)) / 2;
+                    if (value - below > margin && above - value > margin) {
+                        return negative ? -rounded : rounded;
+                    }
+                }
+            }
+        }
+
+        return (float) Double.parseDouble(new String(bytes, start, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the normalization vector index of a version 9 file, keyed by {@link #getKey}
+     */
+    static Map<String, NormalizationVectorIndexEntry> readNormVectorIndex(RandomAccessFile raf,
+                                                                          long nviHeaderPosition) throws IOException {
+        LittleEndianInputStream lis = openAt(raf, nviHeaderPosition);
+        long nviPosition = lis.readLong();
+
+        lis = openAt(raf, nviPosition);
+        int nEntries = lis.readInt();
+        Map<String, NormalizationVectorIndexEntry> entries = new LinkedHashMap<>();
+        for (int i = 0; i < nEntries; i++) {
+            String type = lis.readString();
+            int chrIdx = lis.readInt();
+            String unit = lis.readString();
+            int resolution = lis.readInt();
+            long position = lis.readLong();
+            long sizeInBytes = lis.readLong();
+            entries.put(getKey(type, chrIdx, unit, resolution),
+                    new NormalizationVectorIndexEntry(type, chrIdx, unit, resolution, position, sizeInBytes));
+        }
+        return entries;
+    }
+
+    static String getKey(String type, int chrIdx, String unit, int resolution) {
+        return type + "_" + chrIdx + "_" + unit + "_" + resolution;
+    }
+
+    /**
+     * Appends the stored bytes of an existing vector (length prefix and values) without decoding them
+     */
+    static void copyVector(RandomAccessFile raf, NormalizationVectorIndexEntry entry,
+                           ParallelByteSerializer bufferList) throws IOException {
+        byte[] bytes = new byte[(int) entry.sizeInBytes];
+        raf.getChannel().position(entry.position);
+        raf.readFully(bytes);
+        bufferList.put(bytes);
+    }
+
+    private static LittleEndianInputStream openAt(RandomAccessFile raf, long position) throws IOException {
+        raf.getChannel().position(position);
+        return new LittleEndianInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+    }
+
+    private static class Section {
+        Chromosome chr;
+        NormalizationType type;
+        int resolution;
+        HiCZoom.HiCUnit unit;
+        long start, end;
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.norm;
+
+import hic.tools.utils.bigarray.BigContactArrayCreator;
+import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.bigarray.LocallySavedContacts;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.localtemps.BinRecordsSpill;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.type.HiCZoom;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the intra-chromosomal contacts that pre writes, so the normalization that follows it can build
+ * its matrices without reading the new .hic file back.
+ * <p>
+ * Each (chromosome, resolution) is spilled to compressed local files exactly as its blocks are written,
+ * after the count threshold, and the entries of every row are counted on the way so the matrix
+ * can later be filled in a single pass over the spill.
+ */
+public class IntraContactsCollector implements IntraContactsSource {
+
+    private static final int RECORDS_PER_FILE = 10000000;
+    private static volatile IntraContactsCollector active = null;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int minResolution;
+
+    /**
+     * @param minResolution smallest bin size that will be normalized; finer zooms are not kept
+     */
+    public IntraContactsCollector(int minResolution) {
+        this.minResolution = minResolution;
+    }
+
+    public static void activate(IntraContactsCollector collector) {
+        active = collector;
+    }
+
+    public static IntraContactsCollector getActive() {
+        return active;
+    }
+
+    public boolean accepts(Chromosome chr1, Chromosome chr2, int binSize) {
+        return chr1.getIndex() != 0 && chr1.equals(chr2) && binSize >= minResolution;
+    }
+
+    /**
+     * Called once for every block written to the file, with the same count threshold
+     */
+    public void add(Chromosome chrom, int binSize, Map<Point, Float> records, int countThreshold) {
+        Entry entry = entries.computeIfAbsent(getKey(chrom, binSize), k -> new Entry(chrom, binSize));
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.normCapture");
+        long numRecords = 0;
+        synchronized (entry) {
+            try {
+                for (Map.Entry<Point, Float> record : records.entrySet()) {
+                    float counts = record.getValue();
+                    if (counts >= countThreshold) {
+                        entry.add(record.getKey().x, record.getKey().y, counts);
+                        numRecords++;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to save contacts for normalization to local files");
+                e.printStackTrace();
+                System.exit(46);
+            }
+        }
+        phase.addRecords(numRecords).end();
+    }
+
+    /**
+     * Called once all blocks of the matrix at this resolution are written
+     */
+    public void finish(Chromosome chrom, int binSize) {
+        Entry entry = entries.get(getKey(chrom, binSize));
+        if (entry == null) return;
+        synchronized (entry) {
+            try {
+                entry.spill.finish();
+            } catch (IOException e) {
+                System.err.println("Unable to save contacts for normalization to local files");
+                e.printStackTrace();
+                System.exit(46);
+            }
+            PhaseTracker.start("pre.normCapture").addBytesWritten(entry.spill.getBytesWritten())
+                    .addTempFiles(entry.spill.getFilenames().size()).end();
+        }
+    }
+
+    @Override
+    public BigContactList getContacts(Chromosome chrom, HiCZoom zoom, int resolutionCutoffToSaveRAM) {
+        Entry entry = entries.get(getKey(chrom, zoom.getBinSize()));
+        if (entry == null) return null;
+
+        if (zoom.getBinSize() < resolutionCutoffToSaveRAM) {
+            return new LocallySavedContacts(entry.spill.getFilenames(), entry.matrixSize);
+        }
+        try {
+            return BigContactArrayCreator.populateCSRFromLocalFiles(entry.spill.getFilenames(),
+                    entry.rowCounts.clone(), entry.matrixSize);
+        } catch (IOException e) {
+            System.err.println("Unable to read saved contacts for " + chrom.getName() + " at " + zoom);
+            e.printStackTrace();
+            System.exit(47);
+        }
+        return null;
+    }
+
+    /**
+     * Deletes what was kept for this resolution
+     */
+    public void release(int binSize) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().binSize == binSize) {
+                entry.getValue().spill.delete();
+                keys.add(entry.getKey());
+            }
+        }
+        for (String key : keys) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Entry entry : entries.values()) {
+            entry.spill.delete();
+        }
+        entries.clear();
+    }
+
+    private static String getKey(Chromosome chrom, int binSize) {
+        return chrom.getIndex() + "_" + binSize;
+    }
+
+    private static class Entry {
+        private final int binSize;
+        private final long matrixSize;
+        private final int[] rowCounts;
+        private final BinRecordsSpill spill;
+
+        Entry(Chromosome chrom, int binSize) {
+            this.binSize = binSize;
+            // same size the reader gives the zoom data
+            this.matrixSize = chrom.getLength() / binSize + 1;
+            this.rowCounts = new int[(int) matrixSize];
+            this.spill = new BinRecordsSpill("pre_" + chrom.getIndex() + "_" + binSize + ".", RECORDS_PER_FILE);
+        }
+
+        void add(int x, int y, float counts) throws IOException {
+            spill.add(x, y, counts);
+            rowCounts[x]++;
+            if (x != y) {
+                rowCounts[y]++;
+            }
+        }
+    }
+}
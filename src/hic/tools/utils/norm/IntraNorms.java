@@ -27,7 +27,9 @@ package hic.tools.utils.norm;
 import hic.HiCGlobals;
 import hic.tools.utils.bigarray.BigContactArrayCreator;
 import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.datastructures.ListOfFloatArrays;
 import javastraw.reader.mzd.Matrix;
@@ -35,27 +37,36 @@ import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationHandler;
 import javastraw.reader.type.NormalizationType;
-import javastraw.tools.ParallelizationTools;
 
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class IntraNorms {
-    public static void getAllTheNorms(Dataset ds, HiCZoom zoom, int resolutionCutoffToSaveRAM,
-                                      NormVectorsContainer container,
+    public static void getAllTheNorms(String path, DatasetReaderV2 reader, Dataset ds, HiCZoom zoom,
+                                      int resolutionCutoffToSaveRAM, NormVectorsContainer container,
+                                      boolean weShouldBuildVC, boolean weShouldBuildVCSqrt, boolean weShouldBuildScale,
+                                      Map<NormalizationType, Integer> resolutionsToBuildTo,
+                                      Set<Chromosome> scaleBPFailChroms) {
+        getAllTheNorms(ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll(),
+                (chrom, z, cutoff) -> getBigArrayFromAndClearCache(path, reader, ds, chrom, z, cutoff),
+                zoom, resolutionCutoffToSaveRAM, container, weShouldBuildVC, weShouldBuildVCSqrt, weShouldBuildScale,
+                resolutionsToBuildTo, scaleBPFailChroms);
+    }
+
+    public static void getAllTheNorms(Chromosome[] chromosomes, IntraContactsSource source, HiCZoom zoom,
+                                      int resolutionCutoffToSaveRAM, NormVectorsContainer container,
                                       boolean weShouldBuildVC, boolean weShouldBuildVCSqrt, boolean weShouldBuildScale,
                                       Map<NormalizationType, Integer> resolutionsToBuildTo,
                                       Set<Chromosome> scaleBPFailChroms) {
 
-        final Chromosome[] chromosomes = ds.getChromosomeHandler().getChromosomeArrayWithoutAllByAll();
         AtomicInteger index = new AtomicInteger(0);
-        ParallelizationTools.launchParallelizedCode(HiCGlobals.chromThreads, () -> {
+        TaskScope.launchParallelizedCode(HiCGlobals.chromThreads, () -> {
             int sIndx = index.getAndIncrement();
             while (sIndx < chromosomes.length) {
                 Chromosome chrom = chromosomes[sIndx];
 
-                BigContactList ba = getBigArrayFromAndClearCache(ds, chrom, zoom, resolutionCutoffToSaveRAM);
+                BigContactList ba = source.getContacts(chrom, zoom, resolutionCutoffToSaveRAM);
                 if (ba != null) {
 
                     NormalizationCalculations nc = new NormalizationCalculations(ba, zoom.getBinSize());
@@ -80,6 +91,15 @@ public class IntraNorms {
     }
 
     public static BigContactList getBigArrayFromAndClearCache(Dataset ds, Chromosome chrom, HiCZoom zoom, int resolutionCutoffToSaveRAM) {
+        return getBigArrayFromAndClearCache(null, null, ds, chrom, zoom, resolutionCutoffToSaveRAM);
+    }
+
+    /**
+     * @param reader the reader of the dataset, to read through the shared block cache; null reads the matrix directly
+     */
+    public static BigContactList getBigArrayFromAndClearCache(String path, DatasetReaderV2 reader, Dataset ds,
+                                                              Chromosome chrom, HiCZoom zoom,
+                                                              int resolutionCutoffToSaveRAM) {
         Matrix matrix = ds.getMatrix(chrom, chrom);
         if (matrix == null) return null;
         MatrixZoomData zd = matrix.getZoomData(zoom);
@@ -91,9 +111,9 @@ public class IntraNorms {
 
         BigContactList ba;
         if (zoom.getBinSize() < resolutionCutoffToSaveRAM) {
-            ba = BigContactArrayCreator.createLocalVersionFromZD(zd);
+            ba = BigContactArrayCreator.createLocalVersionFromZD(path, reader, zd);
         } else {
-            ba = BigContactArrayCreator.createFromZD(zd);
+            ba = BigContactArrayCreator.createCSRFromZD(path, reader, zd);
         }
         matrix.clearCacheForZoom(zoom);
 
@@ -24,7 +24,7 @@
 
 package hic.tools.utils.norm;
 
-import hic.tools.utils.largelists.BigListOfByteWriters;
+import hic.tools.utils.largelists.ParallelByteSerializer;
 import javastraw.reader.expected.ExpectedValueFunction;
 import javastraw.reader.norm.NormalizationVector;
 import javastraw.reader.type.NormalizationType;
@@ -34,13 +34,13 @@ import java.util.Map;
 
 public class NormVectorInfo {
 
-    private final BigListOfByteWriters normVectorBuffers;
+    private final ParallelByteSerializer normVectorBuffers;
     private final List<NormalizationVectorIndexEntry> normVectorIndices;
     private final Map<String, ExpectedValueFunction> expectedValueFunctionMap;
     private final Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorsMap;
 
     NormVectorInfo(Map<NormalizationType, Map<String, NormalizationVector>> normalizationVectorsMap,
-                   BigListOfByteWriters normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndices,
+                   ParallelByteSerializer normVectorBuffers, List<NormalizationVectorIndexEntry> normVectorIndices,
                    Map<String, ExpectedValueFunction> expectedValueFunctionMap) {
         this.normalizationVectorsMap = normalizationVectorsMap;
         this.normVectorBuffers = normVectorBuffers;
@@ -48,7 +48,7 @@ public class NormVectorInfo {
         this.expectedValueFunctionMap = expectedValueFunctionMap;
     }
 
-    public BigListOfByteWriters getNormVectorBuffers() {
+    public ParallelByteSerializer getNormVectorBuffers() {
         return normVectorBuffers;
     }
 
@@ -25,7 +25,8 @@
 package hic.tools.utils.norm;
 
 import hic.HiCGlobals;
-import hic.tools.utils.largelists.BigListOfByteWriters;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.largelists.ParallelByteSerializer;
 import hic.tools.utils.original.ExpectedValueCalculation;
 import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.datastructures.ListOfDoubleArrays;
@@ -34,7 +35,6 @@ import javastraw.reader.expected.ExpectedValueFunction;
 import javastraw.reader.expected.ExpectedValueFunctionImpl;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
-import org.broad.igv.tdf.BufferedByteWriter;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -46,8 +46,8 @@ import java.util.Map;
 public class NormVectorUpdater {
 
     static void updateNormVectorIndexWithVector(List<NormalizationVectorIndexEntry> normVectorIndex,
-                                                BigListOfByteWriters bufferList, ListOfFloatArrays vec,
-                                                int chrIdx, NormalizationType type, HiCZoom zoom) throws IOException {
+                                                ParallelByteSerializer bufferList, ListOfFloatArrays vec,
+                                                int chrIdx, NormalizationType type, HiCZoom zoom) {
         long position = bufferList.getBytesWritten();
 
         putFloatArraysIntoBufferList(bufferList, vec.getValues());
@@ -58,27 +58,14 @@ public class NormVectorUpdater {
                 zoom.getBinSize(), position, sizeInBytes));
     }
 
-    static void putFloatArraysIntoBufferList(BigListOfByteWriters bufferList,
-                                             List<float[]> arrays) throws IOException {
-
-        bufferList.expandBufferIfNeeded(8);
-        long vectorLength = 0;
-        for (float[] array : arrays) {
-            vectorLength += array.length;
-        }
-        bufferList.putLong(vectorLength);
-
-        for (float[] array : arrays) {
-            bufferList.expandBufferIfNeeded(4 * array.length);
-            for (float val : array) {
-                bufferList.putFloat(val);
-            }
-        }
+    /**
+     * Queues the vector (length, then values); it is encoded when the buffer list is written
+     */
+    static void putFloatArraysIntoBufferList(ParallelByteSerializer bufferList, List<float[]> arrays) {
+        bufferList.putFloatVector(arrays);
     }
 
-    private static void putMapValuesIntoBuffer(BigListOfByteWriters bufferList, Map<Integer, Double> hashmap) throws IOException {
-        int bytesNeeded = 4 + (8 * hashmap.size());
-        bufferList.expandBufferIfNeeded(bytesNeeded);
+    private static void putMapValuesIntoBuffer(ParallelByteSerializer bufferList, Map<Integer, Double> hashmap) {
         bufferList.putInt(hashmap.size());
         List<Integer> keys = new ArrayList<>(hashmap.keySet());
         Collections.sort(keys);
@@ -89,9 +76,9 @@ public class NormVectorUpdater {
     }
 
     private static void writeExpectedToBuffer(RandomAccessFile raf,
-                                              BigListOfByteWriters bufferList, long filePosition) throws IOException {
+                                              ParallelByteSerializer bufferList, long filePosition) throws IOException {
         raf.getChannel().position(filePosition);
-        bufferList.writeToRAF(raf);
+        bufferList.writeTo(raf.getChannel(), HiCGlobals.normThreads);
     }
 
     /**
@@ -101,7 +88,7 @@ public class NormVectorUpdater {
      * @param buffer          Buffer to write to
      * @param normVectorIndex Normalization index to write
      */
-    static void writeNormIndex(BufferedByteWriter buffer, List<NormalizationVectorIndexEntry> normVectorIndex) throws IOException {
+    static void writeNormIndex(ParallelByteSerializer buffer, List<NormalizationVectorIndexEntry> normVectorIndex) {
         buffer.putInt(normVectorIndex.size());
         for (NormalizationVectorIndexEntry entry : normVectorIndex) {
             buffer.putNullTerminatedString(entry.type);
@@ -117,14 +104,23 @@ public class NormVectorUpdater {
                                        List<ExpectedValueCalculation> expectedValueCalculations,
                                        Map<String, ExpectedValueFunction> expectedValueFunctionMap,
                                        List<NormalizationVectorIndexEntry> normVectorIndices,
-                                       BigListOfByteWriters normVectorBuffers, String message) throws IOException {
+                                       ParallelByteSerializer normVectorBuffers, String message) throws IOException {
         HiCGlobals.verifySupportedHiCFileWritingVersion(reader.getVersion());
-        long filePosition = reader.getNormFilePosition();
-        long nviHeaderPosition = reader.getNviHeaderPosition();
-
+        writeNormsToUpdateFile(path, reader.getNormFilePosition(), reader.getNviHeaderPosition(), useCalcNotFunc,
+                expectedValueCalculations, expectedValueFunctionMap, normVectorIndices, normVectorBuffers, message);
+    }
 
+    /**
+     * As above, for a file whose footer end and normalization vector index header field are already known
+     */
+    static void writeNormsToUpdateFile(String path, long filePosition, long nviHeaderPosition, boolean useCalcNotFunc,
+                                       List<ExpectedValueCalculation> expectedValueCalculations,
+                                       Map<String, ExpectedValueFunction> expectedValueFunctionMap,
+                                       List<NormalizationVectorIndexEntry> normVectorIndices,
+                                       ParallelByteSerializer normVectorBuffers, String message) throws IOException {
+        PhaseTracker.Phase phase = PhaseTracker.start("norm.footerPatch");
         try (RandomAccessFile raf = new RandomAccessFile(path, "rw")) {
-            BigListOfByteWriters bufferList = new BigListOfByteWriters();
+            ParallelByteSerializer bufferList = new ParallelByteSerializer();
 
             if (useCalcNotFunc) {
                 writeExpectedValues(bufferList, expectedValueCalculations);
@@ -134,14 +130,15 @@ public class NormVectorUpdater {
 
             writeExpectedToBuffer(raf, bufferList, filePosition);
             writeNormsToBuffer(raf, normVectorIndices, normVectorBuffers, nviHeaderPosition);
+            phase.addRecords(normVectorIndices.size()).addBytesWritten(raf.getChannel().position() - filePosition);
         }
+        phase.end();
 
         System.out.println(message);
     }
 
-    private static void writeExpectedValues(BigListOfByteWriters bufferList,
-                                            List<ExpectedValueCalculation> expectedValueCalculations) throws IOException {
-        bufferList.expandBufferIfNeeded(4);
+    private static void writeExpectedValues(ParallelByteSerializer bufferList,
+                                            List<ExpectedValueCalculation> expectedValueCalculations) {
         bufferList.putInt(expectedValueCalculations.size());
 
         for (ExpectedValueCalculation ev : expectedValueCalculations) {
@@ -153,9 +150,8 @@ public class NormVectorUpdater {
         }
     }
 
-    private static void writeExpectedValues(BigListOfByteWriters bufferList, Map<String, ExpectedValueFunction> expectedValueFunctionMap) throws IOException {
+    private static void writeExpectedValues(ParallelByteSerializer bufferList, Map<String, ExpectedValueFunction> expectedValueFunctionMap) {
 
-        bufferList.expandBufferIfNeeded(4);
         bufferList.putInt(expectedValueFunctionMap.size());
 
         for (ExpectedValueFunction function : expectedValueFunctionMap.values()) {
@@ -166,42 +162,36 @@ public class NormVectorUpdater {
         }
     }
 
-    private static void appendExpectedValuesToBuffer(BigListOfByteWriters bufferList,
+    private static void appendExpectedValuesToBuffer(ParallelByteSerializer bufferList,
                                                      NormalizationType normalizationType,
                                                      HiCZoom.HiCUnit unit, int binSize,
                                                      ListOfDoubleArrays expectedValuesNoNormalization,
-                                                     Map<Integer, Double> normFactors) throws IOException {
-
-        int bytesNeeded = normalizationType.toString().length() + 1;
-        bytesNeeded += unit.toString().length() + 1;
-        bytesNeeded += 4;
+                                                     Map<Integer, Double> normFactors) {
 
-        bufferList.expandBufferIfNeeded(bytesNeeded);
         bufferList.putNullTerminatedString(normalizationType.toString());
         bufferList.putNullTerminatedString(unit.toString());
         bufferList.putInt(binSize);
 
-        putFloatArraysIntoBufferList(bufferList,
-                expectedValuesNoNormalization.convertToFloats().getValues());
+        bufferList.putDoublesAsFloatVector(expectedValuesNoNormalization.getValues());
 
         putMapValuesIntoBuffer(bufferList, normFactors);
     }
 
     private static void writeNormsToBuffer(RandomAccessFile raf, List<NormalizationVectorIndexEntry> normVectorIndex,
-                                           BigListOfByteWriters normVectorBuffers, long nviHeaderPosition) throws IOException {
+                                           ParallelByteSerializer normVectorBuffers, long nviHeaderPosition) throws IOException {
         // Get the size of the index in bytes, to compute an offset for the actual entries.
-        BufferedByteWriter buffer = new BufferedByteWriter();
+        ParallelByteSerializer buffer = new ParallelByteSerializer();
         writeNormIndex(buffer, normVectorIndex);
-        long normVectorStartPosition = raf.getChannel().position() + buffer.bytesWritten();
-        long size = buffer.bytesWritten();
+        long normVectorStartPosition = raf.getChannel().position() + buffer.getBytesWritten();
+        long size = buffer.getBytesWritten();
         long NVI = normVectorStartPosition - size;
         // write NVI, size
         raf.getChannel().position(nviHeaderPosition);
 
-        BufferedByteWriter headerBuffer = new BufferedByteWriter();
+        ParallelByteSerializer headerBuffer = new ParallelByteSerializer();
         headerBuffer.putLong(NVI);
         headerBuffer.putLong(size);
-        raf.write(headerBuffer.getBytes());
+        headerBuffer.writeTo(raf.getChannel(), 1);
 
         // reset pointer to where we were
         raf.getChannel().position(NVI);
@@ -212,10 +202,10 @@ public class NormVectorUpdater {
         }
 
         // Now write for real
-        buffer = new BufferedByteWriter();
+        buffer = new ParallelByteSerializer();
         writeNormIndex(buffer, normVectorIndex);
-        raf.write(buffer.getBytes());
+        buffer.writeTo(raf.getChannel(), 1);
         // Finally the norm vectors
-        normVectorBuffers.writeToRAF(raf);
+        normVectorBuffers.writeTo(raf.getChannel(), HiCGlobals.normThreads);
     }
 }
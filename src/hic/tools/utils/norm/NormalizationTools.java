@@ -25,6 +25,7 @@
 package hic.tools.utils.norm;
 
 import hic.HiCGlobals;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
@@ -33,7 +34,6 @@ import javastraw.reader.mzd.Matrix;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
-import javastraw.tools.ParallelizationTools;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -48,7 +48,7 @@ public class NormalizationTools {
         final AtomicInteger index = new AtomicInteger(0);
         Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
         long[] offsets = createOffsets(chromosomes, resolution);
-        ParallelizationTools.launchParallelizedCode(HiCGlobals.normThreads, () -> {
+        TaskScope.launchParallelizedCode(HiCGlobals.normThreads, () -> {
             int i = index.getAndIncrement();
             while (i < (chromosomes).length) {
                 Chromosome c1 = chromosomes[i];
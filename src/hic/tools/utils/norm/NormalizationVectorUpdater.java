@@ -26,7 +26,9 @@ package hic.tools.utils.norm;
 
 import hic.HiCGlobals;
 import hic.tools.utils.bigarray.BigContactList;
-import hic.tools.utils.largelists.BigListOfByteWriters;
+import hic.tools.utils.cache.BlockCache;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.largelists.ParallelByteSerializer;
 import hic.tools.utils.original.ExpectedValueCalculation;
 import javastraw.reader.Dataset;
 import javastraw.reader.DatasetReaderV2;
@@ -62,6 +64,30 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
         weShouldBuildScale = normalizationsToBuild.contains(NormalizationHandler.SCALE);
     }
 
+    public static int getMinResolution(Map<NormalizationType, Integer> resolutionsToBuildTo) {
+        int minResolution = Integer.MAX_VALUE;
+        for (Map.Entry<NormalizationType, Integer> entry : resolutionsToBuildTo.entrySet()) {
+            if (entry.getValue() < minResolution) {
+                minResolution = entry.getValue();
+            }
+        }
+        return minResolution;
+    }
+
+    /**
+     * @return true if every norm requested only needs the intra-chromosomal matrices,
+     * so it can be built by {@link #updateHicFileFromCollected}
+     */
+    public static boolean canBuildFromCollected(List<NormalizationType> normalizationsToBuild) {
+        for (NormalizationType norm : normalizationsToBuild) {
+            if (!(norm.equals(NormalizationHandler.NONE) || norm.equals(NormalizationHandler.VC)
+                    || norm.equals(NormalizationHandler.VC_SQRT) || norm.equals(NormalizationHandler.SCALE))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public void updateHicFile(String path, List<NormalizationType> normalizationsToBuild,
                               Map<NormalizationType, Integer> resolutionsToBuildTo,
                               int resolutionCutoffToSaveRAM) throws IOException {
@@ -82,12 +108,7 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                                                                    int resolutionCutoffToSaveRAM) throws IOException {
 
         //System.out.println("test: using old norm code");
-        int minResolution = Integer.MAX_VALUE;
-        for (Map.Entry<NormalizationType, Integer> entry : resolutionsToBuildTo.entrySet()) {
-            if (entry.getValue() < minResolution) {
-                minResolution = entry.getValue();
-            }
-        }
+        int minResolution = getMinResolution(resolutionsToBuildTo);
 
         Map<Integer, NormVectorsContainer> containers = new HashMap<>();
 
@@ -116,12 +137,16 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
             NormVectorsContainer container = new NormVectorsContainer(normalizationsToBuild, resolutionsToBuildTo, zoom);
 
             if (interDataAvailable) {
+                PhaseTracker.Phase phase = PhaseTracker.start("norm.genomeWide");
                 GWNorms.getGWNormMaps(ds, zoom, resolutionCutoffToSaveRAM, container);
                 ds.clearInterCacheForRes(zoom);
+                phase.end();
             }
 
-            IntraNorms.getAllTheNorms(ds, zoom, resolutionCutoffToSaveRAM, container,
+            PhaseTracker.Phase phase = PhaseTracker.start("norm.intra");
+            IntraNorms.getAllTheNorms(path, reader, ds, zoom, resolutionCutoffToSaveRAM, container,
                     weShouldBuildVC, weShouldBuildVCSqrt, weShouldBuildScale, resolutionsToBuildTo, scaleBPFailChroms);
+            phase.end();
 
             containers.put(zoom.getBinSize(), container);
         }
@@ -138,12 +163,28 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
         Dataset ds = reader.read();
         ds.clearCache(true);
 
-        ChromosomeHandler chromosomeHandler = ds.getChromosomeHandler();
-        List<HiCZoom> resolutions = ds.getAllPossibleResolutions();
-
-        final BigListOfByteWriters finalNormVectorBuffers = new BigListOfByteWriters();
+        final ParallelByteSerializer finalNormVectorBuffers = new ParallelByteSerializer();
         final List<NormalizationVectorIndexEntry> finalNormVectorIndices = new ArrayList<>();
         final List<ExpectedValueCalculation> finalExpectedValueCalculations = new ArrayList<>();
+
+        calculateExpecteds(ds.getChromosomeHandler(), ds.getAllPossibleResolutions(),
+                (chrom, zoom, cutoff) -> IntraNorms.getBigArrayFromAndClearCache(path, reader, ds, chrom, zoom, cutoff),
+                containers, resolutionCutoffToSaveRAM,
+                finalNormVectorIndices, finalNormVectorBuffers, finalExpectedValueCalculations);
+
+        ds.clearCache(false);
+        BlockCache.getShared().invalidate(path);
+        writeNormsToUpdateFile(reader, path, true, finalExpectedValueCalculations,
+                null, finalNormVectorIndices,
+                finalNormVectorBuffers, "Finished writing norms");
+    }
+
+    private void calculateExpecteds(ChromosomeHandler chromosomeHandler, List<HiCZoom> resolutions,
+                                    IntraContactsSource source, Map<Integer, NormVectorsContainer> containers,
+                                    int resolutionCutoffToSaveRAM,
+                                    List<NormalizationVectorIndexEntry> finalNormVectorIndices,
+                                    ParallelByteSerializer finalNormVectorBuffers,
+                                    List<ExpectedValueCalculation> finalExpectedValueCalculations) {
         final List<NormalizationType> sortedNorms = NormVectorsContainer.sortedNorms();
 
         for (HiCZoom zoom : resolutions) {
@@ -154,17 +195,16 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                 NormVectorsContainer container = containers.get(resolution);
                 if (container == null) continue;
 
-                finalNormVectorBuffers.expandBuffer();
-
                 Map<NormalizationType, ExpectedValueCalculation> expMap = new HashMap<>();
                 for (NormalizationType norm : container.getNorms()) {
                     expMap.put(norm, new ExpectedValueCalculation(chromosomeHandler, zoom.getBinSize(), norm));
                 }
 
+                PhaseTracker.Phase phase = PhaseTracker.start("norm.expected");
                 // Loop through chromosomes
                 for (Chromosome chrom : chromosomeHandler.getChromosomeArrayWithoutAllByAll()) {
 
-                    BigContactList ba = IntraNorms.getBigArrayFromAndClearCache(ds, chrom, zoom, resolutionCutoffToSaveRAM);
+                    BigContactList ba = source.getContacts(chrom, zoom, resolutionCutoffToSaveRAM);
                     if (ba == null) continue;
 
                     for (NormalizationType norm : sortedNorms) {
@@ -184,8 +224,10 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                         }
                     }
 
+                    phase.addRecords(1);
                     ba.clear();
                 }
+                phase.end();
 
                 for (NormalizationType norm : sortedNorms) {
                     if (expMap.containsKey(norm)) {
@@ -200,10 +242,61 @@ public class NormalizationVectorUpdater extends NormVectorUpdater {
                 containers.remove(resolution);
             }
         }
+    }
 
-        ds.clearCache(false);
-        writeNormsToUpdateFile(reader, path, true, finalExpectedValueCalculations,
-                null, finalNormVectorIndices,
-                finalNormVectorBuffers, "Finished writing norms");
+    /**
+     * Normalize a file that pre has just written, from the intra-chromosomal contacts it kept while writing,
+     * so nothing is decoded back out of the new file. Only the intra-chromosomal norms (VC, VC_SQRT, SCALE)
+     * can be built this way; resolutions are done one at a time and their saved contacts dropped after.
+     *
+     * @param bpBinSizes        resolutions in header order
+     * @param normFilePosition  end of the footer, where the expected values and vectors are written
+     * @param nviHeaderPosition header field pointing to the normalization vector index
+     */
+    public void updateHicFileFromCollected(String path, IntraContactsCollector collector,
+                                           ChromosomeHandler chromosomeHandler, int[] bpBinSizes,
+                                           long normFilePosition, long nviHeaderPosition,
+                                           List<NormalizationType> normalizationsToBuild,
+                                           Map<NormalizationType, Integer> resolutionsToBuildTo,
+                                           int resolutionCutoffToSaveRAM) throws IOException {
+
+        reEvaluateWhichIntraNormsToBuild(normalizationsToBuild);
+
+        int minResolution = getMinResolution(resolutionsToBuildTo);
+
+        final Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        final ParallelByteSerializer finalNormVectorBuffers = new ParallelByteSerializer();
+        final List<NormalizationVectorIndexEntry> finalNormVectorIndices = new ArrayList<>();
+        final List<ExpectedValueCalculation> finalExpectedValueCalculations = new ArrayList<>();
+
+        for (int binSize : bpBinSizes) {
+            HiCZoom zoom = new HiCZoom(HiCZoom.HiCUnit.BP, binSize);
+            if (binSize < minResolution) {
+                System.out.println("Skipping zoom" + zoom);
+                continue;
+            }
+
+            System.out.println();
+            System.out.print("Calculating norms for zoom " + zoom);
+
+            NormVectorsContainer container = new NormVectorsContainer(normalizationsToBuild, resolutionsToBuildTo, zoom);
+
+            PhaseTracker.Phase phase = PhaseTracker.start("norm.intra");
+            IntraNorms.getAllTheNorms(chromosomes, collector, zoom, resolutionCutoffToSaveRAM, container,
+                    weShouldBuildVC, weShouldBuildVCSqrt, weShouldBuildScale, resolutionsToBuildTo, scaleBPFailChroms);
+            phase.end();
+
+            Map<Integer, NormVectorsContainer> containers = new HashMap<>();
+            containers.put(binSize, container);
+            calculateExpecteds(chromosomeHandler, Collections.singletonList(zoom), collector, containers,
+                    resolutionCutoffToSaveRAM, finalNormVectorIndices, finalNormVectorBuffers,
+                    finalExpectedValueCalculations);
+            collector.release(binSize);
+        }
+        collector.clear();
+        System.out.println("Balancing calculations completed");
+
+        writeNormsToUpdateFile(path, normFilePosition, nviHeaderPosition, true, finalExpectedValueCalculations,
+                null, finalNormVectorIndices, finalNormVectorBuffers, "Finished writing norms");
     }
 }
@@ -26,6 +26,7 @@ package hic.tools.utils.norm.scale;
 
 import hic.HiCGlobals;
 import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.instrumentation.PhaseTracker;
 import hic.tools.utils.largelists.BigFloatsArray;
 import hic.tools.utils.largelists.BigIntsArray;
 import javastraw.reader.datastructures.ListOfFloatArrays;
@@ -49,6 +50,7 @@ public class FinalScale {
                                                         BigFloatsArray initialGuess, String stem) {
 
         long startTime = System.nanoTime();
+        PhaseTracker.Phase phase = PhaseTracker.start("norm.scale");
 
         int matrixSizeI = (int) matrixSize;
         BigIntsArray bad = new BigIntsArray(matrixSize);
@@ -139,13 +141,8 @@ public class FinalScale {
 
             // new stuff
             double temp1;
-            int numBad = 0;
-            for (long p = 0; p < matrixSize; p++) {
-                if (bad.get(p) == 1) continue;
-                temp1 = Math.abs((calculatedVectorB.get(p) - current.get(p)) / (calculatedVectorB.get(p) + current.get(p)));
-                if (temp1 > tolerance) numBad++;
-            }
-            for (int p = 0; p < matrixSizeI; p++) b0[p] = current.get(p);
+            int numBad = BigFloatsArray.parCountRelativeErrorsAbove(calculatedVectorB, current, bad, tolerance);
+            current.copyInto(b0);
 
             reportErrorForIteration[allItersI - 1] = convergeError;
             numItersForAllIterations[allItersI - 1] = iter;
@@ -296,7 +293,11 @@ public class FinalScale {
             reportErrorForIteration[allItersI + 2] = rowSumError;
         }
 
-        if (convergeError > tolerance || rowSumError > rsError || lowCutoff > upperBound) {
+        boolean converged = !(convergeError > tolerance || rowSumError > rsError || lowCutoff > upperBound);
+        PhaseTracker.recordScale(stem, matrixSize, realIters, convergeError, rowSumError, converged);
+        phase.addRecords(realIters).end();
+
+        if (!converged) {
             if (HiCGlobals.printVerboseComments) {
                 System.out.println("Setting vector to null (not converged)");
             }
@@ -349,11 +350,7 @@ public class FinalScale {
     private static BigFloatsArray update(long matrixSize, BigIntsArray bad,
                                          BigFloatsArray vector, BigIntsArray target,
                                          BigFloatsArray dVector, BigContactList ba) {
-        for (long p = 0; p < matrixSize; p++) {
-            if (bad.get(p) == 1) {
-                vector.set(p, 1f);
-            }
-        }
+        vector.parSetWhere(bad, 1f);
         // d *= target/vector
         dVector.parScaleByRatio(target, vector);
 
@@ -25,7 +25,7 @@
 package hic.tools.utils.norm.scale;
 
 import hic.HiCGlobals;
-import javastraw.tools.ParallelizationTools;
+import hic.tools.utils.tasks.TaskScope;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -36,7 +36,7 @@ public class ParallelVectorTools {
         int numThreads = HiCGlobals.normThreads;
 
         AtomicInteger index = new AtomicInteger();
-        ParallelizationTools.launchParallelizedCode(numThreads, () -> {
+        TaskScope.launchParallelizedCode(numThreads, () -> {
 
             int i = index.getAndIncrement();
             while (i < numThreads) {
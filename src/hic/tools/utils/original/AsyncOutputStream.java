@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package hic.tools.utils.original;
+
+import htsjdk.tribble.util.LittleEndianOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Output stream for .hic files that writes on a dedicated I/O thread.  Two direct buffers alternate: one is
+ * filled by the caller while the other is written to the file channel, so the caller only waits when it fills
+ * a buffer before the previous one is on disk.
+ * <p>
+ * getWrittenCount() counts every byte accepted, whether or not it has reached the file, so it can be used as the
+ * file position of the next write.  Earlier positions can be rewritten with patch() without closing the stream.
+ */
+public class AsyncOutputStream extends LittleEndianOutputStream {
+
+    private final ChannelWriter writer;
+
+    /**
+     * @param append keep the current contents and write after them; otherwise the file is truncated
+     */
+    public AsyncOutputStream(File file, boolean append, int bufferSize) throws IOException {
+        this(new ChannelWriter(file, append, bufferSize));
+    }
+
+    private AsyncOutputStream(ChannelWriter writer) {
+        super(writer);
+        this.writer = writer;
+    }
+
+    /**
+     * Overwrite bytes already written at the given file position.  Bytes still in the buffer being filled are
+     * replaced in place; the rest are written by the I/O thread after the writes already queued.
+     */
+    public void patch(long position, byte[] bytes) throws IOException {
+        writer.patch(position, bytes);
+    }
+
+    /**
+     * Wait for everything written so far, then force it to the storage device
+     */
+    public void sync() throws IOException {
+        flush();
+        writer.channel.force(true);
+    }
+
+    private static class ChannelWriter extends OutputStream {
+        private final FileChannel channel;
+        private final ExecutorService ioThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hic-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private ByteBuffer current;
+        private ByteBuffer spare;
+        private Future<?> pending = null;
+        private long bufferStart;
+        private volatile IOException failure = null;
+        private boolean closed = false;
+
+        ChannelWriter(File file, boolean append, int bufferSize) throws IOException {
+            if (append) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                bufferStart = channel.size();
+            } else {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                bufferStart = 0;
+            }
+            current = ByteBuffer.allocateDirect(bufferSize);
+            spare = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!current.hasRemaining()) {
+                submitCurrent();
+            }
+            current.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!current.hasRemaining()) {
+                    submitCurrent();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Hand the filled buffer to the I/O thread and continue in the other one, once its last write is done
+         */
+        private void submitCurrent() throws IOException {
+            awaitPending();
+            ByteBuffer toWrite = current;
+            long position = bufferStart;
+            toWrite.flip();
+            pending = ioThread.submit(() -> writeFully(toWrite, position));
+            bufferStart += toWrite.limit();
+            current = spare;
+            current.clear();
+            spare = toWrite;
+        }
+
+        void patch(long position, byte[] bytes) throws IOException {
+            long end = position + bytes.length;
+            if (position < 0 || end > bufferStart + current.position()) {
+                throw new IOException("Cannot patch " + bytes.length + " bytes at " + position +
+                        "; only " + (bufferStart + current.position()) + " bytes have been written");
+            }
+            int onDisk = (int) Math.max(0, Math.min(bytes.length, bufferStart - position));
+            for (int i = onDisk; i < bytes.length; i++) {
+                current.put((int) (position + i - bufferStart), bytes[i]);
+            }
+            if (onDisk > 0) {
+                ByteBuffer patchBuffer = ByteBuffer.wrap(Arrays.copyOf(bytes, onDisk));
+                checkFailure();
+                // the I/O thread runs tasks in order, so this lands after any queued write of the same bytes
+                ioThread.execute(() -> writeFully(patchBuffer, position));
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) {
+            try {
+                long filePosition = position;
+                while (buffer.hasRemaining()) {
+                    filePosition += channel.write(buffer, filePosition);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void awaitPending() throws IOException {
+            if (pending != null) {
+                try {
+                    pending.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e);
+                }
+                pending = null;
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Write out the partial buffer and wait until every queued write and patch has completed
+         */
+        @Override
+        public void flush() throws IOException {
+            if (closed) return;
+            if (current.position() > 0) {
+                submitCurrent();
+            }
+            pending = ioThread.submit(() -> {
+            });
+            awaitPending();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            try {
+                flush();
+            } finally {
+                closed = true;
+                ioThread.shutdown();
+                channel.close();
+            }
+        }
+    }
+}
@@ -32,14 +32,19 @@ import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.mzd.Matrix;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
+import org.broad.igv.util.Pair;
 
 import java.io.File;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
 
-public class DataReadingWorker implements Runnable {
+/**
+ * Reads one chromosome pair from every dataset into a matrix owned by this worker.
+ * Nothing is shared with other workers, so pairs can be read concurrently without locking;
+ * the caller merges the expected value calculations and writes the matrix in pair order.
+ */
+public class DataReadingWorker implements Callable<Pair<MatrixPP, Map<String, ExpectedValueCalculation>>> {
 
-    private final AtomicInteger index;
     private final Chromosome chromosome1;
     private final Chromosome chromosome2;
     private final ChromosomeHandler chromosomeHandler;
@@ -51,16 +56,14 @@ public class DataReadingWorker implements Runnable {
     private final Dataset[] datasets;
     private final Map<String, ExpectedValueCalculation> expectedValueCalculations;
     private final File tmpDir;
-    private final MatrixPP mergedMatrix;
     private final boolean onlyNearDiagonalContacts;
 
-    public DataReadingWorker(AtomicInteger index, Chromosome chromosome1, Chromosome chromosome2,
+    public DataReadingWorker(Chromosome chromosome1, Chromosome chromosome2,
                              ChromosomeHandler chromosomeHandler, int[] bpBinSizes, int countThreshold,
                              int v9DepthBase, int newBlockCapacity, Dataset[] datasets,
                              int highestResolution,
                              Map<String, ExpectedValueCalculation> expectedValueCalculations,
-                             File tmpDir, MatrixPP mergedMatrix, boolean onlyNearDiagonalContacts) {
-        this.index = index;
+                             File tmpDir, boolean onlyNearDiagonalContacts) {
         this.chromosome1 = chromosome1;
         this.chromosome2 = chromosome2;
         this.chromosomeHandler = chromosomeHandler;
@@ -72,24 +75,27 @@ public class DataReadingWorker implements Runnable {
         this.highestResolution = highestResolution;
         this.expectedValueCalculations = expectedValueCalculations;
         this.tmpDir = tmpDir;
-        this.mergedMatrix = mergedMatrix;
         this.onlyNearDiagonalContacts = onlyNearDiagonalContacts;
     }
 
-    private static void processMatrix(Dataset[] datasets, int i, Chromosome chromosome1, Chromosome chromosome2,
-                                      int highestResolution, boolean onlyNearDiagonalContacts, MatrixPP matrixPP,
-                                      Map<String, ExpectedValueCalculation> expectedValueCalculations, File tmpDir) {
+    /**
+     * @return false if the dataset has no matrix at the highest resolution for this region,
+     * in which case the whole region is skipped (as the serial merge always did)
+     */
+    static boolean processMatrix(Dataset[] datasets, int i, Chromosome chromosome1, Chromosome chromosome2,
+                                 int highestResolution, boolean onlyNearDiagonalContacts, MatrixPP matrixPP,
+                                 Map<String, ExpectedValueCalculation> expectedValueCalculations, File tmpDir) {
         Matrix matrix = datasets[i].getMatrix(chromosome1, chromosome2, highestResolution);
         if (matrix == null) {
             System.err.println("Skipping null matrix " + chromosome1.getName() + " " + chromosome2.getName());
-            return;
+            return false;
         }
         HiCZoom hZoom = new HiCZoom(highestResolution);
         MatrixZoomData zd = matrix.getZoomData(hZoom);
         if (zd == null) {
             System.err.println("Skipping null zd (res=" + highestResolution + ") " +
                     chromosome1.getName() + " " + chromosome2.getName());
-            return;
+            return false;
         }
 
         try {
@@ -112,26 +118,29 @@ public class DataReadingWorker implements Runnable {
         }
 
         matrix.clearCacheForZoom(hZoom);
+        return true;
     }
 
     public static boolean tooFarFromDiagonal(Contact contact) {
         return HiCFileBuilder.tooFarFromDiagonal(contact.getPos1(), contact.getPos2());
     }
 
+    /**
+     * @return the merged matrix (null if the region was skipped) and the expected values
+     * accumulated while reading it
+     */
     @Override
-    public void run() {
-        int i = index.getAndIncrement();
+    public Pair<MatrixPP, Map<String, ExpectedValueCalculation>> call() {
         MatrixPP matrixPP = new MatrixPP(chromosome1.getIndex(), chromosome2.getIndex(), chromosomeHandler,
                 bpBinSizes, countThreshold, v9DepthBase, newBlockCapacity);
 
-        while (i < datasets.length) {
-            processMatrix(datasets, i, chromosome1, chromosome2, highestResolution,
-                    onlyNearDiagonalContacts, matrixPP, expectedValueCalculations, tmpDir);
-            i = index.getAndIncrement();
-        }
-        synchronized (PreprocessorFromDatasets.key) {
-            mergedMatrix.mergeMatrices(matrixPP);
+        for (int i = 0; i < datasets.length; i++) {
+            if (!processMatrix(datasets, i, chromosome1, chromosome2, highestResolution,
+                    onlyNearDiagonalContacts, matrixPP, expectedValueCalculations, tmpDir)) {
+                return new Pair<>(null, expectedValueCalculations);
+            }
         }
-        matrixPP = null;
+        matrixPP.parsingComplete();
+        return new Pair<>(matrixPP, expectedValueCalculations);
     }
 }
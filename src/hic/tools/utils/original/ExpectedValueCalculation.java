@@ -32,6 +32,9 @@ import javastraw.reader.expected.ExpectedValueFunctionImpl;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationType;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -78,6 +81,10 @@ public class ExpectedValueCalculation {
 	 * Chromosome in this genome, needed for normalizations
 	 */
 	private final Map<Integer, Chromosome> chromosomesMap = new ConcurrentHashMap<>();
+    /**
+     * Whether every count added so far was a whole number, so the totals are exact whatever the order of addition
+     */
+    private volatile boolean onlyWholeCounts = true;
 
     /**
      * Instantiate a DensityCalculation.  This constructor is used to compute the "expected" density from pair data.
@@ -138,6 +145,9 @@ public class ExpectedValueCalculation {
         if (weight > 0) {
             Chromosome chr = chromosomesMap.get(chrIdx);
             if (chr == null) return;
+            if (onlyWholeCounts && weight != Math.rint(weight)) {
+                onlyWholeCounts = false;
+            }
             if (chromosomeCounts.containsKey(chrIdx)) {
                 double count = chromosomeCounts.get(chrIdx);
                 chromosomeCounts.put(chrIdx, count + weight);
@@ -150,6 +160,7 @@ public class ExpectedValueCalculation {
     }
 
     public void merge(ExpectedValueCalculation otherEVCalc) {
+        onlyWholeCounts &= otherEVCalc.onlyWholeCounts;
         for (Map.Entry<Integer, Chromosome> entry : otherEVCalc.chromosomesMap.entrySet()) {
             Chromosome chr = chromosomesMap.get(entry.getKey());
             if (chr != null) {
@@ -168,6 +179,73 @@ public class ExpectedValueCalculation {
         }
     }
 
+    /**
+     * Recover the counts behind an expected vector already written to a file, so new pairs can be merged with it.
+     * The chromosome totals are exact; where the density was smoothed over a window, that window's counts
+     * come back spread evenly across it.
+     *
+     * @param density     expected values (no normalization) at each binned distance
+     * @param normFactors chromosome index -> normalization factor written with the density
+     */
+    synchronized void addExpectedValues(ListOfDoubleArrays density, Map<Integer, Double> normFactors) {
+        onlyWholeCounts = false;
+        for (Map.Entry<Integer, Double> entry : normFactors.entrySet()) {
+            Chromosome chr = chromosomesMap.get(entry.getKey());
+            if (chr == null || !(entry.getValue() > 0)) continue;
+            long nChrBins = chr.getLength() / gridSize;
+
+            double expectedCount = 0;
+            for (int n = 0; n < nChrBins && n < density.getLength(); n++) {
+                double v = density.get(n);
+                if (Double.isNaN(v)) continue;
+                double count = (nChrBins - n) * v;
+                actualDistances[n] += count;
+                expectedCount += count;
+            }
+            chromosomeCounts.merge(entry.getKey(), expectedCount / entry.getValue(), Double::sum);
+        }
+    }
+
+    /**
+     * Save the counts accumulated so far, so a checkpointed run can pick up where it stopped
+     */
+    synchronized void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(chromosomeCounts.size());
+        for (Map.Entry<Integer, Double> entry : chromosomeCounts.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeDouble(entry.getValue());
+        }
+        out.writeInt(actualDistances.length);
+        for (double distance : actualDistances) {
+            out.writeDouble(distance);
+        }
+    }
+
+    synchronized void readState(DataInputStream in) throws IOException {
+        onlyWholeCounts = false;
+        chromosomeCounts.clear();
+        int numChromosomes = in.readInt();
+        for (int i = 0; i < numChromosomes; i++) {
+            int chrIdx = in.readInt();
+            chromosomeCounts.put(chrIdx, in.readDouble());
+        }
+        int numDistances = in.readInt();
+        if (numDistances != actualDistances.length) {
+            throw new IOException("Checkpoint does not match the expected vector for grid size " + gridSize);
+        }
+        for (int i = 0; i < numDistances; i++) {
+            actualDistances[i] = in.readDouble();
+        }
+    }
+
+    /**
+     * @return true if every count so far was a whole number; such totals are exact (below 2^53), so merging
+     * calculations gives the same result as adding all the counts to one of them
+     */
+    public boolean hasOnlyWholeCounts() {
+        return onlyWholeCounts;
+    }
+
     public boolean hasData() {
         return !chromosomeCounts.isEmpty();
     }
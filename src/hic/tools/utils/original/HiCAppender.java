@@ -0,0 +1,300 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package hic.tools.utils.original;
+
+import hic.tools.utils.cleaner.ContactCleaner;
+import hic.tools.utils.iterators.mnd.AlignmentPair;
+import hic.tools.utils.iterators.mnd.PairIterator;
+import hic.tools.utils.merge.HiCMergeTools;
+import htsjdk.tribble.util.LittleEndianInputStream;
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
+import javastraw.reader.mzd.Matrix;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import org.broad.igv.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.*;
+
+/**
+ * Builds a new .hic file from an existing one plus a file of new pairs, without re-binning the existing map.
+ * Each chromosome pair is merged block by block: blocks with no new contacts are copied as compressed bytes,
+ * and only the blocks the new pairs fall in are decoded and recompressed.
+ * Resolutions, block layout and depth base are taken from the existing file.
+ * Normalization vectors are not carried over, since the new contacts invalidate them.
+ */
+public class HiCAppender extends Preprocessor {
+
+    private final File existingFile;
+    private final Dataset dataset;
+    private final DatasetReaderV2 reader;
+
+    public HiCAppender(File outputFile, File existingFile, Dataset dataset, DatasetReaderV2 reader,
+                       double hicFileScalingFactor, String tmpDir) {
+        super(outputFile, dataset.getGenomeId(), hicFileScalingFactor, tmpDir);
+        this.existingFile = existingFile;
+        this.dataset = dataset;
+        this.reader = reader;
+        setV9DepthBase(reader.getDepthBase());
+        List<Integer> resolutions = new ArrayList<>();
+        for (HiCZoom zoom : dataset.getAllPossibleResolutions()) {
+            if (zoom.getUnit() == HiCZoom.HiCUnit.BP) {
+                resolutions.add(zoom.getBinSize());
+            }
+        }
+        setResolutionsWithInts(resolutions);
+    }
+
+    public void append(String inputFile) throws IOException {
+        HiCMergeTools.mergeStatsAndGraphs(new Dataset[]{dataset}, tmpDir, this);
+        String path = outputFile.getAbsolutePath();
+        preprocess(inputFile, path, path, null);
+        System.out.println("Normalizations were not copied; run addNorm on " + path);
+    }
+
+    /**
+     * Same traversal as Preprocessor.writeBody, but each chromosome pair is merged with the existing file
+     * as soon as its new pairs have been read.  Chromosome pairs with no new pairs are copied afterwards.
+     */
+    @Override
+    protected void writeBody(String inputFile, Map<Integer, List<Chunk>> mndIndex) throws IOException {
+        System.out.println("Writing body");
+        Map<String, ExpectedValueCalculation> newExpectedValueCalculations = new LinkedHashMap<>();
+        for (Map.Entry<String, ExpectedValueCalculation> entry : expectedValueCalculations.entrySet()) {
+            newExpectedValueCalculations.put(entry.getKey(), new ExpectedValueCalculation(chromosomeHandler,
+                    entry.getValue().getGridSize(), NormalizationHandler.NONE));
+        }
+        addExistingExpectedValues();
+
+        try (RandomAccessFile existing = new RandomAccessFile(existingFile, "r")) {
+            Map<String, IndexEntry> existingMatrices = readMasterIndex(existing);
+
+            MatrixPP wholeGenomeMatrix = computeWholeGenomeMatrix(inputFile);
+            appendMatrix(wholeGenomeMatrix, existingMatrices.remove(wholeGenomeMatrix.getKey()), existing);
+
+            PairIterator iter = PairIterator.getIterator(inputFile, chromosomeIndexes, chromosomeHandler);
+            Set<String> writtenMatrices = new HashSet<>();
+            int currentChr1 = -1;
+            int currentChr2 = -1;
+            MatrixPP currentMatrix = null;
+            ContactCleaner cleaner = new ContactCleaner(chromosomeHandler);
+
+            while (iter.hasNext()) {
+                AlignmentPair pair = iter.next();
+                if (pair.isNotContigPair()) {
+                    if (shouldSkipContact(pair)) continue;
+                    cleaner.updateLatestContact(pair);
+                    if (cleaner.doesntMatchCurrentBlock(currentChr1, currentChr2)) {
+                        if (currentMatrix != null) {
+                            currentMatrix.parsingComplete();
+                            appendMatrix(currentMatrix, existingMatrices.remove(currentMatrix.getKey()), existing);
+                            writtenMatrices.add(currentMatrix.getKey());
+                            currentMatrix = null;
+                            System.gc();
+                        }
+
+                        currentChr1 = cleaner.getChr1();
+                        currentChr2 = cleaner.getChr2();
+                        String currentMatrixKey = currentChr1 + "_" + currentChr2;
+                        if (writtenMatrices.contains(currentMatrixKey)) {
+                            System.err.println("Error: the chromosome combination " + currentMatrixKey + " appears in multiple blocks");
+                            outputFile.deleteOnExit();
+                            System.exit(58);
+                        }
+                        currentMatrix = new MatrixPP(currentChr1, currentChr2, chromosomeHandler, bpBinSizes,
+                                countThreshold, v9DepthBase, BLOCK_CAPACITY);
+                    }
+                    cleaner.incrementCount(currentMatrix, newExpectedValueCalculations, tmpDir);
+                }
+            }
+            iter.close();
+
+            if (currentMatrix != null) {
+                currentMatrix.parsingComplete();
+                appendMatrix(currentMatrix, existingMatrices.remove(currentMatrix.getKey()), existing);
+            }
+
+            System.out.println();
+            System.out.println("Copying " + existingMatrices.size() + " chromosome pairs without new reads");
+            for (Map.Entry<String, IndexEntry> entry : existingMatrices.entrySet()) {
+                String[] indices = entry.getKey().split("_");
+                MatrixPP matrix = new MatrixPP(Integer.parseInt(indices[0]), Integer.parseInt(indices[1]),
+                        chromosomeHandler, bpBinSizes, countThreshold, v9DepthBase, BLOCK_CAPACITY);
+                matrix.parsingComplete();
+                appendMatrix(matrix, entry.getValue(), existing);
+            }
+        }
+
+        for (Map.Entry<String, ExpectedValueCalculation> entry : newExpectedValueCalculations.entrySet()) {
+            expectedValueCalculations.get(entry.getKey()).merge(entry.getValue());
+        }
+        masterIndexPosition = losArray[0].getWrittenCount();
+    }
+
+    /**
+     * Seed the expected value calculations with the (unnormalized) expected vectors of the existing file
+     */
+    private void addExistingExpectedValues() {
+        for (ExpectedValueFunction function : dataset.getExpectedValueFunctionMap().values()) {
+            if (function.getUnit() != HiCZoom.HiCUnit.BP
+                    || !function.getNormalizationType().equals(NormalizationHandler.NONE)) {
+                continue;
+            }
+            ExpectedValueCalculation ev = expectedValueCalculations.get("BP_" + function.getBinSize());
+            if (ev != null) {
+                ev.addExpectedValues(function.getExpectedValuesNoNormalization(),
+                        ((ExpectedValueFunctionImpl) function).getNormFactors());
+            }
+        }
+    }
+
+    /**
+     * Write the matrix for this chromosome pair, merged with the existing matrix if there is one
+     */
+    private void appendMatrix(MatrixPP matrix, IndexEntry existingEntry, RandomAccessFile existing) throws IOException {
+        if (existingEntry == null) {
+            writeMatrix(matrix, losArray, compressor, matrixPositions, -1, false, outputFile);
+            return;
+        }
+
+        Map<Integer, ZoomHeader> existingZooms = readMatrixHeader(existing, existingEntry.position);
+        MatrixZoomDataPP[] zoomData = matrix.getZoomData();
+        for (MatrixZoomDataPP zd : zoomData) {
+            ZoomHeader existingZoom = existingZooms.get(zd.getBinSize());
+            if (existingZoom == null) continue;
+            if (existingZoom.blockBinCount != zd.getBlockBinCount()
+                    || existingZoom.blockColumnCount != zd.getBlockColumnCount()) {
+                System.err.println(existingFile + " uses a different block layout for " + matrix.getKey() +
+                        " at " + zd.getBinSize() + " BP; append requires the block size it was built with. " +
+                        "Use sum instead.");
+                outputFile.deleteOnExit();
+                System.exit(72);
+            }
+            zd.addBlockNumbers(existingZoom.blocks.keySet());
+        }
+
+        writeMatrixHeader(matrix, losArray, matrixPositions, -1);
+
+        Chromosome chr1 = chromosomeHandler.getChromosomeFromIndex(matrix.getChr1Idx());
+        Chromosome chr2 = chromosomeHandler.getChromosomeFromIndex(matrix.getChr2Idx());
+        Matrix existingMatrix = dataset.getMatrix(chr1, chr2);
+        for (MatrixZoomDataPP zd : zoomData) {
+            ZoomHeader existingZoom = existingZooms.get(zd.getBinSize());
+            Map<Integer, IndexEntry> existingBlocks = new HashMap<>();
+            MatrixZoomData existingZd = null;
+            double existingSum = 0;
+            if (existingZoom != null) {
+                existingBlocks = existingZoom.blocks;
+                existingZd = existingMatrix.getZoomData(new HiCZoom(zd.getBinSize()));
+                existingSum = existingZoom.sum;
+            }
+            Pair<List<IndexEntry>, Double> written = zd.writeAppendedBlocks(reader, existingZd, existingBlocks,
+                    existing, losArray[0], compressor);
+            updateIndexPositions(written.getFirst(), losArray, true, outputFile, 0, zd.blockIndexPosition,
+                    zd.sumPosition, (float) (existingSum + written.getSecond()));
+            if (existingZoom != null) {
+                existingMatrix.clearCacheForZoom(new HiCZoom(zd.getBinSize()));
+            }
+        }
+        System.out.print(".");
+    }
+
+    /**
+     * @return matrix key -> position of the matrix header, from the master index of a version 9 file
+     */
+    private static Map<String, IndexEntry> readMasterIndex(RandomAccessFile raf) throws IOException {
+        // magic string and version precede the master index position
+        LittleEndianInputStream lis = openAt(raf, 8);
+        long masterIndexPosition = lis.readLong();
+
+        lis = openAt(raf, masterIndexPosition);
+        lis.readLong(); // number of bytes in the footer
+        int nEntries = lis.readInt();
+        Map<String, IndexEntry> matrixPositions = new LinkedHashMap<>();
+        for (int i = 0; i < nEntries; i++) {
+            String key = lis.readString();
+            long position = lis.readLong();
+            int size = lis.readInt();
+            matrixPositions.put(key, new IndexEntry(position, size));
+        }
+        return matrixPositions;
+    }
+
+    /**
+     * @return bin size -> zoom header, for the BP resolutions of the matrix at this position
+     */
+    private static Map<Integer, ZoomHeader> readMatrixHeader(RandomAccessFile raf, long position) throws IOException {
+        LittleEndianInputStream lis = openAt(raf, position);
+        lis.readInt(); // chr1
+        lis.readInt(); // chr2
+        int nResolutions = lis.readInt();
+
+        Map<Integer, ZoomHeader> zooms = new HashMap<>();
+        for (int i = 0; i < nResolutions; i++) {
+            ZoomHeader zoom = new ZoomHeader();
+            String unit = lis.readString();
+            lis.readInt(); // zoom index
+            zoom.sum = lis.readFloat();
+            lis.readFloat(); // occupied cell count
+            lis.readFloat(); // 5th percentile
+            lis.readFloat(); // 95th percentile
+            zoom.binSize = lis.readInt();
+            zoom.blockBinCount = lis.readInt();
+            zoom.blockColumnCount = lis.readInt();
+            int nBlocks = lis.readInt();
+            for (int b = 0; b < nBlocks; b++) {
+                int id = lis.readInt();
+                long blockPosition = lis.readLong();
+                int size = lis.readInt();
+                zoom.blocks.put(id, new IndexEntry(id, blockPosition, size));
+            }
+            if (unit.equals(HiCZoom.HiCUnit.BP.toString())) {
+                zooms.put(zoom.binSize, zoom);
+            }
+        }
+        return zooms;
+    }
+
+    private static LittleEndianInputStream openAt(RandomAccessFile raf, long position) throws IOException {
+        raf.getChannel().position(position);
+        return new LittleEndianInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+    }
+
+    private static class ZoomHeader {
+        final Map<Integer, IndexEntry> blocks = new HashMap<>();
+        float sum;
+        int binSize;
+        int blockBinCount;
+        int blockColumnCount;
+    }
+}
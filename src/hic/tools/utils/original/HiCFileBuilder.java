@@ -25,14 +25,15 @@
 package hic.tools.utils.original;
 
 import hic.HiCGlobals;
+import hic.tools.utils.cleaner.DuplicatePairFilter;
 import hic.tools.utils.iterators.mnd.ReadPairFilter;
-import hic.tools.utils.largelists.BigListOfByteWriters;
+import hic.tools.utils.largelists.ParallelByteSerializer;
+import hic.tools.utils.tasks.TaskScope;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import javastraw.reader.Dataset;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.basics.ChromosomeHandler;
 import javastraw.reader.basics.ChromosomeTools;
-import javastraw.reader.datastructures.ListOfDoubleArrays;
 import javastraw.reader.type.HiCZoom;
 import javastraw.reader.type.NormalizationHandler;
 import javastraw.tools.UNIXTools;
@@ -42,6 +43,8 @@ import org.broad.igv.util.Pair;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
 
 abstract public class HiCFileBuilder {
@@ -61,7 +64,9 @@ abstract public class HiCFileBuilder {
     protected Map<String, Integer> chromosomeIndexes = new ConcurrentHashMap<>();
     protected String genomeId;
     protected final LittleEndianOutputStream[] losArray = new LittleEndianOutputStream[1];
+    protected AsyncOutputStream headerOutputStream;
     protected long masterIndexPosition;
+    protected long normFilePosition;
     protected int countThreshold = 0;
     protected int mapqThreshold = 0;
     protected boolean intraChromosomalOnly = false;
@@ -70,7 +75,10 @@ abstract public class HiCFileBuilder {
     protected String graphFileName = null;
     protected Set<String> includedChromosomes;
     protected ReadPairFilter filter = null;
-    protected int[] bpBinSizes = {2500000, 1000000, 500000, 250000, 100000, 50000, 25000, 10000, 5000, 1000};
+    protected int duplicateTolerance = -1;
+    protected final AtomicLong numDuplicates = new AtomicLong(0);
+    public static final int[] DEFAULT_BP_BIN_SIZES = {2500000, 1000000, 500000, 250000, 100000, 50000, 25000, 10000, 5000, 1000};
+    protected int[] bpBinSizes = DEFAULT_BP_BIN_SIZES.clone();
     protected int numResolutions;
     protected double hicFileScalingFactor = 1;
     protected final File tmpDir;
@@ -102,6 +110,41 @@ abstract public class HiCFileBuilder {
         }
     }
 
+    protected static long totalBytesWritten(LittleEndianOutputStream[] los) {
+        long total = 0;
+        if (los != null) {
+            for (LittleEndianOutputStream stream : los) {
+                if (stream != null) total += stream.getWrittenCount();
+            }
+        }
+        return total;
+    }
+
+    public ChromosomeHandler getChromosomeHandler() {
+        return chromosomeHandler;
+    }
+
+    /**
+     * @return the bp resolutions in the order they are written to the header
+     */
+    public int[] getBpBinSizes() {
+        return bpBinSizes;
+    }
+
+    /**
+     * @return where the normalized expected values and vectors go, i.e. the end of the footer
+     */
+    public long getNormFilePosition() {
+        return normFilePosition;
+    }
+
+    /**
+     * @return position of the header field that points to the normalization vector index
+     */
+    public long getNormVectorIndexPosition() {
+        return normVectorIndexPosition;
+    }
+
     public void setCountThreshold(int countThreshold) {
         this.countThreshold = countThreshold;
     }
@@ -153,6 +196,39 @@ abstract public class HiCFileBuilder {
 
     protected static void updateIndexPositions(List<IndexEntry> blockIndex, LittleEndianOutputStream[] losArray, boolean doRestore,
                                                File outputFile, long currentPosition, long blockIndexPosition) throws IOException {
+        updateIndexPositions(blockIndex, losArray, doRestore, outputFile, currentPosition, blockIndexPosition,
+                -1, 0);
+    }
+
+    /**
+     * Same as above, but also replaces the zoom sum at sumPosition when it is known only after the blocks
+     * have been written (i.e. when merging pre-binned blocks).
+     * If the stream is still open and patchable, the bytes are patched through it; otherwise the file is
+     * patched directly, closing and reopening the stream around it when doRestore is set.
+     */
+    protected static void updateIndexPositions(List<IndexEntry> blockIndex, LittleEndianOutputStream[] losArray, boolean doRestore,
+                                               File outputFile, long currentPosition, long blockIndexPosition,
+                                               long sumPosition, float sum) throws IOException {
+
+        BufferedByteWriter sumBuffer = new BufferedByteWriter();
+        sumBuffer.putFloat(sum);
+
+        // Write as little endian
+        BufferedByteWriter buffer = new BufferedByteWriter();
+        for (IndexEntry aBlockIndex : blockIndex) {
+            buffer.putInt(aBlockIndex.id);
+            buffer.putLong(aBlockIndex.position + currentPosition);
+            buffer.putInt(aBlockIndex.size);
+        }
+
+        if (doRestore && losArray[0] instanceof AsyncOutputStream) {
+            AsyncOutputStream los = (AsyncOutputStream) losArray[0];
+            if (sumPosition > -1) {
+                los.patch(sumPosition, sumBuffer.getBytes());
+            }
+            los.patch(blockIndexPosition, buffer.getBytes());
+            return;
+        }
 
         // Temporarily close output stream.  Remember position
         long losPos = 0;
@@ -163,16 +239,13 @@ abstract public class HiCFileBuilder {
 
         try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
 
+            if (sumPosition > -1) {
+                raf.getChannel().position(sumPosition);
+                raf.write(sumBuffer.getBytes());
+            }
+
             // Block indices
             raf.getChannel().position(blockIndexPosition);
-
-            // Write as little endian
-            BufferedByteWriter buffer = new BufferedByteWriter();
-            for (IndexEntry aBlockIndex : blockIndex) {
-                buffer.putInt(aBlockIndex.id);
-                buffer.putLong(aBlockIndex.position + currentPosition);
-                buffer.putInt(aBlockIndex.size);
-            }
             raf.write(buffer.getBytes());
 
         }
@@ -190,6 +263,20 @@ abstract public class HiCFileBuilder {
         }
     }
 
+    /**
+     * @param tolerance largest position difference, in bp, at which two pairs still count as duplicates
+     */
+    public void setDuplicateRemoval(boolean removeDuplicates, int tolerance) {
+        duplicateTolerance = removeDuplicates ? Math.max(0, tolerance) : -1;
+    }
+
+    /**
+     * @return a filter for one sorted pass over the input, or null if duplicates are kept
+     */
+    protected DuplicatePairFilter newDuplicateFilter() {
+        return duplicateTolerance < 0 ? null : new DuplicatePairFilter(duplicateTolerance);
+    }
+
     public void setStatisticsFile(String statsOption) {
         statsFileName = statsOption;
     }
@@ -236,7 +323,8 @@ abstract public class HiCFileBuilder {
 
     protected LittleEndianOutputStream[] initializeLosArrays(String headerFile, String footerFile) {
         try {
-            losArray[0] = new LittleEndianOutputStream(new BufferedOutputStream(new FileOutputStream(headerFile), HiCGlobals.bufferSize));
+            headerOutputStream = new AsyncOutputStream(new File(headerFile), false, HiCGlobals.bufferSize);
+            losArray[0] = headerOutputStream;
             if (footerFile.equalsIgnoreCase(headerFile)) {
                 return losArray;
             } else {
@@ -364,23 +452,21 @@ abstract public class HiCFileBuilder {
         System.out.println();
         System.out.println("Writing footer");
         // Index
-        BigListOfByteWriters bufferList = new BigListOfByteWriters();
+        ParallelByteSerializer bufferList = new ParallelByteSerializer();
 
         bufferList.putInt(matrixPositions.size());
         for (Map.Entry<String, IndexEntry> entry : matrixPositions.entrySet()) {
-            bufferList.expandBufferIfNeeded(1000);
             bufferList.putNullTerminatedString(entry.getKey());
             bufferList.putLong(entry.getValue().position);
             bufferList.putInt(entry.getValue().size);
         }
 
         // Vectors - Expected values
+        computeDensitiesInParallel(expectedValueCalculations.values());
 
-        bufferList.expandBufferIfNeeded(1000);
         bufferList.putInt(expectedValueCalculations.size());
         for (Map.Entry<String, ExpectedValueCalculation> entry : expectedValueCalculations.entrySet()) {
             ExpectedValueCalculation ev = entry.getValue();
-            ev.computeDensity();
             int binSize = ev.getGridSize();
             HiCZoom.HiCUnit unit = HiCZoom.HiCUnit.BP;
 
@@ -388,19 +474,10 @@ abstract public class HiCFileBuilder {
             bufferList.putInt(binSize);
 
             // The density values
-            ListOfDoubleArrays expectedValues = ev.getDensityAvg();
-            bufferList.putLong(expectedValues.getLength());
-            for (double[] expectedArray : expectedValues.getValues()) {
-                bufferList.expandBuffer();
-                for (double value : expectedArray) {
-                    bufferList.expandBufferIfNeeded(1000000);
-                    bufferList.putFloat((float) value);
-                }
-            }
+            bufferList.putDoublesAsFloatVector(ev.getDensityAvg().getValues());
 
             // Map of chromosome index -> normalization factor
             Map<Integer, Double> normalizationFactors = ev.getChrScaleFactors();
-            bufferList.expandBufferIfNeeded(1000000);
             bufferList.putInt(normalizationFactors.size());
             for (Map.Entry<Integer, Double> normFactor : normalizationFactors.entrySet()) {
                 bufferList.putInt(normFactor.getKey());
@@ -414,7 +491,20 @@ abstract public class HiCFileBuilder {
         System.out.println("nBytesV5: " + nBytesV5);
 
         los[0].writeLong(nBytesV5);
-        bufferList.writeToOutput(los[0]);
+        bufferList.writeTo(los[0], HiCGlobals.primaryThreads);
+        normFilePosition = masterIndexPosition + 8 + nBytesV5;
+    }
+
+    private static void computeDensitiesInParallel(Collection<ExpectedValueCalculation> calculations) {
+        List<ExpectedValueCalculation> toCompute = new ArrayList<>(calculations);
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(Math.max(1, Math.min(HiCGlobals.primaryThreads, toCompute.size())), () -> {
+            int i = index.getAndIncrement();
+            while (i < toCompute.size()) {
+                toCompute.get(i).computeDensity();
+                i = index.getAndIncrement();
+            }
+        });
     }
 
     protected static Pair<Map<Long, List<IndexEntry>>, Long> writeMatrix(MatrixPP matrix, LittleEndianOutputStream[] losArray,
@@ -422,6 +512,40 @@ abstract public class HiCFileBuilder {
                                                                          int chromosomePairIndex, boolean doMultiThreadedBehavior,
                                                                          File outputFile) throws IOException {
 
+        long position = writeMatrixHeader(matrix, losArray, matrixPositions, chromosomePairIndex);
+
+        final Map<Long, List<IndexEntry>> localBlockIndexes = new ConcurrentHashMap<>();
+
+        for (int i = 0; i < matrix.getZoomData().length; i++) {
+            MatrixZoomDataPP zd = matrix.getZoomData()[i];
+            if (zd != null) {
+                if (doMultiThreadedBehavior) {
+                    List<IndexEntry> blockIndex;
+                    if (losArray.length > 1) {
+                        blockIndex = zd.mergeAndWriteBlocksMT(losArray, i, matrix.getZoomData().length);
+                    } else {
+                        blockIndex = zd.mergeAndWriteBlocksST(losArray[0], compressor);
+                    }
+                    localBlockIndexes.put(zd.blockIndexPosition, blockIndex);
+                } else {
+                    List<IndexEntry> blockIndex = zd.mergeAndWriteBlocksST(losArray[0], compressor);
+                    updateIndexPositions(blockIndex, losArray, true, outputFile, 0, zd.blockIndexPosition);
+                }
+            }
+        }
+
+        System.out.print(".");
+        return new Pair<>(localBlockIndexes, position);
+    }
+
+    /**
+     * Writes the matrix and zoom headers, leaving placeholders for the block indices
+     *
+     * @return position of the matrix in the file
+     */
+    protected static long writeMatrixHeader(MatrixPP matrix, LittleEndianOutputStream[] losArray,
+                                            Map<String, IndexEntry> matrixPositions,
+                                            int chromosomePairIndex) throws IOException {
         LittleEndianOutputStream los = losArray[0];
         long position = los.getWrittenCount();
 
@@ -449,29 +573,7 @@ abstract public class HiCFileBuilder {
         } else {
             matrixPositions.put(matrix.getKey(), new IndexEntry(position, (int) size));
         }
-
-        final Map<Long, List<IndexEntry>> localBlockIndexes = new ConcurrentHashMap<>();
-
-        for (int i = 0; i < matrix.getZoomData().length; i++) {
-            MatrixZoomDataPP zd = matrix.getZoomData()[i];
-            if (zd != null) {
-                if (doMultiThreadedBehavior) {
-                    List<IndexEntry> blockIndex;
-                    if (losArray.length > 1) {
-                        blockIndex = zd.mergeAndWriteBlocksMT(losArray, i, matrix.getZoomData().length);
-                    } else {
-                        blockIndex = zd.mergeAndWriteBlocksST(losArray[0], compressor);
-                    }
-                    localBlockIndexes.put(zd.blockIndexPosition, blockIndex);
-                } else {
-                    List<IndexEntry> blockIndex = zd.mergeAndWriteBlocksST(losArray[0], compressor);
-                    updateIndexPositions(blockIndex, losArray, true, outputFile, 0, zd.blockIndexPosition);
-                }
-            }
-        }
-
-        System.out.print(".");
-        return new Pair<>(localBlockIndexes, position);
+        return position;
     }
 
     protected void updateMasterIndex(String headerFile) throws IOException {
@@ -25,6 +25,7 @@
 package hic.tools.utils.original;
 
 import hic.HiCGlobals;
+import hic.tools.utils.iterators.mnd.ColumnarPairsIndex;
 import javastraw.reader.basics.ChromosomeHandler;
 
 import java.io.BufferedReader;
@@ -88,6 +89,41 @@ public class MTIndexHandler {
         return mndIndex;
     }
 
+    /**
+     * Builds the same per chromosome pair chunk map as readMndIndex, from the index in a columnar pairs file.
+     */
+    public static Map<Integer, List<Chunk>> readColumnarPairsIndex(String pairsFile,
+                                                                   Map<Integer, String> chromosomePairIndexes) {
+        Map<String, List<Chunk>> tempIndex = null;
+        try {
+            tempIndex = ColumnarPairsIndex.read(pairsFile).getChunksByPairName();
+        } catch (Exception e) {
+            System.err.println("Unable to read index of columnar pairs file " + pairsFile);
+            System.exit(70);
+        }
+
+        Map<Integer, List<Chunk>> mndIndex = new ConcurrentHashMap<>();
+        for (Map.Entry<Integer, String> entry : chromosomePairIndexes.entrySet()) {
+            String reverseName = entry.getValue().split("-")[1] + "-" + entry.getValue().split("-")[0];
+            List<Chunk> chunks = new ArrayList<>();
+            if (tempIndex.containsKey(entry.getValue())) {
+                chunks.addAll(tempIndex.get(entry.getValue()));
+            }
+            if (!reverseName.equals(entry.getValue()) && tempIndex.containsKey(reverseName)) {
+                chunks.addAll(tempIndex.get(reverseName));
+            }
+            if (!chunks.isEmpty()) {
+                mndIndex.put(entry.getKey(), chunks);
+            }
+        }
+
+        if (mndIndex.isEmpty()) {
+            System.err.println("Columnar pairs index is empty or could not be read");
+            System.exit(43);
+        }
+        return mndIndex;
+    }
+
     public static Map<String, Integer> populateChromosomeIndexes(ChromosomeHandler chromosomeHandler, int numCPUThreads) {
         Map<String, Integer> chromosomeIndexes = new ConcurrentHashMap<>(chromosomeHandler.size(), 0.75f, numCPUThreads);
         for (int i = 0; i < chromosomeHandler.size(); i++) {
@@ -78,7 +78,7 @@ public class MatrixPP {
                 nColumns = getNumColumnsFromNumBins(nBins, binSize, INTER_CUTOFF);
             }
             zoomData[idx] = new MatrixZoomDataPP(chrom1, chrom2, binSize, nColumns, zoom, countThreshold,
-                    v9DepthBase, BLOCK_CAPACITY);
+                    v9DepthBase, MemoryPlanner.getBlockCapacity(binSize, BLOCK_CAPACITY));
             zoom++;
 
         }
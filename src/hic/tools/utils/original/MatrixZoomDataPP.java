@@ -25,13 +25,20 @@
 package hic.tools.utils.original;
 
 import com.google.common.util.concurrent.AtomicDouble;
+import hic.tools.utils.instrumentation.PhaseTracker;
+import hic.tools.utils.norm.IntraContactsCollector;
+import hic.tools.utils.tasks.TaskScope;
 import htsjdk.tribble.util.LittleEndianOutputStream;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.Block;
 import javastraw.reader.block.ContactRecord;
 import javastraw.reader.depth.V9Depth;
-import javastraw.tools.ParallelizationTools;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.type.NormalizationHandler;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.broad.igv.tdf.BufferedByteWriter;
+import org.broad.igv.util.Pair;
 import org.broad.igv.util.collections.DownsampledDoubleArrayList;
 
 import java.awt.*;
@@ -39,11 +46,11 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.zip.Deflater;
 
 public class MatrixZoomDataPP {
@@ -60,12 +67,14 @@ public class MatrixZoomDataPP {
     private final LinkedHashMap<Integer, BlockPP> blocks;
     private final int countThreshold;
     long blockIndexPosition;
+    long sumPosition;
     private final AtomicDouble sum = new AtomicDouble(0);
     private double numRecords = 0;
     private final AtomicDouble cellCount = new AtomicDouble(0);
     private double percent5;
     private double percent95;
-    private final int blockCapacity;
+    private int blockCapacity;
+    private int lastPressureEvent = MemoryPlanner.getPressureEvents();
     private final V9Depth v9Depth;
 
     /**
@@ -233,9 +242,11 @@ public class MatrixZoomDataPP {
             }
         }
 
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.compress");
         byte[] bytes = buffer.getBytes();
         byte[] compressedBytes = RecordBlockUtils.compress(bytes, compressor);
         los.write(compressedBytes);
+        phase.addRecords(nRecords).addBytesRead(bytes.length).addBytesWritten(compressedBytes.length).end();
     }
 
     private static void putShortOrFloatInBuffer(BufferedByteWriter buffer, float value,
@@ -342,7 +353,14 @@ public class MatrixZoomDataPP {
         }
         block.incrementCount(xBin, yBin, score);
 
+        int pressureEvents = MemoryPlanner.getPressureEvents();
+        if (pressureEvents != lastPressureEvent) {
+            lastPressureEvent = pressureEvents;
+            blockCapacity = MemoryPlanner.reduceBlockCapacity(blockCapacity);
+        }
+
         if (blocks.size() > blockCapacity) {
+            PhaseTracker.Phase phase = PhaseTracker.start("pre.spill");
             File tmpFile;
             if (tmpDir == null) {
                 tmpFile = File.createTempFile("blocks", "bin");
@@ -352,11 +370,13 @@ public class MatrixZoomDataPP {
             dumpBlocks(tmpFile);
             tmpFiles.add(tmpFile);
             tmpFile.deleteOnExit();
+            phase.addTempFiles(1).addBytesWritten(tmpFile.length()).end();
         }
     }
 
     // Merge and write out blocks multithreaded.
     protected List<IndexEntry> mergeAndWriteBlocksMT(LittleEndianOutputStream[] losArray, int whichZoom, int numResolutions) {
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.merge");
         DownsampledDoubleArrayList sampledData = new DownsampledDoubleArrayList(10000, 10000);
         Integer[] sortedBlockNumbers = new Integer[blockNumbers.size()];
         blockNumbers.toArray(sortedBlockNumbers);
@@ -365,7 +385,7 @@ public class MatrixZoomDataPP {
         threadSafeBlocks.putAll(blocks);
         int numCPUThreads = (losArray.length - 1) / numResolutions;
 
-        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
+        TaskScope scope = new TaskScope();
         Map<Integer, Long> blockChunkSizes = new ConcurrentHashMap<>(numCPUThreads);
         Map<Integer, List<IndexEntry>> chunkBlockIndexes = new ConcurrentHashMap<>(numCPUThreads);
 
@@ -403,10 +423,15 @@ public class MatrixZoomDataPP {
                 }
                 chunkBlockIndexes.put(whichLos, indexEntries);
             };
-            executor.execute(worker);
+            scope.fork(worker);
         }
 
-        ParallelizationTools.shutDownAndWaitUntilDone(executor, 1000);
+        try {
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        finishCaptureForNorms();
 
         long adjust = 0;
         for (int i = 0; i < losArray.length; i++) {
@@ -427,7 +452,9 @@ public class MatrixZoomDataPP {
 
         }
 
+        long tmpBytes = 0;
         for (File f : tmpFiles) {
+            tmpBytes += f.length();
             boolean result = f.delete();
             if (!result) {
                 System.out.println("Error while deleting file");
@@ -435,11 +462,14 @@ public class MatrixZoomDataPP {
         }
 
         computeStats(sampledData);
+        phase.addRecords(finalIndexEntries.size()).addBytesRead(tmpBytes).addTempFiles(tmpFiles.size()).end();
         return finalIndexEntries;
     }
 
     // Merge and write out blocks one at a time.
     protected List<IndexEntry> mergeAndWriteBlocksST(LittleEndianOutputStream los, Deflater compressor) throws IOException {
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.merge");
+        long startPosition = los.getWrittenCount();
         DownsampledDoubleArrayList sampledData = new DownsampledDoubleArrayList(10000, 10000);
 
         List<BlockQueue> activeList = new ArrayList<>();
@@ -486,13 +516,17 @@ public class MatrixZoomDataPP {
             long position = los.getWrittenCount();
             writeBlock(currentBlock, sampledData, los, compressor, countThreshold, cellCount, sum);
             long size = los.getWrittenCount() - position;
+            captureForNorms(currentBlock);
 
             indexEntries.add(new IndexEntry(num, position, (int) size));
 
         } while (activeList.size() > 0);
+        finishCaptureForNorms();
 
 
+        long tmpBytes = 0;
         for (File f : tmpFiles) {
+            tmpBytes += f.length();
             boolean result = f.delete();
             if (!result) {
                 System.out.println("Error while deleting file");
@@ -500,10 +534,128 @@ public class MatrixZoomDataPP {
         }
 
         computeStats(sampledData);
+        phase.addRecords(indexEntries.size()).addBytesRead(tmpBytes).addTempFiles(tmpFiles.size())
+                .addBytesWritten(los.getWrittenCount() - startPosition).end();
 
         return indexEntries;
     }
 
+    /**
+     * Register the blocks that will be written by writeMergedBlocks, so the zoom header can be written first.
+     */
+    void addBlockNumbers(Collection<Integer> numbers) {
+        blockNumbers.addAll(numbers);
+    }
+
+    /**
+     * Merge and write blocks that are already binned at this resolution in every input file (same block
+     * bin count, block column count and v9 depth), so each output block is the sum of the matching input blocks.
+     * Blocks are decoded one block number at a time; nothing is re-binned.
+     *
+     * @return block index entries, and the sum to patch into the zoom header in place of the one written there
+     */
+    protected Pair<List<IndexEntry>, Double> writeMergedBlocks(DatasetReaderV2[] readers, MatrixZoomData[] zds,
+                                                              Map<String, ExpectedValueCalculation> expectedValueCalculations,
+                                                              LittleEndianOutputStream los, Deflater compressor) throws IOException {
+        DownsampledDoubleArrayList sampledData = new DownsampledDoubleArrayList(10000, 10000);
+        Integer[] sortedBlockNumbers = new Integer[blockNumbers.size()];
+        blockNumbers.toArray(sortedBlockNumbers);
+        Arrays.sort(sortedBlockNumbers);
+
+        boolean isIntra = chr1.equals(chr2);
+        ExpectedValueCalculation ev = null;
+        if (isIntra && expectedValueCalculations != null) {
+            ev = expectedValueCalculations.get("BP_" + binSize);
+        }
+
+        double headerSum = 0;
+        List<IndexEntry> indexEntries = new ArrayList<>();
+        for (int num : sortedBlockNumbers) {
+            BlockPP currentBlock = new BlockPP(num);
+            for (int i = 0; i < readers.length; i++) {
+                Block block = readers[i].readNormalizedBlock(num, zds[i], NormalizationHandler.NONE);
+                if (block == null) continue;
+                for (ContactRecord record : block.getContactRecords()) {
+                    int xBin = record.getBinX();
+                    int yBin = record.getBinY();
+                    float counts = record.getCounts();
+                    currentBlock.incrementCount(xBin, yBin, counts);
+                    headerSum += counts;
+                    if (isIntra) {
+                        if (xBin != yBin) {
+                            headerSum += counts;
+                        }
+                        if (ev != null) {
+                            ev.addDistance(chr1.getIndex(), xBin, yBin, counts);
+                        }
+                    }
+                }
+            }
+            addToBlockAndRecordsSets(currentBlock);
+            long position = los.getWrittenCount();
+            writeBlock(currentBlock, sampledData, los, compressor, countThreshold, cellCount, sum);
+            long size = los.getWrittenCount() - position;
+            indexEntries.add(new IndexEntry(num, position, (int) size));
+        }
+
+        computeStats(sampledData);
+        return new Pair<>(indexEntries, headerSum);
+    }
+
+    /**
+     * Write the union of the blocks parsed for this zoom and the blocks of an existing file at the same
+     * resolution and block layout.  Existing blocks without new contacts are copied as compressed bytes;
+     * the others are decoded, summed with the new contacts and recompressed.
+     *
+     * @param existingBlocks block number -> position and size of the block in existingFile
+     * @return block index entries, and the sum of the new contacts as counted in the zoom header
+     */
+    protected Pair<List<IndexEntry>, Double> writeAppendedBlocks(DatasetReaderV2 reader, MatrixZoomData existingZd,
+                                                                Map<Integer, IndexEntry> existingBlocks,
+                                                                RandomAccessFile existingFile,
+                                                                LittleEndianOutputStream los,
+                                                                Deflater compressor) throws IOException {
+        double newSum = sum.get();
+        DownsampledDoubleArrayList sampledData = new DownsampledDoubleArrayList(10000, 10000);
+        Integer[] sortedBlockNumbers = new Integer[blockNumbers.size()];
+        blockNumbers.toArray(sortedBlockNumbers);
+        Arrays.sort(sortedBlockNumbers);
+
+        List<IndexEntry> indexEntries = new ArrayList<>();
+        for (int num : sortedBlockNumbers) {
+            BlockPP currentBlock = getMergedBlock(num, blocks);
+            IndexEntry existingEntry = existingBlocks.get(num);
+            long position = los.getWrittenCount();
+            if (currentBlock == null) {
+                byte[] compressedBytes = new byte[existingEntry.size];
+                existingFile.seek(existingEntry.position);
+                existingFile.readFully(compressedBytes);
+                los.write(compressedBytes);
+            } else {
+                if (existingEntry != null) {
+                    Block block = reader.readNormalizedBlock(num, existingZd, NormalizationHandler.NONE);
+                    if (block != null) {
+                        for (ContactRecord record : block.getContactRecords()) {
+                            currentBlock.incrementCount(record.getBinX(), record.getBinY(), record.getCounts());
+                        }
+                    }
+                }
+                writeBlock(currentBlock, sampledData, los, compressor, countThreshold, cellCount, sum);
+            }
+            long size = los.getWrittenCount() - position;
+            indexEntries.add(new IndexEntry(num, position, (int) size));
+        }
+
+        for (File f : tmpFiles) {
+            if (!f.delete()) {
+                System.out.println("Error while deleting file");
+            }
+        }
+
+        computeStats(sampledData);
+        return new Pair<>(indexEntries, newSum);
+    }
+
     /**
      * Dump the blocks calculated so far to a temporary file
      *
@@ -556,38 +708,65 @@ public class MatrixZoomDataPP {
         compressor.setLevel(Deflater.DEFAULT_COMPRESSION);
 
         for (int i = 0; i < threadBlocks.length; i++) {
-            BlockPP currentBlock = null;
             int num = threadBlocks[i];
-            if (threadSafeBlocks.get(num) != null) {
-                currentBlock = threadSafeBlocks.get(num);
-                if (tmpFilesByBlockNumber.get(num) != null) {
-                    for (Map.Entry<File, Long> entry : tmpFilesByBlockNumber.get(num).entrySet()) {
-                        RecordBlockUtils.readAndMerge(currentBlock, entry);
-                    }
-                }
-            } else if (tmpFilesByBlockNumber.get(num) != null) {
-                Iterator<Map.Entry<File, Long>> iter = tmpFilesByBlockNumber.get(num).entrySet().iterator();
-                if (iter.hasNext()) {
-                    Map.Entry<File, Long> firstEntry = iter.next();
-                    currentBlock = RecordBlockUtils.readTmpBlock(firstEntry.getKey(), firstEntry.getValue());
-                    if (currentBlock != null) {
-                        while (iter.hasNext()) {
-                            RecordBlockUtils.readAndMerge(currentBlock, iter.next());
-                        }
-                    }
-                }
-            }
+            BlockPP currentBlock = getMergedBlock(num, threadSafeBlocks);
 
             if (currentBlock != null) {
                 long position = losArray[threadNum + 1].getWrittenCount();
                 writeBlock(currentBlock, sampledData, losArray[threadNum + 1], compressor,
                         countThreshold, cellCount, sum);
                 long size = losArray[threadNum + 1].getWrittenCount() - position;
+                captureForNorms(currentBlock);
                 indexEntries.add(new IndexEntry(num, position, (int) size));
             }
         }
     }
 
+    /**
+     * Hands the block just written to the collector for the norm step, if pre runs one
+     */
+    private void captureForNorms(BlockPP block) {
+        IntraContactsCollector collector = IntraContactsCollector.getActive();
+        if (collector != null && collector.accepts(chr1, chr2, binSize)) {
+            collector.add(chr1, binSize, block.getContactRecordMap(), countThreshold);
+        }
+    }
+
+    private void finishCaptureForNorms() {
+        IntraContactsCollector collector = IntraContactsCollector.getActive();
+        if (collector != null && collector.accepts(chr1, chr2, binSize)) {
+            collector.finish(chr1, binSize);
+        }
+    }
+
+    /**
+     * @return the block with this number, merged from memory and any temporary files it was spilled to,
+     * or null if no contacts fell in it
+     */
+    private BlockPP getMergedBlock(int num, Map<Integer, BlockPP> inMemoryBlocks) throws IOException {
+        BlockPP currentBlock = null;
+        if (inMemoryBlocks.get(num) != null) {
+            currentBlock = inMemoryBlocks.get(num);
+            if (tmpFilesByBlockNumber.get(num) != null) {
+                for (Map.Entry<File, Long> entry : tmpFilesByBlockNumber.get(num).entrySet()) {
+                    RecordBlockUtils.readAndMerge(currentBlock, entry);
+                }
+            }
+        } else if (tmpFilesByBlockNumber.get(num) != null) {
+            Iterator<Map.Entry<File, Long>> iter = tmpFilesByBlockNumber.get(num).entrySet().iterator();
+            if (iter.hasNext()) {
+                Map.Entry<File, Long> firstEntry = iter.next();
+                currentBlock = RecordBlockUtils.readTmpBlock(firstEntry.getKey(), firstEntry.getValue());
+                if (currentBlock != null) {
+                    while (iter.hasNext()) {
+                        RecordBlockUtils.readAndMerge(currentBlock, iter.next());
+                    }
+                }
+            }
+        }
+        return currentBlock;
+    }
+
     /**
      * used by multithreaded code
      *
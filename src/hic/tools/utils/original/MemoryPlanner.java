@@ -0,0 +1,305 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.original;
+
+import hic.tools.utils.iterators.mnd.ColumnarPairsIndex;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.basics.ChromosomeHandler;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sizes the in-memory parts of pre and addNorm from the available heap.
+ * <p>
+ * The plan is built from -Xmx, the chromosome sizes, the resolutions and a contact count
+ * estimated from the head of the input. It picks the number of blocks each zoom keeps in
+ * memory before spilling to disk, caps the number of threads, and picks the resolution
+ * below which normalization keeps contacts on disk (the --save-ram cutoff).
+ * <p>
+ * Once activated, a monitor watches the heap after each garbage collection; whenever it
+ * stays above {@link #PRESSURE_RATIO} every zoom halves its block capacity on its next update.
+ */
+public class MemoryPlanner {
+
+    // HashMap<Point, Float> entry: node, key, boxed value and table slot
+    private static final int BYTES_PER_BLOCK_RECORD = 80;
+    // int/int/float in a BigContactArray, plus a working copy when reading a zoom
+    private static final int BYTES_PER_NORM_RECORD = 24;
+    // only plan with part of the heap; the rest is left to buffers, expected vectors and garbage
+    private static final double USABLE_FRACTION = 0.6;
+    private static final double PRESSURE_RATIO = 0.8;
+    private static final int MIN_BLOCK_CAPACITY = 10;
+    private static final int SAMPLE_LINES = 100000;
+    private static final int BIN_RECORD_SIZE = 26;
+    private static final int SHORT_BIN_RECORD_SIZE = 20;
+    private static final int BAM_BYTES_PER_CONTACT = 100;
+    private static final int HIC_BYTES_PER_CONTACT = 4;
+
+    private static final AtomicInteger pressureEvents = new AtomicInteger(0);
+    private static MemoryPlanner active = null;
+
+    private final long maxHeap;
+    private final long usableHeap;
+    private final long estimatedContacts;
+    private final int[] binSizes;
+    private final int[] blockCapacities;
+    private final long[] bytesPerBlock;
+    private final long largestChromosomeContacts;
+    private final int numThreads;
+    private final int normCutoff;
+    private final long minimumHeap;
+
+    public MemoryPlanner(ChromosomeHandler handler, int[] binSizes, long estimatedContacts,
+                         int requestedThreads, int normThreads) {
+        this(Runtime.getRuntime().maxMemory(), handler, binSizes, estimatedContacts, requestedThreads, normThreads);
+    }
+
+    MemoryPlanner(long maxHeap, ChromosomeHandler handler, int[] binSizes, long estimatedContacts,
+                  int requestedThreads, int normThreads) {
+        this.maxHeap = maxHeap;
+        this.usableHeap = (long) (maxHeap * USABLE_FRACTION);
+        this.estimatedContacts = Math.max(1, estimatedContacts);
+        this.binSizes = binSizes.clone();
+
+        long genomeLength = 0;
+        long largestLength = 1;
+        for (Chromosome chrom : handler.getChromosomeArrayWithoutAllByAll()) {
+            genomeLength += chrom.getLength();
+            largestLength = Math.max(largestLength, chrom.getLength());
+        }
+        // assume contacts are mostly intra-chromosomal, spread by chromosome length
+        largestChromosomeContacts = (long) (this.estimatedContacts * ((double) largestLength / Math.max(1, genomeLength)));
+
+        bytesPerBlock = new long[binSizes.length];
+        long minimumPerThread = 0;
+        for (int i = 0; i < binSizes.length; i++) {
+            bytesPerBlock[i] = estimateBytesPerBlock(largestLength, binSizes[i]);
+            minimumPerThread += MIN_BLOCK_CAPACITY * bytesPerBlock[i];
+        }
+        minimumHeap = (long) (minimumPerThread / USABLE_FRACTION);
+
+        int threads = (int) Math.min(requestedThreads, usableHeap / Math.max(1, minimumPerThread));
+        numThreads = Math.max(1, threads);
+
+        blockCapacities = new int[binSizes.length];
+        long budgetPerZoom = usableHeap / ((long) numThreads * binSizes.length);
+        for (int i = 0; i < binSizes.length; i++) {
+            long capacity = budgetPerZoom / Math.max(1, bytesPerBlock[i]);
+            blockCapacities[i] = (int) Math.max(MIN_BLOCK_CAPACITY, Math.min(capacity, Integer.MAX_VALUE / 2));
+        }
+
+        normCutoff = planNormCutoff(largestLength, Math.max(1, normThreads));
+    }
+
+    /**
+     * Blocks are ~BLOCK_CAPACITY bins wide; the blocks along the diagonal hold most contacts,
+     * so a block is assumed to hold a diagonal block's share of the largest chromosome.
+     */
+    private long estimateBytesPerBlock(long chromLength, int binSize) {
+        long nBins = chromLength / binSize + 1;
+        long nColumns = Math.max(1, nBins / Preprocessor.BLOCK_CAPACITY + 1);
+        long binsPerBlock = nBins / nColumns + 1;
+        long records = Math.min(largestChromosomeContacts / nColumns + 1, binsPerBlock * binsPerBlock);
+        return records * BYTES_PER_BLOCK_RECORD;
+    }
+
+    private int planNormCutoff(long chromLength, int normThreads) {
+        int[] sorted = binSizes.clone();
+        Arrays.sort(sorted);
+        for (int binSize : sorted) {
+            long nBins = chromLength / binSize + 1;
+            long records = Math.min(largestChromosomeContacts, nBins * (nBins + 1) / 2);
+            if (normThreads * records * BYTES_PER_NORM_RECORD < usableHeap) {
+                return binSize;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @return resolution below which norms are computed from contacts saved to disk
+     */
+    public int getNormCutoff() {
+        return normCutoff;
+    }
+
+    int getBlockCapacity(int binSize) {
+        for (int i = 0; i < binSizes.length; i++) {
+            if (binSizes[i] == binSize) return blockCapacities[i];
+        }
+        return Preprocessor.BLOCK_CAPACITY;
+    }
+
+    public boolean isFeasible() {
+        return minimumHeap <= maxHeap;
+    }
+
+    /**
+     * @param includeMatrices also report the block capacities and threads used when building matrices
+     */
+    public void print(boolean includeMatrices) {
+        System.out.println("Memory plan for " + (maxHeap >> 20) + " MB heap, ~" + estimatedContacts + " contacts");
+        if (includeMatrices) {
+            for (int i = 0; i < binSizes.length; i++) {
+                System.out.println("  " + binSizes[i] + " bp: " + blockCapacities[i] + " blocks in memory (~"
+                        + (bytesPerBlock[i] >> 10) + " KB each)");
+            }
+            System.out.println("  threads: " + numThreads);
+        }
+        if (normCutoff == Integer.MAX_VALUE) {
+            System.out.println("  norms: all resolutions read from disk");
+        } else {
+            System.out.println("  norms: resolutions below " + normCutoff + " read from disk");
+        }
+        if (includeMatrices && !isFeasible()) {
+            System.err.println("Warning: at least " + (minimumHeap >> 20) + " MB of heap is recommended; " +
+                    "increase -Xmx or expect heavy spilling to disk");
+        }
+    }
+
+    /**
+     * Use this plan for all matrices built from now on, and start watching heap usage
+     */
+    public static synchronized void activate(MemoryPlanner planner) {
+        active = planner;
+        Timer timer = new Timer("memory-monitor", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            private long lastCollections = -1;
+
+            @Override
+            public void run() {
+                long collections = 0;
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                    collections += Math.max(0, gc.getCollectionCount());
+                }
+                if (collections == lastCollections) return;
+                lastCollections = collections;
+                MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+                long max = usage.getMax() > 0 ? usage.getMax() : Runtime.getRuntime().maxMemory();
+                if (usage.getUsed() > PRESSURE_RATIO * max) {
+                    pressureEvents.incrementAndGet();
+                }
+            }
+        }, 250, 250);
+    }
+
+    /**
+     * @return planned blocks kept in memory for this resolution, or the requested capacity without a plan
+     */
+    static int getBlockCapacity(int binSize, int requested) {
+        MemoryPlanner planner = active;
+        if (planner == null) return requested;
+        return planner.getBlockCapacity(binSize);
+    }
+
+    /**
+     * Incremented each time the heap is still above the pressure ratio after a collection
+     */
+    static int getPressureEvents() {
+        return pressureEvents.get();
+    }
+
+    static int reduceBlockCapacity(int capacity) {
+        return Math.max(MIN_BLOCK_CAPACITY, capacity / 2);
+    }
+
+    /**
+     * Estimate the number of contacts in a pairs file from its size and the first lines (or records)
+     */
+    public static long estimateContacts(String path) throws IOException {
+        File file = new File(path);
+        long length = file.length();
+        if (path.endsWith(".bin")) {
+            return length / BIN_RECORD_SIZE;
+        } else if (path.endsWith(".bn")) {
+            return length / SHORT_BIN_RECORD_SIZE;
+        } else if (ColumnarPairsIndex.isColumnarPairsFile(path)) {
+            return ColumnarPairsIndex.read(path).getTotalRecords();
+        } else if (path.endsWith(".bam")) {
+            return length / BAM_BYTES_PER_CONTACT;
+        }
+
+        try (CountingInputStream counter = new CountingInputStream(new FileInputStream(file))) {
+            // keep read-ahead small so the compressed bytes counted match the sampled lines
+            InputStream is = path.endsWith(".gz") ? new GZIPInputStream(counter, 8192) : counter;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            long lines = 0;
+            long bytes = 0;
+            String line;
+            while (lines < SAMPLE_LINES && (line = reader.readLine()) != null) {
+                lines++;
+                bytes += line.length() + 1;
+            }
+            if (lines < SAMPLE_LINES) return lines;
+            if (path.endsWith(".gz")) {
+                // compressed bytes consumed so far stand in for the sampled lines
+                return (long) (lines * ((double) length / Math.max(1, counter.count)));
+            }
+            return (long) (lines * ((double) length / bytes));
+        }
+    }
+
+    /**
+     * Estimate the contacts in an existing .hic file from its size
+     */
+    public static long estimateContactsInHiCFile(String path) {
+        return new File(path).length() / HIC_BYTES_PER_CONTACT;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
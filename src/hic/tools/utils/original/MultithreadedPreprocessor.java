@@ -26,19 +26,23 @@ package hic.tools.utils.original;
 
 import hic.HiCGlobals;
 import hic.tools.utils.cleaner.ContactCleaner;
+import hic.tools.utils.cleaner.DuplicatePairFilter;
+import hic.tools.utils.instrumentation.PhaseTracker;
 import hic.tools.utils.iterators.mnd.AlignmentPair;
 import hic.tools.utils.iterators.mnd.AsciiPairIterator;
+import hic.tools.utils.iterators.mnd.ColumnarPairIterator;
+import hic.tools.utils.iterators.mnd.ColumnarPairsIndex;
 import hic.tools.utils.iterators.mnd.PairIterator;
+import hic.tools.utils.tasks.TaskScope;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import javastraw.reader.type.NormalizationHandler;
-import javastraw.tools.ParallelizationTools;
 import org.broad.igv.util.Pair;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Deflater;
 
@@ -62,7 +66,7 @@ public class MultithreadedPreprocessor extends Preprocessor {
     private int totalChunks = 0;
     private final ConcurrentHashMap<Integer, AtomicInteger> completedChunksPerChrPair = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Integer, Integer> numChunksPerChrPair = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Integer, AtomicInteger> chrPairCompleted = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CountDownLatch> chrPairCompleted = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Integer, AtomicInteger> chrPairAvailableThreads = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Integer, Integer> chrPairBlockCapacities = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<Integer, Integer> chunkCounterToChrPairMap = new ConcurrentHashMap<>();
@@ -72,19 +76,34 @@ public class MultithreadedPreprocessor extends Preprocessor {
 
     public MultithreadedPreprocessor(File outputFile, String genomeId, double hicFileScalingFactor, int numCPUThreads,
                                      String mndIndexFile, String tmpDir) throws IOException {
+        this(outputFile, genomeId, hicFileScalingFactor, numCPUThreads, tmpDir);
+        setMndIndex(mndIndexFile);
+    }
+
+    /**
+     * The index must be given through {@link #setMndIndex(String)} before preprocessing, e.g. once the
+     * input has been grouped into a columnar pairs file
+     */
+    public MultithreadedPreprocessor(File outputFile, String genomeId, double hicFileScalingFactor, int numCPUThreads,
+                                     String tmpDir) {
         super(outputFile, genomeId, hicFileScalingFactor, tmpDir);
         MultithreadedPreprocessor.numCPUThreads = numCPUThreads;
         chromosomeIndexes = MTIndexHandler.populateChromosomeIndexes(chromosomeHandler, numCPUThreads);
         chromosomePairCounter = MTIndexHandler.populateChromosomePairIndexes(chromosomeHandler,
                 chromosomePairIndexes, chromosomePairIndexesReverse,
                 chromosomePairIndex1, chromosomePairIndex2);
-        setMndIndex(mndIndexFile, chromosomePairIndexes);
         this.chromosomePairBlockIndexes = new ConcurrentHashMap<>(chromosomePairCounter, (float) 0.75, numCPUThreads);
         this.allLocalExpectedValueCalculations = new ConcurrentHashMap<>(numCPUThreads, (float) 0.75, numCPUThreads);
     }
 
+    public void setMndIndex(String mndIndexFile) throws IOException {
+        setMndIndex(mndIndexFile, chromosomePairIndexes);
+    }
+
     public void setMndIndex(String mndIndexFile, Map<Integer, String> chromosomePairIndexes) throws IOException {
-        if (mndIndexFile != null && mndIndexFile.length() > 1) {
+        if (ColumnarPairsIndex.isColumnarPairsFile(mndIndexFile)) {
+            mndIndex = MTIndexHandler.readColumnarPairsIndex(mndIndexFile, chromosomePairIndexes);
+        } else if (mndIndexFile != null && mndIndexFile.length() > 1) {
             mndIndex = MTIndexHandler.readMndIndex(mndIndexFile, chromosomePairIndexes);
         } else {
             throw new IOException("No mndIndex provided");
@@ -151,21 +170,29 @@ public class MultithreadedPreprocessor extends Preprocessor {
             }
             int chrChunk = chunkCounterToChrChunkMap.get(i);
             List<Chunk> chunkPositions = mndIndex.get(chrPair);
+            PhaseTracker.Phase phase = PhaseTracker.start("pre.parseChunk");
+            long numRecords = 0;
             PairIterator iter = null;
             if (mndIndex == null) {
                 System.err.println("No index for merged nodups file.");
                 System.exit(67);
+            } else if (ColumnarPairsIndex.isColumnarPairsFile(inputFile)) {
+                iter = new ColumnarPairIterator(inputFile, chromosomeIndexes, chunkPositions.get(chrChunk),
+                        chromosomeHandler);
             } else {
                 iter = new AsciiPairIterator(inputFile, chromosomeIndexes, chunkPositions.get(chrChunk),
                         chromosomeHandler);
             }
             ContactCleaner cleaner = new ContactCleaner(chromosomeHandler);
+            DuplicatePairFilter duplicateFilter = newDuplicateFilter();
 
             while (iter.hasNext()) {
                 AlignmentPair pair = iter.next();
+                numRecords++;
                 // skip pairs that mapped to contigs
                 if (pair.isNotContigPair()) {
                     if (shouldSkipContact(pair)) continue;
+                    if (duplicateFilter != null && duplicateFilter.isDuplicate(pair)) continue;
                     // Flip pair if needed so chr1 < chr2
                     cleaner.updateLatestContact(pair);
 
@@ -200,6 +227,10 @@ public class MultithreadedPreprocessor extends Preprocessor {
             }
 
             iter.close();
+            if (duplicateFilter != null) {
+                numDuplicates.addAndGet(duplicateFilter.getNumDuplicates());
+            }
+            phase.addRecords(numRecords).addBytesRead(chunkPositions.get(chrChunk).mndChunk).end();
             chunksProcessed++;
             i = chunkCounter.getAndIncrement();
         }
@@ -220,7 +251,7 @@ public class MultithreadedPreprocessor extends Preprocessor {
                 int numOfChunks = mndIndex.get(chrPair).size();
                 completedChunksPerChrPair.put(chrPair, new AtomicInteger(0));
                 numChunksPerChrPair.put(chrPair, numOfChunks);
-                chrPairCompleted.put(chrPair, new AtomicInteger(0));
+                chrPairCompleted.put(chrPair, new CountDownLatch(1));
                 chrPairAvailableThreads.put(chrPair, new AtomicInteger(0));
                 chrPairBlockCapacities.put(chrPair, BLOCK_CAPACITY/Math.min(numCPUThreads,numOfChunks));
                 threadSpecificChrPairMatrices.put(chrPair, new ConcurrentHashMap<>());
@@ -234,7 +265,7 @@ public class MultithreadedPreprocessor extends Preprocessor {
             }
         }
 
-        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
+        TaskScope scope = new TaskScope();
         for (int i = 1; i < numCPUThreads; i++) {
             int threadNum = i;
             Runnable worker = () -> {
@@ -270,15 +301,13 @@ public class MultithreadedPreprocessor extends Preprocessor {
                             writeIndividualMatrix(currentChrPair, currentAvailableThreads);
                             finalChrMatrices.remove(currentChrPair);
                             threadSpecificChrPairMatrices.remove(currentChrPair);
-                            chrPairCompleted.get(currentChrPair).getAndIncrement();
+                            chrPairCompleted.get(currentChrPair).countDown();
                             //System.err.println(currentChrPair + " " + Duration.between(D,E).toMillis());
                         }
-                        while (chrPairCompleted.get(currentChrPair).get() == 0) {
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e) {
-                                System.err.println(e.getLocalizedMessage());
-                            }
+                        try {
+                            chrPairCompleted.get(currentChrPair).await();
+                        } catch (InterruptedException e) {
+                            System.err.println(e.getLocalizedMessage());
                         }
 
                     }
@@ -287,10 +316,16 @@ public class MultithreadedPreprocessor extends Preprocessor {
                     e.printStackTrace();
                 }
             };
-            executor.execute(worker);
+            scope.fork(worker);
         }
 
-        ParallelizationTools.shutDownAndWaitUntilDone(executor, 1000);
+        try {
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Unable to process chunks of " + inputFile);
+            e.printStackTrace();
+            System.exit(90);
+        }
 
         for (int i = 0; i < numCPUThreads; i++) {
             if (allLocalExpectedValueCalculations.get(i) != null) {
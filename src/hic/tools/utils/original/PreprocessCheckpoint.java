@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.original;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Sidecar file recording how far a single-threaded pre run has durably written its output.
+ * <p>
+ * A checkpoint is taken after each chromosome pair's matrix is written: the output length at that
+ * point, where in the input the next matrix starts, the positions of all written matrices, the
+ * expected value counts and the number of duplicate pairs removed so far. A restarted run truncates the output to that length and carries on
+ * from the next matrix, producing the same file as an uninterrupted run.
+ * <p>
+ * The options that decide what goes into each matrix are recorded too, so a restart with other
+ * options is refused instead of appending matrices built differently.
+ */
+public class PreprocessCheckpoint {
+
+    public static final String SUFFIX = ".checkpoint";
+    private static final byte[] MAGIC = "HICCKPT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+
+    final String options;
+    final long inputLength;
+    final long headerLength;
+    final long outputOffset;
+    final long inputPosition;
+    final long pairsConsumed;
+    final long numDuplicates;
+    final List<String> writtenMatrices;
+    final Map<String, IndexEntry> matrixPositions;
+    private final Map<String, byte[]> expectedStates;
+
+    private PreprocessCheckpoint(String options, long inputLength, long headerLength, long outputOffset, long inputPosition,
+                                 long pairsConsumed, long numDuplicates, List<String> writtenMatrices,
+                                 Map<String, IndexEntry> matrixPositions, Map<String, byte[]> expectedStates) {
+        this.options = options;
+        this.inputLength = inputLength;
+        this.headerLength = headerLength;
+        this.outputOffset = outputOffset;
+        this.inputPosition = inputPosition;
+        this.pairsConsumed = pairsConsumed;
+        this.numDuplicates = numDuplicates;
+        this.writtenMatrices = writtenMatrices;
+        this.matrixPositions = matrixPositions;
+        this.expectedStates = expectedStates;
+    }
+
+    public static File getFile(String outputPath) {
+        return new File(outputPath + SUFFIX);
+    }
+
+    /**
+     * Durably write a checkpoint; the output must already be flushed and synced up to outputOffset
+     *
+     * @param options       description of the options that affect the written matrices
+     * @param inputPosition byte offset of the first pair of the next matrix, or -1 if the input can't be seeked
+     * @param pairsConsumed number of pairs read before the first pair of the next matrix
+     * @param numDuplicates number of duplicate pairs removed among those
+     */
+    static void save(File checkpointFile, String options, long inputLength, long headerLength, long outputOffset, long inputPosition, long pairsConsumed,
+                     long numDuplicates, Collection<String> writtenMatrices, Map<String, IndexEntry> matrixPositions,
+                     Map<String, ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+        File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            byte[] optionBytes = options.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(optionBytes.length);
+            out.write(optionBytes);
+            out.writeLong(inputLength);
+            out.writeLong(headerLength);
+            out.writeLong(outputOffset);
+            out.writeLong(inputPosition);
+            out.writeLong(pairsConsumed);
+            out.writeLong(numDuplicates);
+
+            out.writeInt(writtenMatrices.size());
+            for (String key : writtenMatrices) {
+                out.writeUTF(key);
+            }
+
+            out.writeInt(matrixPositions.size());
+            for (Map.Entry<String, IndexEntry> entry : matrixPositions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().position);
+                out.writeInt(entry.getValue().size);
+            }
+
+            synchronized (expectedValueCalculations) {
+                out.writeInt(expectedValueCalculations.size());
+                for (Map.Entry<String, ExpectedValueCalculation> entry : expectedValueCalculations.entrySet()) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    entry.getValue().writeState(new DataOutputStream(bytes));
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(bytes.size());
+                    bytes.writeTo(out);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the last checkpoint, or null if there is none
+     */
+    static PreprocessCheckpoint load(File checkpointFile) throws IOException {
+        if (!checkpointFile.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(checkpointFile + " is not a pre checkpoint");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported checkpoint version " + version + " in " + checkpointFile);
+            }
+            byte[] optionBytes = new byte[in.readInt()];
+            in.readFully(optionBytes);
+            String options = new String(optionBytes, StandardCharsets.UTF_8);
+            long inputLength = in.readLong();
+            long headerLength = in.readLong();
+            long outputOffset = in.readLong();
+            long inputPosition = in.readLong();
+            long pairsConsumed = in.readLong();
+            long numDuplicates = in.readLong();
+
+            int numWritten = in.readInt();
+            List<String> writtenMatrices = new ArrayList<>(numWritten);
+            for (int i = 0; i < numWritten; i++) {
+                writtenMatrices.add(in.readUTF());
+            }
+
+            int numPositions = in.readInt();
+            Map<String, IndexEntry> matrixPositions = new LinkedHashMap<>();
+            for (int i = 0; i < numPositions; i++) {
+                String key = in.readUTF();
+                matrixPositions.put(key, new IndexEntry(in.readLong(), in.readInt()));
+            }
+
+            int numExpected = in.readInt();
+            Map<String, byte[]> expectedStates = new HashMap<>();
+            for (int i = 0; i < numExpected; i++) {
+                String key = in.readUTF();
+                byte[] state = new byte[in.readInt()];
+                in.readFully(state);
+                expectedStates.put(key, state);
+            }
+            return new PreprocessCheckpoint(options, inputLength, headerLength, outputOffset, inputPosition, pairsConsumed,
+                    numDuplicates, writtenMatrices, matrixPositions, expectedStates);
+        }
+    }
+
+    void restoreExpectedValues(Map<String, ExpectedValueCalculation> expectedValueCalculations) throws IOException {
+        for (Map.Entry<String, ExpectedValueCalculation> entry : expectedValueCalculations.entrySet()) {
+            byte[] state = expectedStates.get(entry.getKey());
+            if (state == null) {
+                throw new IOException("Checkpoint has no expected values for " + entry.getKey());
+            }
+            entry.getValue().readState(new DataInputStream(new ByteArrayInputStream(state)));
+        }
+    }
+
+    /**
+     * Drop anything written after the checkpoint
+     */
+    void truncateOutput(File outputFile) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(outputFile, "rw").getChannel()) {
+            if (channel.size() < outputOffset) {
+                throw new IOException(outputFile + " is shorter than its checkpoint");
+            }
+            channel.truncate(outputOffset);
+            channel.force(true);
+        }
+    }
+}
@@ -24,22 +24,36 @@
 
 package hic.tools.utils.original;
 
+import hic.HiCGlobals;
 import hic.tools.utils.cleaner.ContactCleaner;
+import hic.tools.utils.cleaner.DuplicatePairFilter;
+import hic.tools.utils.instrumentation.PhaseTracker;
 import hic.tools.utils.iterators.mnd.AlignmentPair;
+import hic.tools.utils.iterators.mnd.AsciiPairIterator;
 import hic.tools.utils.iterators.mnd.PairIterator;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 
 public class Preprocessor extends HiCFileBuilder {
 
+    private boolean useCheckpoints = false;
+    private File checkpointFile = null;
+    private PreprocessCheckpoint resumeFrom = null;
+    private long headerLength = 0;
 
     public Preprocessor(File outputFile, String genomeId, double hicFileScalingFactor, String tmp) {
         super(outputFile, genomeId, hicFileScalingFactor, tmp);
     }
 
+    /**
+     * Record a checkpoint after each matrix, and resume from an existing one
+     */
+    public void setUseCheckpoints(boolean useCheckpoints) {
+        this.useCheckpoints = useCheckpoints;
+    }
+
     public void preprocess(final String inputFile, final String headerFile, final String footerFile,
                            Map<Integer, List<Chunk>> mndIndex) throws IOException {
         File file = new File(inputFile);
@@ -48,27 +62,163 @@ public class Preprocessor extends HiCFileBuilder {
             System.exit(57);
         }
 
+        if (useCheckpoints && headerFile.equals(footerFile)) {
+            checkpointFile = PreprocessCheckpoint.getFile(headerFile);
+            resumeFrom = PreprocessCheckpoint.load(checkpointFile);
+            if (resumeFrom != null && resumeFrom.inputLength != file.length()) {
+                System.err.println(inputFile + " has changed since " + checkpointFile + " was written; " +
+                        "delete the checkpoint to start over.");
+                System.exit(71);
+            }
+            if (resumeFrom != null && !resumeFrom.options.equals(describeMatrixOptions())) {
+                System.err.println("Options differ from the checkpointed run:\n  checkpoint: " + resumeFrom.options +
+                        "\n  this run:   " + describeMatrixOptions() +
+                        "\nRerun pre with the same options or delete " + checkpointFile);
+                System.exit(71);
+            }
+        }
+
         try {
-            LittleEndianOutputStream[] losFooter = initializeLosArrays(headerFile, footerFile);
+            LittleEndianOutputStream[] losFooter;
+            if (resumeFrom == null) {
+                losFooter = initializeLosArrays(headerFile, footerFile);
+            } else {
+                losFooter = resumeLosArrays(headerFile);
+            }
+            PhaseTracker.Phase phase = PhaseTracker.start("pre.header");
             writeHeader();
+            headerLength = losArray[0].getWrittenCount();
+            if (resumeFrom != null) {
+                continueFromCheckpoint(headerFile);
+            }
+            long headerBytes = totalBytesWritten(losArray);
+            phase.addBytesWritten(headerBytes).end();
+
+            phase = PhaseTracker.start("pre.body");
             writeBody(inputFile, mndIndex);
+            phase.addBytesRead(file.length()).addBytesWritten(totalBytesWritten(losArray) - headerBytes).end();
+
+            phase = PhaseTracker.start("pre.footer");
+            long footerStart = totalBytesWritten(losFooter);
             writeFooter(losFooter);
+            phase.addBytesWritten(totalBytesWritten(losFooter) - footerStart).end();
             closeLosArray(losFooter);
         } finally {
             closeLosArray(losArray);
         }
 
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.masterIndex");
         updateMasterIndex(headerFile);
+        phase.addBytesWritten(8).end();
+        if (checkpointFile != null && !checkpointFile.delete()) {
+            System.err.println("Unable to remove " + checkpointFile);
+        }
+        if (duplicateTolerance >= 0) {
+            System.out.println("\nDuplicate pairs removed: " + numDuplicates.get());
+        }
         System.out.println("\nFinished preprocess");
     }
 
+    /**
+     * Truncate the output to the checkpoint; the header is replayed into a discarded stream
+     * so the header positions patched at the end are known again
+     */
+    private LittleEndianOutputStream[] resumeLosArrays(String headerFile) throws IOException {
+        System.out.println("Resuming from " + checkpointFile + " (" + resumeFrom.writtenMatrices.size() +
+                " matrices written)");
+        resumeFrom.truncateOutput(new File(headerFile));
+        losArray[0] = new LittleEndianOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+
+        matrixPositions.putAll(resumeFrom.matrixPositions);
+        resumeFrom.restoreExpectedValues(expectedValueCalculations);
+        return losArray;
+    }
+
+    /**
+     * Switch from the replayed header to appending after the checkpointed output
+     */
+    private void continueFromCheckpoint(String headerFile) throws IOException {
+        if (headerLength != resumeFrom.headerLength) {
+            System.err.println("Header differs from the checkpointed run; rerun pre with the same options " +
+                    "or delete " + checkpointFile);
+            System.exit(71);
+        }
+        headerOutputStream = new AsyncOutputStream(new File(headerFile), true, HiCGlobals.bufferSize);
+        losArray[0] = headerOutputStream;
+        losArray[0].setWrittenCount(resumeFrom.outputOffset);
+    }
+
+    /**
+     * Make everything written so far durable, then record where the next matrix starts
+     */
+    private void saveCheckpoint(String inputFile, long inputPosition, long pairsConsumed,
+                                Collection<String> writtenMatrices, DuplicatePairFilter duplicateFilter) throws IOException {
+        if (checkpointFile == null) return;
+        headerOutputStream.sync();
+        long duplicatesSoFar = numDuplicates.get() + (duplicateFilter == null ? 0 : duplicateFilter.getNumDuplicates());
+        PreprocessCheckpoint.save(checkpointFile, describeMatrixOptions(), new File(inputFile).length(), headerLength,
+                losArray[0].getWrittenCount(), inputPosition, pairsConsumed, duplicatesSoFar, writtenMatrices,
+                matrixPositions, expectedValueCalculations);
+    }
+
+    /**
+     * @return the options that decide which pairs are counted and how each matrix is written
+     */
+    private String describeMatrixOptions() {
+        String chromosomes = "all";
+        if (includedChromosomes != null) {
+            List<String> names = new ArrayList<>(includedChromosomes);
+            Collections.sort(names);
+            chromosomes = String.join(",", names);
+        }
+        return "genome=" + genomeId + " resolutions=" + Arrays.toString(bpBinSizes) + " mapq=" + mapqThreshold +
+                " countThreshold=" + countThreshold + " intra=" + intraChromosomalOnly +
+                " nearDiagonal=" + onlyNearDiagonalContacts + " chromosomes=" + chromosomes +
+                " pairType=" + (filter == null ? "all" : filter.getType()) + " dedupTolerance=" + duplicateTolerance +
+                " depthBase=" + v9DepthBase + " scaling=" + hicFileScalingFactor + " blockCapacity=" + BLOCK_CAPACITY;
+    }
+
+    /**
+     * @return iterator over the input, positioned at the first pair not covered by the checkpoint
+     */
+    private PairIterator openBodyIterator(String inputFile) throws IOException {
+        if (resumeFrom == null) {
+            return PairIterator.getIterator(inputFile, chromosomeIndexes, chromosomeHandler);
+        }
+        if (resumeFrom.inputPosition >= 0) {
+            return new AsciiPairIterator(inputFile, chromosomeIndexes, chromosomeHandler, resumeFrom.inputPosition);
+        }
+        PairIterator iter = PairIterator.getIterator(inputFile, chromosomeIndexes, chromosomeHandler);
+        for (long i = 0; i < resumeFrom.pairsConsumed && iter.hasNext(); i++) {
+            iter.next();
+        }
+        return iter;
+    }
+
+    private static AsciiPairIterator getSeekableIterator(PairIterator iter, String inputFile) {
+        if (iter instanceof AsciiPairIterator && !inputFile.endsWith(".gz")) {
+            return (AsciiPairIterator) iter;
+        }
+        return null;
+    }
+
     /**
      * @param file List of files to read
      * @return Matrix with counts in each bin
      */
-    private MatrixPP computeWholeGenomeMatrix(String file) throws IOException {
+    protected MatrixPP computeWholeGenomeMatrix(String file) throws IOException {
 
+        PhaseTracker.Phase phase = PhaseTracker.start("pre.genomeWide");
         MatrixPP matrix = getInitialGenomeWideMatrixPP(chromosomeHandler);
+        long numRecords = 0;
 
         PairIterator iter = null;
 
@@ -82,10 +232,12 @@ public class Preprocessor extends HiCFileBuilder {
         try {
             iter = PairIterator.getIterator(file, chromosomeIndexes, chromosomeHandler);
             //ContactFilter filter = getContactFilter();
+            DuplicatePairFilter duplicateFilter = newDuplicateFilter();
 
             while (iter.hasNext()) {
                 // totalRead++;
                 AlignmentPair pair = iter.next();
+                numRecords++;
                 if (pair.isNotContigPair()) {
                     int bp1 = pair.getPos1();
                     int bp2 = pair.getPos2();
@@ -94,6 +246,7 @@ public class Preprocessor extends HiCFileBuilder {
 
                     int pos1, pos2;
                     if (shouldSkipContact(pair)) continue;
+                    if (duplicateFilter != null && duplicateFilter.isDuplicate(pair)) continue;
                     pos1 = ContactCleaner.getWholeGenomePosition(chr1, bp1, chromosomeHandler);
                     pos2 = ContactCleaner.getWholeGenomePosition(chr2, bp2, chromosomeHandler);
                     matrix.incrementCount(pos1, pos2, pair.getScore(), expectedValueCalculations, tmpDir);
@@ -104,6 +257,7 @@ public class Preprocessor extends HiCFileBuilder {
             if (iter != null) iter.close();
         }
         matrix.parsingComplete();
+        phase.addRecords(numRecords).addBytesRead(new File(file).length()).end();
         return matrix;
     }
 
@@ -111,25 +265,37 @@ public class Preprocessor extends HiCFileBuilder {
 
     protected void writeBody(String inputFile, Map<Integer, List<Chunk>> mndIndex) throws IOException {
         System.out.println("Writing body");
-        MatrixPP wholeGenomeMatrix = computeWholeGenomeMatrix(inputFile);
-        writeMatrix(wholeGenomeMatrix, losArray, compressor, matrixPositions,
-                -1, false, outputFile);
-
-        PairIterator iter = PairIterator.getIterator(inputFile, chromosomeIndexes, chromosomeHandler);
+        Set<String> writtenMatrices = Collections.synchronizedSet(new LinkedHashSet<>());
+        long pairsConsumed = 0;
+        if (resumeFrom == null) {
+            MatrixPP wholeGenomeMatrix = computeWholeGenomeMatrix(inputFile);
+            writeMatrix(wholeGenomeMatrix, losArray, compressor, matrixPositions,
+                    -1, false, outputFile);
+            saveCheckpoint(inputFile, -1, 0, writtenMatrices, null);
+        } else {
+            writtenMatrices.addAll(resumeFrom.writtenMatrices);
+            pairsConsumed = resumeFrom.pairsConsumed;
+            numDuplicates.set(resumeFrom.numDuplicates);
+        }
 
-        Set<String> writtenMatrices = Collections.synchronizedSet(new HashSet<>());
+        PairIterator iter = openBodyIterator(inputFile);
+        AsciiPairIterator seekableIter = getSeekableIterator(iter, inputFile);
 
         int currentChr1 = -1;
         int currentChr2 = -1;
         MatrixPP currentMatrix = null;
         String currentMatrixKey = null;
         ContactCleaner cleaner = new ContactCleaner(chromosomeHandler);
+        DuplicatePairFilter duplicateFilter = newDuplicateFilter();
 
         while (iter.hasNext()) {
+            long pairPosition = seekableIter == null ? -1 : seekableIter.getNextPairPosition();
+            long pairIndex = pairsConsumed++;
             AlignmentPair pair = iter.next();
             // skip pairs that mapped to contigs
             if (pair.isNotContigPair()) {
                 if (shouldSkipContact(pair)) continue;
+                if (duplicateFilter != null && duplicateFilter.isDuplicate(pair)) continue;
                 // Flip pair if needed so chr1 < chr2
                 cleaner.updateLatestContact(pair);
 
@@ -143,6 +309,7 @@ public class Preprocessor extends HiCFileBuilder {
                         writeMatrix(currentMatrix, losArray, compressor, matrixPositions,
                                 -1, false, outputFile);
                         writtenMatrices.add(currentMatrixKey);
+                        saveCheckpoint(inputFile, pairPosition, pairIndex, writtenMatrices, duplicateFilter);
                         currentMatrix = null;
                         System.gc();
                         //System.out.println("Available memory: " + RuntimeUtils.getAvailableMemory());
@@ -169,9 +336,15 @@ public class Preprocessor extends HiCFileBuilder {
             currentMatrix.parsingComplete();
             writeMatrix(currentMatrix, losArray, compressor, matrixPositions,
                     -1, false, outputFile);
+            writtenMatrices.add(currentMatrixKey);
+            saveCheckpoint(inputFile, seekableIter == null ? -1 : new File(inputFile).length(),
+                    pairsConsumed, writtenMatrices, duplicateFilter);
         }
 
         iter.close();
+        if (duplicateFilter != null) {
+            numDuplicates.addAndGet(duplicateFilter.getNumDuplicates());
+        }
 
         masterIndexPosition = losArray[0].getWrittenCount();
     }
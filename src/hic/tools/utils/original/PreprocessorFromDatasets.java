@@ -25,33 +25,33 @@
 package hic.tools.utils.original;
 
 import hic.tools.utils.iterators.contacts.AllByAllContactsIterator;
-import hic.tools.utils.iterators.contacts.ChromosomeContactsIterator;
-import hic.tools.utils.iterators.contacts.Contact;
 import hic.tools.utils.iterators.contacts.ContactIterator;
 import hic.tools.utils.merge.HiCMergeTools;
+import hic.tools.utils.tasks.TaskScope;
 import htsjdk.tribble.util.LittleEndianOutputStream;
 import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
 import javastraw.reader.basics.Chromosome;
 import javastraw.reader.mzd.Matrix;
 import javastraw.reader.mzd.MatrixZoomData;
 import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import org.broad.igv.util.Pair;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 
 
 public class PreprocessorFromDatasets extends HiCFileBuilder {
 
-    public static final Object key = new Object();
     private final Dataset[] datasets;
     private int highestResolution;
+    private int numCPUThreads = 1;
+    private DatasetReaderV2[] readers = null;
 
     public PreprocessorFromDatasets(File outputFile, Dataset[] datasets, double hicFileScalingFactor, String tmpDir) {
         super(outputFile, datasets[0].getGenomeId(), hicFileScalingFactor, tmpDir);
@@ -131,88 +131,228 @@ public class PreprocessorFromDatasets extends HiCFileBuilder {
         writeWholeGenomeMatrix(datasets, losArray, compressor, matrixPositions);
 
         Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        List<Chromosome[]> chromosomePairs = new ArrayList<>();
         for (int i = 0; i < chromosomes.length; i++) {
             for (int j = i; j < chromosomes.length; j++) {
                 if (intraChromosomalOnly && i != j) continue;
-                readInChromosomeRegionMatrixST(chromosomes[i], chromosomes[j], datasets,
-                        losArray, compressor, matrixPositions);
-                System.out.println("*");
+                chromosomePairs.add(new Chromosome[]{chromosomes[i], chromosomes[j]});
             }
-            System.out.println("*");
+        }
+
+        boolean[] useBlockMerge = new boolean[chromosomePairs.size()];
+        int numBlockMerged = 0;
+        for (int p = 0; p < chromosomePairs.size(); p++) {
+            useBlockMerge[p] = canMergeBlocks(chromosomePairs.get(p)[0], chromosomePairs.get(p)[1]);
+            if (useBlockMerge[p]) numBlockMerged++;
+        }
+        if (readers != null) {
+            System.out.println("Merging " + numBlockMerged + " of " + chromosomePairs.size() +
+                    " chromosome pairs block-by-block; re-binning the rest");
+        }
+
+        if (numCPUThreads > 1) {
+            readInChromosomeRegionMatricesMT(chromosomePairs, useBlockMerge);
+        } else {
+            readInChromosomeRegionMatricesST(chromosomePairs, useBlockMerge, 0);
         }
         masterIndexPosition = losArray[0].getWrittenCount();
     }
 
-    private void readInChromosomeRegionMatrixST(Chromosome chromosome1, Chromosome chromosome2, Dataset[] datasets,
-                                                LittleEndianOutputStream[] losArray, Deflater compressor,
-                                                Map<String, IndexEntry> matrixPositions) {
-        MatrixPP mergedMatrix = new MatrixPP(chromosome1.getIndex(), chromosome2.getIndex(), chromosomeHandler,
-                bpBinSizes, countThreshold, v9DepthBase, BLOCK_CAPACITY);
+    private void readInChromosomeRegionMatricesST(List<Chromosome[]> chromosomePairs, boolean[] useBlockMerge,
+                                                  int firstPair) {
+        Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        for (int p = firstPair; p < chromosomePairs.size(); p++) {
+            Chromosome[] pair = chromosomePairs.get(p);
+            if (useBlockMerge[p]) {
+                mergeChromosomeRegionBlocks(pair[0], pair[1]);
+            } else {
+                readInChromosomeRegionMatrixST(pair[0], pair[1]);
+            }
+            printPairProgress(pair[1], chromosomes);
+        }
+    }
 
-        for (Dataset dataset : datasets) {
-            Matrix matrix = dataset.getMatrix(chromosome1, chromosome2, highestResolution);
-            if (matrix == null) {
-                System.err.println("Skipping null matrix " + chromosome1.getName() + " " + chromosome2.getName());
-                return;
+    private void printPairProgress(Chromosome chromosome2, Chromosome[] chromosomes) {
+        System.out.println("*");
+        if (chromosome2 == chromosomes[chromosomes.length - 1]) {
+            System.out.println("*");
+        }
+    }
+
+    private void readInChromosomeRegionMatrixST(Chromosome chromosome1, Chromosome chromosome2) {
+        DataReadingWorker worker = new DataReadingWorker(chromosome1, chromosome2, chromosomeHandler,
+                bpBinSizes, countThreshold, v9DepthBase, BLOCK_CAPACITY, datasets, highestResolution,
+                expectedValueCalculations, tmpDir, onlyNearDiagonalContacts);
+        MatrixPP mergedMatrix = worker.call().getFirst();
+        if (mergedMatrix != null) {
+            PreprocessorFromDatasets.writeMatrixToFile(mergedMatrix, losArray, compressor, matrixPositions, outputFile);
+        }
+    }
+
+    /**
+     * Chromosome pairs are read concurrently, but at most numCPUThreads pairs are held in memory at once
+     * and each one keeps a proportionally smaller number of blocks in memory before spilling to disk.
+     * Matrices are written back in pair order, so the matrices match the serial merge. Expected values are
+     * summed per pair and then merged in pair order, which gives the serial totals exactly as long as every
+     * count is a whole number. At the first fractional count the pairs still being read are drained and the
+     * rest of the merge, from that pair on, runs serially, so the expected values still match.
+     * Pairs that can be merged block-by-block are not queued; they are merged when their turn comes.
+     */
+    private void readInChromosomeRegionMatricesMT(List<Chromosome[]> chromosomePairs, boolean[] useBlockMerge) {
+        Chromosome[] chromosomes = chromosomeHandler.getChromosomeArrayWithoutAllByAll();
+        int blockCapacity = Math.max(1, BLOCK_CAPACITY / numCPUThreads);
+        TaskScope scope = new TaskScope();
+        Map<Integer, Future<Pair<MatrixPP, Map<String, ExpectedValueCalculation>>>> inFlight = new HashMap<>();
+
+        int nextPair = 0;
+        for (int p = 0; p < chromosomePairs.size(); p++) {
+            while (nextPair < chromosomePairs.size() && inFlight.size() < numCPUThreads) {
+                Chromosome[] toRead = chromosomePairs.get(nextPair);
+                if (!useBlockMerge[nextPair]) {
+                    Map<String, ExpectedValueCalculation> localExpectedValueCalculations = null;
+                    if (toRead[0].getIndex() == toRead[1].getIndex()) {
+                        localExpectedValueCalculations = createLocalExpectedValueCalculations();
+                    }
+                    inFlight.put(nextPair, scope.submit(new DataReadingWorker(toRead[0], toRead[1], chromosomeHandler,
+                            bpBinSizes, countThreshold, v9DepthBase, blockCapacity, datasets, highestResolution,
+                            localExpectedValueCalculations, tmpDir, onlyNearDiagonalContacts)));
+                }
+                nextPair++;
             }
-            HiCZoom hZoom = new HiCZoom(highestResolution);
-            MatrixZoomData zd = matrix.getZoomData(hZoom);
-            if (zd == null) {
-                System.err.println("Skipping null zd (res=" + highestResolution + ") " +
-                        chromosome1.getName() + " " + chromosome2.getName());
-                return;
+
+            Chromosome[] pair = chromosomePairs.get(p);
+            if (useBlockMerge[p]) {
+                mergeChromosomeRegionBlocks(pair[0], pair[1]);
+                printPairProgress(pair[1], chromosomes);
+                continue;
             }
 
             try {
-                ChromosomeContactsIterator iter = new ChromosomeContactsIterator(zd,
-                        chromosome1, chromosome2, highestResolution);
-                if (!iter.hasNext()) {
-                    System.err.println("No data in dataset for region: " + zd.getKey());
+                Pair<MatrixPP, Map<String, ExpectedValueCalculation>> result = inFlight.remove(p).get();
+                if (!canMergeExactly(result.getSecond())) {
+                    System.out.println("Fractional counts found; merging the remaining chromosome pairs serially");
+                    for (Future<Pair<MatrixPP, Map<String, ExpectedValueCalculation>>> future : inFlight.values()) {
+                        future.get();
+                    }
+                    scope.close();
+                    readInChromosomeRegionMatricesST(chromosomePairs, useBlockMerge, p);
+                    return;
                 }
-                while (iter.hasNext()) {
-                    Contact contact = iter.next();
-                    if (onlyNearDiagonalContacts && DataReadingWorker.tooFarFromDiagonal(contact)) continue;
-                    mergedMatrix.incrementCount(contact, expectedValueCalculations, tmpDir);
+                if (result.getSecond() != null) {
+                    for (Map.Entry<String, ExpectedValueCalculation> entry : result.getSecond().entrySet()) {
+                        expectedValueCalculations.get(entry.getKey()).merge(entry.getValue());
+                    }
                 }
-            } catch (Exception e) {
-                System.err.println("ERROR " + e.getLocalizedMessage());
-                System.err.println("Skipping dataset for region: " +
-                        chromosome1.getName() + "_" + chromosome2.getName());
+                if (result.getFirst() != null) {
+                    PreprocessorFromDatasets.writeMatrixToFile(result.getFirst(), losArray, compressor,
+                            matrixPositions, outputFile);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Unable to merge region " + pair[0].getName() + "_" + pair[1].getName());
                 e.printStackTrace();
                 System.exit(90);
             }
+            printPairProgress(pair[1], chromosomes);
+        }
+        scope.close();
+    }
 
-            matrix.clearCacheForZoom(hZoom);
-            //dataset.clearCache(false);
+    /**
+     * @return true if adding the pair's local expected values to the global ones gives the same totals as
+     * adding each count to the global ones in turn
+     */
+    private boolean canMergeExactly(Map<String, ExpectedValueCalculation> localExpectedValueCalculations) {
+        if (localExpectedValueCalculations == null) return true;
+        for (Map.Entry<String, ExpectedValueCalculation> entry : localExpectedValueCalculations.entrySet()) {
+            if (!entry.getValue().hasOnlyWholeCounts()
+                    || !expectedValueCalculations.get(entry.getKey()).hasOnlyWholeCounts()) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        mergedMatrix.parsingComplete();
-        PreprocessorFromDatasets.writeMatrixToFile(mergedMatrix, losArray, compressor, matrixPositions, outputFile);
-        mergedMatrix = null;
+    /**
+     * Blocks can be summed directly only if every input has every resolution being built for this region,
+     * with the same block layout the output would use.  Near-diagonal filtering needs the original
+     * positions, so it always goes through re-binning.
+     */
+    private boolean canMergeBlocks(Chromosome chromosome1, Chromosome chromosome2) {
+        if (readers == null || onlyNearDiagonalContacts) return false;
+        return getZoomDataForBlockMerge(chromosome1, chromosome2, newRegionMatrix(chromosome1, chromosome2)) != null;
     }
 
-    private void readInChromosomeRegionMatrixMT(Chromosome chromosome1, Chromosome chromosome2, Dataset[] datasets,
-                                                LittleEndianOutputStream[] losArray, Deflater compressor,
-                                                Map<String, IndexEntry> matrixPositions) {
-        MatrixPP mergedMatrix = new MatrixPP(chromosome1.getIndex(), chromosome2.getIndex(), chromosomeHandler,
+    private MatrixPP newRegionMatrix(Chromosome chromosome1, Chromosome chromosome2) {
+        return new MatrixPP(chromosome1.getIndex(), chromosome2.getIndex(), chromosomeHandler,
                 bpBinSizes, countThreshold, v9DepthBase, BLOCK_CAPACITY);
+    }
+
+    /**
+     * @return input zoom data indexed by [output zoom][dataset], or null if any layout differs
+     */
+    private MatrixZoomData[][] getZoomDataForBlockMerge(Chromosome chromosome1, Chromosome chromosome2,
+                                                        MatrixPP mergedMatrix) {
+        MatrixZoomDataPP[] outputZooms = mergedMatrix.getZoomData();
+        MatrixZoomData[][] zds = new MatrixZoomData[outputZooms.length][datasets.length];
+        for (int d = 0; d < datasets.length; d++) {
+            if (readers[d].getDepthBase() != v9DepthBase) return null;
+            Matrix matrix = datasets[d].getMatrix(chromosome1, chromosome2);
+            if (matrix == null) return null;
+            for (int z = 0; z < outputZooms.length; z++) {
+                MatrixZoomData zd = matrix.getZoomData(new HiCZoom(outputZooms[z].getBinSize()));
+                if (zd == null
+                        || zd.getBlockBinCount() != outputZooms[z].getBlockBinCount()
+                        || zd.getBlockColumnCount() != outputZooms[z].getBlockColumnCount()) {
+                    return null;
+                }
+                zds[z][d] = zd;
+            }
+        }
+        return zds;
+    }
+
+    private void mergeChromosomeRegionBlocks(Chromosome chromosome1, Chromosome chromosome2) {
+        MatrixPP mergedMatrix = newRegionMatrix(chromosome1, chromosome2);
+        MatrixZoomData[][] zds = getZoomDataForBlockMerge(chromosome1, chromosome2, mergedMatrix);
+        MatrixZoomDataPP[] outputZooms = mergedMatrix.getZoomData();
+        try {
+            for (int z = 0; z < outputZooms.length; z++) {
+                for (int d = 0; d < datasets.length; d++) {
+                    outputZooms[z].addBlockNumbers(readers[d].getBlockNumbers(zds[z][d]));
+                }
+            }
 
-        AtomicInteger index = new AtomicInteger();
+            writeMatrixHeader(mergedMatrix, losArray, matrixPositions, -1);
 
-        int numCPUThreads = 3;
-        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-        for (int l = 0; l < numCPUThreads; ++l) {
-            executor.execute(new DataReadingWorker(index, chromosome1, chromosome2, chromosomeHandler,
-                    bpBinSizes, countThreshold, v9DepthBase, BLOCK_CAPACITY, datasets, highestResolution,
-                    expectedValueCalculations, tmpDir, mergedMatrix, onlyNearDiagonalContacts));
+            for (int z = 0; z < outputZooms.length; z++) {
+                MatrixZoomDataPP zd = outputZooms[z];
+                Pair<List<IndexEntry>, Double> written = zd.writeMergedBlocks(readers, zds[z],
+                        expectedValueCalculations, losArray[0], compressor);
+                updateIndexPositions(written.getFirst(), losArray, true, outputFile, 0, zd.blockIndexPosition,
+                        zd.sumPosition, written.getSecond().floatValue());
+            }
+            System.out.print(".");
+        } catch (IOException e) {
+            System.err.println("Unable to write merged blocks for " + chromosome1.getName() + "_" + chromosome2.getName());
+            e.printStackTrace();
+            System.exit(89);
         }
-        executor.shutdown();
-        while (!executor.isTerminated()) {
+
+        for (Dataset dataset : datasets) {
+            Matrix matrix = dataset.getMatrix(chromosome1, chromosome2);
+            for (MatrixZoomDataPP zd : outputZooms) {
+                matrix.clearCacheForZoom(new HiCZoom(zd.getBinSize()));
+            }
         }
+    }
 
-        mergedMatrix.parsingComplete();
-        PreprocessorFromDatasets.writeMatrixToFile(mergedMatrix, losArray, compressor, matrixPositions, outputFile);
-        mergedMatrix = null;
+    private Map<String, ExpectedValueCalculation> createLocalExpectedValueCalculations() {
+        Map<String, ExpectedValueCalculation> localExpectedValueCalculations = new LinkedHashMap<>();
+        for (int bBinSize : bpBinSizes) {
+            ExpectedValueCalculation calc = new ExpectedValueCalculation(chromosomeHandler, bBinSize, NormalizationHandler.NONE);
+            localExpectedValueCalculations.put("BP_" + bBinSize, calc);
+        }
+        return localExpectedValueCalculations;
     }
 
     private void writeWholeGenomeMatrix(Dataset[] datasets, LittleEndianOutputStream[] losArray, Deflater compressor,
@@ -223,6 +363,19 @@ public class PreprocessorFromDatasets extends HiCFileBuilder {
         wholeGenomeMatrix = null;
     }
 
+    /**
+     * Enables merging pre-binned blocks where the layouts allow it.
+     *
+     * @param readers the readers that produced the datasets, in the same order
+     */
+    public void setBlockMergeReaders(DatasetReaderV2[] readers) {
+        this.readers = readers;
+    }
+
+    public void setNumCPUThreads(int numCPUThreads) {
+        this.numCPUThreads = Math.max(1, numCPUThreads);
+    }
+
     public void setHighestResolution(List<String> resolutions) {
         if (resolutions != null && resolutions.size() > 0) {
             try {
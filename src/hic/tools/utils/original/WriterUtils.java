@@ -41,6 +41,7 @@ public class WriterUtils {
         int numberOfBlocks = zd.blockNumbers.size();
         los.writeString(HiCZoom.HiCUnit.BP.toString());  // Unit only BP; FRAG decremented
         los.writeInt(zd.getZoom());     // zoom index,  lowest res is zero
+        zd.sumPosition = los.getWrittenCount();
         los.writeFloat((float) zd.getSum());      // sum
         los.writeFloat((float) zd.getOccupiedCellCount());
         los.writeFloat((float) zd.getPercent5());
@@ -24,11 +24,19 @@
 
 package hic.tools.utils.other;
 
+import hic.tools.utils.tasks.TaskScope;
 import org.broad.igv.bbfile.BBFileReader;
 import org.broad.igv.bbfile.BigWigIterator;
 import org.broad.igv.bbfile.WigItem;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Some utils for querying bigwig files
@@ -39,11 +47,52 @@ import java.io.IOException;
  */
 public class BigWigUtils {
 
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes();
+    private static final byte[] EMPTY_WINDOW_VALUES = ("\t" + 0.0 + "\t" + 0.0).getBytes();
+    private static final int WINDOWS_PER_WRITE = 1 << 16;
+    private static final int MAX_WINDOWS = Integer.MAX_VALUE - 8;
+
     public static void computeBins(String path, int windowSize) throws IOException {
+        computeBins(path, windowSize, 1);
+    }
+
+    /**
+     * Summarizes every chromosome, with up to numThreads chromosomes read in parallel;
+     * output is still written in chromosome order, each chromosome as soon as those before it are written.
+     */
+    public static void computeBins(String path, int windowSize, int numThreads) throws IOException {
 
         BBFileReader reader = new BBFileReader(path);
-        for (String chr : reader.getChromosomeNames()) {
-            computeBins(reader, chr, 0, Integer.MAX_VALUE, windowSize);
+        List<String> chromosomes = new ArrayList<>(reader.getChromosomeNames());
+        if (numThreads <= 1) {
+            try {
+                for (String chr : chromosomes) {
+                    writeOut(computeBins(reader, chr, 0, Integer.MAX_VALUE, windowSize));
+                }
+            } finally {
+                close(reader);
+            }
+            return;
+        }
+        close(reader);
+
+        // the reader's stream is not thread safe, so each task opens its own;
+        // at most numThreads chromosomes are summarized ahead of the one being written
+        try (TaskScope scope = new TaskScope()) {
+            ArrayDeque<Future<WindowSummary>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < chromosomes.size() || !inFlight.isEmpty()) {
+                while (next < chromosomes.size() && inFlight.size() < numThreads) {
+                    String chr = chromosomes.get(next++);
+                    inFlight.add(scope.submit(() -> computeBins(path, chr, windowSize)));
+                }
+                writeOut(inFlight.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while summarizing " + path, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to summarize " + path, e.getCause());
         }
 
     }
@@ -52,19 +101,45 @@ public class BigWigUtils {
     public static void computeBins(String path, String chr, int start, int end, int windowSize) throws IOException {
 
         BBFileReader reader = new BBFileReader(path);
-        boolean found = false;
-        StringBuilder errString = new StringBuilder();
-        for (String chr1 : reader.getChromosomeNames()) {
-            if (chr.equals(chr1)) found = true;
-            errString.append("\"").append(chr1).append("\" ");
-        }
-        if (!found) {
-            System.err.println("Chromosome \"" + chr + "\" not found in " + path);
-            System.err.println("The chromosomes in " + path + " are " + errString);
-            return;
+        try {
+            boolean found = false;
+            StringBuilder errString = new StringBuilder();
+            for (String chr1 : reader.getChromosomeNames()) {
+                if (chr.equals(chr1)) found = true;
+                errString.append("\"").append(chr1).append("\" ");
+            }
+            if (!found) {
+                System.err.println("Chromosome \"" + chr + "\" not found in " + path);
+                System.err.println("The chromosomes in " + path + " are " + errString);
+                return;
+            }
+            writeOut(computeBins(reader, chr, start, end, windowSize));
+        } finally {
+            close(reader);
+        }
+
+    }
+
+    private static WindowSummary computeBins(String path, String chr, int windowSize) throws IOException {
+        BBFileReader reader = new BBFileReader(path);
+        try {
+            return computeBins(reader, chr, 0, Integer.MAX_VALUE, windowSize);
+        } finally {
+            close(reader);
         }
-        computeBins(reader, chr, start, end, windowSize);
+    }
+
+    private static void close(BBFileReader reader) {
+        try {
+            reader.getBBFis().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    private static void writeOut(WindowSummary summary) {
+        summary.writeTo(System.out);
+        System.out.flush();
     }
 
     /**
@@ -75,40 +150,52 @@ public class BigWigUtils {
      * @param start
      * @param end
      * @param windowSize
+     * @return the windows' means and maxima
      */
-    private static void computeBins(BBFileReader reader, String chr, int start, int end, int windowSize) {
+    private static WindowSummary computeBins(BBFileReader reader, String chr, int start, int end, int windowSize) {
         BigWigIterator iter = reader.getBigWigIterator(chr, start, chr, end, false);
-        double sum = 0;
-        int nPts = 0;
-        double max = 0;
-        int currentBin = 0;
-
+        WindowSummary summary = new WindowSummary(chr, windowSize);
         while (iter.hasNext()) {
             WigItem datum = iter.next();
-            int dPosition = (datum.getStartBase() + datum.getEndBase()) / 2;
+            summary.add(datum.getStartBase(), datum.getEndBase(), datum.getWigValue());
+        }
+        return summary;
+    }
 
+    /**
+     * Mean and maximum of each window of one chromosome, kept in primitive arrays and formatted only when written.
+     * <p>
+     * A datum belongs to the window holding its midpoint; a window is closed once a datum lies beyond its end,
+     * so the last window, still open when the data run out, is not reported. Windows without data report 0.
+     */
+    static class WindowSummary {
+        private final String chr;
+        private final int windowSize;
+        private double[] means = new double[1024];
+        private double[] maxima = new double[1024];
+        private int numWindows = 0;
 
-            if (dPosition > (currentBin + 1) * windowSize) {
-                // Output previous window
-                // if (nPts > 0) {
+        private double sum = 0;
+        private int nPts = 0;
+        private double max = 0;
+        private int currentBin = 0;
 
-                double mean = sum / nPts;
-                int wStart = windowSize * currentBin;
-                int wEnd = wStart + windowSize;
-                // unclear why, but sometimes datum.getChromosome() is null
-                //System.out.println(datum.getChromosome() + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
-                System.out.println(chr + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
+        WindowSummary(String chr, int windowSize) {
+            this.chr = chr;
+            this.windowSize = windowSize;
+        }
 
+        void add(int startBase, int endBase, float value) {
+            int dPosition = (startBase + endBase) / 2;
+
+            if (dPosition > (currentBin + 1) * windowSize) {
+                // Output previous window
+                addWindow(sum / nPts, max);
                 currentBin++;
 
                 // deal with empty bins
                 while (currentBin < dPosition / windowSize) {
-                    wStart = windowSize * currentBin;
-                    wEnd = wStart + windowSize;
-                    mean = 0;
-                    max = 0;
-                    System.out.println(chr + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
-                    // System.out.println(datum.getChromosome() + "\t" + wStart + "\t" + wEnd + "\t" + mean + "\t" + max);
+                    addWindow(0, 0);
                     currentBin++;
                 }
                 // Start new window
@@ -118,10 +205,137 @@ public class BigWigUtils {
                 max = 0;
             }
 
-            sum += datum.getWigValue();
-            max = Math.max(max, datum.getWigValue());
+            sum += value;
+            max = Math.max(max, value);
             nPts++;
+        }
+
+        private void addWindow(double mean, double windowMax) {
+            if (numWindows == means.length) {
+                int length = (int) Math.min(MAX_WINDOWS, 2L * means.length);
+                if (length == numWindows) {
+                    throw new IllegalStateException("Too many windows on " + chr + "; use a larger window size");
+                }
+                means = Arrays.copyOf(means, length);
+                maxima = Arrays.copyOf(maxima, length);
+            }
+            means[numWindows] = mean;
+            maxima[numWindows] = windowMax;
+            numWindows++;
+        }
+
+        int getNumWindows() {
+            return numWindows;
+        }
+
+        /**
+         * Writes one line per window, formatting a bounded number of windows at a time
+         */
+        void writeTo(OutputStream stream) {
+            WindowFormatter formatter = new WindowFormatter(chr);
+            for (int first = 0; first < numWindows; first += WINDOWS_PER_WRITE) {
+                int last = Math.min(numWindows, first + WINDOWS_PER_WRITE);
+                formatter.reset();
+                for (int i = first; i < last; i++) {
+                    int wStart = windowSize * i;
+                    if (Double.doubleToRawLongBits(means[i]) == 0 && Double.doubleToRawLongBits(maxima[i]) == 0) {
+                        formatter.addEmptyWindow(wStart, wStart + windowSize);
+                    } else {
+                        formatter.addWindow(wStart, wStart + windowSize, means[i], maxima[i]);
+                    }
+                }
+                formatter.writeTo(stream);
+            }
+        }
+    }
+
+    /**
+     * Byte-level builder for "chr \t start \t end \t mean \t max" lines,
+     * matching what string concatenation and println would produce.
+     */
+    private static class WindowFormatter {
+        private final byte[] chrBytes;
+        private byte[] buffer = new byte[1 << 16];
+        private int size = 0;
+
+        WindowFormatter(String chr) {
+            chrBytes = chr.getBytes();
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void addWindow(int wStart, int wEnd, double mean, double max) {
+            addPrefix(wStart, wEnd);
+            addByte((byte) '\t');
+            addAscii(Double.toString(mean));
+            addByte((byte) '\t');
+            addAscii(Double.toString(max));
+            addBytes(NEWLINE);
+        }
+
+        void addEmptyWindow(int wStart, int wEnd) {
+            addPrefix(wStart, wEnd);
+            addBytes(EMPTY_WINDOW_VALUES);
+            addBytes(NEWLINE);
+        }
+
+        private void addPrefix(int wStart, int wEnd) {
+            addBytes(chrBytes);
+            addByte((byte) '\t');
+            addInt(wStart);
+            addByte((byte) '\t');
+            addInt(wEnd);
+        }
+
+        private void addInt(int value) {
+            if (value < 0) {
+                addAscii(Integer.toString(value));
+                return;
+            }
+            int length = 1;
+            for (int v = value; v >= 10; v /= 10) {
+                length++;
+            }
+            ensureCapacity(length);
+            for (int k = size + length - 1; k >= size; k--) {
+                buffer[k] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            size += length;
+        }
 
+        private void addAscii(String text) {
+            ensureCapacity(text.length());
+            for (int k = 0; k < text.length(); k++) {
+                buffer[size++] = (byte) text.charAt(k);
+            }
+        }
+
+        private void addBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void addByte(byte b) {
+            ensureCapacity(1);
+            buffer[size++] = b;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+
+        void writeTo(OutputStream stream) {
+            try {
+                stream.write(buffer, 0, size);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -0,0 +1,181 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.other;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts lines the way BufferedReader.readLine would, without decoding any of them.
+ * <p>
+ * A line ends at '\n', '\r' or "\r\n", and a trailing line without a terminator still counts.
+ * Plain files are memory-mapped and scanned in parallel regions, eight bytes at a time;
+ * gzipped files are streamed through an inflater and scanned the same way.
+ */
+public class LineCounter {
+
+    private static final int REGION_SIZE = 64 * 1024 * 1024;
+    private static final int STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long RETURNS = 0x0D0D0D0D0D0D0D0DL;
+
+    public static long countLines(File file, int numThreads) throws IOException {
+        if (isGzipped(file)) {
+            return countGzippedLines(file);
+        }
+        return countMappedLines(file, numThreads);
+    }
+
+    private static boolean isGzipped(File file) throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    private static long countMappedLines(File file, int numThreads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) return 0;
+
+            int numRegions = (int) ((size + REGION_SIZE - 1) / REGION_SIZE);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, numRegions)));
+            List<Future<long[]>> futures = new ArrayList<>(numRegions);
+            for (int r = 0; r < numRegions; r++) {
+                long start = (long) r * REGION_SIZE;
+                long length = Math.min(REGION_SIZE, size - start);
+                futures.add(executor.submit(() -> {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    return countTerminators(buffer, (int) length);
+                }));
+            }
+
+            long newlines = 0;
+            long returns = 0;
+            long pairs = 0;
+            try {
+                for (int r = 0; r < numRegions; r++) {
+                    long[] counts = futures.get(r).get();
+                    newlines += counts[0];
+                    returns += counts[1];
+                    pairs += counts[2];
+                }
+            } catch (Exception e) {
+                throw new IOException("Unable to count lines in " + file.getAbsolutePath(), e);
+            } finally {
+                executor.shutdown();
+            }
+
+            // "\r\n" pairs split across two regions
+            ByteBuffer pair = ByteBuffer.allocate(2);
+            for (int r = 1; r < numRegions; r++) {
+                pair.clear();
+                channel.read(pair, (long) r * REGION_SIZE - 1);
+                if (pair.get(0) == '\r' && pair.get(1) == '\n') pairs++;
+            }
+
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            return lineCount(newlines, returns, pairs, last.get(0));
+        }
+    }
+
+    private static long countGzippedLines(File file) throws IOException {
+        long newlines = 0;
+        long returns = 0;
+        long pairs = 0;
+        byte previous = 0;
+        long total = 0;
+        byte[] array = new byte[STREAM_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+        try (InputStream is = new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE)) {
+            int length;
+            while ((length = is.read(array, 0, array.length)) > 0) {
+                long[] counts = countTerminators(buffer, length);
+                newlines += counts[0];
+                returns += counts[1];
+                pairs += counts[2];
+                if (previous == '\r' && array[0] == '\n') pairs++;
+                previous = array[length - 1];
+                total += length;
+            }
+        }
+        if (total == 0) return 0;
+        return lineCount(newlines, returns, pairs, previous);
+    }
+
+    private static long lineCount(long newlines, long returns, long pairs, byte lastByte) {
+        long lines = newlines + returns - pairs;
+        if (lastByte != '\n' && lastByte != '\r') lines++;
+        return lines;
+    }
+
+    /**
+     * @return counts of '\n', '\r' and "\r\n" in the first length bytes of the buffer
+     */
+    private static long[] countTerminators(ByteBuffer buffer, int length) {
+        long newlines = 0;
+        long returns = 0;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = buffer.getLong(i);
+            newlines += countMatchingBytes(word ^ NEWLINES);
+            returns += countMatchingBytes(word ^ RETURNS);
+        }
+        for (; i < length; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') newlines++;
+            else if (b == '\r') returns++;
+        }
+
+        long pairs = 0;
+        if (returns > 0) {
+            for (int k = 0; k + 1 < length; k++) {
+                if (buffer.get(k) == '\r' && buffer.get(k + 1) == '\n') pairs++;
+            }
+        }
+        return new long[]{newlines, returns, pairs};
+    }
+
+    /**
+     * Number of zero bytes in the word, without carries between bytes.
+     */
+    private static int countMatchingBytes(long word) {
+        long t = (word & LOW_BITS) + LOW_BITS;
+        t = ~(t | word | LOW_BITS);
+        return Long.bitCount(t);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.pearsons;
+
+import hic.tools.utils.bigarray.BigContactArrayCreator;
+import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.bigarray.LocallySavedContacts;
+import hic.tools.utils.cache.BlockCache;
+import javastraw.reader.Dataset;
+import javastraw.reader.DatasetReaderV2;
+import javastraw.reader.basics.Chromosome;
+import javastraw.reader.block.ContactRecord;
+import javastraw.reader.datastructures.ListOfDoubleArrays;
+import javastraw.reader.expected.ExpectedValueFunction;
+import javastraw.reader.expected.ExpectedValueFunctionImpl;
+import javastraw.reader.mzd.MatrixZoomData;
+import javastraw.reader.norm.NormalizationVector;
+import javastraw.reader.type.HiCZoom;
+import javastraw.reader.type.NormalizationHandler;
+import javastraw.reader.type.NormalizationType;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Sparse observed/expected matrix for one chromosome, read from upper-triangle records.
+ * Row sums and sums of squares (over the full symmetric matrix) are collected while loading,
+ * so rows can be mean-centered and scaled on the fly without building a dense matrix.
+ */
+public class ObservedOverExpected {
+
+    private final String path;
+    private final DatasetReaderV2 reader;
+    private final MatrixZoomData zd;
+    private final int matrixSize;
+    private final double[] rowSums;
+    private final double[] rowSquareSums;
+    private final int[] rowCounts;
+    private final ListOfDoubleArrays normVector;
+    private final ListOfDoubleArrays expected;
+    private final double normFactor;
+    private BigContactList contacts = null;
+
+    public ObservedOverExpected(Dataset ds, MatrixZoomData zd, Chromosome chromosome, HiCZoom zoom,
+                                NormalizationType norm, ExpectedValueFunction df) {
+        this(null, null, ds, zd, chromosome, zoom, norm, df);
+    }
+
+    /**
+     * @param reader the reader of the dataset at path, to read through the shared block cache; null reads
+     *               the matrix directly
+     */
+    public ObservedOverExpected(String path, DatasetReaderV2 reader, Dataset ds, MatrixZoomData zd,
+                                Chromosome chromosome, HiCZoom zoom, NormalizationType norm, ExpectedValueFunction df) {
+        this.path = path;
+        this.reader = reader;
+        this.zd = zd;
+        matrixSize = (int) zd.getMatrixSize();
+        rowSums = new double[matrixSize];
+        rowSquareSums = new double[matrixSize];
+        rowCounts = new int[matrixSize];
+
+        if (norm.equals(NormalizationHandler.NONE)) {
+            normVector = null;
+        } else {
+            NormalizationVector nv = ds.getNormalizationVector(chromosome.getIndex(), zoom, norm);
+            if (nv == null) {
+                System.err.println("Normalization " + norm + " not available for " + chromosome.getName()
+                        + " at " + zoom);
+                System.exit(14);
+            }
+            normVector = nv.getData();
+        }
+
+        Map<Integer, Double> normFactors = ((ExpectedValueFunctionImpl) df).getNormFactors();
+        if (normFactors != null && normFactors.containsKey(chromosome.getIndex())) {
+            normFactor = normFactors.get(chromosome.getIndex());
+        } else {
+            normFactor = 1;
+        }
+        expected = df.getExpectedValuesNoNormalization();
+    }
+
+    /**
+     * Loads the O/E records into a BigContactList for sparse matrix-vector products.
+     */
+    public BigContactList loadContacts(boolean saveToDisk) {
+        Iterator<ContactRecord> iterator = new OEIterator(BlockCache.iterateOnce(path, reader, zd));
+        if (saveToDisk) {
+            contacts = new LocallySavedContacts(iterator, 10000000, matrixSize);
+        } else {
+            contacts = BigContactArrayCreator.populateBigArrayFromSingleIterator(iterator, 10000000, matrixSize);
+        }
+        return contacts;
+    }
+
+    /**
+     * Loads the O/E records as symmetric rows, i.e. each off-diagonal record is stored under both bins.
+     * The contacts are read twice: once to size the rows, and once to fill them.
+     */
+    public SymmetricSparseRows loadRows() {
+        Iterator<ContactRecord> iterator = new OEIterator(BlockCache.iterate(path, reader, zd));
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        SymmetricSparseRows rows = new SymmetricSparseRows(rowCounts);
+        iterator = new OEIterator(BlockCache.iterateOnce(path, reader, zd));
+        while (iterator.hasNext()) {
+            ContactRecord record = iterator.next();
+            rows.add(record.getBinX(), record.getBinY(), record.getCounts());
+        }
+        return rows;
+    }
+
+    public int getMatrixSize() {
+        return matrixSize;
+    }
+
+    public BigContactList getContacts() {
+        return contacts;
+    }
+
+    public double getRowSum(int i) {
+        return rowSums[i];
+    }
+
+    public double getRowSquareSum(int i) {
+        return rowSquareSums[i];
+    }
+
+    public boolean rowHasData(int i) {
+        return rowCounts[i] > 0;
+    }
+
+    public void clear() {
+        if (contacts != null) {
+            contacts.clear();
+            contacts = null;
+        }
+    }
+
+    /**
+     * Converts normalized records to O/E, dropping empty or invalid values.
+     * Row statistics are reset and recomputed on every pass.
+     */
+    private class OEIterator implements Iterator<ContactRecord> {
+        private final Iterator<ContactRecord> iterator;
+        private ContactRecord next = null;
+
+        OEIterator(Iterator<ContactRecord> iterator) {
+            this.iterator = iterator;
+            Arrays.fill(rowSums, 0);
+            Arrays.fill(rowSquareSums, 0);
+            Arrays.fill(rowCounts, 0);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && iterator.hasNext()) {
+                ContactRecord record = iterator.next();
+                int x = record.getBinX();
+                int y = record.getBinY();
+                double value = record.getCounts();
+                if (normVector != null) {
+                    double nx = normVector.get(x);
+                    double ny = normVector.get(y);
+                    if (!(nx > 0 && ny > 0)) continue;
+                    value = value / (nx * ny);
+                }
+                long dist = Math.min(Math.abs(x - y), expected.getLength() - 1);
+                double exp = expected.get(dist) / normFactor;
+                if (!(exp > 0)) continue;
+                float oe = (float) (value / exp);
+                if (Float.isNaN(oe) || Float.isInfinite(oe) || oe == 0) continue;
+
+                rowSums[x] += oe;
+                rowSquareSums[x] += oe * oe;
+                rowCounts[x]++;
+                if (x != y) {
+                    rowSums[y] += oe;
+                    rowSquareSums[y] += oe * oe;
+                    rowCounts[y]++;
+                }
+                next = new ContactRecord(x, y, oe);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public ContactRecord next() {
+            if (next == null) throw new NoSuchElementException();
+            ContactRecord current = next;
+            advance();
+            return current;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.pearsons;
+
+import java.util.function.Function;
+
+/**
+ * Per-row terms for correlating the rows of a symmetric observed/expected matrix the way the
+ * dense calculation does: bins without data are dropped, every remaining column is centered by
+ * its mean, and rows i and j are then correlated over the remaining columns.
+ * <p>
+ * With x_i the O/E rows, m the column means and p_i = x_i . m, the covariance of rows i and j is
+ * x_i . x_j - p_i - p_j + m . m - k * r_i * r_j, where k is the number of bins with data and r_i
+ * the mean of the centered row, so only the sparse product x_i . x_j is needed per pair.
+ */
+public class PearsonsStatistics {
+
+    private final int n;
+    private final int numBinsWithData;
+    private final boolean[] hasData;
+    private final double[] columnMeans;
+    private final double[] dotWithMeans;
+    private final double[] centeredRowMeans;
+    private final double[] variances;
+    private final boolean[] isValid;
+    private final double meansDotMeans;
+    private final int numValid;
+
+    /**
+     * @param rowSums               sums of the rows of the full symmetric matrix
+     * @param rowSquareSums         sums of squares of the rows of the full symmetric matrix
+     * @param hasData               whether each bin has any nonzero entry
+     * @param productWithColumnMeans returns the product of the matrix with the given vector
+     */
+    public PearsonsStatistics(double[] rowSums, double[] rowSquareSums, boolean[] hasData,
+                              Function<double[], double[]> productWithColumnMeans) {
+        n = rowSums.length;
+        this.hasData = hasData;
+
+        int count = 0;
+        for (boolean data : hasData) {
+            if (data) count++;
+        }
+        numBinsWithData = count;
+
+        columnMeans = new double[n];
+        double sumOfMeans = 0;
+        double sumSquaredMeans = 0;
+        for (int j = 0; j < n; j++) {
+            if (hasData[j]) {
+                columnMeans[j] = rowSums[j] / numBinsWithData;
+                sumOfMeans += columnMeans[j];
+                sumSquaredMeans += columnMeans[j] * columnMeans[j];
+            }
+        }
+        meansDotMeans = sumSquaredMeans;
+        double meanOfMeans = numBinsWithData > 0 ? sumOfMeans / numBinsWithData : 0;
+
+        dotWithMeans = productWithColumnMeans.apply(columnMeans);
+        centeredRowMeans = new double[n];
+        variances = new double[n];
+        isValid = new boolean[n];
+        int valid = 0;
+        for (int i = 0; i < n; i++) {
+            if (!hasData[i]) continue;
+            centeredRowMeans[i] = rowSums[i] / numBinsWithData - meanOfMeans;
+            variances[i] = rowSquareSums[i] - 2 * dotWithMeans[i] + meansDotMeans
+                    - numBinsWithData * centeredRowMeans[i] * centeredRowMeans[i];
+            isValid[i] = variances[i] > 0;
+            if (isValid[i]) valid++;
+        }
+        numValid = valid;
+    }
+
+    public PearsonsStatistics(ObservedOverExpected oe, Function<double[], double[]> productWithColumnMeans) {
+        this(getRowSums(oe), getRowSquareSums(oe), getBinsWithData(oe), productWithColumnMeans);
+    }
+
+    private static double[] getRowSums(ObservedOverExpected oe) {
+        double[] sums = new double[oe.getMatrixSize()];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = oe.getRowSum(i);
+        }
+        return sums;
+    }
+
+    private static double[] getRowSquareSums(ObservedOverExpected oe) {
+        double[] sums = new double[oe.getMatrixSize()];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = oe.getRowSquareSum(i);
+        }
+        return sums;
+    }
+
+    private static boolean[] getBinsWithData(ObservedOverExpected oe) {
+        boolean[] hasData = new boolean[oe.getMatrixSize()];
+        for (int i = 0; i < hasData.length; i++) {
+            hasData[i] = oe.rowHasData(i);
+        }
+        return hasData;
+    }
+
+    public int getDimension() {
+        return n;
+    }
+
+    public int getNumBinsWithData() {
+        return numBinsWithData;
+    }
+
+    public int getNumValid() {
+        return numValid;
+    }
+
+    public boolean hasData(int i) {
+        return hasData[i];
+    }
+
+    /**
+     * @return whether row i takes part in the correlation, i.e. it has data and nonzero variance
+     */
+    public boolean isValid(int i) {
+        return isValid[i];
+    }
+
+    public double getColumnMean(int j) {
+        return columnMeans[j];
+    }
+
+    public double getCenteredRowMean(int i) {
+        return centeredRowMeans[i];
+    }
+
+    /**
+     * @return sum of squared deviations of centered row i from its mean
+     */
+    public double getVariance(int i) {
+        return variances[i];
+    }
+
+    /**
+     * @param product x_i . x_j for the O/E rows i and j, both valid
+     */
+    public double getCorrelation(int i, int j, double product) {
+        double cov = product - dotWithMeans[i] - dotWithMeans[j] + meansDotMeans
+                - numBinsWithData * centeredRowMeans[i] * centeredRowMeans[j];
+        return cov / Math.sqrt(variances[i] * variances[j]);
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.pearsons;
+
+import hic.tools.utils.bigarray.BigContactList;
+import hic.tools.utils.largelists.BigFloatsArray;
+import org.apache.commons.math3.linear.EigenDecomposition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Leading eigenvector of the Pearson correlation matrix of an observed/expected map, computed
+ * with restarted Lanczos iterations without materializing the n x n correlation matrix.
+ * <p>
+ * The rows are centered and standardized as in the dense calculation (see {@link PearsonsStatistics}):
+ * with Y the O/E matrix X restricted to bins with data and column-centered, and z_i the rows of Y
+ * minus their means, scaled to unit length, the correlation matrix is C = Z * Z^T, so C*v only
+ * needs two sparse products with X. Rows with zero variance are excluded and reported as NaN.
+ * The result matches the dense eigenvector within float-precision tolerance, up to sign.
+ */
+public class SparsePearsonsEigenvector {
+
+    private static final int MAX_LANCZOS_STEPS = 100;
+    private static final int MAX_RESTARTS = 20;
+    // sparse products are done in float, so tighter tolerances are not reachable
+    private static final double TOLERANCE = 1e-6;
+
+    private final BigContactList contacts;
+    private final PearsonsStatistics statistics;
+    private final int n;
+    private final double[] scales;
+    private boolean converged = false;
+
+    public SparsePearsonsEigenvector(ObservedOverExpected oe) {
+        this(new PearsonsStatistics(oe, means -> multiply(oe.getContacts(), means)), oe.getContacts());
+    }
+
+    public SparsePearsonsEigenvector(PearsonsStatistics statistics, BigContactList contacts) {
+        this.contacts = contacts;
+        this.statistics = statistics;
+        n = statistics.getDimension();
+        scales = new double[n];
+        for (int i = 0; i < n; i++) {
+            scales[i] = statistics.isValid(i) ? 1.0 / Math.sqrt(statistics.getVariance(i)) : 0;
+        }
+    }
+
+    private static double[] multiply(BigContactList contacts, double[] vector) {
+        BigFloatsArray input = new BigFloatsArray(vector.length);
+        for (int i = 0; i < vector.length; i++) {
+            input.set(i, (float) vector[i]);
+        }
+        BigFloatsArray product = contacts.parSparseMultiplyAcrossLists(input, vector.length);
+        double[] result = new double[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = product.get(i);
+        }
+        return result;
+    }
+
+    public double[] getLeadingEigenvector() {
+        double[] start = new double[n];
+        Random generator = new Random(0);
+        for (int i = 0; i < n; i++) {
+            if (statistics.isValid(i)) start[i] = generator.nextDouble() - 0.5;
+        }
+        normalize(start);
+
+        int steps = Math.min(MAX_LANCZOS_STEPS, Math.max(statistics.getNumValid(), 1));
+        double[] ritz = start;
+        for (int restart = 0; restart < MAX_RESTARTS; restart++) {
+            ritz = lanczos(ritz, steps);
+            if (converged) break;
+        }
+
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = statistics.isValid(i) ? ritz[i] : Double.NaN;
+        }
+        return result;
+    }
+
+    /**
+     * Runs up to the given number of Lanczos steps from the start vector with full
+     * reorthogonalization, and returns the Ritz vector for the largest Ritz value.
+     */
+    private double[] lanczos(double[] start, int steps) {
+        List<double[]> basis = new ArrayList<>(steps);
+        double[] alphas = new double[steps];
+        double[] betas = new double[steps];
+
+        double[] q = start.clone();
+        normalize(q);
+        int k = 0;
+        for (; k < steps; k++) {
+            basis.add(q);
+            double[] w = multiply(q);
+            alphas[k] = dot(w, q);
+            for (double[] prev : basis) {
+                axpy(-dot(w, prev), prev, w);
+            }
+            betas[k] = norm(w);
+            if (betas[k] < TOLERANCE) {
+                k++;
+                break;
+            }
+            q = w;
+            scale(q, 1.0 / betas[k]);
+        }
+
+        int m = Math.min(k, steps);
+        double[] largestEigenvector;
+        double largestEigenvalue;
+        if (m == 1) {
+            largestEigenvector = new double[]{1};
+            largestEigenvalue = alphas[0];
+        } else {
+            EigenDecomposition decomposition = new EigenDecomposition(Arrays.copyOf(alphas, m),
+                    Arrays.copyOf(betas, m - 1));
+            double[] eigenvalues = decomposition.getRealEigenvalues();
+            int best = 0;
+            for (int j = 1; j < eigenvalues.length; j++) {
+                if (eigenvalues[j] > eigenvalues[best]) best = j;
+            }
+            largestEigenvalue = eigenvalues[best];
+            largestEigenvector = decomposition.getEigenvector(best).toArray();
+        }
+
+        double residual = Math.abs(betas[m - 1] * largestEigenvector[m - 1]);
+        converged = residual < TOLERANCE * Math.max(Math.abs(largestEigenvalue), 1);
+
+        double[] ritz = new double[n];
+        for (int j = 0; j < m; j++) {
+            axpy(largestEigenvector[j], basis.get(j), ritz);
+        }
+        normalize(ritz);
+        return ritz;
+    }
+
+    /**
+     * C*v = Z * Z^T * v, expanded so that only the sparse O/E matrix is touched.
+     * With w_i = v_i / sd_i, u = Z^T * v is X*w - (sum w) * m - (sum w_i * r_i) over the bins with data,
+     * and (Z*u)_i = (x_i . u - m . u - r_i * sum u) / sd_i.
+     */
+    private double[] multiply(double[] v) {
+        double[] w = new double[n];
+        double wSum = 0;
+        double wDotRowMeans = 0;
+        for (int i = 0; i < n; i++) {
+            w[i] = v[i] * scales[i];
+            wSum += w[i];
+            wDotRowMeans += w[i] * statistics.getCenteredRowMean(i);
+        }
+        double[] xw = multiply(contacts, w);
+
+        double[] u = new double[n];
+        double uSum = 0;
+        double uDotMeans = 0;
+        for (int j = 0; j < n; j++) {
+            if (statistics.hasData(j)) {
+                u[j] = xw[j] - wSum * statistics.getColumnMean(j) - wDotRowMeans;
+                uSum += u[j];
+                uDotMeans += u[j] * statistics.getColumnMean(j);
+            }
+        }
+        double[] xu = multiply(contacts, u);
+
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = (xu[i] - uDotMeans - statistics.getCenteredRowMean(i) * uSum) * scales[i];
+        }
+        return result;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double total = 0;
+        for (int i = 0; i < a.length; i++) {
+            total += a[i] * b[i];
+        }
+        return total;
+    }
+
+    private static double norm(double[] a) {
+        return Math.sqrt(dot(a, a));
+    }
+
+    private static void normalize(double[] a) {
+        double length = norm(a);
+        if (length > 0) scale(a, 1.0 / length);
+    }
+
+    private static void scale(double[] a, double factor) {
+        for (int i = 0; i < a.length; i++) {
+            a[i] *= factor;
+        }
+    }
+
+    private static void axpy(double factor, double[] x, double[] y) {
+        for (int i = 0; i < y.length; i++) {
+            y[i] += factor * x[i];
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.pearsons;
+
+/**
+ * Row-indexed sparse storage of a symmetric matrix, with every row holding its full set of entries.
+ */
+public class SymmetricSparseRows {
+
+    private final int[][] columns;
+    private final float[][] values;
+    private final int[] filled;
+
+    public SymmetricSparseRows(int[] rowCounts) {
+        columns = new int[rowCounts.length][];
+        values = new float[rowCounts.length][];
+        filled = new int[rowCounts.length];
+        for (int i = 0; i < rowCounts.length; i++) {
+            columns[i] = new int[rowCounts[i]];
+            values[i] = new float[rowCounts[i]];
+        }
+    }
+
+    public void add(int x, int y, float value) {
+        addToRow(x, y, value);
+        if (x != y) {
+            addToRow(y, x, value);
+        }
+    }
+
+    private void addToRow(int row, int col, float value) {
+        int k = filled[row]++;
+        columns[row][k] = col;
+        values[row][k] = value;
+    }
+
+    public int getNumRows() {
+        return columns.length;
+    }
+
+    public int[] getColumns(int row) {
+        return columns[row];
+    }
+
+    public float[] getValues(int row) {
+        return values[row];
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.pearsons;
+
+import hic.tools.utils.tasks.TaskScope;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pearson correlation matrix of an observed/expected map, computed one band of rows at a time.
+ * <p>
+ * Follows the dense calculation (see {@link PearsonsStatistics}): bins without data are dropped and
+ * every column is centered by its mean before rows i and j are correlated. The covariance then
+ * only needs the sparse product x_i . x_j plus per-row terms, so a band of rows needs
+ * O(band x n) memory instead of the full n x n matrix.
+ */
+public class TiledPearsons {
+
+    private final SymmetricSparseRows rows;
+    private final PearsonsStatistics statistics;
+    private final int n;
+    private final int numThreads;
+    private final boolean hasOtherValidRows;
+
+    public TiledPearsons(ObservedOverExpected oe, SymmetricSparseRows rows, int numThreads) {
+        this(new PearsonsStatistics(oe, means -> multiply(rows, means)), rows, numThreads);
+    }
+
+    public TiledPearsons(PearsonsStatistics statistics, SymmetricSparseRows rows, int numThreads) {
+        this.rows = rows;
+        this.statistics = statistics;
+        this.n = statistics.getDimension();
+        this.numThreads = numThreads;
+        hasOtherValidRows = statistics.getNumValid() > 1;
+    }
+
+    static double[] multiply(SymmetricSparseRows rows, double[] vector) {
+        double[] result = new double[rows.getNumRows()];
+        for (int i = 0; i < result.length; i++) {
+            int[] cols = rows.getColumns(i);
+            float[] vals = rows.getValues(i);
+            double dot = 0;
+            for (int k = 0; k < cols.length; k++) {
+                dot += vals[k] * vector[cols[k]];
+            }
+            result[i] = dot;
+        }
+        return result;
+    }
+
+    public int getDimension() {
+        return n;
+    }
+
+    /**
+     * Fills rows [start, start + band.length) of the correlation matrix; band rows must have length n.
+     */
+    public void fillBand(int start, float[][] band) {
+        int numRows = Math.min(band.length, n - start);
+        AtomicInteger index = new AtomicInteger(0);
+        TaskScope.launchParallelizedCode(numThreads, () -> {
+            double[] products = new double[n];
+            int r = index.getAndIncrement();
+            while (r < numRows) {
+                fillRow(start + r, band[r], products);
+                r = index.getAndIncrement();
+            }
+        });
+    }
+
+    private void fillRow(int i, float[] output, double[] products) {
+        if (!statistics.isValid(i)) {
+            Arrays.fill(output, Float.NaN);
+            return;
+        }
+
+        Arrays.fill(products, 0);
+        int[] cols = rows.getColumns(i);
+        float[] vals = rows.getValues(i);
+        for (int k = 0; k < cols.length; k++) {
+            double v = vals[k];
+            int[] cols2 = rows.getColumns(cols[k]);
+            float[] vals2 = rows.getValues(cols[k]);
+            for (int z = 0; z < cols2.length; z++) {
+                products[cols2[z]] += v * vals2[z];
+            }
+        }
+
+        for (int j = 0; j < n; j++) {
+            if (j == i) {
+                output[j] = hasOtherValidRows ? 1 : Float.NaN;
+            } else if (statistics.isValid(j)) {
+                output[j] = (float) statistics.getCorrelation(i, j, products[j]);
+            } else {
+                output[j] = Float.NaN;
+            }
+        }
+    }
+}
@@ -25,11 +25,10 @@
 package hic.tools.utils.stats;
 
 import hic.tools.utils.original.Chunk;
+import hic.tools.utils.tasks.TaskScope;
 import javastraw.reader.basics.ChromosomeHandler;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ParallelStatistics {
@@ -62,14 +61,7 @@ public class ParallelStatistics {
     }
 
     public void launchThreads() {
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
-        for (int l = 0; l < numThreads; l++) {
-            executor.execute(() -> runParallelizedStatistics(mergedContainer));
-        }
-        executor.shutdown();
-        // Wait until all threads finish
-        while (!executor.isTerminated()) {
-        }
+        TaskScope.launchParallelizedCode(numThreads, () -> runParallelizedStatistics(mergedContainer));
     }
 
     public void runParallelizedStatistics(final StatisticsContainer mergedContainer) {
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package hic.tools.utils.tasks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of tasks that is always finished together: join() returns once every forked task has completed,
+ * and if any task fails the others are cancelled and the failure is rethrown from join().
+ * <p>
+ * Tasks run on one shared pool of daemon threads that are created on demand and reused, so a scope costs no
+ * thread start-up once the pool is warm and scopes can be nested (e.g. a per-chromosome task that runs a
+ * parallel multiply) without starving each other.  Callers bound the parallelism by the number of tasks they
+ * fork, as they did with fixed-size executors.
+ */
+public class TaskScope implements AutoCloseable {
+
+    private static final AtomicInteger threadCounter = new AtomicInteger(0);
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "hic-worker-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CompletionService<Object> completionService = new ExecutorCompletionService<>(WORKERS);
+    private final List<Future<?>> forked = new ArrayList<>();
+    private final Set<Future<?>> submitted = ConcurrentHashMap.newKeySet();
+    private int numOutstanding = 0;
+
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> fork(Callable<T> task) {
+        Future<T> future = (Future<T>) completionService.submit((Callable<Object>) task);
+        forked.add(future);
+        numOutstanding++;
+        return future;
+    }
+
+    public Future<?> fork(Runnable task) {
+        Future<?> future = completionService.submit(task, null);
+        forked.add(future);
+        numOutstanding++;
+        return future;
+    }
+
+    /**
+     * Run a task whose result the caller takes itself with get(), instead of through join().
+     * The scope only keeps the task until it finishes, so it can still be cancelled by close(),
+     * but a consumed result is not kept reachable for the life of the scope.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                submitted.remove(this);
+            }
+        };
+        submitted.add(future);
+        WORKERS.execute(future);
+        return future;
+    }
+
+    /**
+     * Wait for every task forked so far, in the order they finish
+     *
+     * @throws ExecutionException for the first task that failed, after the rest have been cancelled
+     */
+    public void join() throws InterruptedException, ExecutionException {
+        try {
+            while (numOutstanding > 0) {
+                Future<Object> done = completionService.take();
+                numOutstanding--;
+                if (!done.isCancelled()) {
+                    done.get();
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            cancelAll();
+            throw e;
+        }
+        forked.clear();
+    }
+
+    private void cancelAll() {
+        for (Future<?> future : forked) {
+            future.cancel(true);
+        }
+        forked.clear();
+        numOutstanding = 0;
+        for (Future<?> future : submitted) {
+            future.cancel(true);
+        }
+        submitted.clear();
+    }
+
+    /**
+     * Cancels anything that was not joined
+     */
+    @Override
+    public void close() {
+        cancelAll();
+    }
+
+    /**
+     * Run the same code on numThreads threads and wait for all of them; the tasks usually share an atomic
+     * counter to divide up the work
+     */
+    public static void launchParallelizedCode(int numThreads, Runnable runnable) {
+        try (TaskScope scope = new TaskScope()) {
+            for (int i = 0; i < numThreads; i++) {
+                scope.fork(runnable);
+            }
+            scope.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020-2022 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package hic.tools.utils.largelists;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The SCALE chunk kernels with the incubator Vector API, at the preferred vector width of the CPU.
+ * <p>
+ * Needs Java 16+ and {@code --add-modules jdk.incubator.vector} both to compile and to run; FloatKernels
+ * loads this class reflectively and falls back to the scalar loops otherwise. The lane-wise operations
+ * are the same IEEE float operations as the scalar loops (int to float conversion, no fused multiply-add),
+ * comparisons skip NaN the same way, and only max and count are reduced, so results are bitwise identical
+ * apart from the sign of NaN results.
+ * The tail of each chunk shorter than one vector runs through the scalar loops.
+ * <p>
+ * setWhere keeps the scalar loop, which C2 already vectorizes; a blend or masked store measured slower.
+ */
+class VectorFloatKernels extends FloatKernels {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    VectorFloatKernels() {
+        if (FLOATS.length() != INTS.length()) {
+            throw new UnsupportedOperationException("Float and int vectors differ in length");
+        }
+    }
+
+    @Override
+    String getName() {
+        return "vector (" + FLOATS.vectorBitSize() + " bit)";
+    }
+
+    private static FloatVector toFloats(IntVector ints) {
+        return (FloatVector) ints.convert(VectorOperators.I2F, 0);
+    }
+
+    private static VectorMask<Float> notBad(int[] bad, int z) {
+        return IntVector.fromArray(INTS, bad, z).compare(VectorOperators.NE, 1).cast(FLOATS);
+    }
+
+    @Override
+    float maxAbsError(float[] col, float[] scale, int[] target, int[] bad) {
+        int bound = FLOATS.loopBound(col.length);
+        FloatVector errs = FloatVector.zero(FLOATS);
+        for (int z = 0; z < bound; z += FLOATS.length()) {
+            FloatVector product = FloatVector.fromArray(FLOATS, col, z).mul(FloatVector.fromArray(FLOATS, scale, z));
+            FloatVector tempErr = product.sub(toFloats(IntVector.fromArray(INTS, target, z))).abs();
+            errs = errs.blend(tempErr, tempErr.compare(VectorOperators.GT, errs).and(notBad(bad, z)));
+        }
+        float err = errs.reduceLanes(VectorOperators.MAX);
+        for (int z = bound; z < col.length; z++) {
+            if (bad[z] == 1) continue;
+            float tempErr = Math.abs(col[z] * scale[z] - target[z]);
+            if (tempErr > err) {
+                err = tempErr;
+            }
+        }
+        return err;
+    }
+
+    private static FloatVector relativeErrors(float[] calc, float[] curr, int z) {
+        FloatVector a = FloatVector.fromArray(FLOATS, calc, z);
+        FloatVector b = FloatVector.fromArray(FLOATS, curr, z);
+        return a.sub(b).div(a.add(b)).abs();
+    }
+
+    @Override
+    float maxRelativeError(float[] calc, float[] curr, int[] bad) {
+        int bound = FLOATS.loopBound(calc.length);
+        FloatVector errs = FloatVector.zero(FLOATS);
+        for (int z = 0; z < bound; z += FLOATS.length()) {
+            FloatVector relativeErr = relativeErrors(calc, curr, z);
+            errs = errs.blend(relativeErr, relativeErr.compare(VectorOperators.GT, errs).and(notBad(bad, z)));
+        }
+        float err = errs.reduceLanes(VectorOperators.MAX);
+        for (int z = bound; z < calc.length; z++) {
+            if (bad[z] == 1) continue;
+            float relativeErr = Math.abs((calc[z] - curr[z]) / (calc[z] + curr[z]));
+            if (relativeErr > err) {
+                err = relativeErr;
+            }
+        }
+        return err;
+    }
+
+    @Override
+    int countRelativeErrorsAbove(float[] calc, float[] curr, int[] bad, float threshold) {
+        int bound = FLOATS.loopBound(calc.length);
+        int count = 0;
+        for (int z = 0; z < bound; z += FLOATS.length()) {
+            count += relativeErrors(calc, curr, z).compare(VectorOperators.GT, threshold)
+                    .and(notBad(bad, z)).trueCount();
+        }
+        for (int z = bound; z < calc.length; z++) {
+            if (bad[z] == 1) continue;
+            if (Math.abs((calc[z] - curr[z]) / (calc[z] + curr[z])) > threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    void setToGeoMean(float[] result, float[] a, float[] b) {
+        int bound = FLOATS.loopBound(result.length);
+        for (int p = 0; p < bound; p += FLOATS.length()) {
+            FloatVector.fromArray(FLOATS, a, p).mul(FloatVector.fromArray(FLOATS, b, p))
+                    .sqrt().intoArray(result, p);
+        }
+        for (int p = bound; p < result.length; p++) {
+            result[p] = (float) Math.sqrt(a[p] * b[p]);
+        }
+    }
+
+    @Override
+    void multiplyBy(float[] orig, float[] factors) {
+        int bound = FLOATS.loopBound(orig.length);
+        for (int p = 0; p < bound; p += FLOATS.length()) {
+            FloatVector.fromArray(FLOATS, orig, p).mul(FloatVector.fromArray(FLOATS, factors, p)).intoArray(orig, p);
+        }
+        for (int p = bound; p < orig.length; p++) {
+            orig[p] *= factors[p];
+        }
+    }
+
+    @Override
+    void multiplyByOneMinus(float[] orig, int[] mask) {
+        int bound = FLOATS.loopBound(orig.length);
+        IntVector ones = IntVector.broadcast(INTS, 1);
+        for (int p = 0; p < bound; p += FLOATS.length()) {
+            FloatVector factors = toFloats(ones.sub(IntVector.fromArray(INTS, mask, p)));
+            FloatVector.fromArray(FLOATS, orig, p).mul(factors).intoArray(orig, p);
+        }
+        for (int p = bound; p < orig.length; p++) {
+            orig[p] *= (1 - mask[p]);
+        }
+    }
+
+    @Override
+    void setToDivision(float[] orig, int[] num, float[] denom) {
+        int bound = FLOATS.loopBound(orig.length);
+        for (int p = 0; p < bound; p += FLOATS.length()) {
+            toFloats(IntVector.fromArray(INTS, num, p)).div(FloatVector.fromArray(FLOATS, denom, p))
+                    .intoArray(orig, p);
+        }
+        for (int p = bound; p < orig.length; p++) {
+            orig[p] = num[p] / denom[p];
+        }
+    }
+
+    @Override
+    void scaleByRatio(float[] orig, int[] num, float[] denom) {
+        int bound = FLOATS.loopBound(orig.length);
+        for (int p = 0; p < bound; p += FLOATS.length()) {
+            FloatVector ratio = toFloats(IntVector.fromArray(INTS, num, p)).div(FloatVector.fromArray(FLOATS, denom, p));
+            FloatVector.fromArray(FLOATS, orig, p).mul(ratio).intoArray(orig, p);
+        }
+        for (int p = bound; p < orig.length; p++) {
+            orig[p] *= (num[p] / denom[p]);
+        }
+    }
+}